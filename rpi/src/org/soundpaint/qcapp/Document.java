@@ -32,7 +32,7 @@ import java.util.ArrayList;
 import java.util.EventListener;
 import java.util.List;
 
-public class Document
+public class Document implements RecordSource
 {
   public static interface Listener extends EventListener
   {
@@ -40,15 +40,34 @@ public class Document
   }
 
   private final List<Listener> listeners;
-  private final List<QuadCop.DataRecord> data;
+  private List<QuadCop.DataRecord> data;
+  private boolean shared;
+
+  // records encoded as sent to the QuadCop, built on demand; records
+  // are only ever appended or all cleared, hence an image covering
+  // the first wireImageSize records remains valid across edits
+  private byte[] wireImage;
+  private int wireImageSize;
 
   private Document()
   {
     listeners = new ArrayList<Listener> ();
     data = new ArrayList<QuadCop.DataRecord>();
+    shared = false;
+    wireImage = new byte[0];
+    wireImageSize = 0;
+  }
+
+  private Document(final List<QuadCop.DataRecord> data)
+  {
+    listeners = new ArrayList<Listener> ();
+    this.data = data;
+    shared = true;
+    wireImage = new byte[0];
+    wireImageSize = 0;
   }
 
-  public int size()
+  public synchronized int size()
   {
     return data.size();
   }
@@ -63,17 +82,22 @@ public class Document
     return listeners.remove(listener);
   }
 
-  public int getNumberOfRecords()
+  public synchronized int getNumberOfRecords()
   {
     return data.size();
   }
 
+  public synchronized QuadCop.DataRecord getRecord(final int index)
+  {
+    return data.get(index);
+  }
+
   public long getByteLength()
   {
     return getNumberOfRecords() * QuadCop.DataRecord.getByteLength();
   }
 
-  public void saveToFile(final File file) throws IOException
+  public synchronized void saveToFile(final File file) throws IOException
   {
     final OutputStream out =
       new BufferedOutputStream(new FileOutputStream(file));
@@ -100,41 +124,73 @@ public class Document
     return new Document();
   }
 
+  /**
+   * Creates a document that shares the given records rather than
+   * copying them, until it is modified for the first time.  Hence,
+   * the list must never change, as e.g. an InstantReplay.Snapshot.
+   */
+  public static Document createShared(final List<QuadCop.DataRecord> data)
+  {
+    if (data == null) {
+      throw new NullPointerException("data");
+    }
+    return new Document(data);
+  }
+
+  private void unshare()
+  {
+    if (shared) {
+      data = new ArrayList<QuadCop.DataRecord>(data);
+      shared = false;
+    }
+  }
+
+  /**
+   * Loads a recorder file of any supported format version.  A
+   * trailing incomplete record, as left by an interrupted recording,
+   * is ignored.
+   */
   public static Document createFromFile(final File file) throws IOException
   {
     final InputStream in =
       new BufferedInputStream(new FileInputStream(file));
     final Document document = new Document();
-    while (in.available() > 0) {
-      final QuadCop.DataRecord record = readRecord(in);
-      document.data.add(record);
+    try {
+      RecFormat.readHeader(in);
+      final byte[] buffer = new byte[QuadCop.DataRecord.getByteLength()];
+      QuadCop.DataRecord record;
+      while ((record = readRecord(in, buffer)) != null) {
+        document.data.add(record);
+      }
+    } finally {
+      in.close();
     }
-    in.close();
     return document;
   }
 
-  private static QuadCop.DataRecord readRecord(final InputStream in)
+  private static QuadCop.DataRecord readRecord(final InputStream in,
+                                               final byte[] buffer)
     throws IOException
   {
-    final byte status = (byte)in.read();
-    final byte ctrlLever0 = (byte)in.read();
-    final byte ctrlLever1 = (byte)in.read();
-    final byte ctrlLever2 = (byte)in.read();
-    final byte ctrlLever3 = (byte)in.read();
-    final byte buttons = (byte)in.read();
-    final QuadCop.DataRecord record =
-      new QuadCop.DataRecord(status,
-                             ctrlLever0,
-                             ctrlLever1,
-                             ctrlLever2,
-                             ctrlLever3,
-                             buttons);
-    return record;
+    final int length = RecFormat.readFully(in, buffer, 0, buffer.length);
+    if (length < buffer.length) {
+      return null;
+    }
+    return QuadCop.DataRecord.fromBytes(buffer, 0);
   }
 
   public void clear()
   {
-    data.clear();
+    synchronized(this) {
+      if (shared) {
+        data = new ArrayList<QuadCop.DataRecord>();
+        shared = false;
+      } else {
+        data.clear();
+      }
+      wireImageSize = 0;
+    }
+    notifyListeners();
   }
 
   private void notifyListeners()
@@ -146,12 +202,118 @@ public class Document
 
   public void addRecord(QuadCop.DataRecord record)
   {
-    data.add(record);
+    synchronized(this) {
+      unshare();
+      data.add(record);
+    }
     notifyListeners();
   }
 
+  public synchronized void copyBytesTo(final byte[] buffer,
+                                      final int startIndex,
+                                      final int endIndex)
+  {
+    if ((startIndex < 0) || (startIndex > endIndex) ||
+        (endIndex > data.size())) {
+      throw new IndexOutOfBoundsException("bad range: " +
+                                          startIndex + ", " + endIndex);
+    }
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    int offset = 0;
+    for (int i = startIndex; i < endIndex; i++) {
+      data.get(i).copyTo(buffer, offset);
+      offset += byteLength;
+    }
+  }
+
+  public FlightStatistics computeStatistics()
+  {
+    return FlightStatistics.compute(this, true);
+  }
+
   public int copyTo(final QuadCop.DataRecord[] destination,
                     final int startIndex, final int endIndex)
+  {
+    return copyTo(destination, 0, startIndex, endIndex);
+  }
+
+  /**
+   * Like copyTo(), but stores the records packed as by
+   * RecordRing.pack(), without allocating anything.
+   */
+  public synchronized int copyPackedTo(final long[] destination,
+                                       final int destinationOffset,
+                                       final int startIndex,
+                                       final int endIndex)
+  {
+    if ((startIndex < 0) || (startIndex > endIndex) ||
+        (endIndex > data.size())) {
+      throw new IndexOutOfBoundsException("bad range: " +
+                                          startIndex + ", " + endIndex);
+    }
+    int destinationIndex = destinationOffset;
+    for (int i = startIndex; i < endIndex; i++) {
+      destination[destinationIndex++] = RecordRing.pack(data.get(i));
+    }
+    return endIndex - startIndex;
+  }
+
+  /**
+   * Like copyPackedTo(), but additionally stores the records encoded
+   * as by SerialWriter.encode() into wireDestination, starting at
+   * destinationOffset * SerialWriter.WIRE_LENGTH.  The encoding is
+   * copied from an image of the whole document that is built once on
+   * demand and kept until the document is cleared, such that
+   * repeated playing, possibly to several devices at once, does not
+   * encode any record again.
+   */
+  public synchronized int copyPackedTo(final long[] destination,
+                                       final byte[] wireDestination,
+                                       final int destinationOffset,
+                                       final int startIndex,
+                                       final int endIndex)
+  {
+    final int length =
+      copyPackedTo(destination, destinationOffset, startIndex, endIndex);
+    updateWireImage(endIndex);
+    System.arraycopy(wireImage, startIndex * SerialWriter.WIRE_LENGTH,
+                     wireDestination,
+                     destinationOffset * SerialWriter.WIRE_LENGTH,
+                     length * SerialWriter.WIRE_LENGTH);
+    return length;
+  }
+
+  /**
+   * Extends the wire image such that it covers at least the records
+   * up to endIndex.  While a document is being recorded, the image
+   * grows like an ArrayList, such that each record is encoded only
+   * once.
+   */
+  private void updateWireImage(final int endIndex)
+  {
+    if (endIndex <= wireImageSize) {
+      return;
+    }
+    final int size = data.size();
+    final int byteLength = size * SerialWriter.WIRE_LENGTH;
+    if (wireImage.length < byteLength) {
+      final byte[] grown =
+        new byte[Math.max(byteLength,
+                          wireImage.length + (wireImage.length >> 1))];
+      System.arraycopy(wireImage, 0, grown, 0,
+                       wireImageSize * SerialWriter.WIRE_LENGTH);
+      wireImage = grown;
+    }
+    for (int i = wireImageSize; i < size; i++) {
+      SerialWriter.encode(data.get(i), wireImage,
+                          i * SerialWriter.WIRE_LENGTH);
+    }
+    wireImageSize = size;
+  }
+
+  public synchronized int copyTo(final QuadCop.DataRecord[] destination,
+                                 final int destinationOffset,
+                                 final int startIndex, final int endIndex)
   {
     if (startIndex < 0) {
       throw new IllegalArgumentException("startIndex < 0");
@@ -164,7 +326,7 @@ public class Document
     }
     final int length = endIndex - startIndex;
     if (length > 0) {
-      int destinationIndex = 0;
+      int destinationIndex = destinationOffset;
       for (int i = startIndex; i < endIndex; i++) {
         destination[destinationIndex++] = data.get(i);
       }
@@ -53,6 +53,7 @@ public class DocumentManager implements Document.Listener
   private final QuadCopApp quadCopApp;
   private final JFileChooser fileChooser;
   private final List<Listener> listeners;
+  private final UpdateBus.Flag documentChangedFlag;
   private Status status;
   private File file;
   private Document document;
@@ -73,11 +74,20 @@ public class DocumentManager implements Document.Listener
     fileChooser.setFileFilter(DEFAULT_FILE_FILTER);
     fileChooser.setCurrentDirectory(new File("").getAbsoluteFile());
     listeners = new ArrayList<Listener>();
+    documentChangedFlag =
+      quadCopApp.getUpdateBus().createFlag(() -> {
+          updateDocumentStatus();
+        });
     status = Status.EMPTY_UNNAMED_DOCUMENT;
     file = null;
     document = null;
   }
 
+  public boolean hasDocument()
+  {
+    return document != null;
+  }
+
   public Document getDocument()
   {
     if (document == null) {
@@ -127,14 +137,29 @@ public class DocumentManager implements Document.Listener
       (status == Status.MODIFIED_NAMED_DOCUMENT);
   }
 
+  /**
+   * Called for each record added to the document, possibly from the
+   * serial reader thread; the status is updated later on the event
+   * dispatch thread.
+   */
   public void documentChanged()
   {
+    documentChangedFlag.raise();
+  }
+
+  private void updateDocumentStatus()
+  {
+    if (document == null) {
+      // document closed meanwhile
+      return;
+    }
     if (status == Status.EMPTY_UNNAMED_DOCUMENT) {
       updateStatus(Status.MODIFIED_UNNAMED_DOCUMENT);
     } else if (status == Status.UNMODIFIED_NAMED_DOCUMENT) {
       updateStatus(Status.MODIFIED_NAMED_DOCUMENT);
     } else {
-      // document already modified => nothing to do
+      // document already modified => just report the new size
+      updateStatus(status);
     }
   }
 
@@ -329,6 +354,28 @@ public class DocumentManager implements Document.Listener
     }
   }
 
+  /**
+   * Replaces the current document by the given one, e.g. a captured
+   * replay, after confirming to discard any changes.  Returns false,
+   * if the replacement was aborted.
+   */
+  public boolean replaceDocument(final Document document,
+                                 final String title)
+  {
+    if (document == null) {
+      throw new NullPointerException("document");
+    }
+    if (isModified() && !confirmDiscardChanges(title)) {
+      return false;
+    }
+    this.document = document;
+    updateFileAssociation(null);
+    updateStatus(document.size() > 0 ?
+                 Status.MODIFIED_UNNAMED_DOCUMENT :
+                 Status.EMPTY_UNNAMED_DOCUMENT);
+    return true;
+  }
+
   private void addRecord(final QuadCop.DataRecord record)
   {
     if (document == null) {
@@ -23,11 +23,59 @@ package org.soundpaint.qcapp;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Plays a document, optionally at a speed other than the speed of
+ * recording.  For speeds other than 1.0, the player works as a
+ * streaming resampler: lever channels are interpolated linearly or
+ * with a cubic Hermite (Catmull-Rom) spline, while the status and
+ * buttons bytes are taken from the nearest source record.
+ *
+ * The playback position is kept as 32.32 fixed point number of
+ * source records, and the interpolation taps are kept in a small
+ * sliding window of primitive values, such that resampling itself
+ * does not allocate anything on the serial writer's producer thread.
+ */
 public class DocumentPlayer implements QCPlayer
 {
+  public enum Interpolation {
+    LINEAR("Linear"),
+    CUBIC_HERMITE("Cubic");
+
+    private final String label;
+
+    private Interpolation(final String label)
+    {
+      this.label = label;
+    }
+
+    public String toString()
+    {
+      return label;
+    }
+  };
+
+  public static final double MIN_SPEED = 0.1;
+  public static final double MAX_SPEED = 4.0;
+  public static final double DEFAULT_SPEED = 1.0;
+
+  private static final int FRACTION_BITS = 32;
+  private static final long FRACTION_MASK = (1L << FRACTION_BITS) - 1;
+  private static final double FRACTION_SCALE = 1.0 / (1L << FRACTION_BITS);
+  private static final int TAPS = 4;
+  private static final int CHANNELS = 6;
+
+  // progress strings from "0.00%" up to "100.00%", created on demand
+  private static final String[] PERCENT_STRINGS = new String[10001];
+
   private final Document document;
   private final List<ProgressListener> progressListeners;
+  private final int[] taps;
+  private int tapsIndex;
+  private long position;
   private int index;
+  private volatile double speed;
+  private volatile Interpolation interpolation;
+  private long[] unpackBuffer;
 
   private DocumentPlayer()
   {
@@ -41,7 +89,58 @@ public class DocumentPlayer implements QCPlayer
     }
     this.document = document;
     progressListeners = new ArrayList<ProgressListener>();
+    taps = new int[TAPS * CHANNELS];
+    tapsIndex = Integer.MIN_VALUE;
+    position = 0;
     index = 0;
+    speed = DEFAULT_SPEED;
+    interpolation = Interpolation.CUBIC_HERMITE;
+    unpackBuffer = new long[0];
+  }
+
+  /**
+   * Sets the playback speed relative to the speed of recording.  The
+   * value is clamped to the range [MIN_SPEED, MAX_SPEED].  May be
+   * called from any thread while playing; the new speed takes effect
+   * with the next chunk.
+   */
+  public void setSpeed(final double speed)
+  {
+    if (Double.isNaN(speed)) {
+      throw new IllegalArgumentException("speed is NaN");
+    }
+    this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+  }
+
+  public double getSpeed()
+  {
+    return speed;
+  }
+
+  public void setInterpolation(final Interpolation interpolation)
+  {
+    if (interpolation == null) {
+      throw new NullPointerException("interpolation");
+    }
+    this.interpolation = interpolation;
+  }
+
+  public Interpolation getInterpolation()
+  {
+    return interpolation;
+  }
+
+  public Document getDocument()
+  {
+    return document;
+  }
+
+  /**
+   * Returns the index of the next source record to play.
+   */
+  public int getIndex()
+  {
+    return index;
   }
 
   public boolean addProgressListener(final ProgressListener progressListener)
@@ -66,9 +165,11 @@ public class DocumentPlayer implements QCPlayer
 
   private void progressChanged()
   {
-    for (final ProgressListener progressListener : progressListeners) {
-      progressListener.progressChanged(getProgress(), getProgressAsString(),
-                                       index, document.size());
+    // called for each chunk => no iterator
+    for (int i = 0; i < progressListeners.size(); i++) {
+      progressListeners.get(i).progressChanged(getProgress(),
+                                               getProgressAsString(),
+                                               index, document.size());
     }
   }
 
@@ -77,13 +178,36 @@ public class DocumentPlayer implements QCPlayer
     return (1.0 * index) / document.size();
   }
 
-  public String getProgressAsString()
+  /**
+   * Returns the progress in units of 0.01%.
+   */
+  int getProgressBasisPoints()
   {
     final int size = document.size();
-    final int progress = size > 0 ? (10000 * index) / size : 10000;
-    final int intPart = progress / 100;
-    final int fractionPart = progress % 100;
-    return String.format("%d.%02d%%", intPart, fractionPart);
+    return size > 0 ? (int)((10000L * Math.min(index, size)) / size) : 10000;
+  }
+
+  public String getProgressAsString()
+  {
+    return getPercentString(getProgressBasisPoints());
+  }
+
+  /**
+   * Returns the given progress in units of 0.01% as a string, such as
+   * "12.34%".  Players call this for each chunk => each string is
+   * created only once.
+   */
+  static String getPercentString(final int progress)
+  {
+    String percent = PERCENT_STRINGS[progress];
+    if (percent == null) {
+      final int intPart = progress / 100;
+      final int fractionPart = progress % 100;
+      percent =
+        intPart + (fractionPart < 10 ? ".0" : ".") + fractionPart + "%";
+      PERCENT_STRINGS[progress] = percent;
+    }
+    return percent;
   }
 
   public int available()
@@ -93,12 +217,29 @@ public class DocumentPlayer implements QCPlayer
 
   public int provideNextChunk(final QuadCop.DataRecord[] buffer)
   {
-    final int preferredNextIndex = index + buffer.length;
-    final int maxNextIndex = document.size();
-    final int nextIndex =
-      preferredNextIndex <= maxNextIndex ? preferredNextIndex : maxNextIndex;
-    final int copied = document.copyTo(buffer, index, nextIndex);
-    index = nextIndex;
+    final int copied = provideRecords(buffer, 0, buffer.length);
+    progressChanged();
+    if (available() == 0) {
+      endOfStreamReached();
+    }
+    return copied;
+  }
+
+  public int provideNextPackedChunk(final long[] buffer,
+                                    final int offset, final int length)
+  {
+    final int copied = providePackedRecords(buffer, offset, length);
+    progressChanged();
+    if (available() == 0) {
+      endOfStreamReached();
+    }
+    return copied;
+  }
+
+  public int provideNextWireChunk(final long[] buffer, final byte[] wire,
+                                  final int offset, final int length)
+  {
+    final int copied = provideWireRecords(buffer, wire, offset, length);
     progressChanged();
     if (available() == 0) {
       endOfStreamReached();
@@ -106,6 +247,159 @@ public class DocumentPlayer implements QCPlayer
     return copied;
   }
 
+  /**
+   * Stores up to length next records into the buffer, starting at the
+   * given offset, without notifying progress listeners.  Returns the
+   * number of records stored, which is less than length only at the
+   * end of the document.  Used by players that splice several
+   * documents into a single stream of chunks.
+   */
+  int provideRecords(final QuadCop.DataRecord[] buffer,
+                     final int offset, final int length)
+  {
+    if (unpackBuffer.length < length) {
+      unpackBuffer = new long[length];
+    }
+    final int count = providePackedRecords(unpackBuffer, 0, length);
+    for (int i = 0; i < count; i++) {
+      buffer[offset + i] = RecordRing.unpack(unpackBuffer[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Like provideRecords(), but stores the records packed as by
+   * RecordRing.pack(), without allocating anything.
+   */
+  int providePackedRecords(final long[] buffer,
+                           final int offset, final int length)
+  {
+    return provideWireRecords(buffer, null, offset, length);
+  }
+
+  /**
+   * Like providePackedRecords(), but additionally stores the records'
+   * wire encoding into wire, unless null.  At native speed, the
+   * encoding is copied from the document's wire image; resampled
+   * records are encoded one by one.
+   */
+  int provideWireRecords(final long[] buffer, final byte[] wire,
+                         final int offset, final int length)
+  {
+    final int size = document.size();
+    final long step = (long)(speed * (1L << FRACTION_BITS));
+    if ((step == 1L << FRACTION_BITS) && ((position & FRACTION_MASK) == 0)) {
+      // native speed => plain copy, no resampling needed
+      final int preferredNextIndex = index + length;
+      final int nextIndex =
+        preferredNextIndex <= size ? preferredNextIndex : size;
+      final int copied =
+        wire != null ?
+        document.copyPackedTo(buffer, wire, offset, index, nextIndex) :
+        document.copyPackedTo(buffer, offset, index, nextIndex);
+      index = nextIndex;
+      position = (long)index << FRACTION_BITS;
+      return copied;
+    } else {
+      final int count = resample(buffer, offset, length, size, step);
+      if (wire != null) {
+        for (int i = offset; i < offset + count; i++) {
+          SerialWriter.encode(buffer[i], wire, i * SerialWriter.WIRE_LENGTH);
+        }
+      }
+      return count;
+    }
+  }
+
+  private int resample(final long[] buffer,
+                       final int offset, final int length,
+                       final int size, final long step)
+  {
+    final boolean cubic = interpolation == Interpolation.CUBIC_HERMITE;
+    int count = 0;
+    int sourceIndex;
+    while ((count < length) &&
+           ((sourceIndex = (int)(position >>> FRACTION_BITS)) < size)) {
+      final double t = (position & FRACTION_MASK) * FRACTION_SCALE;
+      loadTaps(sourceIndex, size);
+      // status and buttons: nearest neighbour
+      final int nearest = t < 0.5 ? 1 : 2;
+      final byte status = (byte)taps[nearest * CHANNELS];
+      final byte buttons = (byte)taps[nearest * CHANNELS + 5];
+      buffer[offset + count++] =
+        RecordRing.pack(status,
+                        interpolate(1, t, cubic),
+                        interpolate(2, t, cubic),
+                        interpolate(3, t, cubic),
+                        interpolate(4, t, cubic),
+                        buttons);
+      position += step;
+    }
+    index = Math.min((int)(position >>> FRACTION_BITS), size);
+    return count;
+  }
+
+  /**
+   * Fills the tap window with source records sourceIndex - 1 up to
+   * sourceIndex + 2, clamped to the document's bounds.  When the
+   * window just slides by one record, only the new tap is fetched.
+   */
+  private void loadTaps(final int sourceIndex, final int size)
+  {
+    if (sourceIndex == tapsIndex) {
+      return;
+    }
+    if (sourceIndex == tapsIndex + 1) {
+      System.arraycopy(taps, CHANNELS, taps, 0, (TAPS - 1) * CHANNELS);
+      loadTap(TAPS - 1, sourceIndex + 2, size);
+    } else {
+      for (int tap = 0; tap < TAPS; tap++) {
+        loadTap(tap, sourceIndex - 1 + tap, size);
+      }
+    }
+    tapsIndex = sourceIndex;
+  }
+
+  private void loadTap(final int tap, final int sourceIndex, final int size)
+  {
+    final int clampedIndex = Math.max(0, Math.min(size - 1, sourceIndex));
+    final QuadCop.DataRecord record = document.getRecord(clampedIndex);
+    final int offset = tap * CHANNELS;
+    taps[offset] = record.getStatus();
+    taps[offset + 1] = record.getCtrlLever0() & 0xff;
+    taps[offset + 2] = record.getCtrlLever1() & 0xff;
+    taps[offset + 3] = record.getCtrlLever2() & 0xff;
+    taps[offset + 4] = record.getCtrlLever3() & 0xff;
+    taps[offset + 5] = record.getButtons();
+  }
+
+  private byte interpolate(final int channel, final double t,
+                           final boolean cubic)
+  {
+    final int p1 = taps[CHANNELS + channel];
+    final int p2 = taps[2 * CHANNELS + channel];
+    final double value;
+    if (cubic) {
+      final int p0 = taps[channel];
+      final int p3 = taps[3 * CHANNELS + channel];
+      // Catmull-Rom spline, i.e. cubic Hermite with central
+      // difference tangents
+      final double m1 = 0.5 * (p2 - p0);
+      final double m2 = 0.5 * (p3 - p1);
+      final double t2 = t * t;
+      final double t3 = t2 * t;
+      value =
+        (2.0 * t3 - 3.0 * t2 + 1.0) * p1 +
+        (t3 - 2.0 * t2 + t) * m1 +
+        (-2.0 * t3 + 3.0 * t2) * p2 +
+        (t3 - t2) * m2;
+    } else {
+      value = p1 + (p2 - p1) * t;
+    }
+    final long rounded = Math.round(value);
+    return (byte)(rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded));
+  }
+
   private static final long RE_REPORT_BUFFER_UNDERRUN_ONLY_AFTER_MS = 1000;
   private long lastBufferUnderrunReported = 0;
 
@@ -0,0 +1,760 @@
+/*
+ * @(#)DspPipeline.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Offline signal processing of a document's control lever channels.
+ *
+ * Each lever has its own chain of filters.  The pipeline extracts
+ * the lever values as whole columns of primitive values, runs each
+ * chain stage by stage over its column, and assembles a new document
+ * from the processed columns and the original status and buttons
+ * bytes.
+ *
+ * Filters declare how many neighbouring samples they need.  Filters
+ * with bounded context (e.g. lookup tables or median windows) are
+ * split into chunks that are processed in parallel by fork / join;
+ * recursive filters (e.g. IIR low pass) run over the whole column,
+ * while different levers still run in parallel.  Hence, the result
+ * is the same regardless of the number of threads involved.
+ */
+public class DspPipeline
+{
+  public static final int LEVERS = 4;
+
+  /**
+   * Context value for filters whose output depends on all previous
+   * samples, such that the column can not be split into chunks.
+   */
+  public static final int RECURSIVE = -1;
+
+  public static interface Filter
+  {
+    /**
+     * Returns the number of samples on each side of a sample that
+     * this filter reads for computing the sample's output value, or
+     * RECURSIVE.
+     */
+    public int getContext();
+
+    /**
+     * Computes dst[from] up to dst[to - 1] from src.  Reads src only
+     * within the filter's context around [from, to), clamped to the
+     * column's bounds.  Values are unsigned lever values in the range
+     * 0 to 255.
+     */
+    public void apply(final int[] src, final int[] dst,
+                      final int from, final int to);
+  }
+
+  /**
+   * Base class for filters that map each sample independently, by
+   * means of a precomputed table.
+   */
+  public abstract static class LookupFilter implements Filter
+  {
+    private final int[] table;
+
+    protected LookupFilter()
+    {
+      table = new int[256];
+    }
+
+    protected void buildTable()
+    {
+      for (int value = 0; value < 256; value++) {
+        table[value] = clamp((int)Math.round(map(value)));
+      }
+    }
+
+    protected abstract double map(final int value);
+
+    public int getContext()
+    {
+      return 0;
+    }
+
+    public void apply(final int[] src, final int[] dst,
+                      final int from, final int to)
+    {
+      final int[] table = this.table;
+      for (int i = from; i < to; i++) {
+        dst[i] = table[src[i] & 0xff];
+      }
+    }
+  }
+
+  /**
+   * One-pole IIR low pass y[n] = alpha * x[n] + (1 - alpha) * y[n-1],
+   * the host side counterpart of the firmware's loopback filter.
+   */
+  public static class LowPass implements Filter
+  {
+    private final double alpha;
+
+    private LowPass()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public LowPass(final double alpha)
+    {
+      if (!(alpha > 0.0) || (alpha > 1.0)) {
+        throw new IllegalArgumentException("alpha not in (0, 1]: " + alpha);
+      }
+      this.alpha = alpha;
+    }
+
+    public int getContext()
+    {
+      return RECURSIVE;
+    }
+
+    public void apply(final int[] src, final int[] dst,
+                      final int from, final int to)
+    {
+      final double beta = 1.0 - alpha;
+      double y = from < to ? src[from] : 0.0;
+      for (int i = from; i < to; i++) {
+        y = alpha * src[i] + beta * y;
+        dst[i] = clamp((int)Math.round(y));
+      }
+    }
+  }
+
+  /**
+   * Keeps the output at its previous value until the input leaves a
+   * window of +/- threshold around it, the host side counterpart of
+   * the firmware's jitter gate.
+   */
+  public static class JitterGate implements Filter
+  {
+    private final int threshold;
+
+    private JitterGate()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public JitterGate(final int threshold)
+    {
+      if (threshold < 0) {
+        throw new IllegalArgumentException("threshold < 0");
+      }
+      this.threshold = threshold;
+    }
+
+    public int getContext()
+    {
+      return RECURSIVE;
+    }
+
+    public void apply(final int[] src, final int[] dst,
+                      final int from, final int to)
+    {
+      int held = from < to ? src[from] : 0;
+      for (int i = from; i < to; i++) {
+        final int diff = src[i] - held;
+        if ((diff < -threshold) || (diff > threshold)) {
+          held = src[i];
+        }
+        dst[i] = held;
+      }
+    }
+  }
+
+  /**
+   * Replaces each sample by the median of the window of 2 * radius + 1
+   * samples centered around it, thus removing isolated spikes while
+   * keeping edges.
+   */
+  public static class MedianDespike implements Filter
+  {
+    private final int radius;
+
+    private MedianDespike()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public MedianDespike(final int radius)
+    {
+      if (radius < 1) {
+        throw new IllegalArgumentException("radius < 1");
+      }
+      this.radius = radius;
+    }
+
+    public int getContext()
+    {
+      return radius;
+    }
+
+    public void apply(final int[] src, final int[] dst,
+                      final int from, final int to)
+    {
+      final int last = src.length - 1;
+      if (radius == 1) {
+        for (int i = from; i < to; i++) {
+          final int a = src[i > 0 ? i - 1 : 0];
+          final int b = src[i];
+          final int c = src[i < last ? i + 1 : last];
+          dst[i] = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        }
+        return;
+      }
+      final int width = 2 * radius + 1;
+      final int[] window = new int[width];
+      for (int i = from; i < to; i++) {
+        // insertion sort of a small window is cheaper than anything
+        // fancier for the radii that make sense here
+        for (int k = 0; k < width; k++) {
+          final int j = i - radius + k;
+          final int value = src[j < 0 ? 0 : (j > last ? last : j)];
+          int pos = k;
+          while ((pos > 0) && (window[pos - 1] > value)) {
+            window[pos] = window[pos - 1];
+            pos--;
+          }
+          window[pos] = value;
+        }
+        dst[i] = window[radius];
+      }
+    }
+  }
+
+  /**
+   * Snaps values within +/- width around center to center, and
+   * rescales the remaining range such that the full range is kept.
+   */
+  public static class DeadBand extends LookupFilter
+  {
+    private final int center;
+    private final int width;
+
+    private DeadBand()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public DeadBand(final int center, final int width)
+    {
+      if ((center < 0) || (center > 255)) {
+        throw new IllegalArgumentException("center not in [0, 255]");
+      }
+      if ((width < 0) || (width > 127)) {
+        throw new IllegalArgumentException("width not in [0, 127]");
+      }
+      this.center = center;
+      this.width = width;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      if (value > center + width) {
+        final double range = 255 - center - width;
+        return center + (value - center - width) * (255 - center) / range;
+      } else if (value < center - width) {
+        final double range = center - width;
+        return center - (center - width - value) * center / range;
+      } else {
+        return center;
+      }
+    }
+  }
+
+  /**
+   * Exponential response curve around the center position, as known
+   * from RC transmitters: factor 0 is linear, factor 1 is pure cubic,
+   * i.e. finer control around the center.
+   */
+  public static class Expo extends LookupFilter
+  {
+    private final double factor;
+
+    private Expo()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Expo(final double factor)
+    {
+      if (!(factor >= 0.0) || (factor > 1.0)) {
+        throw new IllegalArgumentException("factor not in [0, 1]: " + factor);
+      }
+      this.factor = factor;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      final double x = (value - 127.5) / 127.5;
+      final double y = (1.0 - factor) * x + factor * x * x * x;
+      return 127.5 + 127.5 * y;
+    }
+  }
+
+  /**
+   * Reduces the resolution of the lever values to multiples of step.
+   */
+  public static class Requantize extends LookupFilter
+  {
+    private final int step;
+
+    private Requantize()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Requantize(final int step)
+    {
+      if ((step < 1) || (step > 128)) {
+        throw new IllegalArgumentException("step not in [1, 128]");
+      }
+      this.step = step;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      return Math.round((double)value / step) * step;
+    }
+  }
+
+  /**
+   * Shifts all values by offset, e.g. for compensating a remote
+   * whose center is off.
+   */
+  public static class Trim extends LookupFilter
+  {
+    private final int offset;
+
+    private Trim()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Trim(final int offset)
+    {
+      if ((offset < -255) || (offset > 255)) {
+        throw new IllegalArgumentException("offset not in [-255, 255]");
+      }
+      this.offset = offset;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      return value + offset;
+    }
+  }
+
+  /**
+   * Scales the distance from center by factor, e.g. for adapting to
+   * a quadcop that responds more strongly.
+   */
+  public static class Scale extends LookupFilter
+  {
+    private final double factor;
+    private final int center;
+
+    private Scale()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Scale(final double factor, final int center)
+    {
+      if (!(factor >= 0.0) || (factor > 16.0)) {
+        throw new IllegalArgumentException("factor not in [0, 16]: " +
+                                           factor);
+      }
+      if ((center < 0) || (center > 255)) {
+        throw new IllegalArgumentException("center not in [0, 255]");
+      }
+      this.factor = factor;
+      this.center = center;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      return center + (value - center) * factor;
+    }
+  }
+
+  /**
+   * Reverses the direction of a lever.
+   */
+  public static class Invert extends LookupFilter
+  {
+    public Invert()
+    {
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      return 255 - value;
+    }
+  }
+
+  /**
+   * Clamps values to the range [min, max].
+   */
+  public static class Limit extends LookupFilter
+  {
+    private final int min;
+    private final int max;
+
+    private Limit()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Limit(final int min, final int max)
+    {
+      if ((min < 0) || (min > max) || (max > 255)) {
+        throw new IllegalArgumentException("bad limits: " + min + ", " + max);
+      }
+      this.min = min;
+      this.max = max;
+      buildTable();
+    }
+
+    protected double map(final int value)
+    {
+      return value < min ? min : (value > max ? max : value);
+    }
+  }
+
+  private static int clamp(final int value)
+  {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  /**
+   * Columns shorter than this are processed in a single task.
+   */
+  private static final int CHUNK_SIZE = 16384;
+
+  private final List<List<Filter>> chains;
+
+  public DspPipeline()
+  {
+    chains = new ArrayList<List<Filter>>();
+    for (int lever = 0; lever < LEVERS; lever++) {
+      chains.add(new ArrayList<Filter>());
+    }
+  }
+
+  /**
+   * Appends the filter to the chain of the specified lever.
+   */
+  public DspPipeline add(final int lever, final Filter filter)
+  {
+    if ((lever < 0) || (lever >= LEVERS)) {
+      throw new IllegalArgumentException("bad lever index: " + lever);
+    }
+    if (filter == null) {
+      throw new NullPointerException("filter");
+    }
+    chains.get(lever).add(filter);
+    return this;
+  }
+
+  /**
+   * Appends the filter to the chains of all levers.
+   */
+  public DspPipeline add(final Filter filter)
+  {
+    for (int lever = 0; lever < LEVERS; lever++) {
+      add(lever, filter);
+    }
+    return this;
+  }
+
+  /**
+   * Parses a comma separated list of filters, each of the form
+   * [LEVER@]NAME[:ARG[:ARG]], e.g. "median:1,lowpass:0.5,2@expo:0.3".
+   * Filters without lever prefix apply to all levers.  Known names
+   * are lowpass:ALPHA, gate:THRESHOLD, median:RADIUS,
+   * deadband:WIDTH[:CENTER], expo:FACTOR, quantize:STEP, trim:OFFSET,
+   * scale:FACTOR[:CENTER], invert, and limit:MIN:MAX.
+   */
+  public static DspPipeline parse(final String spec)
+  {
+    final DspPipeline pipeline = new DspPipeline();
+    if (spec.trim().isEmpty()) {
+      return pipeline;
+    }
+    for (final String item : spec.split(",")) {
+      String filterSpec = item.trim();
+      int lever = -1;
+      final int at = filterSpec.indexOf('@');
+      if (at >= 0) {
+        lever = parseInt(filterSpec.substring(0, at), filterSpec);
+        filterSpec = filterSpec.substring(at + 1);
+      }
+      final String[] args = filterSpec.split(":");
+      final String name = args[0];
+      final Filter filter;
+      if ("lowpass".equals(name) && (args.length == 2)) {
+        filter = new LowPass(parseDouble(args[1], item));
+      } else if ("gate".equals(name) && (args.length == 2)) {
+        filter = new JitterGate(parseInt(args[1], item));
+      } else if ("median".equals(name) && (args.length == 2)) {
+        filter = new MedianDespike(parseInt(args[1], item));
+      } else if ("deadband".equals(name) &&
+                 ((args.length == 2) || (args.length == 3))) {
+        final int center =
+          args.length == 3 ? parseInt(args[2], item) : FlightStatistics.CENTER;
+        filter = new DeadBand(center, parseInt(args[1], item));
+      } else if ("expo".equals(name) && (args.length == 2)) {
+        filter = new Expo(parseDouble(args[1], item));
+      } else if ("quantize".equals(name) && (args.length == 2)) {
+        filter = new Requantize(parseInt(args[1], item));
+      } else if ("trim".equals(name) && (args.length == 2)) {
+        filter = new Trim(parseInt(args[1], item));
+      } else if ("scale".equals(name) &&
+                 ((args.length == 2) || (args.length == 3))) {
+        final int center =
+          args.length == 3 ? parseInt(args[2], item) : FlightStatistics.CENTER;
+        filter = new Scale(parseDouble(args[1], item), center);
+      } else if ("invert".equals(name) && (args.length == 1)) {
+        filter = new Invert();
+      } else if ("limit".equals(name) && (args.length == 3)) {
+        filter = new Limit(parseInt(args[1], item), parseInt(args[2], item));
+      } else {
+        throw new IllegalArgumentException("bad filter: " + item);
+      }
+      if (lever >= 0) {
+        pipeline.add(lever, filter);
+      } else {
+        pipeline.add(filter);
+      }
+    }
+    return pipeline;
+  }
+
+  private static int parseInt(final String value, final String item)
+  {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (final NumberFormatException ex) {
+      throw new IllegalArgumentException("bad filter: " + item, ex);
+    }
+  }
+
+  private static double parseDouble(final String value, final String item)
+  {
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (final NumberFormatException ex) {
+      throw new IllegalArgumentException("bad filter: " + item, ex);
+    }
+  }
+
+  /**
+   * Composes the chain of the specified lever into a single table of
+   * 256 output values, indexed by input value.  All filters of the
+   * chain must be lookup filters.
+   */
+  public int[] compileTable(final int lever)
+  {
+    if ((lever < 0) || (lever >= LEVERS)) {
+      throw new IllegalArgumentException("bad lever index: " + lever);
+    }
+    int[] table = new int[256];
+    for (int value = 0; value < 256; value++) {
+      table[value] = value;
+    }
+    int[] next = new int[256];
+    for (final Filter filter : chains.get(lever)) {
+      if (!(filter instanceof LookupFilter)) {
+        throw new IllegalArgumentException("not a lookup filter: " +
+                                           filter.getClass().getSimpleName());
+      }
+      filter.apply(table, next, 0, 256);
+      final int[] swap = table;
+      table = next;
+      next = swap;
+    }
+    return table;
+  }
+
+  public boolean isEmpty()
+  {
+    for (final List<Filter> chain : chains) {
+      if (!chain.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class StageTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = -1869530651839301520L;
+
+    private final Filter filter;
+    private final int[] src;
+    private final int[] dst;
+    private final int from;
+    private final int to;
+
+    private StageTask(final Filter filter, final int[] src, final int[] dst,
+                      final int from, final int to)
+    {
+      this.filter = filter;
+      this.src = src;
+      this.dst = dst;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute()
+    {
+      if ((to - from <= CHUNK_SIZE) ||
+          (filter.getContext() == RECURSIVE)) {
+        filter.apply(src, dst, from, to);
+      } else {
+        final int middle = (from + to) >>> 1;
+        ForkJoinTask.invokeAll(new StageTask(filter, src, dst, from, middle),
+                               new StageTask(filter, src, dst, middle, to));
+      }
+    }
+  }
+
+  private static class ChainTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 4446811046738009173L;
+
+    private final List<Filter> chain;
+    private final int[][] columns;
+    private final int lever;
+    private final boolean parallel;
+
+    private ChainTask(final List<Filter> chain, final int[][] columns,
+                      final int lever, final boolean parallel)
+    {
+      this.chain = chain;
+      this.columns = columns;
+      this.lever = lever;
+      this.parallel = parallel;
+    }
+
+    protected void compute()
+    {
+      int[] src = columns[lever];
+      int[] dst = new int[src.length];
+      for (final Filter filter : chain) {
+        final StageTask stage =
+          new StageTask(filter, src, dst, 0, src.length);
+        if (parallel) {
+          stage.compute();
+        } else {
+          filter.apply(src, dst, 0, src.length);
+        }
+        final int[] swap = src;
+        src = dst;
+        dst = swap;
+      }
+      columns[lever] = src;
+    }
+  }
+
+  /**
+   * Applies all filter chains to the levers of the source document
+   * and returns the result as new document.  The source document is
+   * not modified.
+   */
+  public Document process(final Document document)
+  {
+    return process(document, true);
+  }
+
+  public Document process(final Document document, final boolean parallel)
+  {
+    final int size = document.size();
+    final int[][] columns = new int[LEVERS][size];
+    final byte[] status = new byte[size];
+    final byte[] buttons = new byte[size];
+    for (int i = 0; i < size; i++) {
+      final QuadCop.DataRecord record = document.getRecord(i);
+      status[i] = record.getStatus();
+      columns[0][i] = record.getCtrlLever0() & 0xff;
+      columns[1][i] = record.getCtrlLever1() & 0xff;
+      columns[2][i] = record.getCtrlLever2() & 0xff;
+      columns[3][i] = record.getCtrlLever3() & 0xff;
+      buttons[i] = record.getButtons();
+    }
+    process(columns, parallel);
+    final Document result = Document.createNew();
+    for (int i = 0; i < size; i++) {
+      result.addRecord(new QuadCop.DataRecord(status[i],
+                                              (byte)columns[0][i],
+                                              (byte)columns[1][i],
+                                              (byte)columns[2][i],
+                                              (byte)columns[3][i],
+                                              buttons[i]));
+    }
+    return result;
+  }
+
+  /**
+   * Processes lever columns in place, i.e. columns[lever] is replaced
+   * by the processed column.  All columns must have the same length.
+   */
+  public void process(final int[][] columns, final boolean parallel)
+  {
+    if (columns.length != LEVERS) {
+      throw new IllegalArgumentException("expected " + LEVERS + " columns");
+    }
+    final List<ChainTask> tasks = new ArrayList<ChainTask>();
+    for (int lever = 0; lever < LEVERS; lever++) {
+      if (!chains.get(lever).isEmpty()) {
+        tasks.add(new ChainTask(chains.get(lever), columns, lever, parallel));
+      }
+    }
+    if (parallel && (columns[0].length > CHUNK_SIZE)) {
+      // outside of a fork / join pool, this forks into the common pool
+      ForkJoinTask.invokeAll(tasks);
+    } else {
+      for (final ChainTask task : tasks) {
+        task.compute();
+      }
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
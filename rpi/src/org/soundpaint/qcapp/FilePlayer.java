@@ -0,0 +1,569 @@
+/*
+ * @(#)FilePlayer.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plays a recorder file by streaming it from disk, without loading
+ * it as a whole.
+ *
+ * Read-ahead tasks read the file in blocks into a small, fixed set
+ * of buffers that are handed over to the serial writer's producer
+ * thread via a bounded queue and recycled afterwards.  A task is
+ * submitted whenever a buffer gets free and runs until all free
+ * buffers are filled, such that several players may share a few
+ * threads rather than each keeping its own read-ahead thread busy.
+ * If reading falls behind, the player provides what it has rather
+ * than blocking, and counts a read-ahead stall.
+ *
+ * Speeds other than 1.0 are implemented by picking the nearest
+ * source record, with the playback position kept as 32.32 fixed
+ * point number of source records.  Optionally, the player paces
+ * itself to a fixed record rate rather than relying on the
+ * QuadCop's flow control alone.
+ */
+public class FilePlayer implements QCPlayer
+{
+  public static final int BLOCK_RECORDS = 1024;
+  public static final int READ_AHEAD_BLOCKS = 8;
+
+  private static final int FRACTION_BITS = 32;
+
+  private static class Block
+  {
+    private final byte[] data;
+    private int size;
+    private int loop;
+    private int firstIndex;
+
+    private Block()
+    {
+      data = new byte[BLOCK_RECORDS * QuadCop.DataRecord.getByteLength()];
+      size = 0;
+      loop = 0;
+      firstIndex = 0;
+    }
+  }
+
+  /**
+   * Marks the end of the stream in the queue of filled blocks.
+   */
+  private static final Block END_OF_STREAM = new Block();
+
+  private final File file;
+  private final FileChannel channel;
+  private final long dataOffset;
+  private final int size;
+  private final int startIndex;
+  private final int loops;
+  private final long step;
+  private final BlockingQueue<Block> filledBlocks;
+  private final BlockingQueue<Block> freeBlocks;
+  private final ExecutorService ownExecutor;
+  private final Executor executor;
+  private final AtomicBoolean refilling;
+  private final Object readLock;
+  private final List<ProgressListener> progressListeners;
+  private volatile IOException readException;
+  private volatile boolean stopRequested;
+
+  // state of the read-ahead task, guarded by readLock
+  private int readLoop;
+  private int readIndex;
+  private volatile boolean readDone;
+
+  // state of the serial writer's producer thread
+  private Block block;
+  private long position;
+  private int playedIndex;
+  private boolean endOfStream;
+  private int rate;
+  private long pacingStartNanos;
+  private long firstChunkNanos;
+  private long lastChunkNanos;
+  private long[] unpackBuffer;
+
+  // statistics, written by the producer thread only
+  private volatile long recordsPlayed;
+  private volatile long chunks;
+  private volatile long underruns;
+  private volatile long readAheadStalls;
+
+  private FilePlayer()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param startIndex The index of the first record to play in each
+   * loop.
+   * @param loops The number of times to play the file, or 0 for
+   * playing it endlessly.
+   * @param speed The playback speed relative to the speed of
+   * recording, clamped to the range [DocumentPlayer.MIN_SPEED,
+   * DocumentPlayer.MAX_SPEED].
+   */
+  public FilePlayer(final File file, final int startIndex, final int loops,
+                    final double speed)
+    throws IOException
+  {
+    this(file, startIndex, loops, speed, null);
+  }
+
+  /**
+   * @param executor Runs the read-ahead tasks, e.g. a pool shared by
+   * several players, or null for a private read-ahead thread.
+   */
+  public FilePlayer(final File file, final int startIndex, final int loops,
+                    final double speed, final Executor executor)
+    throws IOException
+  {
+    if (file == null) {
+      throw new NullPointerException("file");
+    }
+    if (loops < 0) {
+      throw new IllegalArgumentException("loops must not be negative");
+    }
+    if (Double.isNaN(speed)) {
+      throw new IllegalArgumentException("speed is NaN");
+    }
+    this.file = file;
+    channel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      final ByteBuffer head =
+        ByteBuffer.allocate(RecFormat.MAX_HEADER_LENGTH);
+      channel.read(head, 0);
+      head.flip();
+      final RecFormat.Header header = RecFormat.readHeader(head);
+      dataOffset = header.getDataOffset();
+      final long records =
+        (channel.size() - dataOffset) / QuadCop.DataRecord.getByteLength();
+      if (records > Integer.MAX_VALUE) {
+        throw new IOException("file too large: " + file);
+      }
+      size = (int)Math.max(0, records);
+    } catch (final IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    if ((startIndex < 0) || (startIndex > size)) {
+      channel.close();
+      throw new IllegalArgumentException("start index out of range [0, " +
+                                         size + "]: " + startIndex);
+    }
+    this.startIndex = startIndex;
+    this.loops = loops;
+    final double clampedSpeed =
+      Math.max(DocumentPlayer.MIN_SPEED,
+               Math.min(DocumentPlayer.MAX_SPEED, speed));
+    step = Math.round(clampedSpeed * (1L << FRACTION_BITS));
+    filledBlocks = new ArrayBlockingQueue<Block>(READ_AHEAD_BLOCKS + 1);
+    freeBlocks = new ArrayBlockingQueue<Block>(READ_AHEAD_BLOCKS);
+    for (int i = 0; i < READ_AHEAD_BLOCKS; i++) {
+      freeBlocks.add(new Block());
+    }
+    progressListeners = new ArrayList<ProgressListener>();
+    readException = null;
+    stopRequested = false;
+    block = null;
+    position = 0;
+    playedIndex = startIndex;
+    endOfStream = false;
+    rate = 0;
+    pacingStartNanos = 0;
+    firstChunkNanos = 0;
+    lastChunkNanos = 0;
+    unpackBuffer = new long[0];
+    recordsPlayed = 0;
+    chunks = 0;
+    underruns = 0;
+    readAheadStalls = 0;
+    readLoop = 0;
+    readIndex = startIndex;
+    readDone = startIndex == size; // nothing to play
+    readLock = new Object();
+    refilling = new AtomicBoolean(false);
+    if (executor != null) {
+      ownExecutor = null;
+      this.executor = executor;
+    } else {
+      ownExecutor = Executors.newSingleThreadExecutor((final Runnable r) -> {
+          final Thread thread = new Thread(r, "FilePlayer read-ahead");
+          thread.setDaemon(true);
+          return thread;
+        });
+      this.executor = ownExecutor;
+    }
+    if (readDone) {
+      filledBlocks.add(END_OF_STREAM);
+    }
+    requestRefill();
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /**
+   * Returns the number of records per loop in the file.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Lets the player provide records at the given rate per second,
+   * or, for rate 0, as fast as requested.  Must be called before
+   * playing starts.
+   */
+  public void setRate(final int rate)
+  {
+    if (rate < 0) {
+      throw new IllegalArgumentException("rate must not be negative");
+    }
+    this.rate = rate;
+  }
+
+  public int getRate()
+  {
+    return rate;
+  }
+
+  /**
+   * Submits a read-ahead task, unless one is already pending or
+   * reading is complete.
+   */
+  private void requestRefill()
+  {
+    if (stopRequested || readDone || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+          refill();
+        });
+    } catch (final RejectedExecutionException ex) {
+      // executor shut down => player is being closed
+      refilling.set(false);
+    }
+  }
+
+  private void refill()
+  {
+    synchronized(readLock) {
+      final boolean wasDone = readDone;
+      try {
+        while (!readDone && !stopRequested) {
+          final Block free = freeBlocks.poll();
+          if (free == null) {
+            break;
+          }
+          readBlock(free);
+          filledBlocks.add(free);
+        }
+      } catch (final IOException ex) {
+        if (!stopRequested) {
+          readException = ex;
+        }
+        readDone = true;
+      }
+      if (readDone && !wasDone) {
+        filledBlocks.offer(END_OF_STREAM);
+      }
+    }
+    refilling.set(false);
+    if (!freeBlocks.isEmpty() && !readDone) {
+      // a block got free after polling the last time
+      requestRefill();
+    }
+  }
+
+  private void readBlock(final Block free) throws IOException
+  {
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final int count = Math.min(BLOCK_RECORDS, size - readIndex);
+    final ByteBuffer buffer =
+      ByteBuffer.wrap(free.data, 0, count * byteLength);
+    long filePosition = dataOffset + (long)readIndex * byteLength;
+    while (buffer.hasRemaining()) {
+      final int result = channel.read(buffer, filePosition);
+      if (result < 0) {
+        throw new IOException("unexpected end of file: " + file);
+      }
+      filePosition += result;
+    }
+    free.size = count;
+    free.loop = readLoop;
+    free.firstIndex = readIndex;
+    readIndex += count;
+    if (readIndex >= size) {
+      readLoop++;
+      readIndex = startIndex;
+      readDone = (loops != 0) && (readLoop >= loops);
+    }
+  }
+
+  /**
+   * Returns the exception that stopped reading the file, or null.
+   */
+  public IOException getReadException()
+  {
+    return readException;
+  }
+
+  public boolean addProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.add(progressListener);
+  }
+
+  public boolean removeProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.remove(progressListener);
+  }
+
+  /**
+   * Advances to the next filled block, if any, without blocking.
+   * Returns false, if there is currently no block to play from.
+   */
+  private boolean nextBlock()
+  {
+    if (block != null) {
+      // the position carries over into the next block
+      playedIndex = block.firstIndex + block.size;
+      position -= (long)block.size << FRACTION_BITS;
+      freeBlocks.offer(block);
+      block = null;
+      requestRefill();
+    }
+    final Block next = filledBlocks.poll();
+    if (next == null) {
+      readAheadStalls++;
+      requestRefill();
+      return false;
+    }
+    if (next == END_OF_STREAM) {
+      endOfStream = true;
+      return false;
+    }
+    block = next;
+    return true;
+  }
+
+  /**
+   * Returns the number of records that may be provided now without
+   * exceeding the rate, waiting until at least one is due.
+   */
+  private int awaitDueRecords(final int maxCount)
+  {
+    if (rate == 0) {
+      return maxCount;
+    }
+    while (true) {
+      final long elapsed = System.nanoTime() - pacingStartNanos;
+      final long due = elapsed * rate / 1000000000L - recordsPlayed;
+      if (due > 0) {
+        return (int)Math.min(maxCount, due);
+      }
+      final long waitNanos =
+        (recordsPlayed + 1) * 1000000000L / rate - elapsed;
+      try {
+        Thread.sleep(waitNanos / 1000000L, (int)(waitNanos % 1000000L));
+      } catch (final InterruptedException ex) {
+        return 0;
+      }
+    }
+  }
+
+  public int provideNextChunk(final QuadCop.DataRecord[] buffer)
+  {
+    if (unpackBuffer.length < buffer.length) {
+      unpackBuffer = new long[buffer.length];
+    }
+    final int count = provideNextPackedChunk(unpackBuffer, 0, buffer.length);
+    for (int i = 0; i < count; i++) {
+      buffer[i] = RecordRing.unpack(unpackBuffer[i]);
+    }
+    return count;
+  }
+
+  public int provideNextPackedChunk(final long[] buffer,
+                                    final int bufferOffset,
+                                    final int length)
+  {
+    if (endOfStream) {
+      return 0;
+    }
+    final long now = System.nanoTime();
+    if (chunks == 0) {
+      firstChunkNanos = now;
+      pacingStartNanos = now;
+    }
+    final int maxCount = awaitDueRecords(length);
+    int count = 0;
+    while (count < maxCount) {
+      if ((block == null) ||
+          ((position >>> FRACTION_BITS) >= block.size)) {
+        if (!nextBlock()) {
+          break;
+        }
+        continue;
+      }
+      final int offset =
+        (int)(position >>> FRACTION_BITS) * QuadCop.DataRecord.getByteLength();
+      buffer[bufferOffset + count++] = RecordRing.pack(block.data, offset);
+      position += step;
+    }
+    recordsPlayed += count;
+    chunks++;
+    lastChunkNanos = System.nanoTime();
+    if (endOfStream) {
+      fireEndOfStreamReached();
+    } else if ((count > 0) && !progressListeners.isEmpty()) {
+      fireProgressChanged();
+    }
+    return count;
+  }
+
+  private void fireProgressChanged()
+  {
+    // while the read-ahead stalls, no block is left to compute from
+    final int index =
+      Math.min(block != null ?
+               block.firstIndex + (int)(position >>> FRACTION_BITS) :
+               playedIndex, size);
+    final int progress = size > 0 ? (int)((10000L * index) / size) : 10000;
+    final String progressAsPercent = DocumentPlayer.getPercentString(progress);
+    for (final ProgressListener progressListener : progressListeners) {
+      progressListener.progressChanged(0.0001 * progress, progressAsPercent,
+                                       index, size);
+    }
+  }
+
+  private void fireEndOfStreamReached()
+  {
+    for (final ProgressListener progressListener : progressListeners) {
+      progressListener.endOfStreamReached();
+    }
+  }
+
+  public void bufferUnderrunDetected()
+  {
+    if (!endOfStream) {
+      underruns++;
+    }
+  }
+
+  public boolean isEndOfStreamReached()
+  {
+    return endOfStream;
+  }
+
+  /**
+   * Returns the loop that the next record to play belongs to,
+   * starting with 0.
+   */
+  public int getLoop()
+  {
+    final Block current = block;
+    return current != null ? current.loop : 0;
+  }
+
+  public long getRecordsPlayed()
+  {
+    return recordsPlayed;
+  }
+
+  public long getChunks()
+  {
+    return chunks;
+  }
+
+  /**
+   * Returns the number of buffer underruns reported by the serial
+   * writer before the end of stream.
+   */
+  public long getUnderruns()
+  {
+    return underruns;
+  }
+
+  /**
+   * Returns the number of times that reading ahead had not
+   * yet provided the next block when it was needed.
+   */
+  public long getReadAheadStalls()
+  {
+    return readAheadStalls;
+  }
+
+  /**
+   * Returns the time between the start of the first and the end of
+   * the last chunk provided, in nanoseconds.
+   */
+  public long getPlayingNanos()
+  {
+    return lastChunkNanos - firstChunkNanos;
+  }
+
+  /**
+   * Stops reading ahead and closes the file.
+   */
+  public void close() throws IOException
+  {
+    stopRequested = true;
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+      try {
+        ownExecutor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (final InterruptedException ex) {
+        // ignore
+      }
+    }
+    synchronized(readLock) {
+      // wait for a read-ahead task in progress
+      channel.close();
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
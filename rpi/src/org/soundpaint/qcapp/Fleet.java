@@ -0,0 +1,664 @@
+/*
+ * @(#)Fleet.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import gnu.io.SerialPort;
+
+/**
+ * Drives several QuadCops at once.  Rather than running a reader, a
+ * writer and a producer thread per device like QuadCop does, each
+ * device is served by a short, non-blocking pump task that a small
+ * pool of threads shared by all devices runs periodically: the task
+ * decodes what has been received so far, tops up the device's
+ * receive buffer from its player, and returns.  Hence, the number of
+ * threads does not grow with the number of devices.
+ *
+ * Like QuadCop, a device reopens its port after the serial link was
+ * lost, and inserts a gap marker into the streams of its recorders.
+ */
+public class Fleet
+{
+  /**
+   * At 57600 baud, the QuadCop's receive buffer of 64 bytes lasts for
+   * about 11 ms, so a pump period of 4 ms keeps it filled while
+   * leaving the pool idle most of the time.
+   */
+  public static final long PUMP_PERIOD_MS = 4;
+
+  private static final int CHUNK_SIZE = 64;
+  private static final int READ_BUFFER_SIZE = 2000;
+
+  // AtMega serial buffer size is 64 bytes; keep at least one byte
+  // free, like SerialWriter does
+  private static final int TX_BUFFER_LIMIT = 63;
+
+  // bytes per second the device consumes at 57600 baud, 8N1
+  private static final long TX_BYTES_PER_SECOND = 5760;
+
+  private static final long MIN_RECONNECT_DELAY_MS = 20;
+  private static final long MAX_RECONNECT_DELAY_MS = 250;
+  private static final long CLOSE_TIMEOUT_MS = 250;
+
+  /**
+   * A single QuadCop of the fleet together with its pipeline.  All
+   * pipeline state is touched by the pump task only, which never
+   * runs concurrently with itself.
+   */
+  public static class Device
+  {
+    private final Fleet fleet;
+    private final String portName;
+    private final FrameDecoder decoder;
+    private final RecorderGroup recorders;
+    private final long[] chunk;
+    private final byte[] chunkWire;
+    private final byte[] readBuffer;
+    private final byte[] writeBuffer;
+    private volatile QCPlayer player;
+    private volatile OutputTransform transform;
+    private volatile boolean endOfStream;
+    private ScheduledFuture<?> task;
+    private SerialPort serialPort;
+    private InputStream in;
+    private OutputStream out;
+    private QCPlayer chunkPlayer;
+    private int chunkSize;
+    private int chunkIndex;
+    private boolean starving;
+    private long txLevel;
+    private long lastPumpNanos;
+    private long reconnectDelay;
+    private long reconnectNanos;
+    private long lastRecord;
+    private boolean closed;
+
+    // statistics, written by the pump task only
+    private volatile long recordsReceived;
+    private volatile long recordsSent;
+    private volatile long underruns;
+    private volatile int linkGaps;
+    private volatile int reconnects;
+    private volatile long pumps;
+    private volatile long pumpNanos;
+
+    private Device()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Device(final Fleet fleet, final String portName)
+      throws IOException
+    {
+      this.fleet = fleet;
+      this.portName = portName;
+      recorders = new RecorderGroup();
+      decoder = new FrameDecoder(new QCRecorder() {
+          public void recordReceived(final QuadCop.DataRecord record)
+          {
+            recordsReceived(new long[] { RecordRing.pack(record) }, 0, 1);
+          }
+
+          public void recordsReceived(final long[] packedRecords,
+                                      final int offset, final int count)
+          {
+            Device.this.recordsReceived(packedRecords, offset, count);
+          }
+        });
+      chunk = new long[CHUNK_SIZE];
+      chunkWire = new byte[CHUNK_SIZE * SerialWriter.WIRE_LENGTH];
+      readBuffer = new byte[READ_BUFFER_SIZE];
+      writeBuffer =
+        new byte[(TX_BUFFER_LIMIT / SerialWriter.WIRE_LENGTH) *
+                 SerialWriter.WIRE_LENGTH];
+      player = null;
+      transform = null;
+      endOfStream = false;
+      task = null;
+      chunkPlayer = null;
+      chunkSize = 0;
+      chunkIndex = 0;
+      starving = false;
+      txLevel = 0;
+      reconnectDelay = MIN_RECONNECT_DELAY_MS;
+      reconnectNanos = 0;
+      lastRecord = RecordRing.pack(new QuadCop.DataRecord());
+      closed = false;
+      recordsReceived = 0;
+      recordsSent = 0;
+      underruns = 0;
+      linkGaps = 0;
+      reconnects = 0;
+      pumps = 0;
+      pumpNanos = 0;
+      openPort();
+      lastPumpNanos = System.nanoTime();
+    }
+
+    private void openPort() throws IOException
+    {
+      final SerialPort port =
+        QuadCop.openSerialPort(QuadCop.findPortIdentifier(portName, false));
+      try {
+        in = port.getInputStream();
+        out = port.getOutputStream();
+      } catch (final IOException ex) {
+        port.close();
+        throw ex;
+      }
+      serialPort = port;
+      decoder.reset();
+      txLevel = 0;
+    }
+
+    private void closePort()
+    {
+      if (serialPort != null) {
+        try {
+          serialPort.close();
+        } catch (final RuntimeException ex) {
+          // port may already be gone with the device
+        }
+        serialPort = null;
+        in = null;
+        out = null;
+      }
+    }
+
+    public Fleet getFleet()
+    {
+      return fleet;
+    }
+
+    public String getPortName()
+    {
+      return portName;
+    }
+
+    private void recordsReceived(final long[] packedRecords,
+                                 final int offset, final int count)
+    {
+      if (count == 0) {
+        return;
+      }
+      lastRecord = packedRecords[offset + count - 1];
+      txLevel = RecordRing.getStatus(lastRecord) & 0x3f;
+      recordsReceived += count;
+      recorders.recordsReceived(packedRecords, offset, count);
+    }
+
+    /**
+     * Adds a recorder, which stays attached across reconnects and
+     * receives a gap marker for each loss of the serial link.
+     */
+    public boolean addRecorder(final QCRecorder recorder)
+    {
+      return recorders.add(recorder);
+    }
+
+    public boolean removeRecorder(final QCRecorder recorder)
+    {
+      return recorders.remove(recorder);
+    }
+
+    /**
+     * Lets the player provide the records to send to this device, or
+     * stops sending for null.  Replaces any previous player.
+     */
+    public void setPlayer(final QCPlayer player)
+    {
+      endOfStream = false;
+      if (player != null) {
+        player.addProgressListener(new QCPlayer.ProgressListener() {
+            public void endOfStreamReached()
+            {
+              if (player == Device.this.player) {
+                endOfStream = true;
+              }
+            }
+
+            public void progressChanged(final double progress,
+                                        final String progressAsPercent,
+                                        final int index,
+                                        final int size)
+            {
+            }
+          });
+      }
+      this.player = player;
+    }
+
+    public QCPlayer getPlayer()
+    {
+      return player;
+    }
+
+    /**
+     * Sets the transform to apply to each record sent to this device,
+     * or null for sending records unchanged.  Takes effect with the
+     * next records sent, also while playing.
+     */
+    public void setTransform(final OutputTransform transform)
+    {
+      this.transform = transform;
+    }
+
+    public OutputTransform getTransform()
+    {
+      return transform;
+    }
+
+    public boolean isEndOfStreamReached()
+    {
+      return endOfStream;
+    }
+
+    private synchronized void pump()
+    {
+      if (closed) {
+        return;
+      }
+      final long now = System.nanoTime();
+      try {
+        if (serialPort == null) {
+          reconnectIfDue(now);
+        }
+        if (serialPort != null) {
+          receive();
+          transmit(now);
+        }
+      } catch (final IOException ex) {
+        linkLost(ex, now);
+      }
+      lastPumpNanos = now;
+      pumps++;
+      pumpNanos += System.nanoTime() - now;
+    }
+
+    private void receive() throws IOException
+    {
+      int available;
+      while ((available = in.available()) > 0) {
+        final int len =
+          in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+        if (len < 0) {
+          throw new EOFException("serial port closed");
+        }
+        decoder.decode(readBuffer, 0, len);
+      }
+    }
+
+    /**
+     * Sends as many records as fit into the device's receive buffer.
+     * Since the buffer level reported by the device is outdated by
+     * the records sent since, the level is estimated from the bytes
+     * sent and the time passed until the next record arrives.
+     */
+    private void transmit(final long now) throws IOException
+    {
+      final long drained =
+        (now - lastPumpNanos) * TX_BYTES_PER_SECOND / 1000000000L;
+      txLevel = Math.max(0, txLevel - drained);
+      final int budget =
+        (int)Math.max(0, TX_BUFFER_LIMIT - txLevel) /
+        SerialWriter.WIRE_LENGTH;
+      final OutputTransform transform = this.transform;
+      int count = 0;
+      while (count < budget) {
+        if ((chunkIndex >= chunkSize) && !nextChunk()) {
+          break;
+        }
+        final int index = chunkIndex++;
+        if (RecordRing.isGapMarker(chunk[index])) {
+          continue;
+        }
+        final int offset = count++ * SerialWriter.WIRE_LENGTH;
+        if (transform != null) {
+          SerialWriter.encode(transform.apply(chunk[index]),
+                              writeBuffer, offset);
+        } else {
+          System.arraycopy(chunkWire, index * SerialWriter.WIRE_LENGTH,
+                           writeBuffer, offset, SerialWriter.WIRE_LENGTH);
+        }
+      }
+      if (count > 0) {
+        out.write(writeBuffer, 0, count * SerialWriter.WIRE_LENGTH);
+        out.flush();
+        txLevel += count * SerialWriter.WIRE_LENGTH;
+        recordsSent += count;
+      }
+    }
+
+    private boolean nextChunk()
+    {
+      final QCPlayer current = player;
+      if (current != chunkPlayer) {
+        // player replaced => drop what is left of the old one
+        chunkPlayer = current;
+        starving = false;
+      }
+      chunkIndex = 0;
+      chunkSize =
+        current != null ?
+        current.provideNextWireChunk(chunk, chunkWire, 0, chunk.length) : 0;
+      if (chunkSize > 0) {
+        starving = false;
+        return true;
+      }
+      if ((current != null) && !endOfStream && !starving) {
+        current.bufferUnderrunDetected();
+        underruns++;
+        starving = true;
+      }
+      return false;
+    }
+
+    private void linkLost(final IOException cause, final long now)
+    {
+      System.err.println("*** " + portName + ": serial link lost: " +
+                         cause.getMessage() + " ***");
+      closePort();
+      linkGaps++;
+      final QuadCop.DataRecord gapMarker =
+        QuadCop.DataRecord.createGapMarker(RecordRing.unpack(lastRecord));
+      recorders.recordReceived(gapMarker);
+      reconnectDelay = MIN_RECONNECT_DELAY_MS;
+      reconnectNanos = now + reconnectDelay * 1000000L;
+    }
+
+    private void reconnectIfDue(final long now)
+    {
+      if (now - reconnectNanos < 0) {
+        return;
+      }
+      try {
+        openPort();
+        reconnects++;
+        System.err.println("*** " + portName + ": serial link restored ***");
+      } catch (final IOException ex) {
+        reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY_MS);
+        reconnectNanos = now + reconnectDelay * 1000000L;
+      }
+    }
+
+    public synchronized boolean isConnected()
+    {
+      return serialPort != null;
+    }
+
+    public long getRecordsReceived()
+    {
+      return recordsReceived;
+    }
+
+    public long getRecordsSent()
+    {
+      return recordsSent;
+    }
+
+    /**
+     * Returns the number of times the player ran dry before the end
+     * of its stream.
+     */
+    public long getUnderruns()
+    {
+      return underruns;
+    }
+
+    public long getSynchronisationLosses()
+    {
+      return decoder.getSynchronisationLosses();
+    }
+
+    public int getLinkGaps()
+    {
+      return linkGaps;
+    }
+
+    public int getReconnects()
+    {
+      return reconnects;
+    }
+
+    /**
+     * Returns the average time that a single run of the pump task
+     * took, in nanoseconds.
+     */
+    public long getAveragePumpNanos()
+    {
+      final long count = pumps;
+      return count > 0 ? pumpNanos / count : 0;
+    }
+
+    public String getReport()
+    {
+      final StringBuffer s = new StringBuffer();
+      s.append(portName);
+      s.append(isConnected() ? "" : " (disconnected)");
+      s.append(": ").append(recordsReceived).append(" received, ");
+      s.append(recordsSent).append(" sent, ");
+      s.append(underruns).append(" underruns, ");
+      s.append(getSynchronisationLosses()).append(" sync losses, ");
+      s.append(linkGaps).append(" link gaps, ");
+      s.append(reconnects).append(" reconnects, ");
+      s.append(getAveragePumpNanos() / 1000).append(" us/pump");
+      return s.toString();
+    }
+
+    private void close()
+    {
+      if (task != null) {
+        task.cancel(false);
+      }
+      synchronized(this) {
+        // waits for a pump in progress
+        closed = true;
+        closePort();
+      }
+    }
+  }
+
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final List<Device> devices;
+
+  private Fleet()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param threads The number of threads shared by all devices, or 0
+   * for one thread per available processor.
+   */
+  public Fleet(final int threads)
+  {
+    if (threads < 0) {
+      throw new IllegalArgumentException("threads must not be negative");
+    }
+    final int poolSize =
+      threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    final AtomicInteger threadCount = new AtomicInteger(0);
+    scheduler = new ScheduledThreadPoolExecutor(poolSize,
+                                                (final Runnable r) -> {
+        final Thread thread =
+          new Thread(r, "Fleet worker " + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    scheduler.setRemoveOnCancelPolicy(true);
+    devices = new CopyOnWriteArrayList<Device>();
+  }
+
+  /**
+   * Returns the pool that runs the pump tasks, e.g. for running a
+   * FilePlayer's read-ahead tasks.  Tasks submitted must not block
+   * for longer than a short file read.
+   */
+  public Executor getExecutor()
+  {
+    return scheduler;
+  }
+
+  /**
+   * Returns the number of threads currently serving the fleet.
+   */
+  public int getThreadCount()
+  {
+    return scheduler.getPoolSize();
+  }
+
+  /**
+   * Opens the named serial port and adds it as device to this fleet.
+   */
+  public Device open(final String portName) throws IOException
+  {
+    if (portName == null) {
+      throw new NullPointerException("portName");
+    }
+    if (scheduler.isShutdown()) {
+      throw new IOException("fleet closed");
+    }
+    final Device device = new Device(this, portName);
+    devices.add(device);
+    device.task = scheduler.scheduleWithFixedDelay(() -> {
+        device.pump();
+      }, 0, PUMP_PERIOD_MS, TimeUnit.MILLISECONDS);
+    return device;
+  }
+
+  /**
+   * Opens all available serial ports.  Ports that fail to open are
+   * reported and skipped.
+   */
+  public List<Device> openAll() throws IOException
+  {
+    final List<Device> opened = new ArrayList<Device>();
+    for (final String portName : QuadCop.getAvailablePortNames()) {
+      try {
+        opened.add(open(portName));
+      } catch (final IOException ex) {
+        System.err.println("*** " + portName + ": " + ex.getMessage() +
+                           " ***");
+      }
+    }
+    if (opened.isEmpty()) {
+      throw new IOException("no serial port could be opened");
+    }
+    return opened;
+  }
+
+  public List<Device> getDevices()
+  {
+    return Collections.unmodifiableList(devices);
+  }
+
+  /**
+   * Plays the document on all devices at once, each with a player of
+   * its own.  Returns the players in the order of the devices, e.g.
+   * for adjusting their speed.
+   */
+  public List<DocumentPlayer> play(final Document document)
+  {
+    final List<DocumentPlayer> players = new ArrayList<DocumentPlayer>();
+    for (final Device device : devices) {
+      final DocumentPlayer player = new DocumentPlayer(document);
+      device.setPlayer(player);
+      players.add(player);
+    }
+    return players;
+  }
+
+  /**
+   * Stops sending to all devices.
+   */
+  public void stop()
+  {
+    for (final Device device : devices) {
+      device.setPlayer(null);
+    }
+  }
+
+  public boolean isEndOfStreamReached()
+  {
+    for (final Device device : devices) {
+      if ((device.getPlayer() != null) && !device.isEndOfStreamReached()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes the device from this fleet and closes its port.
+   */
+  public boolean close(final Device device)
+  {
+    if (!devices.remove(device)) {
+      return false;
+    }
+    device.close();
+    return true;
+  }
+
+  public String getReport()
+  {
+    final StringBuffer s = new StringBuffer();
+    s.append(devices.size()).append(" devices, ");
+    s.append(getThreadCount()).append(" threads\n");
+    for (final Device device : devices) {
+      s.append(device.getReport()).append("\n");
+    }
+    return s.toString();
+  }
+
+  public void close()
+  {
+    for (final Device device : devices) {
+      device.close();
+    }
+    devices.clear();
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException ex) {
+      // ignore
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,786 @@
+/*
+ * @(#)FlightMatcher.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Similarity of flights, based on dynamic time warping (DTW) over the
+ * four lever channels.  The distance of two frames is the squared
+ * euclidean distance of their lever vectors.
+ *
+ * Warping is restricted to a Sakoe-Chiba band around the diagonal,
+ * such that aligning two recordings costs time proportional to their
+ * length times the band width rather than to the product of their
+ * lengths.  Only two rows of accumulated costs are kept; for
+ * alignments, warping directions are stored as one byte per cell
+ * within the band.
+ *
+ * Searching a library of recordings for segments similar to a query
+ * slides a window of the query's length over each recording.  Most
+ * windows are rejected by the LB_Keogh lower bound against the
+ * query's band envelope, without computing DTW at all; the remaining
+ * ones compute DTW with early abandoning as soon as the best-so-far
+ * k-th distance is exceeded.  Recordings are split into chunks of
+ * window positions that are searched in parallel by fork / join.
+ */
+public class FlightMatcher
+{
+  public static final int LEVERS = 4;
+  public static final int DEFAULT_BAND = 32;
+
+  private static final long INFINITY = Long.MAX_VALUE;
+  private static final int CHUNK_SIZE = 4096;
+  private static final int BLOCK_SIZE = 4096;
+
+  private static final byte START = 0;
+  private static final byte DIAGONAL = 1;
+  private static final byte ADVANCE_A = 2;
+  private static final byte ADVANCE_B = 3;
+
+  /**
+   * Lever samples of a recording, stored frame by frame with the
+   * four levers of each frame next to each other.
+   */
+  public static class Series
+  {
+    private final String name;
+    private final int[] samples;
+    private final int offset;
+    private final int size;
+
+    private Series()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Series(final String name, final RecordSource source)
+    {
+      this.name = name;
+      size = source.size();
+      offset = 0;
+      samples = new int[size * LEVERS];
+      final int byteLength = QuadCop.DataRecord.getByteLength();
+      final byte[] block = new byte[BLOCK_SIZE * byteLength];
+      for (int index = 0; index < size; index += BLOCK_SIZE) {
+        final int blockEnd = Math.min(index + BLOCK_SIZE, size);
+        source.copyBytesTo(block, index, blockEnd);
+        for (int i = index; i < blockEnd; i++) {
+          final int src = (i - index) * byteLength + 1;
+          final int dst = i * LEVERS;
+          samples[dst] = block[src] & 0xff;
+          samples[dst + 1] = block[src + 1] & 0xff;
+          samples[dst + 2] = block[src + 2] & 0xff;
+          samples[dst + 3] = block[src + 3] & 0xff;
+        }
+      }
+    }
+
+    private Series(final String name, final int[] samples,
+                   final int offset, final int size)
+    {
+      this.name = name;
+      this.samples = samples;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    /**
+     * Returns a view of frames [from, to) of this series, sharing the
+     * samples.
+     */
+    public Series slice(final int from, final int to)
+    {
+      if ((from < 0) || (to > size) || (from > to)) {
+        throw new IndexOutOfBoundsException("[" + from + ", " + to + ")");
+      }
+      return new Series(name, samples, offset + from, to - from);
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    public int getLever(final int frame, final int lever)
+    {
+      return samples[(offset + frame) * LEVERS + lever];
+    }
+
+    public String toString()
+    {
+      return name != null ? name : "series";
+    }
+  }
+
+  /**
+   * The optimal warping path between two series within the band, and
+   * the deviation of each frame of the first series from the frames
+   * of the second series that it is aligned to.
+   */
+  public static class Alignment
+  {
+    private final Series a;
+    private final Series b;
+    private final long distance;
+    private final int[] pathA;
+    private final int[] pathB;
+    private final double[] deviation;
+
+    private Alignment()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Alignment(final Series a, final Series b, final long distance,
+                      final int[] pathA, final int[] pathB)
+    {
+      this.a = a;
+      this.b = b;
+      this.distance = distance;
+      this.pathA = pathA;
+      this.pathB = pathB;
+      deviation = new double[a.size()];
+      final int[] matches = new int[a.size()];
+      for (int step = 0; step < pathA.length; step++) {
+        final int i = pathA[step];
+        deviation[i] += Math.sqrt(frameDistance(a.samples,
+                                                (a.offset + i) * LEVERS,
+                                                b.samples,
+                                                (b.offset + pathB[step]) *
+                                                LEVERS) /
+                                  (double)LEVERS);
+        matches[i]++;
+      }
+      for (int i = 0; i < deviation.length; i++) {
+        deviation[i] /= matches[i];
+      }
+    }
+
+    public Series getA()
+    {
+      return a;
+    }
+
+    public Series getB()
+    {
+      return b;
+    }
+
+    /**
+     * Sum of squared lever differences along the warping path.
+     */
+    public long getDistance()
+    {
+      return distance;
+    }
+
+    /**
+     * Root mean square lever difference along the warping path, in
+     * lever units.
+     */
+    public double getRmsDeviation()
+    {
+      return Math.sqrt(distance / (double)(pathA.length * LEVERS));
+    }
+
+    public int getPathLength()
+    {
+      return pathA.length;
+    }
+
+    public int getPathA(final int step)
+    {
+      return pathA[step];
+    }
+
+    public int getPathB(final int step)
+    {
+      return pathB[step];
+    }
+
+    /**
+     * Root mean square lever difference of frame i of series a to
+     * the frames of series b that it is aligned to, in lever units.
+     */
+    public double getDeviation(final int i)
+    {
+      return deviation[i];
+    }
+
+    public double[] getDeviations()
+    {
+      return deviation.clone();
+    }
+
+    public String toString()
+    {
+      return a + " ~ " + b + ": distance=" + distance + ", rms=" +
+        String.format("%.2f", getRmsDeviation());
+    }
+  }
+
+  /**
+   * A segment of a library series that resembles the query.
+   */
+  public static class Match
+  {
+    private final Series series;
+    private final int start;
+    private final int length;
+    private final long distance;
+
+    private Match()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Match(final Series series, final int start, final int length,
+                  final long distance)
+    {
+      this.series = series;
+      this.start = start;
+      this.length = length;
+      this.distance = distance;
+    }
+
+    public Series getSeries()
+    {
+      return series;
+    }
+
+    public int getStart()
+    {
+      return start;
+    }
+
+    public int getLength()
+    {
+      return length;
+    }
+
+    public long getDistance()
+    {
+      return distance;
+    }
+
+    private boolean overlaps(final Match other)
+    {
+      return
+        (series == other.series) &&
+        (Math.abs(start - other.start) < length / 2);
+    }
+
+    public String toString()
+    {
+      return series + " [" + start + ", " + (start + length) + "): " +
+        "distance=" + distance;
+    }
+  }
+
+  private static final Comparator<Match> BY_DISTANCE =
+    (final Match m1, final Match m2) ->
+    m1.distance != m2.distance ?
+    Long.compare(m1.distance, m2.distance) :
+    Integer.compare(m1.start, m2.start);
+
+  /**
+   * The candidates for the k best matches found so far.  Matches that
+   * overlap by more than half of their length are considered the same
+   * occurrence, of which only the best one is reported.
+   *
+   * Overlaps are resolved only when reporting, by picking matches in
+   * ascending order of distance and skipping those that overlap a
+   * match already picked.  Since a picked match overlaps at most two
+   * matches that do not overlap each other, the k-th match picked is
+   * never worse than the worst of any 2k - 1 candidates that do not
+   * overlap each other.  That distance serves as threshold for
+   * pruning.  It never increases, such that windows pruned earlier
+   * are never needed later, and the result does not depend on the
+   * order in which windows are searched.
+   */
+  private static class TopK
+  {
+    private final int k;
+    private final List<Match> candidates;
+    private volatile long threshold;
+
+    private TopK(final int k)
+    {
+      this.k = k;
+      candidates = new ArrayList<Match>();
+      threshold = INFINITY;
+    }
+
+    private long getThreshold()
+    {
+      return threshold;
+    }
+
+    private synchronized void offer(final Match match)
+    {
+      if (match.distance > threshold) {
+        return;
+      }
+      int index = Collections.binarySearch(candidates, match, BY_DISTANCE);
+      if (index < 0) {
+        index = -index - 1;
+      }
+      candidates.add(index, match);
+      final List<Match> picked = pick(2 * k - 1);
+      if (picked.size() == 2 * k - 1) {
+        final long bound = picked.get(picked.size() - 1).distance;
+        if (bound < threshold) {
+          threshold = bound;
+          candidates.removeIf((final Match other) ->
+                              other.distance > bound);
+        }
+      }
+    }
+
+    /**
+     * Picks up to count candidates in ascending order of distance,
+     * skipping those that overlap a candidate already picked.
+     */
+    private List<Match> pick(final int count)
+    {
+      final List<Match> picked = new ArrayList<Match>(count);
+      for (final Match candidate : candidates) {
+        if (picked.size() == count) {
+          break;
+        }
+        boolean overlapping = false;
+        for (final Match other : picked) {
+          if (other.overlaps(candidate)) {
+            overlapping = true;
+            break;
+          }
+        }
+        if (!overlapping) {
+          picked.add(candidate);
+        }
+      }
+      return picked;
+    }
+
+    private synchronized List<Match> getMatches()
+    {
+      return pick(k);
+    }
+  }
+
+  private final int band;
+
+  public FlightMatcher()
+  {
+    this(DEFAULT_BAND);
+  }
+
+  /**
+   * @param band The maximum deviation of the warping path from the
+   * diagonal, in frames.
+   */
+  public FlightMatcher(final int band)
+  {
+    if (band < 0) {
+      throw new IllegalArgumentException("band must not be negative");
+    }
+    this.band = band;
+  }
+
+  public int getBand()
+  {
+    return band;
+  }
+
+  private static int frameDistance(final int[] a, final int p,
+                                   final int[] b, final int q)
+  {
+    final int d0 = a[p] - b[q];
+    final int d1 = a[p + 1] - b[q + 1];
+    final int d2 = a[p + 2] - b[q + 2];
+    final int d3 = a[p + 3] - b[q + 3];
+    return d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3;
+  }
+
+  /**
+   * The band width needed such that consecutive rows of the band
+   * overlap even if the series differ in length.
+   */
+  private int getEffectiveBand(final int n, final int m)
+  {
+    final int longer = Math.max(n, m);
+    final int shorter = Math.max(Math.min(n, m), 1);
+    return Math.max(band, (longer + shorter - 1) / shorter);
+  }
+
+  private static int getCenter(final int i, final int n, final int m)
+  {
+    return n > 1 ? (int)((long)i * (m - 1) / (n - 1)) : 0;
+  }
+
+  /**
+   * Banded DTW of a against b.  If directions is non-null, the
+   * warping direction of each cell is recorded in it.  Returns
+   * INFINITY as soon as all cells of a row exceed the threshold.
+   */
+  private static long dtw(final Series a, final Series b, final int band,
+                          final long threshold, final byte[][] directions)
+  {
+    final int n = a.size();
+    final int m = b.size();
+    final int width = 2 * band + 1;
+    final int[] as = a.samples;
+    final int[] bs = b.samples;
+    long[] prev = new long[width];
+    long[] curr = new long[width];
+    int prevBase = 0;
+    for (int i = 0; i < n; i++) {
+      final int base = getCenter(i, n, m) - band;
+      final int lo = Math.max(0, base);
+      final int hi = Math.min(m - 1, base + width - 1);
+      Arrays.fill(curr, INFINITY);
+      final byte[] rowDirections = directions != null ? directions[i] : null;
+      final int p = (a.offset + i) * LEVERS;
+      long rowMin = INFINITY;
+      for (int j = lo; j <= hi; j++) {
+        long best;
+        byte direction;
+        if ((i == 0) && (j == 0)) {
+          best = 0;
+          direction = START;
+        } else {
+          best = INFINITY;
+          direction = START;
+          if (i > 0) {
+            final int diagonal = j - 1 - prevBase;
+            if ((diagonal >= 0) && (diagonal < width) &&
+                (prev[diagonal] < best)) {
+              best = prev[diagonal];
+              direction = DIAGONAL;
+            }
+            final int up = j - prevBase;
+            if ((up >= 0) && (up < width) && (prev[up] < best)) {
+              best = prev[up];
+              direction = ADVANCE_A;
+            }
+          }
+          final int left = j - 1 - base;
+          if ((left >= 0) && (curr[left] < best)) {
+            best = curr[left];
+            direction = ADVANCE_B;
+          }
+        }
+        if (best != INFINITY) {
+          best += frameDistance(as, p, bs, (b.offset + j) * LEVERS);
+          if (best < rowMin) {
+            rowMin = best;
+          }
+        }
+        curr[j - base] = best;
+        if (rowDirections != null) {
+          rowDirections[j - base] = direction;
+        }
+      }
+      if (rowMin > threshold) {
+        return INFINITY;
+      }
+      final long[] swap = prev;
+      prev = curr;
+      curr = swap;
+      prevBase = base;
+    }
+    return prev[m - 1 - prevBase];
+  }
+
+  /**
+   * Returns the DTW distance of a and b within the band, i.e. the
+   * minimal sum of squared lever differences along a warping path.
+   */
+  public long distance(final Series a, final Series b)
+  {
+    checkNonEmpty(a, b);
+    return dtw(a, b, getEffectiveBand(a.size(), b.size()), INFINITY, null);
+  }
+
+  /**
+   * Aligns two series and returns the optimal warping path together
+   * with the per-frame deviation of a from b.
+   */
+  public Alignment align(final Series a, final Series b)
+  {
+    checkNonEmpty(a, b);
+    final int n = a.size();
+    final int m = b.size();
+    final int effectiveBand = getEffectiveBand(n, m);
+    final byte[][] directions = new byte[n][2 * effectiveBand + 1];
+    final long distance = dtw(a, b, effectiveBand, INFINITY, directions);
+    final int[] pathA = new int[n + m];
+    final int[] pathB = new int[n + m];
+    int steps = 0;
+    int i = n - 1;
+    int j = m - 1;
+    while (true) {
+      pathA[steps] = i;
+      pathB[steps] = j;
+      steps++;
+      final byte direction =
+        directions[i][j - (getCenter(i, n, m) - effectiveBand)];
+      if (direction == START) {
+        break;
+      } else if (direction == DIAGONAL) {
+        i--;
+        j--;
+      } else if (direction == ADVANCE_A) {
+        i--;
+      } else {
+        j--;
+      }
+    }
+    final int[] forwardA = new int[steps];
+    final int[] forwardB = new int[steps];
+    for (int step = 0; step < steps; step++) {
+      forwardA[step] = pathA[steps - 1 - step];
+      forwardB[step] = pathB[steps - 1 - step];
+    }
+    return new Alignment(a, b, distance, forwardA, forwardB);
+  }
+
+  private class AlignTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = -6052387130432979417L;
+
+    private final Series reference;
+    private final List<Series> others;
+    private final int index;
+    private final Alignment[] alignments;
+
+    private AlignTask(final Series reference, final List<Series> others,
+                      final int index, final Alignment[] alignments)
+    {
+      this.reference = reference;
+      this.others = others;
+      this.index = index;
+      this.alignments = alignments;
+    }
+
+    protected void compute()
+    {
+      alignments[index] = align(reference, others.get(index));
+    }
+  }
+
+  /**
+   * Aligns each of the other series against the reference series, in
+   * parallel.
+   */
+  public List<Alignment> alignAll(final Series reference,
+                                  final List<Series> others)
+  {
+    final Alignment[] alignments = new Alignment[others.size()];
+    final List<AlignTask> tasks = new ArrayList<AlignTask>();
+    for (int index = 0; index < alignments.length; index++) {
+      tasks.add(new AlignTask(reference, others, index, alignments));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    final List<Alignment> result = new ArrayList<Alignment>();
+    Collections.addAll(result, alignments);
+    return result;
+  }
+
+  private static void checkNonEmpty(final Series a, final Series b)
+  {
+    if ((a.size() == 0) || (b.size() == 0)) {
+      throw new IllegalArgumentException("empty series");
+    }
+  }
+
+  /**
+   * Upper and lower envelope of the query: for each frame and lever,
+   * the maximum and minimum value within the band around the frame.
+   */
+  private static int[][] createEnvelope(final Series query, final int band)
+  {
+    final int size = query.size();
+    final int[] upper = new int[size * LEVERS];
+    final int[] lower = new int[size * LEVERS];
+    for (int i = 0; i < size; i++) {
+      final int from = Math.max(0, i - band);
+      final int to = Math.min(size - 1, i + band);
+      for (int lever = 0; lever < LEVERS; lever++) {
+        int max = 0;
+        int min = 255;
+        for (int j = from; j <= to; j++) {
+          final int value = query.getLever(j, lever);
+          if (value > max) {
+            max = value;
+          }
+          if (value < min) {
+            min = value;
+          }
+        }
+        upper[i * LEVERS + lever] = max;
+        lower[i * LEVERS + lever] = min;
+      }
+    }
+    return new int[][] { upper, lower };
+  }
+
+  /**
+   * LB_Keogh lower bound of the DTW distance of the query to the
+   * window of the candidate starting at the given frame; abandons
+   * as soon as the threshold is exceeded.
+   */
+  private static long lowerBound(final int[] upper, final int[] lower,
+                                 final Series candidate, final int start,
+                                 final long threshold)
+  {
+    final int[] samples = candidate.samples;
+    final int begin = (candidate.offset + start) * LEVERS;
+    final int length = upper.length;
+    long sum = 0;
+    for (int k = 0; k < length; k++) {
+      final int value = samples[begin + k];
+      final int u = upper[k];
+      final int l = lower[k];
+      if (value > u) {
+        final int d = value - u;
+        sum += d * d;
+      } else if (value < l) {
+        final int d = l - value;
+        sum += d * d;
+      }
+      if (((k & (LEVERS - 1)) == LEVERS - 1) && (sum > threshold)) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+
+  private class SearchTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 3187426012474318409L;
+
+    private final Series query;
+    private final int[][] envelope;
+    private final Series candidate;
+    private final int from;
+    private final int to;
+    private final TopK topK;
+    private final boolean parallel;
+
+    private SearchTask(final Series query, final int[][] envelope,
+                       final Series candidate, final int from, final int to,
+                       final TopK topK, final boolean parallel)
+    {
+      this.parallel = parallel;
+      this.query = query;
+      this.envelope = envelope;
+      this.candidate = candidate;
+      this.from = from;
+      this.to = to;
+      this.topK = topK;
+    }
+
+    protected void compute()
+    {
+      if (parallel && (to - from > CHUNK_SIZE)) {
+        final int middle = (from + to) >>> 1;
+        ForkJoinTask.invokeAll(new SearchTask(query, envelope, candidate,
+                                              from, middle, topK, true),
+                               new SearchTask(query, envelope, candidate,
+                                              middle, to, topK, true));
+        return;
+      }
+      final int length = query.size();
+      for (int start = from; start < to; start++) {
+        final long threshold = topK.getThreshold();
+        if (lowerBound(envelope[0], envelope[1], candidate, start,
+                       threshold) > threshold) {
+          continue;
+        }
+        final Series window = candidate.slice(start, start + length);
+        final long distance = dtw(query, window, band, threshold, null);
+        if (distance <= threshold) {
+          topK.offer(new Match(candidate, start, length, distance));
+        }
+      }
+    }
+  }
+
+  /**
+   * Searches the library for the k segments most similar to the
+   * query, in ascending order of DTW distance.  Segments have the
+   * length of the query; overlapping occurrences are reported once.
+   */
+  public List<Match> search(final Series query, final List<Series> library,
+                            final int k)
+  {
+    return search(query, library, k, true);
+  }
+
+  public List<Match> search(final Series query, final List<Series> library,
+                            final int k, final boolean parallel)
+  {
+    if (query.size() == 0) {
+      throw new IllegalArgumentException("empty query");
+    }
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive");
+    }
+    final int[][] envelope = createEnvelope(query, band);
+    final TopK topK = new TopK(k);
+    final List<SearchTask> tasks = new ArrayList<SearchTask>();
+    for (final Series candidate : library) {
+      final int positions = candidate.size() - query.size() + 1;
+      if (positions > 0) {
+        tasks.add(new SearchTask(query, envelope, candidate, 0, positions,
+                                 topK, parallel));
+      }
+    }
+    if (parallel) {
+      ForkJoinTask.invokeAll(tasks);
+    } else {
+      for (final SearchTask task : tasks) {
+        task.compute();
+      }
+    }
+    return topK.getMatches();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,428 @@
+/*
+ * @(#)FlightStatistics.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Per-flight statistics over a sequence of records: lever histograms
+ * (from which min, max, mean and percentiles are derived), the number
+ * of records with levers near the center position, button press
+ * counts and durations, and the number of sync gaps, i.e. runs of
+ * records whose status byte lacks the sync bit.
+ *
+ * Statistics are computed in a single pass.  Instances are mergeable
+ * accumulators: the statistics of two adjacent ranges of records
+ * merge into the statistics of the concatenated range, including
+ * button presses that span the boundary.  Therefore, long recordings
+ * are split into chunks that are accumulated in parallel by fork /
+ * join, with the very same result as a single-threaded pass.
+ */
+public class FlightStatistics
+{
+  public static final int LEVERS = 4;
+  public static final int BUTTONS = 6;
+  public static final int CENTER = 128;
+  public static final int DEFAULT_CENTER_RADIUS = 8;
+
+  /**
+   * Binary per-record flags for which runs are tracked: the buttons,
+   * followed by the sync gap and the link gap flag.
+   */
+  private static final int FLAGS = BUTTONS + 2;
+  private static final int SYNC_GAP_FLAG = BUTTONS;
+  private static final int LINK_GAP_FLAG = BUTTONS + 1;
+
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int BLOCK_SIZE = 4096;
+
+  private final int centerRadius;
+  private long records;
+  private final long[][] histograms;
+  private final long[] nearCenter;
+  private final long[] runs;
+  private final long[] activeRecords;
+  private final long[] longestRun;
+  private final long[] leadingRun;
+  private final long[] trailingRun;
+
+  private FlightStatistics()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public FlightStatistics(final int centerRadius)
+  {
+    if ((centerRadius < 0) || (centerRadius > 127)) {
+      throw new IllegalArgumentException("center radius not in [0, 127]");
+    }
+    this.centerRadius = centerRadius;
+    records = 0;
+    histograms = new long[LEVERS][256];
+    nearCenter = new long[LEVERS];
+    runs = new long[FLAGS];
+    activeRecords = new long[FLAGS];
+    longestRun = new long[FLAGS];
+    leadingRun = new long[FLAGS];
+    trailingRun = new long[FLAGS];
+  }
+
+  public static FlightStatistics compute(final RecordSource source,
+                                         final boolean parallel)
+  {
+    return compute(source, DEFAULT_CENTER_RADIUS, parallel);
+  }
+
+  public static FlightStatistics compute(final RecordSource source,
+                                         final int centerRadius,
+                                         final boolean parallel)
+  {
+    final int size = source.size();
+    if (parallel && (size > CHUNK_SIZE)) {
+      return new Task(source, centerRadius, 0, size).invoke();
+    } else {
+      final FlightStatistics statistics = new FlightStatistics(centerRadius);
+      statistics.accumulate(source, 0, size);
+      return statistics;
+    }
+  }
+
+  private static class Task extends RecursiveTask<FlightStatistics>
+  {
+    private static final long serialVersionUID = -3124529357781066164L;
+
+    private final RecordSource source;
+    private final int centerRadius;
+    private final int from;
+    private final int to;
+
+    private Task(final RecordSource source, final int centerRadius,
+                 final int from, final int to)
+    {
+      this.source = source;
+      this.centerRadius = centerRadius;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected FlightStatistics compute()
+    {
+      if (to - from <= CHUNK_SIZE) {
+        final FlightStatistics statistics =
+          new FlightStatistics(centerRadius);
+        statistics.accumulate(source, from, to);
+        return statistics;
+      }
+      final int middle = (from + to) >>> 1;
+      final Task left = new Task(source, centerRadius, from, middle);
+      final Task right = new Task(source, centerRadius, middle, to);
+      left.fork();
+      final FlightStatistics rightStatistics = right.compute();
+      final FlightStatistics leftStatistics = left.join();
+      leftStatistics.merge(rightStatistics);
+      return leftStatistics;
+    }
+  }
+
+  /**
+   * Accumulates records startIndex up to endIndex - 1 of the source.
+   */
+  public void accumulate(final RecordSource source,
+                         final int startIndex, final int endIndex)
+  {
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final byte[] block =
+      new byte[Math.min(BLOCK_SIZE, Math.max(endIndex - startIndex, 0)) *
+               byteLength];
+    for (int index = startIndex; index < endIndex; index += BLOCK_SIZE) {
+      final int blockEnd = Math.min(index + BLOCK_SIZE, endIndex);
+      source.copyBytesTo(block, index, blockEnd);
+      final int blockBytes = (blockEnd - index) * byteLength;
+      for (int offset = 0; offset < blockBytes; offset += byteLength) {
+        accumulate(block, offset);
+      }
+    }
+  }
+
+  /**
+   * Accumulates a single record, given as bytes in recorder file
+   * order.
+   */
+  public void accumulate(final byte[] buffer, final int offset)
+  {
+    for (int lever = 0; lever < LEVERS; lever++) {
+      final int value = buffer[offset + 1 + lever] & 0xff;
+      histograms[lever][value]++;
+      if ((value >= CENTER - centerRadius) &&
+          (value <= CENTER + centerRadius)) {
+        nearCenter[lever]++;
+      }
+    }
+    // button 0 is transmitted as most significant bit
+    final int buttons = buffer[offset + 5];
+    for (int button = 0; button < BUTTONS; button++) {
+      accumulateFlag(button, (buttons & (1 << (BUTTONS - 1 - button))) != 0);
+    }
+    accumulateFlag(SYNC_GAP_FLAG, buffer[offset] >= 0);
+    accumulateFlag(LINK_GAP_FLAG,
+                   buffer[offset] == QuadCop.DataRecord.GAP_MARKER_STATUS);
+    records++;
+  }
+
+  private void accumulateFlag(final int flag, final boolean active)
+  {
+    if (active) {
+      activeRecords[flag]++;
+      if (trailingRun[flag] == 0) {
+        runs[flag]++;
+      }
+      trailingRun[flag]++;
+      if (leadingRun[flag] == records) {
+        leadingRun[flag]++;
+      }
+      if (trailingRun[flag] > longestRun[flag]) {
+        longestRun[flag] = trailingRun[flag];
+      }
+    } else {
+      trailingRun[flag] = 0;
+    }
+  }
+
+  /**
+   * Merges the statistics of the range of records that immediately
+   * follows the range of this instance.
+   */
+  public void merge(final FlightStatistics other)
+  {
+    merge(other, true);
+  }
+
+  /**
+   * Merges the statistics of an unrelated sequence of records, e.g.
+   * from another recording, such that no button press or sync gap
+   * is joined across the two sequences.  Unlike merge(), this
+   * operation is commutative.
+   */
+  public void mergeIndependent(final FlightStatistics other)
+  {
+    merge(other, false);
+  }
+
+  private void merge(final FlightStatistics other, final boolean adjacent)
+  {
+    if (other.centerRadius != centerRadius) {
+      throw new IllegalArgumentException("center radius mismatch");
+    }
+    for (int lever = 0; lever < LEVERS; lever++) {
+      final long[] histogram = histograms[lever];
+      final long[] otherHistogram = other.histograms[lever];
+      for (int value = 0; value < 256; value++) {
+        histogram[value] += otherHistogram[value];
+      }
+      nearCenter[lever] += other.nearCenter[lever];
+    }
+    for (int flag = 0; flag < FLAGS; flag++) {
+      if (!adjacent) {
+        runs[flag] += other.runs[flag];
+        longestRun[flag] = Math.max(longestRun[flag], other.longestRun[flag]);
+        activeRecords[flag] += other.activeRecords[flag];
+        // boundary runs are meaningless for unrelated sequences
+        leadingRun[flag] = 0;
+        trailingRun[flag] = 0;
+        continue;
+      }
+      final boolean joined =
+        (trailingRun[flag] > 0) && (other.leadingRun[flag] > 0);
+      runs[flag] += other.runs[flag] - (joined ? 1 : 0);
+      longestRun[flag] =
+        Math.max(Math.max(longestRun[flag], other.longestRun[flag]),
+                 trailingRun[flag] + other.leadingRun[flag]);
+      if (leadingRun[flag] == records) {
+        leadingRun[flag] += other.leadingRun[flag];
+      }
+      if (other.trailingRun[flag] == other.records) {
+        trailingRun[flag] += other.records;
+      } else {
+        trailingRun[flag] = other.trailingRun[flag];
+      }
+      activeRecords[flag] += other.activeRecords[flag];
+    }
+    records += other.records;
+  }
+
+  public long getRecords()
+  {
+    return records;
+  }
+
+  public int getCenterRadius()
+  {
+    return centerRadius;
+  }
+
+  public long[] getHistogram(final int lever)
+  {
+    return histograms[lever].clone();
+  }
+
+  public int getMin(final int lever)
+  {
+    final long[] histogram = histograms[lever];
+    for (int value = 0; value < 256; value++) {
+      if (histogram[value] > 0) {
+        return value;
+      }
+    }
+    return -1;
+  }
+
+  public int getMax(final int lever)
+  {
+    final long[] histogram = histograms[lever];
+    for (int value = 255; value >= 0; value--) {
+      if (histogram[value] > 0) {
+        return value;
+      }
+    }
+    return -1;
+  }
+
+  public double getMean(final int lever)
+  {
+    final long[] histogram = histograms[lever];
+    long sum = 0;
+    for (int value = 0; value < 256; value++) {
+      sum += value * histogram[value];
+    }
+    return records > 0 ? (double)sum / records : Double.NaN;
+  }
+
+  /**
+   * Returns the nearest-rank percentile of the lever's values, with
+   * percentile in the range 0.0 to 100.0, or -1 if there are no
+   * records.
+   */
+  public int getPercentile(final int lever, final double percentile)
+  {
+    if ((percentile < 0.0) || (percentile > 100.0)) {
+      throw new IllegalArgumentException("percentile not in [0, 100]");
+    }
+    if (records == 0) {
+      return -1;
+    }
+    final long rank =
+      Math.max(1, (long)Math.ceil(percentile / 100.0 * records));
+    final long[] histogram = histograms[lever];
+    long count = 0;
+    for (int value = 0; value < 256; value++) {
+      count += histogram[value];
+      if (count >= rank) {
+        return value;
+      }
+    }
+    return 255;
+  }
+
+  public long getNearCenterRecords(final int lever)
+  {
+    return nearCenter[lever];
+  }
+
+  public long getButtonPresses(final int button)
+  {
+    return runs[button];
+  }
+
+  public long getButtonPressedRecords(final int button)
+  {
+    return activeRecords[button];
+  }
+
+  public long getLongestButtonPress(final int button)
+  {
+    return longestRun[button];
+  }
+
+  public long getSyncGaps()
+  {
+    return runs[SYNC_GAP_FLAG];
+  }
+
+  public long getSyncGapRecords()
+  {
+    return activeRecords[SYNC_GAP_FLAG];
+  }
+
+  /**
+   * Returns the number of gap markers, i.e. of times the serial link
+   * was lost while recording.
+   */
+  public long getLinkGaps()
+  {
+    return activeRecords[LINK_GAP_FLAG];
+  }
+
+  private String percentOfRecords(final long count)
+  {
+    final long permyriad = records > 0 ? (10000 * count) / records : 0;
+    return String.format("%d.%02d%%", permyriad / 100, permyriad % 100);
+  }
+
+  public String getReport()
+  {
+    final StringBuffer sb = new StringBuffer();
+    sb.append("records: " + records + "\n");
+    for (int lever = 0; lever < LEVERS; lever++) {
+      sb.append("lever " + lever + ": " +
+                "min=" + getMin(lever) +
+                ", p5=" + getPercentile(lever, 5.0) +
+                ", median=" + getPercentile(lever, 50.0) +
+                ", p95=" + getPercentile(lever, 95.0) +
+                ", max=" + getMax(lever) +
+                ", mean=" + String.format("%.1f", getMean(lever)) +
+                ", near center=" + percentOfRecords(nearCenter[lever]) +
+                "\n");
+    }
+    for (int button = 0; button < BUTTONS; button++) {
+      sb.append("button " + button + ": " +
+                "presses=" + getButtonPresses(button) +
+                ", pressed=" + getButtonPressedRecords(button) + " records" +
+                ", longest=" + getLongestButtonPress(button) + " records" +
+                "\n");
+    }
+    sb.append("sync gaps: " + getSyncGaps() +
+              " (" + getSyncGapRecords() + " records)\n");
+    sb.append("link gaps: " + getLinkGaps() + "\n");
+    return sb.toString();
+  }
+
+  public String toString()
+  {
+    return getReport();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
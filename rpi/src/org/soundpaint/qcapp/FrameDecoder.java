@@ -0,0 +1,210 @@
+/*
+ * @(#)FrameDecoder.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+/**
+ * Decodes the byte stream received from the QuadCop into records.
+ * The records decoded from each buffer are passed on to the sink as
+ * a batch of packed records, such that decoding allocates nothing.
+ * Not thread-safe; each serial connection uses its own decoder.
+ */
+public class FrameDecoder
+{
+  private static final int BATCH_SIZE = 256;
+
+  private enum ScanStatus {
+    UNSYNCHRONIZED,
+    QC_STATUS_READ,
+    QC_CTRL_LEVER_BYTE0_READ,
+    QC_CTRL_LEVER_BYTE1_READ,
+    QC_CTRL_LEVER_BYTE2_READ,
+    QC_CTRL_LEVER_BYTE3_READ,
+    QC_CTRL_LEVER_BYTE4_READ,
+    QC_BUTTONS_READ
+  }
+
+  private final QCRecorder sink;
+  private final long[] batch;
+  private int batchSize;
+  private ScanStatus scanStatus;
+  private byte status;
+  private byte ctrlLever0;
+  private byte ctrlLever1;
+  private byte ctrlLever2;
+  private byte ctrlLever3;
+  private byte buttons;
+  private volatile long synchronisationLosses;
+
+  private FrameDecoder()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param sink Receives the decoded records via recordsReceived().
+   */
+  public FrameDecoder(final QCRecorder sink)
+  {
+    if (sink == null) {
+      throw new NullPointerException("sink");
+    }
+    this.sink = sink;
+    batch = new long[BATCH_SIZE];
+    batchSize = 0;
+    scanStatus = ScanStatus.UNSYNCHRONIZED;
+    synchronisationLosses = 0;
+  }
+
+  /**
+   * Discards any partially decoded record, e.g. after reopening the
+   * port, such that decoding resumes with the next status byte.
+   */
+  public void reset()
+  {
+    scanStatus = ScanStatus.UNSYNCHRONIZED;
+  }
+
+  public void decode(final byte[] buffer, final int offset, final int length)
+  {
+    for (int i = offset; i < offset + length; i++) {
+      handleByte(buffer[i]);
+    }
+    flush();
+  }
+
+  private void flush()
+  {
+    if (batchSize > 0) {
+      sink.recordsReceived(batch, 0, batchSize);
+      batchSize = 0;
+    }
+  }
+
+  /**
+   * Returns the number of times that synchronisation was lost in
+   * the middle of a record.
+   */
+  public long getSynchronisationLosses()
+  {
+    return synchronisationLosses;
+  }
+
+  private void loseSynchronisation()
+  {
+    scanStatus = ScanStatus.UNSYNCHRONIZED;
+    synchronisationLosses++;
+  }
+
+  private void handleByte(final byte b) {
+    switch (scanStatus) {
+    case UNSYNCHRONIZED:
+    case QC_BUTTONS_READ:
+      if (b < 0) {
+        status = b;
+        scanStatus = ScanStatus.QC_STATUS_READ;
+      } else {
+        // still or newly lost synchronisation
+        if (scanStatus == ScanStatus.QC_BUTTONS_READ) {
+          synchronisationLosses++;
+        }
+        scanStatus = ScanStatus.UNSYNCHRONIZED;
+      }
+      break;
+    case QC_STATUS_READ:
+      if (b >= 0) {
+        ctrlLever0 = (byte)(b << 1);
+        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE0_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      break;
+    case QC_CTRL_LEVER_BYTE0_READ:
+      if (b >= 0) {
+        ctrlLever0 |= b >> 6;
+        ctrlLever1 = (byte)(b << 2);
+        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE1_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      break;
+    case QC_CTRL_LEVER_BYTE1_READ:
+      if (b >= 0) {
+        ctrlLever1 |= b >> 5;
+        ctrlLever2 = (byte)(b << 3);
+        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE2_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      break;
+    case QC_CTRL_LEVER_BYTE2_READ:
+      if (b >= 0) {
+        ctrlLever2 |= b >> 4;
+        ctrlLever3 = (byte)(b << 4);
+        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE3_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      break;
+    case QC_CTRL_LEVER_BYTE3_READ:
+      if (b >= 0) {
+        ctrlLever3 |= b >> 3;
+        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE4_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      break;
+    case QC_CTRL_LEVER_BYTE4_READ:
+      if (b >= 0) {
+        buttons = b;
+        scanStatus = ScanStatus.QC_BUTTONS_READ;
+      } else {
+        // lost synchronisation
+        loseSynchronisation();
+      }
+      recordReceived();
+      break;
+    default:
+      scanStatus = ScanStatus.UNSYNCHRONIZED;
+      break;
+    }
+  }
+
+  private void recordReceived()
+  {
+    batch[batchSize++] = RecordRing.pack(status, ctrlLever0, ctrlLever1,
+                                         ctrlLever2, ctrlLever3, buttons);
+    if (batchSize == batch.length) {
+      flush();
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,257 @@
+/*
+ * @(#)InstantReplay.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.AbstractList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on capture of the most recently received records with their
+ * time of arrival, such that a flight can still be kept after it has
+ * been flown without pressing Record.
+ *
+ * Records are packed as in RecordRing and stored in fixed-size
+ * chunks of primitive arrays that are reused round robin, such that
+ * memory stays constant.  Taking a snapshot does not copy any record:
+ * it merely refers to the chunks that hold the requested records and
+ * marks them as shared; the writer then replaces a shared chunk by a
+ * fresh one rather than overwriting it when coming round to it.  The
+ * single writer, typically the serial reader, synchronizes with
+ * snapshots only when switching to the next chunk.
+ */
+public class InstantReplay implements QCRecorder
+{
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_LENGTH = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_LENGTH - 1;
+
+  private static class Chunk
+  {
+    private final long[] records;
+    private final long[] timestamps;
+    private boolean shared;
+
+    private Chunk()
+    {
+      records = new long[CHUNK_LENGTH];
+      timestamps = new long[CHUNK_LENGTH];
+      shared = false;
+    }
+  }
+
+  /**
+   * Immutable sequence of records taken from the replay, suitable as
+   * content of a Document.
+   */
+  public static class Snapshot extends AbstractList<QuadCop.DataRecord>
+  {
+    private final Chunk[] chunks;
+    private final int offset;
+    private final int size;
+
+    private Snapshot(final Chunk[] chunks, final int offset, final int size)
+    {
+      this.chunks = chunks;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    public QuadCop.DataRecord get(final int index)
+    {
+      return RecordRing.unpack(getPacked(index));
+    }
+
+    public long getPacked(final int index)
+    {
+      checkIndex(index);
+      final int position = offset + index;
+      return chunks[position >>> CHUNK_BITS].records[position & CHUNK_MASK];
+    }
+
+    /**
+     * Returns the time of arrival of the record in ns, with the same
+     * origin as System.nanoTime().
+     */
+    public long getTimestamp(final int index)
+    {
+      checkIndex(index);
+      final int position = offset + index;
+      return
+        chunks[position >>> CHUNK_BITS].timestamps[position & CHUNK_MASK];
+    }
+
+    private void checkIndex(final int index)
+    {
+      if ((index < 0) || (index >= size)) {
+        throw new IndexOutOfBoundsException("index: " + index);
+      }
+    }
+  }
+
+  private final Chunk[] chunks;
+  private final AtomicLong writeSequence;
+  private Chunk current;
+
+  private InstantReplay()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param capacity The number of records kept at least; rounded up
+   * to full chunks, plus the chunk currently written.
+   */
+  public InstantReplay(final int capacity)
+  {
+    if ((capacity <= 0) || (capacity > (1 << 28))) {
+      throw new IllegalArgumentException("capacity not in [1, 2^28]");
+    }
+    chunks = new Chunk[(capacity + CHUNK_MASK) / CHUNK_LENGTH + 1];
+    writeSequence = new AtomicLong(0);
+    current = null;
+  }
+
+  /**
+   * Returns the number of records kept at least.
+   */
+  public int getCapacity()
+  {
+    return (chunks.length - 1) * CHUNK_LENGTH;
+  }
+
+  /**
+   * Returns the total number of records ever received.
+   */
+  public long getWriteSequence()
+  {
+    return writeSequence.get();
+  }
+
+  public void recordReceived(final QuadCop.DataRecord record)
+  {
+    publish(RecordRing.pack(record), System.nanoTime());
+  }
+
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    final long timestamp = System.nanoTime();
+    for (int i = offset; i < offset + count; i++) {
+      publish(packedRecords[i], timestamp);
+    }
+  }
+
+  public void publish(final long packedRecord, final long timestamp)
+  {
+    final long sequence = writeSequence.get();
+    final int index = (int)(sequence & CHUNK_MASK);
+    if (index == 0) {
+      nextChunk(sequence);
+    }
+    current.records[index] = packedRecord;
+    current.timestamps[index] = timestamp;
+    // release store: snapshots that see the new sequence see the record
+    writeSequence.lazySet(sequence + 1);
+  }
+
+  private synchronized void nextChunk(final long sequence)
+  {
+    final int slot = getSlot(sequence >>> CHUNK_BITS);
+    if ((chunks[slot] == null) || chunks[slot].shared) {
+      chunks[slot] = new Chunk();
+    }
+    current = chunks[slot];
+  }
+
+  /**
+   * Returns the records received within the last given number of
+   * seconds, at most all records kept.
+   */
+  public Snapshot snapshotSeconds(final double seconds)
+  {
+    final long since = System.nanoTime() - (long)(seconds * 1.0e9);
+    return snapshot(since);
+  }
+
+  /**
+   * Returns the records received at or after the given time in ns,
+   * at most all records kept.  Takes time proportional to the number
+   * of chunks, but independent of the number of records.
+   */
+  public synchronized Snapshot snapshot(final long since)
+  {
+    final long end = writeSequence.get();
+    if (end == 0) {
+      return new Snapshot(new Chunk[0], 0, 0);
+    }
+    final long lastChunk = (end - 1) >>> CHUNK_BITS;
+    // the writer may already have switched into the slot following
+    // lastChunk, i.e. the spare one, before publishing to it
+    final long firstChunk = Math.max(0, lastChunk - chunks.length + 2);
+    long first = firstChunk << CHUNK_BITS;
+    // binary search for the first record not older than since
+    long low = first;
+    long high = end;
+    while (low < high) {
+      final long middle = (low + high) >>> 1;
+      if (getTimestamp(middle) < since) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    first = low;
+    if (first == end) {
+      return new Snapshot(new Chunk[0], 0, 0);
+    }
+    final long startChunk = first >>> CHUNK_BITS;
+    final Chunk[] shared = new Chunk[(int)(lastChunk - startChunk + 1)];
+    for (int i = 0; i < shared.length; i++) {
+      shared[i] = chunks[getSlot(startChunk + i)];
+      shared[i].shared = true;
+    }
+    return new Snapshot(shared, (int)(first & CHUNK_MASK),
+                        (int)(end - first));
+  }
+
+  private int getSlot(final long chunkNumber)
+  {
+    return (int)(chunkNumber % chunks.length);
+  }
+
+  private long getTimestamp(final long sequence)
+  {
+    final Chunk chunk = chunks[getSlot(sequence >>> CHUNK_BITS)];
+    return chunk.timestamps[(int)(sequence & CHUNK_MASK)];
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -20,29 +20,37 @@
 
 package org.soundpaint.qcapp;
 
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
 import java.net.URL;
+import java.util.Arrays;
 import javax.swing.ImageIcon;
+import javax.swing.JFileChooser;
 import javax.swing.KeyStroke;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JTextArea;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class MenuBar extends JMenuBar
   implements TransportControl.Listener, DocumentManager.Listener
 {
   private static final long serialVersionUID = -2217863353294640984L;
+  private static final int DEFAULT_REPLAY_SECONDS = 60;
 
   final private QuadCopApp quadCopApp;
   final private TransportControl transportControl;
   final private DocumentManager documentManager;
   private JMenuItem play;
+  private JMenuItem playFiles;
   private JMenuItem stop;
   private JMenuItem record;
+  private JMenuItem saveReplay;
   private JMenuItem open;
   private JMenuItem save;
   private JMenuItem saveAs;
@@ -127,6 +135,15 @@ public class MenuBar extends JMenuBar
     play.setEnabled(false);
     file.add(play);
 
+    playFiles = new JMenuItem("Play Files...");
+    playFiles.getAccessibleContext().
+      setAccessibleDescription("Play files one after the other");
+    playFiles.addActionListener((final ActionEvent event) -> {
+        playFiles();
+      });
+    playFiles.setEnabled(transportControl.canPlay());
+    file.add(playFiles);
+
     stop = createImageItem("stop16x16.png", "Stop");
     stop.setMnemonic(KeyEvent.VK_S);
     stop.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S,
@@ -154,6 +171,15 @@ public class MenuBar extends JMenuBar
     record.setEnabled(true);
     file.add(record);
 
+    saveReplay = new JMenuItem("Save Replay...");
+    saveReplay.getAccessibleContext().
+      setAccessibleDescription("Keep the last seconds flown as document");
+    saveReplay.addActionListener((final ActionEvent event) -> {
+        saveReplay();
+      });
+    saveReplay.setEnabled(true);
+    file.add(saveReplay);
+
     file.addSeparator();
 
     final JMenuItem quit = createImageItem("quit16x16.png", "Quit");
@@ -177,17 +203,70 @@ public class MenuBar extends JMenuBar
     pianoRoll.getAccessibleContext().
       setAccessibleDescription("Open Piano Roll Editor");
     pianoRoll.addActionListener((final ActionEvent event) -> {
-        JOptionPane.showMessageDialog(quadCopApp,
-                                      "Sorry, but the Piano Roll view " +
-                                      "of flight control data has " +
-                                      "not yet been implemented.",
-                                      "Not Yet Implemented",
-                                      JOptionPane.ERROR_MESSAGE);
+        quadCopApp.showPianoRoll();
       });
     edit.add(pianoRoll);
+
+    final JMenuItem stripChart = new JMenuItem("Strip Chart...");
+    stripChart.getAccessibleContext().
+      setAccessibleDescription("Open live chart of levers and buttons");
+    stripChart.addActionListener((final ActionEvent event) -> {
+        quadCopApp.showStripChart();
+      });
+    edit.add(stripChart);
+
+    final JMenuItem statistics = new JMenuItem("Flight Statistics...");
+    statistics.getAccessibleContext().
+      setAccessibleDescription("Show statistics of the current document");
+    statistics.addActionListener((final ActionEvent event) -> {
+        showStatistics();
+      });
+    edit.add(statistics);
+
+    final JMenuItem outputTransform = new JMenuItem("Output Transform...");
+    outputTransform.getAccessibleContext().
+      setAccessibleDescription("Map levers and buttons before sending");
+    outputTransform.addActionListener((final ActionEvent event) -> {
+        editOutputTransform();
+      });
+    edit.add(outputTransform);
+
+    final JMenuItem renderStatistics = new JMenuItem("Rendering Statistics...");
+    renderStatistics.getAccessibleContext().
+      setAccessibleDescription("Show statistics of the live view rendering");
+    renderStatistics.addActionListener((final ActionEvent event) -> {
+        showReport("Rendering Statistics",
+                   quadCopApp.getStartupReport() + "\n" +
+                   quadCopApp.getQuadCopPane().getRenderStatistics());
+      });
+    edit.add(renderStatistics);
     return edit;
   }
 
+  private void showStatistics()
+  {
+    if (!documentManager.hasDocument()) {
+      JOptionPane.showMessageDialog(quadCopApp,
+                                    "There is no document to analyze.",
+                                    "Flight Statistics",
+                                    JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+    final FlightStatistics statistics =
+      documentManager.getDocument().computeStatistics();
+    showReport("Flight Statistics", statistics.getReport());
+  }
+
+  private void showReport(final String title, final String text)
+  {
+    final JTextArea report = new JTextArea(text);
+    report.setEditable(false);
+    report.setFont(new Font(Font.MONOSPACED, Font.PLAIN,
+                            report.getFont().getSize()));
+    JOptionPane.showMessageDialog(quadCopApp, report, title,
+                                  JOptionPane.INFORMATION_MESSAGE);
+  }
+
   private JMenu createHelpMenu()
   {
     final JMenu help = new JMenu("Help");
@@ -222,9 +301,79 @@ public class MenuBar extends JMenuBar
     return item;
   }
 
+  private void playFiles()
+  {
+    final JFileChooser fileChooser = new JFileChooser();
+    fileChooser.
+      setFileFilter(new FileNameExtensionFilter("Quad Cop Recorder Files",
+                                                "rec"));
+    fileChooser.setMultiSelectionEnabled(true);
+    fileChooser.setDialogTitle("Play Files");
+    if (fileChooser.showOpenDialog(quadCopApp) ==
+        JFileChooser.APPROVE_OPTION) {
+      final File[] files = fileChooser.getSelectedFiles();
+      if (files.length > 0) {
+        transportControl.play(Arrays.asList(files));
+      }
+    }
+  }
+
+  private void saveReplay()
+  {
+    final String input =
+      JOptionPane.showInputDialog(quadCopApp, "Seconds to keep:",
+                                  String.valueOf(DEFAULT_REPLAY_SECONDS));
+    if (input == null) {
+      // aborted
+      return;
+    }
+    final double seconds;
+    try {
+      seconds = Double.parseDouble(input.trim());
+    } catch (final NumberFormatException ex) {
+      JOptionPane.showMessageDialog(quadCopApp, "Not a number: " + input,
+                                    "Save Replay",
+                                    JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    final Document document = transportControl.captureReplay(seconds);
+    documentManager.replaceDocument(document, "Save Replay");
+  }
+
+  private void editOutputTransform()
+  {
+    final OutputTransform current = transportControl.getOutputTransform();
+    final String input =
+      JOptionPane.showInputDialog(quadCopApp,
+                                  "Transform, e.g. " +
+                                  "0@trim:-4,1@invert,scale:0.8,button:0:1 " +
+                                  "(empty for none):",
+                                  current != null ? current.getSpec() : "");
+    if (input == null) {
+      // aborted
+      return;
+    }
+    if (input.trim().isEmpty()) {
+      transportControl.setOutputTransform(null);
+      return;
+    }
+    final OutputTransform transform;
+    try {
+      transform = OutputTransform.parse(input);
+    } catch (final IllegalArgumentException ex) {
+      JOptionPane.showMessageDialog(quadCopApp, ex.getMessage(),
+                                    "Output Transform",
+                                    JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    transportControl.setOutputTransform(transform);
+  }
+
   public void statusChanged(final TransportControl.Status oldStatus,
                             final TransportControl.Status newStatus)
   {
+    playFiles.setEnabled((newStatus == TransportControl.Status.STOPPED) &&
+                         transportControl.canPlay());
     switch (newStatus) {
     case STOPPED:
       stop.setEnabled(false);
@@ -235,6 +384,7 @@ public class MenuBar extends JMenuBar
         record.setEnabled(true);
       }
       open.setEnabled(true);
+      saveReplay.setEnabled(true);
       save.setEnabled(documentManager.isModified());
       saveAs.setEnabled(!documentManager.isDocumentEmpty());
       close.setEnabled(!documentManager.isDocumentEmpty());
@@ -244,6 +394,7 @@ public class MenuBar extends JMenuBar
       play.setEnabled(false);
       record.setEnabled(false);
       open.setEnabled(false);
+      saveReplay.setEnabled(false);
       save.setEnabled(false);
       saveAs.setEnabled(false);
       close.setEnabled(false);
@@ -253,6 +404,7 @@ public class MenuBar extends JMenuBar
       play.setEnabled(false);
       record.setEnabled(false);
       open.setEnabled(false);
+      saveReplay.setEnabled(false);
       save.setEnabled(false);
       saveAs.setEnabled(false);
       close.setEnabled(false);
@@ -268,6 +420,7 @@ public class MenuBar extends JMenuBar
     switch (status) {
     case EMPTY_UNNAMED_DOCUMENT:
       open.setEnabled(true);
+      saveReplay.setEnabled(true);
       save.setEnabled(false);
       saveAs.setEnabled(false);
       close.setEnabled(false);
@@ -277,6 +430,7 @@ public class MenuBar extends JMenuBar
       break;
     case MODIFIED_UNNAMED_DOCUMENT:
       open.setEnabled(true);
+      saveReplay.setEnabled(true);
       save.setEnabled(true);
       saveAs.setEnabled(true);
       close.setEnabled(true);
@@ -286,6 +440,7 @@ public class MenuBar extends JMenuBar
       break;
     case MODIFIED_NAMED_DOCUMENT:
       open.setEnabled(true);
+      saveReplay.setEnabled(true);
       save.setEnabled(true);
       saveAs.setEnabled(true);
       close.setEnabled(true);
@@ -295,6 +450,7 @@ public class MenuBar extends JMenuBar
       break;
     case UNMODIFIED_NAMED_DOCUMENT:
       open.setEnabled(true);
+      saveReplay.setEnabled(true);
       save.setEnabled(false);
       saveAs.setEnabled(true);
       close.setEnabled(true);
@@ -0,0 +1,529 @@
+/*
+ * @(#)NetworkPlayer.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays the records received from a remote TelemetryServer, e.g. for
+ * steering the QuadCop from another machine.
+ *
+ * Received frames go into a jitter buffer indexed by the records'
+ * sequence numbers, such that frames arriving out of order are
+ * reordered.  A record is played only once the buffer holds a target
+ * depth of newer records; a record still missing by then is concealed
+ * by repeating the previous record, and counted as lost, or as late
+ * if it arrives afterwards.
+ *
+ * The target depth adapts to the network: it covers the average
+ * number of records per frame plus four times the interarrival
+ * jitter, which is estimated like for RTP (RFC 3550) from the
+ * arrival times of frames relative to their sequence numbers.
+ */
+public class NetworkPlayer implements QCPlayer
+{
+  public enum Transport {
+    UDP("udp"),
+    TCP("tcp");
+
+    private final String label;
+
+    private Transport(final String label)
+    {
+      this.label = label;
+    }
+
+    public String toString()
+    {
+      return label;
+    }
+  };
+
+  public static final int CAPACITY = 1024;
+  public static final int MIN_DEPTH = 1;
+  public static final int MAX_DEPTH = CAPACITY / 2;
+
+  private static final long RESUBSCRIBE_PERIOD_MS =
+    TelemetryServer.SUBSCRIPTION_TIMEOUT_MS / 3;
+  private static final int MAX_FRAME_LENGTH =
+    TelemetryServer.HEADER_LENGTH +
+    TelemetryServer.MAX_FRAME_RECORDS * QuadCop.DataRecord.getByteLength();
+
+  private final InetSocketAddress source;
+  private final Transport transport;
+  private final List<ProgressListener> progressListeners;
+  private final long[] records;
+  private final long[] sequences;
+  private final Thread receiver;
+  private volatile DatagramSocket udp;
+  private volatile SocketChannel tcp;
+  private volatile boolean stopRequested;
+  private volatile IOException receiveException;
+
+  // jitter buffer state, guarded by this
+  private boolean synchronised;
+  private boolean playing;
+  private long playout;
+  private long highest;
+  private long last;
+  private long[] unpackBuffer;
+  private long lastArrivalNanos;
+  private long lastArrivalSequence;
+  private double recordNanos;
+  private double jitterNanos;
+  private double recordsPerFrame;
+  private int targetDepth;
+
+  // statistics
+  private long framesReceived;
+  private long recordsReceived;
+  private long recordsPlayed;
+  private long lost;
+  private long late;
+  private long duplicates;
+  private long reordered;
+  private long underruns;
+  private long resynchronisations;
+
+  private NetworkPlayer()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public NetworkPlayer(final InetSocketAddress source,
+                       final Transport transport)
+  {
+    if (source == null) {
+      throw new NullPointerException("source");
+    }
+    if (transport == null) {
+      throw new NullPointerException("transport");
+    }
+    this.source = source;
+    this.transport = transport;
+    progressListeners = new ArrayList<ProgressListener>();
+    // packed as by RecordRing.pack(), such that receiving and
+    // playing records does not allocate anything
+    records = new long[CAPACITY];
+    sequences = new long[CAPACITY];
+    stopRequested = false;
+    receiveException = null;
+    reset();
+    recordsPerFrame = 1.0;
+    recordNanos = 0.0;
+    jitterNanos = 0.0;
+    targetDepth = MIN_DEPTH;
+    last = RecordRing.pack(new QuadCop.DataRecord());
+    unpackBuffer = new long[0];
+    receiver = new Thread(() -> {
+        receive();
+      }, "Network player receiver");
+    receiver.setDaemon(true);
+  }
+
+  private void reset()
+  {
+    for (int i = 0; i < CAPACITY; i++) {
+      sequences[i] = -1;
+    }
+    synchronised = false;
+    playing = false;
+    playout = 0;
+    highest = -1;
+    lastArrivalNanos = 0;
+    lastArrivalSequence = -1;
+  }
+
+  /**
+   * Connects to the source and starts receiving.
+   */
+  public void start() throws IOException
+  {
+    if (transport == Transport.UDP) {
+      udp = new DatagramSocket();
+      udp.connect(source);
+      // renew the subscription even while the server sends nothing
+      udp.setSoTimeout((int)RESUBSCRIBE_PERIOD_MS);
+      subscribe();
+    } else {
+      tcp = SocketChannel.open(source);
+      tcp.socket().setTcpNoDelay(true);
+      // stay connected, even if falling behind
+      tcp.write(ByteBuffer.wrap(new byte[] {
+            (byte)TelemetryServer.Policy.DROP_OLDEST.getRequest()
+          }));
+    }
+    receiver.start();
+  }
+
+  private void subscribe() throws IOException
+  {
+    udp.send(new DatagramPacket(new byte[] { 's' }, 1));
+  }
+
+  private void receive()
+  {
+    final byte[] data = new byte[MAX_FRAME_LENGTH];
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final DatagramPacket packet = new DatagramPacket(data, data.length);
+    long lastSubscribed = System.currentTimeMillis();
+    try {
+      while (!stopRequested) {
+        if (transport == Transport.UDP) {
+          final long now = System.currentTimeMillis();
+          if (now - lastSubscribed >= RESUBSCRIBE_PERIOD_MS) {
+            subscribe();
+            lastSubscribed = now;
+          }
+          try {
+            udp.receive(packet);
+          } catch (final SocketTimeoutException ex) {
+            continue;
+          }
+          buffer.clear();
+          buffer.limit(packet.getLength());
+        } else {
+          readFrame(buffer);
+        }
+        frameReceived(buffer, System.nanoTime());
+      }
+    } catch (final IOException ex) {
+      if (!stopRequested) {
+        receiveException = ex;
+        System.err.println("*** network player: " + ex.getMessage() +
+                           " ***");
+      }
+    }
+  }
+
+  /**
+   * Reads exactly one frame from the TCP stream.
+   */
+  private void readFrame(final ByteBuffer buffer) throws IOException
+  {
+    buffer.clear();
+    buffer.limit(TelemetryServer.HEADER_LENGTH);
+    readFully(buffer);
+    final int count = buffer.get(3) & 0xff;
+    buffer.limit(TelemetryServer.HEADER_LENGTH +
+                 count * QuadCop.DataRecord.getByteLength());
+    readFully(buffer);
+    buffer.flip();
+  }
+
+  private void readFully(final ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      if (tcp.read(buffer) < 0) {
+        throw new IOException("connection closed by " + source);
+      }
+    }
+  }
+
+  /**
+   * Stores the frame's records into the jitter buffer.  Frames that
+   * are not well-formed are ignored.
+   */
+  synchronized void frameReceived(final ByteBuffer frame,
+                                  final long arrivalNanos)
+  {
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    if ((frame.remaining() < TelemetryServer.HEADER_LENGTH) ||
+        (frame.get(0) != 'Q') || (frame.get(1) != 'C') ||
+        (frame.get(2) != TelemetryServer.FORMAT_VERSION)) {
+      return;
+    }
+    final int count = frame.get(3) & 0xff;
+    final long first = frame.getLong(4);
+    if ((count == 0) ||
+        (frame.remaining() < TelemetryServer.HEADER_LENGTH +
+         count * byteLength)) {
+      return;
+    }
+    if (!synchronised ||
+        (first + count - 1 < playout - CAPACITY) ||
+        (first >= playout + CAPACITY)) {
+      // first frame, or sender restarted or far ahead
+      if (synchronised) {
+        resynchronisations++;
+      }
+      reset();
+      synchronised = true;
+      playout = first;
+    }
+    framesReceived++;
+    if (first + count - 1 < highest) {
+      reordered++;
+    } else {
+      updateJitter(first + count - 1, arrivalNanos);
+    }
+    recordsPerFrame += (count - recordsPerFrame) / 16.0;
+    for (int i = 0; i < count; i++) {
+      final long sequence = first + i;
+      if (sequence < playout) {
+        late++;
+        continue;
+      }
+      if (sequence >= playout + CAPACITY) {
+        // would overwrite a record not yet played
+        break;
+      }
+      final int slot = (int)(sequence & (CAPACITY - 1));
+      if (sequences[slot] == sequence) {
+        duplicates++;
+        continue;
+      }
+      final int offset = TelemetryServer.HEADER_LENGTH + i * byteLength;
+      records[slot] = RecordRing.pack(frame.get(offset),
+                                      frame.get(offset + 1),
+                                      frame.get(offset + 2),
+                                      frame.get(offset + 3),
+                                      frame.get(offset + 4),
+                                      frame.get(offset + 5));
+      sequences[slot] = sequence;
+      recordsReceived++;
+      highest = Math.max(highest, sequence);
+    }
+    updateTargetDepth();
+  }
+
+  private void updateJitter(final long sequence, final long arrivalNanos)
+  {
+    if ((lastArrivalSequence >= 0) && (sequence > lastArrivalSequence)) {
+      final long records = sequence - lastArrivalSequence;
+      final long elapsed = arrivalNanos - lastArrivalNanos;
+      final double period = (double)elapsed / records;
+      if (recordNanos == 0.0) {
+        recordNanos = period;
+      } else {
+        recordNanos += (period - recordNanos) / 16.0;
+      }
+      // difference of relative transit times, in nanoseconds
+      final double difference = Math.abs(elapsed - records * recordNanos);
+      jitterNanos += (difference - jitterNanos) / 16.0;
+    }
+    lastArrivalSequence = sequence;
+    lastArrivalNanos = arrivalNanos;
+  }
+
+  private void updateTargetDepth()
+  {
+    final double jitterRecords =
+      recordNanos > 0.0 ? 4.0 * jitterNanos / recordNanos : 0.0;
+    final long depth = (long)Math.ceil(recordsPerFrame + jitterRecords);
+    targetDepth = (int)Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, depth));
+  }
+
+  public boolean addProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.add(progressListener);
+  }
+
+  public boolean removeProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.remove(progressListener);
+  }
+
+  public synchronized int provideNextChunk(final QuadCop.DataRecord[] buffer)
+  {
+    if (unpackBuffer.length < buffer.length) {
+      unpackBuffer = new long[buffer.length];
+    }
+    final int count = provideNextPackedChunk(unpackBuffer, 0, buffer.length);
+    for (int i = 0; i < count; i++) {
+      buffer[i] = RecordRing.unpack(unpackBuffer[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Provides the records that are due, i.e. all records that have
+   * at least the target depth of newer records behind them.  Returns
+   * 0 rather than waiting, if none are due.
+   */
+  public synchronized int provideNextPackedChunk(final long[] buffer,
+                                                 final int offset,
+                                                 final int length)
+  {
+    if (!synchronised) {
+      return 0;
+    }
+    final long due = highest + 1 - targetDepth;
+    if (!playing) {
+      if (due <= playout) {
+        return 0;
+      }
+      playing = true;
+    }
+    int count = 0;
+    while ((count < length) && (playout < due)) {
+      final int slot = (int)(playout & (CAPACITY - 1));
+      if (sequences[slot] == playout) {
+        last = records[slot];
+        sequences[slot] = -1;
+      } else {
+        // conceal loss by holding the levers
+        lost++;
+      }
+      buffer[offset + count++] = last;
+      playout++;
+    }
+    recordsPlayed += count;
+    return count;
+  }
+
+  public synchronized void bufferUnderrunDetected()
+  {
+    if (playing) {
+      underruns++;
+    }
+  }
+
+  public InetSocketAddress getSource()
+  {
+    return source;
+  }
+
+  public Transport getTransport()
+  {
+    return transport;
+  }
+
+  public IOException getReceiveException()
+  {
+    return receiveException;
+  }
+
+  /**
+   * Returns the estimated interarrival jitter in milliseconds.
+   */
+  public synchronized double getJitterMillis()
+  {
+    return jitterNanos / 1000000.0;
+  }
+
+  /**
+   * Returns the number of records received but not yet played.
+   */
+  public synchronized int getDepth()
+  {
+    return synchronised ? (int)Math.max(0, highest + 1 - playout) : 0;
+  }
+
+  public synchronized int getTargetDepth()
+  {
+    return targetDepth;
+  }
+
+  public synchronized long getFramesReceived()
+  {
+    return framesReceived;
+  }
+
+  public synchronized long getRecordsPlayed()
+  {
+    return recordsPlayed;
+  }
+
+  /**
+   * Returns the number of records concealed since they had not been
+   * received when due.
+   */
+  public synchronized long getLost()
+  {
+    return lost;
+  }
+
+  /**
+   * Returns the number of records received after they had been
+   * concealed.
+   */
+  public synchronized long getLate()
+  {
+    return late;
+  }
+
+  public synchronized long getDuplicates()
+  {
+    return duplicates;
+  }
+
+  public synchronized long getReordered()
+  {
+    return reordered;
+  }
+
+  public synchronized long getUnderruns()
+  {
+    return underruns;
+  }
+
+  public synchronized String getReport()
+  {
+    final StringBuffer s = new StringBuffer();
+    s.append(transport).append("://").append(source.getHostString());
+    s.append(":").append(source.getPort()).append(": ");
+    s.append(framesReceived).append(" frames, ");
+    s.append(recordsReceived).append(" records received, ");
+    s.append(recordsPlayed).append(" played, ");
+    s.append(lost).append(" lost, ");
+    s.append(late).append(" late, ");
+    s.append(duplicates).append(" duplicates, ");
+    s.append(reordered).append(" reordered, ");
+    s.append(underruns).append(" underruns, ");
+    s.append(resynchronisations).append(" resyncs, ");
+    s.append("jitter ").append(Math.round(jitterNanos / 1000.0));
+    s.append(" us, depth ").append(getDepth());
+    s.append("/").append(targetDepth);
+    return s.toString();
+  }
+
+  public void close() throws IOException
+  {
+    stopRequested = true;
+    if (udp != null) {
+      udp.close();
+    }
+    if (tcp != null) {
+      tcp.close();
+    }
+    try {
+      receiver.join(1000);
+    } catch (final InterruptedException ex) {
+      // ignore
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
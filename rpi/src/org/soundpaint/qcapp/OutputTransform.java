@@ -0,0 +1,180 @@
+/*
+ * @(#)OutputTransform.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per lever trim, scaling, expo curves, inversion and limits, plus
+ * button remapping, applied to records right before they are sent,
+ * e.g. for adapting a recording to a different remote or QuadCop.
+ * The configured chain is compiled into one table of 256 entries per
+ * lever and one for the buttons, such that transforming a record
+ * costs a single table lookup per byte.  Instances are immutable;
+ * writers swap them atomically as a whole while playing.
+ */
+public class OutputTransform
+{
+  private static final int TABLES = DspPipeline.LEVERS + 1;
+  private static final int BUTTONS_TABLE = DspPipeline.LEVERS;
+  private static final int BUTTON_BITS = 8;
+
+  private final String spec;
+  private final byte[] table;
+
+  private OutputTransform()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  private OutputTransform(final String spec, final DspPipeline pipeline,
+                          final int[] buttonSources)
+  {
+    this.spec = spec;
+    table = new byte[TABLES * 256];
+    for (int lever = 0; lever < DspPipeline.LEVERS; lever++) {
+      final int[] leverTable = pipeline.compileTable(lever);
+      for (int value = 0; value < 256; value++) {
+        table[lever * 256 + value] = (byte)leverTable[value];
+      }
+    }
+    for (int value = 0; value < 256; value++) {
+      int buttons = 0;
+      for (int bit = 0; bit < BUTTON_BITS; bit++) {
+        if ((value & (1 << buttonSources[bit])) != 0) {
+          buttons |= 1 << bit;
+        }
+      }
+      table[BUTTONS_TABLE * 256 + value] = (byte)buttons;
+    }
+  }
+
+  /**
+   * Parses a comma separated list of items.  Items of the form
+   * button:FROM:TO let output button bit TO follow input button bit
+   * FROM, with bits numbered 0 to 7; unmapped bits pass through.  All
+   * other items are lever filters as accepted by DspPipeline.parse(),
+   * restricted to those that map each value independently, i.e.
+   * deadband, expo, quantize, trim, scale, invert, and limit.
+   *
+   * @exception IllegalArgumentException If the spec is malformed.
+   */
+  public static OutputTransform parse(final String spec)
+  {
+    if (spec == null) {
+      throw new NullPointerException("spec");
+    }
+    final int[] buttonSources = new int[BUTTON_BITS];
+    for (int bit = 0; bit < BUTTON_BITS; bit++) {
+      buttonSources[bit] = bit;
+    }
+    final List<String> leverItems = new ArrayList<String>();
+    for (final String item : spec.split(",")) {
+      final String[] args = item.trim().split(":");
+      if ("button".equals(args[0])) {
+        if (args.length != 3) {
+          throw new IllegalArgumentException("bad button mapping: " + item);
+        }
+        final int from = parseBit(args[1], item);
+        final int to = parseBit(args[2], item);
+        buttonSources[to] = from;
+      } else if (!item.trim().isEmpty()) {
+        leverItems.add(item);
+      }
+    }
+    final DspPipeline pipeline =
+      DspPipeline.parse(String.join(",", leverItems));
+    return new OutputTransform(spec.trim(), pipeline, buttonSources);
+  }
+
+  private static int parseBit(final String value, final String item)
+  {
+    final int bit;
+    try {
+      bit = Integer.parseInt(value.trim());
+    } catch (final NumberFormatException ex) {
+      throw new IllegalArgumentException("bad button mapping: " + item, ex);
+    }
+    if ((bit < 0) || (bit >= BUTTON_BITS)) {
+      throw new IllegalArgumentException("bad button mapping: " + item);
+    }
+    return bit;
+  }
+
+  public String getSpec()
+  {
+    return spec;
+  }
+
+  /**
+   * Returns the output value of the specified lever for the given
+   * unsigned input value.
+   */
+  public int getLever(final int lever, final int value)
+  {
+    return table[lever * 256 + (value & 0xff)] & 0xff;
+  }
+
+  public byte getButtons(final byte buttons)
+  {
+    return table[BUTTONS_TABLE * 256 + (buttons & 0xff)];
+  }
+
+  /**
+   * Transforms the record packed as by RecordRing.pack().  The
+   * status is passed through unchanged.
+   */
+  public long apply(final long packedRecord)
+  {
+    final byte[] table = this.table;
+    return
+      (packedRecord & 0xffL) |
+      ((table[(int)(packedRecord >>> 8) & 0xff] & 0xffL) << 8) |
+      ((table[256 + ((int)(packedRecord >>> 16) & 0xff)] & 0xffL) << 16) |
+      ((table[512 + ((int)(packedRecord >>> 24) & 0xff)] & 0xffL) << 24) |
+      ((table[768 + ((int)(packedRecord >>> 32) & 0xff)] & 0xffL) << 32) |
+      ((table[1024 + ((int)(packedRecord >>> 40) & 0xff)] & 0xffL) << 40);
+  }
+
+  /**
+   * Transforms count packed records in place, starting at offset.
+   */
+  public void apply(final long[] packedRecords,
+                    final int offset, final int count)
+  {
+    for (int i = offset; i < offset + count; i++) {
+      packedRecords[i] = apply(packedRecords[i]);
+    }
+  }
+
+  public String toString()
+  {
+    return spec.isEmpty() ? "identity" : spec;
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,186 @@
+/*
+ * @(#)PianoRoll.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.File;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+
+public class PianoRoll extends JFrame implements DocumentManager.Listener
+{
+  private static final long serialVersionUID = -5170617386129557270L;
+
+  static class ChannelHeader extends JComponent
+  {
+    private static final long serialVersionUID = 6614020578386911413L;
+
+    private static final int HEADER_WIDTH = 72;
+
+    ChannelHeader()
+    {
+      setPreferredSize(new Dimension(HEADER_WIDTH,
+                                     PianoRollPane.getLanesHeight()));
+    }
+
+    protected void paintComponent(final Graphics g)
+    {
+      g.setColor(getBackground() != null ? getBackground() : Color.LIGHT_GRAY);
+      g.fillRect(0, 0, getWidth(), getHeight());
+      g.setColor(Color.BLACK);
+      final int ascent = g.getFontMetrics().getAscent();
+      final int leverHeight = PianoRollPane.getLeverLaneHeight();
+      for (int lever = 0; lever < PianoRollPane.LEVERS; lever++) {
+        final int y =
+          PianoRollPane.getLeverLaneTop(lever) + (leverHeight + ascent) / 2;
+        g.drawString("Lever " + lever, 4, y);
+      }
+      final int buttonHeight = PianoRollPane.getButtonLaneHeight();
+      for (int button = 0; button < PianoRollPane.BUTTONS; button++) {
+        final int y =
+          PianoRollPane.getButtonLaneTop(button) + (buttonHeight + ascent) / 2;
+        g.drawString("Button " + button, 4, y);
+      }
+    }
+  }
+
+  private final static String TITLE = "Piano Roll";
+
+  private final DocumentManager documentManager;
+  private final PianoRollPane pianoRollPane;
+  private final JScrollPane scrollPane;
+
+  private PianoRoll()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public PianoRoll(final QuadCopApp quadCopApp)
+  {
+    if (quadCopApp == null) {
+      throw new NullPointerException("quadCopApp");
+    }
+    documentManager = quadCopApp.getDocumentManager();
+    documentManager.addListener(this);
+    setTitle(TITLE);
+    setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+    pianoRollPane = new PianoRollPane();
+    pianoRollPane.addMouseWheelListener((final MouseWheelEvent event) -> {
+        mouseWheelMoved(event);
+      });
+    scrollPane =
+      new JScrollPane(pianoRollPane,
+                      JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                      JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+    scrollPane.setRowHeaderView(new ChannelHeader());
+    add(createToolBar(), BorderLayout.PAGE_START);
+    add(scrollPane, BorderLayout.CENTER);
+    updateDocument();
+    pack();
+    setLocationRelativeTo(quadCopApp);
+  }
+
+  private JToolBar createToolBar()
+  {
+    final JToolBar toolBar = new JToolBar();
+    toolBar.setFloatable(false);
+
+    final JButton zoomIn = new JButton("Zoom In");
+    zoomIn.setToolTipText("Show fewer records per pixel");
+    zoomIn.addActionListener((final ActionEvent event) -> {
+        zoom(-1, scrollPane.getViewport().getWidth() / 2);
+      });
+    toolBar.add(zoomIn);
+
+    final JButton zoomOut = new JButton("Zoom Out");
+    zoomOut.setToolTipText("Show more records per pixel");
+    zoomOut.addActionListener((final ActionEvent event) -> {
+        zoom(+1, scrollPane.getViewport().getWidth() / 2);
+      });
+    toolBar.add(zoomOut);
+
+    final JButton zoomToFit = new JButton("Zoom to Fit");
+    zoomToFit.setToolTipText("Show the whole document");
+    zoomToFit.addActionListener((final ActionEvent event) -> {
+        pianoRollPane.zoomToFit(scrollPane.getViewport().getWidth());
+      });
+    toolBar.add(zoomToFit);
+    return toolBar;
+  }
+
+  private void zoom(final int delta, final int anchorX)
+  {
+    pianoRollPane.setZoom(pianoRollPane.getZoom() + delta, anchorX);
+  }
+
+  private void mouseWheelMoved(final MouseWheelEvent event)
+  {
+    if (event.isControlDown()) {
+      final int anchorX =
+        event.getX() - scrollPane.getViewport().getViewPosition().x;
+      zoom(event.getWheelRotation() > 0 ? +1 : -1, anchorX);
+    } else {
+      // a wheel listener on the view hides wheel events from the
+      // scroll pane, hence forward them for regular scrolling
+      scrollPane.dispatchEvent(SwingUtilities.
+                               convertMouseEvent(pianoRollPane, event,
+                                                 scrollPane));
+    }
+  }
+
+  private void updateDocument()
+  {
+    pianoRollPane.setDocument(documentManager.hasDocument() ?
+                              documentManager.getDocument() : null);
+  }
+
+  public void statusChanged(final DocumentManager.Status status,
+                            final int documentSize)
+  {
+    // document manager may report from the serial reader thread
+    SwingUtilities.invokeLater(() -> {
+        updateDocument();
+      });
+  }
+
+  public void fileAssociationChanged(final File file)
+  {
+    SwingUtilities.invokeLater(() -> {
+        setTitle(file != null ? TITLE + " (" + file.getName() + ")" : TITLE);
+      });
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,714 @@
+/*
+ * @(#)PianoRollPane.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+/**
+ * Timeline view of a document that shows the four control levers as
+ * curves and the six buttons as note lanes.
+ *
+ * The horizontal axis is split into tiles of fixed width.  Only the
+ * tiles that intersect the clip area are painted.  Rendered tiles
+ * are kept as screen compatible images in an LRU cache that is keyed
+ * by zoom level and tile index.  When the document grows, only those
+ * tiles are dropped that cover the newly appended records.
+ *
+ * For zoom levels with many records per pixel, rendering reads from
+ * a min / max pyramid that is maintained incrementally alongside the
+ * document, such that each pixel column costs O(1) regardless of the
+ * length of the recording.
+ */
+public class PianoRollPane extends JComponent
+  implements Scrollable, Document.Listener
+{
+  private static final long serialVersionUID = 2839466231076094578L;
+
+  public static final int LEVERS = 4;
+  public static final int BUTTONS = 6;
+
+  /**
+   * Zoom levels are powers of two: zoom level z >= 0 means 2^z
+   * records per pixel, z < 0 means 2^-z pixels per record.
+   */
+  public static final int MIN_ZOOM = -4;
+  public static final int MAX_ZOOM = 20;
+  public static final int DEFAULT_ZOOM = 2;
+
+  private static final int TILE_WIDTH = 256;
+  private static final int TILE_CACHE_CAPACITY = 48;
+  private static final int LEVER_LANE_HEIGHT = 64;
+  private static final int BUTTON_LANE_HEIGHT = 12;
+  private static final int LANE_GAP = 4;
+  private static final int HEIGHT =
+    LEVERS * (LEVER_LANE_HEIGHT + LANE_GAP) +
+    BUTTONS * (BUTTON_LANE_HEIGHT + LANE_GAP);
+  private static final int MAX_WIDTH = 1 << 30;
+
+  static final Color BACKGROUND_COLOR = new Color(0x202020);
+  static final Color LANE_COLOR = new Color(0x2c2c2c);
+  static final Color CENTER_LINE_COLOR = new Color(0x404040);
+  static final Color[] LEVER_COLORS = {
+    new Color(0xff6060), new Color(0x60ff60),
+    new Color(0x6080ff), new Color(0xffd040)
+  };
+  static final Color BUTTON_COLOR = new Color(0xd0d0d0);
+
+  /**
+   * Min / max pyramid over the document's records.  Level z holds
+   * one entry per block of 2^z records, starting from level
+   * SUMMARY_BASE_ZOOM.  Each level is derived from the level below,
+   * such that appending records only touches the last entry of each
+   * level.
+   */
+  private static class Summary
+  {
+    private static final int SUMMARY_BASE_ZOOM = 4;
+    private static final int LEVELS = MAX_ZOOM - SUMMARY_BASE_ZOOM + 1;
+
+    private final byte[][] min;
+    private final byte[][] max;
+    private final byte[][] buttons;
+    private int size;
+
+    private Summary()
+    {
+      min = new byte[LEVELS][];
+      max = new byte[LEVELS][];
+      buttons = new byte[LEVELS][];
+      reset();
+    }
+
+    private void reset()
+    {
+      for (int level = 0; level < LEVELS; level++) {
+        min[level] = new byte[LEVERS * 16];
+        max[level] = new byte[LEVERS * 16];
+        buttons[level] = new byte[16];
+      }
+      size = 0;
+    }
+
+    private static int blockCount(final int size, final int zoom)
+    {
+      return (int)(((long)size + (1L << zoom) - 1) >> zoom);
+    }
+
+    private void ensureCapacity(final int level, final int blocks)
+    {
+      if (buttons[level].length < blocks) {
+        int capacity = buttons[level].length;
+        while (capacity < blocks) {
+          capacity <<= 1;
+        }
+        final byte[] newMin = new byte[LEVERS * capacity];
+        final byte[] newMax = new byte[LEVERS * capacity];
+        final byte[] newButtons = new byte[capacity];
+        System.arraycopy(min[level], 0, newMin, 0, min[level].length);
+        System.arraycopy(max[level], 0, newMax, 0, max[level].length);
+        System.arraycopy(buttons[level], 0, newButtons, 0,
+                         buttons[level].length);
+        min[level] = newMin;
+        max[level] = newMax;
+        buttons[level] = newButtons;
+      }
+    }
+
+    private void update(final Document document, final int newSize)
+    {
+      if (newSize < size) {
+        reset();
+      }
+      if (newSize == size) {
+        return;
+      }
+      final int from = size;
+      updateBaseLevel(document, from, newSize);
+      for (int zoom = SUMMARY_BASE_ZOOM + 1; zoom <= MAX_ZOOM; zoom++) {
+        updateLevel(zoom, from, newSize);
+      }
+      size = newSize;
+    }
+
+    private void updateBaseLevel(final Document document,
+                                 final int from, final int newSize)
+    {
+      final int zoom = SUMMARY_BASE_ZOOM;
+      final int firstBlock = from >> zoom;
+      final int blocks = blockCount(newSize, zoom);
+      ensureCapacity(0, blocks);
+      final byte[] levelMin = min[0];
+      final byte[] levelMax = max[0];
+      final byte[] levelButtons = buttons[0];
+      for (int block = firstBlock; block < blocks; block++) {
+        final int blockStart = block << zoom;
+        final int blockEnd = Math.min(blockStart + (1 << zoom), newSize);
+        int min0 = 255, min1 = 255, min2 = 255, min3 = 255;
+        int max0 = 0, max1 = 0, max2 = 0, max3 = 0;
+        int buttonsOr = 0;
+        for (int i = blockStart; i < blockEnd; i++) {
+          final QuadCop.DataRecord record = document.getRecord(i);
+          final int lever0 = record.getCtrlLever0() & 0xff;
+          final int lever1 = record.getCtrlLever1() & 0xff;
+          final int lever2 = record.getCtrlLever2() & 0xff;
+          final int lever3 = record.getCtrlLever3() & 0xff;
+          min0 = Math.min(min0, lever0);
+          min1 = Math.min(min1, lever1);
+          min2 = Math.min(min2, lever2);
+          min3 = Math.min(min3, lever3);
+          max0 = Math.max(max0, lever0);
+          max1 = Math.max(max1, lever1);
+          max2 = Math.max(max2, lever2);
+          max3 = Math.max(max3, lever3);
+          buttonsOr |= record.getButtons();
+        }
+        final int offset = LEVERS * block;
+        levelMin[offset] = (byte)min0;
+        levelMin[offset + 1] = (byte)min1;
+        levelMin[offset + 2] = (byte)min2;
+        levelMin[offset + 3] = (byte)min3;
+        levelMax[offset] = (byte)max0;
+        levelMax[offset + 1] = (byte)max1;
+        levelMax[offset + 2] = (byte)max2;
+        levelMax[offset + 3] = (byte)max3;
+        levelButtons[block] = (byte)buttonsOr;
+      }
+    }
+
+    private void updateLevel(final int zoom,
+                             final int from, final int newSize)
+    {
+      final int level = zoom - SUMMARY_BASE_ZOOM;
+      final int firstBlock = from >> zoom;
+      final int blocks = blockCount(newSize, zoom);
+      final int childBlocks = blockCount(newSize, zoom - 1);
+      ensureCapacity(level, blocks);
+      final byte[] childMin = min[level - 1];
+      final byte[] childMax = max[level - 1];
+      final byte[] childButtons = buttons[level - 1];
+      final byte[] levelMin = min[level];
+      final byte[] levelMax = max[level];
+      final byte[] levelButtons = buttons[level];
+      for (int block = firstBlock; block < blocks; block++) {
+        final int left = 2 * block;
+        final int right = left + 1 < childBlocks ? left + 1 : left;
+        for (int lever = 0; lever < LEVERS; lever++) {
+          levelMin[LEVERS * block + lever] =
+            (byte)Math.min(childMin[LEVERS * left + lever] & 0xff,
+                           childMin[LEVERS * right + lever] & 0xff);
+          levelMax[LEVERS * block + lever] =
+            (byte)Math.max(childMax[LEVERS * left + lever] & 0xff,
+                           childMax[LEVERS * right + lever] & 0xff);
+        }
+        levelButtons[block] =
+          (byte)(childButtons[left] | childButtons[right]);
+      }
+    }
+  }
+
+  /**
+   * LRU cache of rendered tiles.  Evicted tile images are recycled
+   * for rendering subsequent tiles, such that scrolling through a
+   * long recording does not continuously allocate new images.
+   */
+  private static class TileCache
+  {
+    private final Map<Long, BufferedImage> tiles;
+    private final List<BufferedImage> spareImages;
+
+    private TileCache()
+    {
+      spareImages = new ArrayList<BufferedImage>();
+      tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+        private static final long serialVersionUID = -4013327170529380221L;
+
+        protected boolean
+          removeEldestEntry(final Map.Entry<Long, BufferedImage> eldest)
+        {
+          if (size() > TILE_CACHE_CAPACITY) {
+            spareImages.add(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    private static long key(final int zoom, final int tileIndex)
+    {
+      return ((long)zoom << 32) | (tileIndex & 0xffffffffL);
+    }
+
+    private BufferedImage get(final int zoom, final int tileIndex)
+    {
+      return tiles.get(key(zoom, tileIndex));
+    }
+
+    private void put(final int zoom, final int tileIndex,
+                     final BufferedImage image)
+    {
+      tiles.put(key(zoom, tileIndex), image);
+    }
+
+    private BufferedImage takeSpareImage()
+    {
+      final int count = spareImages.size();
+      return count > 0 ? spareImages.remove(count - 1) : null;
+    }
+
+    /**
+     * Drops all tiles of all zoom levels that cover any record with
+     * an index greater than or equal to the specified index.
+     */
+    private void invalidateFrom(final int index)
+    {
+      final Iterator<Map.Entry<Long, BufferedImage>> iterator =
+        tiles.entrySet().iterator();
+      while (iterator.hasNext()) {
+        final Map.Entry<Long, BufferedImage> entry = iterator.next();
+        final long key = entry.getKey();
+        final int zoom = (int)(key >> 32);
+        final int tileIndex = (int)key;
+        final long tileEnd = pixelToIndex(zoom, (tileIndex + 1L) * TILE_WIDTH);
+        if (tileEnd > index) {
+          spareImages.add(entry.getValue());
+          iterator.remove();
+        }
+      }
+    }
+
+    private void clear()
+    {
+      spareImages.addAll(tiles.values());
+      tiles.clear();
+    }
+  }
+
+  private final Summary summary;
+  private final TileCache tileCache;
+  private final AtomicBoolean updatePending;
+  private final int[] columnMin;
+  private final int[] columnMax;
+  private Document document;
+  private int documentSize;
+  private int zoom;
+
+  public PianoRollPane()
+  {
+    summary = new Summary();
+    tileCache = new TileCache();
+    updatePending = new AtomicBoolean(false);
+    columnMin = new int[LEVERS];
+    columnMax = new int[LEVERS];
+    document = null;
+    documentSize = 0;
+    zoom = DEFAULT_ZOOM;
+    setOpaque(true);
+  }
+
+  public static int getLeverLaneTop(final int lever)
+  {
+    return lever * (LEVER_LANE_HEIGHT + LANE_GAP) + LANE_GAP / 2;
+  }
+
+  public static int getButtonLaneTop(final int button)
+  {
+    return
+      LEVERS * (LEVER_LANE_HEIGHT + LANE_GAP) +
+      button * (BUTTON_LANE_HEIGHT + LANE_GAP) + LANE_GAP / 2;
+  }
+
+  public static int getLanesHeight()
+  {
+    return HEIGHT;
+  }
+
+  public static int getLeverLaneHeight()
+  {
+    return LEVER_LANE_HEIGHT;
+  }
+
+  public static int getButtonLaneHeight()
+  {
+    return BUTTON_LANE_HEIGHT;
+  }
+
+  /**
+   * Must be called on the event dispatch thread.
+   */
+  public void setDocument(final Document document)
+  {
+    if (document == this.document) {
+      return;
+    }
+    if (this.document != null) {
+      this.document.removeListener(this);
+    }
+    this.document = document;
+    documentSize = 0;
+    summary.reset();
+    tileCache.clear();
+    if (document != null) {
+      document.addListener(this);
+      updateFromDocument();
+    }
+    revalidate();
+    repaint();
+  }
+
+  public Document getDocument()
+  {
+    return document;
+  }
+
+  public int getZoom()
+  {
+    return zoom;
+  }
+
+  /**
+   * Changes the zoom level while keeping the record that is located
+   * at the specified horizontal offset within the visible area at
+   * its position.
+   */
+  public void setZoom(final int zoom, final int anchorX)
+  {
+    final int newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+    if (newZoom == this.zoom) {
+      return;
+    }
+    final JViewport viewport =
+      getParent() instanceof JViewport ? (JViewport)getParent() : null;
+    final Point position =
+      viewport != null ? viewport.getViewPosition() : new Point();
+    final long anchorIndex = pixelToIndex(this.zoom, position.x + anchorX);
+    this.zoom = newZoom;
+    final Dimension size = getPreferredSize();
+    setSize(size);
+    if (viewport != null) {
+      final long anchorPixel = indexToPixel(newZoom, anchorIndex);
+      final int maxX = Math.max(0, size.width - viewport.getWidth());
+      position.x = (int)Math.max(0, Math.min(maxX, anchorPixel - anchorX));
+      viewport.setViewPosition(position);
+    }
+    revalidate();
+    repaint();
+  }
+
+  /**
+   * Chooses the zoom level such that the whole document fits into
+   * the specified width.
+   */
+  public void zoomToFit(final int width)
+  {
+    int fitZoom = MIN_ZOOM;
+    while ((fitZoom < MAX_ZOOM) &&
+           (indexToPixel(fitZoom, documentSize) > width)) {
+      fitZoom++;
+    }
+    setZoom(fitZoom, 0);
+  }
+
+  private static long pixelToIndex(final int zoom, final long pixel)
+  {
+    return zoom >= 0 ? pixel << zoom : pixel >> -zoom;
+  }
+
+  private static long indexToPixel(final int zoom, final long index)
+  {
+    return
+      zoom >= 0 ? (index + (1L << zoom) - 1) >> zoom : index << -zoom;
+  }
+
+  public Dimension getPreferredSize()
+  {
+    final long width = indexToPixel(zoom, documentSize);
+    return new Dimension((int)Math.min(width, MAX_WIDTH), HEIGHT);
+  }
+
+  public Dimension getPreferredScrollableViewportSize()
+  {
+    return new Dimension(4 * TILE_WIDTH, HEIGHT);
+  }
+
+  public int getScrollableUnitIncrement(final Rectangle visibleRect,
+                                        final int orientation,
+                                        final int direction)
+  {
+    return
+      orientation == SwingConstants.HORIZONTAL ?
+      TILE_WIDTH / 16 : BUTTON_LANE_HEIGHT;
+  }
+
+  public int getScrollableBlockIncrement(final Rectangle visibleRect,
+                                         final int orientation,
+                                         final int direction)
+  {
+    return
+      orientation == SwingConstants.HORIZONTAL ?
+      Math.max(visibleRect.width - TILE_WIDTH / 16, 1) :
+      Math.max(visibleRect.height - BUTTON_LANE_HEIGHT, 1);
+  }
+
+  public boolean getScrollableTracksViewportWidth()
+  {
+    return
+      (getParent() instanceof JViewport) &&
+      (getParent().getWidth() > getPreferredSize().width);
+  }
+
+  public boolean getScrollableTracksViewportHeight()
+  {
+    return false;
+  }
+
+  /**
+   * Called from whatever thread appends to the document.  Updates
+   * are coalesced into a single pending task on the event dispatch
+   * thread.
+   */
+  public void documentChanged()
+  {
+    if (!updatePending.getAndSet(true)) {
+      SwingUtilities.invokeLater(() -> {
+          updatePending.set(false);
+          updateFromDocument();
+        });
+    }
+  }
+
+  private void updateFromDocument()
+  {
+    if (document == null) {
+      return;
+    }
+    final int oldSize = documentSize;
+    final int newSize = document.size();
+    if (newSize == oldSize) {
+      return;
+    }
+    if (newSize < oldSize) {
+      tileCache.clear();
+    } else {
+      tileCache.invalidateFrom(oldSize);
+    }
+    summary.update(document, newSize);
+    documentSize = newSize;
+    final int oldWidth = (int)Math.min(indexToPixel(zoom, oldSize), MAX_WIDTH);
+    final int newWidth = (int)Math.min(indexToPixel(zoom, newSize), MAX_WIDTH);
+    if (newWidth != oldWidth) {
+      revalidate();
+    }
+    if (newSize < oldSize) {
+      repaint();
+    } else {
+      final int dirtyX = Math.max(0, oldWidth - 1);
+      repaint(dirtyX, 0, newWidth - dirtyX + 1, HEIGHT);
+    }
+  }
+
+  protected void paintComponent(final Graphics g)
+  {
+    final Rectangle clip = g.getClipBounds();
+    final int clipX = clip != null ? clip.x : 0;
+    final int clipWidth = clip != null ? clip.width : getWidth();
+    if (clipWidth <= 0) {
+      return;
+    }
+    final int firstTile = clipX / TILE_WIDTH;
+    final int lastTile = (clipX + clipWidth - 1) / TILE_WIDTH;
+    for (int tileIndex = firstTile; tileIndex <= lastTile; tileIndex++) {
+      BufferedImage tile = tileCache.get(zoom, tileIndex);
+      if (tile == null) {
+        tile = renderTile(tileIndex);
+        tileCache.put(zoom, tileIndex, tile);
+      }
+      g.drawImage(tile, tileIndex * TILE_WIDTH, 0, null);
+    }
+  }
+
+  private BufferedImage createTileImage()
+  {
+    final BufferedImage spareImage = tileCache.takeSpareImage();
+    if (spareImage != null) {
+      return spareImage;
+    }
+    final GraphicsConfiguration graphicsConfiguration =
+      getGraphicsConfiguration();
+    if (graphicsConfiguration != null) {
+      return
+        graphicsConfiguration.createCompatibleImage(TILE_WIDTH, HEIGHT,
+                                                    Transparency.OPAQUE);
+    } else {
+      return new BufferedImage(TILE_WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+  }
+
+  private void paintLanes(final Graphics g)
+  {
+    g.setColor(BACKGROUND_COLOR);
+    g.fillRect(0, 0, TILE_WIDTH, HEIGHT);
+    g.setColor(LANE_COLOR);
+    for (int lever = 0; lever < LEVERS; lever++) {
+      g.fillRect(0, getLeverLaneTop(lever), TILE_WIDTH, LEVER_LANE_HEIGHT);
+    }
+    for (int button = 0; button < BUTTONS; button++) {
+      g.fillRect(0, getButtonLaneTop(button), TILE_WIDTH, BUTTON_LANE_HEIGHT);
+    }
+    g.setColor(CENTER_LINE_COLOR);
+    for (int lever = 0; lever < LEVERS; lever++) {
+      final int centerY = getLeverLaneTop(lever) + LEVER_LANE_HEIGHT / 2;
+      g.drawLine(0, centerY, TILE_WIDTH - 1, centerY);
+    }
+  }
+
+  static int leverToY(final int lever, final int value)
+  {
+    return
+      getLeverLaneTop(lever) +
+      ((255 - value) * (LEVER_LANE_HEIGHT - 1)) / 255;
+  }
+
+  /**
+   * Collects min / max lever values and the OR'ed button states of
+   * all records covered by the specified pixel column into
+   * columnMin, columnMax, and the return value.  Returns -1, if the
+   * column is beyond the end of the document.
+   */
+  private int collectColumn(final long pixel)
+  {
+    final long start = pixelToIndex(zoom, pixel);
+    if ((pixel < 0) || (start >= documentSize)) {
+      return -1;
+    }
+    if (zoom >= Summary.SUMMARY_BASE_ZOOM) {
+      final int level = zoom - Summary.SUMMARY_BASE_ZOOM;
+      final int block = (int)pixel;
+      final byte[] levelMin = summary.min[level];
+      final byte[] levelMax = summary.max[level];
+      for (int lever = 0; lever < LEVERS; lever++) {
+        columnMin[lever] = levelMin[LEVERS * block + lever] & 0xff;
+        columnMax[lever] = levelMax[LEVERS * block + lever] & 0xff;
+      }
+      return summary.buttons[level][block] & 0xff;
+    }
+    final int end =
+      (int)Math.min(zoom > 0 ? start + (1L << zoom) : start + 1, documentSize);
+    for (int lever = 0; lever < LEVERS; lever++) {
+      columnMin[lever] = 255;
+      columnMax[lever] = 0;
+    }
+    int buttons = 0;
+    for (int i = (int)start; i < end; i++) {
+      final QuadCop.DataRecord record = document.getRecord(i);
+      collectLever(0, record.getCtrlLever0() & 0xff);
+      collectLever(1, record.getCtrlLever1() & 0xff);
+      collectLever(2, record.getCtrlLever2() & 0xff);
+      collectLever(3, record.getCtrlLever3() & 0xff);
+      buttons |= record.getButtons();
+    }
+    return buttons & 0xff;
+  }
+
+  private void collectLever(final int lever, final int value)
+  {
+    if (value < columnMin[lever]) {
+      columnMin[lever] = value;
+    }
+    if (value > columnMax[lever]) {
+      columnMax[lever] = value;
+    }
+  }
+
+  private BufferedImage renderTile(final int tileIndex)
+  {
+    final BufferedImage image = createTileImage();
+    final Graphics g = image.getGraphics();
+    paintLanes(g);
+    final long firstPixel = (long)tileIndex * TILE_WIDTH;
+    final int[] previousMin = new int[LEVERS];
+    final int[] previousMax = new int[LEVERS];
+    boolean havePrevious = collectColumn(firstPixel - 1) >= 0;
+    System.arraycopy(columnMin, 0, previousMin, 0, LEVERS);
+    System.arraycopy(columnMax, 0, previousMax, 0, LEVERS);
+    for (int x = 0; x < TILE_WIDTH; x++) {
+      final int buttons = collectColumn(firstPixel + x);
+      if (buttons < 0) {
+        break;
+      }
+      for (int lever = 0; lever < LEVERS; lever++) {
+        int low = columnMin[lever];
+        int high = columnMax[lever];
+        if (havePrevious) {
+          // connect to the previous column to get a continuous curve
+          if (previousMax[lever] < low) {
+            low = previousMax[lever];
+          }
+          if (previousMin[lever] > high) {
+            high = previousMin[lever];
+          }
+        }
+        g.setColor(LEVER_COLORS[lever]);
+        g.drawLine(x, leverToY(lever, high), x, leverToY(lever, low));
+        previousMin[lever] = columnMin[lever];
+        previousMax[lever] = columnMax[lever];
+      }
+      havePrevious = true;
+      if (buttons != 0) {
+        g.setColor(BUTTON_COLOR);
+        for (int button = 0; button < BUTTONS; button++) {
+          // button 0 is transmitted as most significant bit
+          if ((buttons & (1 << (BUTTONS - 1 - button))) != 0) {
+            g.drawLine(x, getButtonLaneTop(button) + 2,
+                       x, getButtonLaneTop(button) + BUTTON_LANE_HEIGHT - 3);
+          }
+        }
+      }
+    }
+    g.dispose();
+    return image;
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,485 @@
+/*
+ * @(#)PipelineBenchmark.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the serial reader, writer and producer against a simulated
+ * QuadCop for each thread mode and compares context switches, CPU
+ * time and the jitter of the intervals between records written.
+ *
+ * The simulated line transmits at 57600 baud in both directions:
+ * writing blocks until the line is free, and the simulated device
+ * continuously sends records that report the fill level of its
+ * receive buffer in their status byte, like the firmware, such that
+ * the writer's flow control behaves as on the real line.
+ */
+public class PipelineBenchmark
+{
+  private static class Flags {
+    private static final Options.OptionDeclaration optVersion =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('V'), "version",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display version information and exit");
+    private static final Options.OptionDeclaration optHelp =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('h'), "help",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display this help text and exit");
+    private static final Options.OptionDeclaration optMode =
+      new Options.OptionDeclaration(Options.Type.STRING, "MODE", false,
+                                    Character.valueOf('m'), "mode",
+                                    "both",
+                                    "run the pipeline on MODE threads, " +
+                                    "one of platform, virtual or both");
+    private static final Options.OptionDeclaration optSeconds =
+      new Options.OptionDeclaration(Options.Type.STRING, "N", false,
+                                    Character.valueOf('s'), "seconds",
+                                    "10",
+                                    "measure for N seconds per mode");
+
+    private static final Options.OptionDeclaration[] OPTION_DECLARATIONS =
+      new Options.OptionDeclaration[] {
+      optVersion, optHelp, optMode, optSeconds
+    };
+
+    private Options.FlagOptionDefinition version;
+    private Options.FlagOptionDefinition help;
+    private Options.StringOptionDefinition mode;
+    private Options.StringOptionDefinition seconds;
+
+    private final static Options options;
+
+    static {
+      try {
+        options = new Options(OPTION_DECLARATIONS);
+      } catch (final Options.ParseException ex) {
+        throw new RuntimeException("bad option declaration in class " +
+                                   "PipelineBenchmark", ex);
+      }
+    }
+
+    private Flags()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Flags(final String argv[]) throws Options.ParseException
+    {
+      options.parse(argv);
+      version = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optVersion);
+      help = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optHelp);
+      mode = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optMode);
+      seconds = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSeconds);
+    }
+
+    public ThreadMode[] getModes() throws Options.ParseException
+    {
+      if ("both".equals(mode.getValue())) {
+        return ThreadMode.values();
+      }
+      try {
+        return new ThreadMode[] { ThreadMode.fromLabel(mode.getValue()) };
+      } catch (final IllegalArgumentException ex) {
+        throw new Options.ParseException(ex.getMessage(), ex);
+      }
+    }
+
+    public int getSeconds() throws Options.ParseException
+    {
+      final int value;
+      try {
+        value = Integer.parseInt(seconds.getValue());
+      } catch (final NumberFormatException ex) {
+        throw new Options.ParseException("bad number of seconds: " +
+                                         seconds.getValue());
+      }
+      if (value <= 0) {
+        throw new Options.ParseException("number of seconds must be " +
+                                         "positive");
+      }
+      return value;
+    }
+
+    public String getHelp()
+    {
+      return
+        "Usage: PipelineBenchmark [OPTION]...\n" +
+        "Compare thread modes of the serial pipeline\n" +
+        "\n" +
+        options.getHelp();
+    }
+  }
+
+  private final static long WARMUP_MS = 1000;
+  private final static long TX_BYTES_PER_SECOND = 5760;
+  private final static long BYTE_NANOS = 1000000000L / TX_BYTES_PER_SECOND;
+  private final static int RX_BUFFER_SIZE = 64;
+
+  /**
+   * The QuadCop's end of the serial line.
+   */
+  private static class SimulatedDevice
+  {
+    private final long[] writeNanos;
+    private int writes;
+    private long level;
+    private long levelNanos;
+    private long lineFreeNanos;
+    private volatile boolean recording;
+
+    private SimulatedDevice()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private SimulatedDevice(final int maxWrites)
+    {
+      writeNanos = new long[maxWrites];
+      writes = 0;
+      level = 0;
+      levelNanos = System.nanoTime();
+      lineFreeNanos = levelNanos;
+      recording = false;
+    }
+
+    private synchronized long drain(final long now)
+    {
+      final long drained =
+        (now - levelNanos) * TX_BYTES_PER_SECOND / 1000000000L;
+      if (drained > 0) {
+        level = Math.max(0, level - drained);
+        levelNanos = now;
+      }
+      return level;
+    }
+
+    private synchronized void received(final int count, final long now)
+    {
+      drain(now);
+      level = Math.min(RX_BUFFER_SIZE - 1, level + count);
+      if (recording && (writes < writeNanos.length)) {
+        writeNanos[writes++] = now;
+      }
+    }
+
+    /**
+     * Blocks until the line has transmitted previous bytes, then
+     * occupies it for transmitting count bytes.
+     */
+    private void transmit(final int count) throws IOException
+    {
+      final long waitNanos;
+      synchronized(this) {
+        final long now = System.nanoTime();
+        waitNanos = lineFreeNanos - now;
+        lineFreeNanos = Math.max(now, lineFreeNanos) + count * BYTE_NANOS;
+      }
+      sleepNanos(waitNanos);
+      received(count, System.nanoTime());
+    }
+
+    private final InputStream in = new InputStream() {
+        private long nextReportNanos = System.nanoTime();
+
+        public int read() throws IOException
+        {
+          throw new IOException("single byte read not supported");
+        }
+
+        public int read(final byte[] buffer, final int offset,
+                        final int length)
+          throws IOException
+        {
+          sleepNanos(nextReportNanos - System.nanoTime());
+          final int count = Math.min(length, SerialWriter.WIRE_LENGTH);
+          nextReportNanos += count * BYTE_NANOS;
+          buffer[offset] = (byte)(0x80 | drain(System.nanoTime()));
+          for (int i = 1; i < count; i++) {
+            buffer[offset + i] = 0x40;
+          }
+          return count;
+        }
+      };
+
+    private final OutputStream out = new OutputStream() {
+        public void write(final int b) throws IOException
+        {
+          transmit(1);
+        }
+
+        public void write(final byte[] buffer, final int offset,
+                          final int length)
+          throws IOException
+        {
+          transmit(length);
+        }
+      };
+  }
+
+  private static void sleepNanos(final long nanos) throws IOException
+  {
+    if (nanos > 0) {
+      try {
+        Thread.sleep(nanos / 1000000L, (int)(nanos % 1000000L));
+      } catch (final InterruptedException ex) {
+        throw new IOException("interrupted", ex);
+      }
+    }
+  }
+
+  /**
+   * Endlessly provides full chunks of constant records.
+   */
+  private static class ConstantPlayer implements QCPlayer
+  {
+    private final QuadCop.DataRecord record = new QuadCop.DataRecord();
+
+    public boolean addProgressListener(final ProgressListener listener)
+    {
+      return false;
+    }
+
+    public boolean removeProgressListener(final ProgressListener listener)
+    {
+      return false;
+    }
+
+    public int provideNextChunk(final QuadCop.DataRecord[] buffer)
+    {
+      Arrays.fill(buffer, record);
+      return buffer.length;
+    }
+
+    public int provideNextPackedChunk(final long[] buffer,
+                                      final int offset, final int length)
+    {
+      Arrays.fill(buffer, offset, offset + length, RecordRing.pack(record));
+      return length;
+    }
+
+    public void bufferUnderrunDetected()
+    {
+    }
+  }
+
+  private final Flags flags;
+
+  private PipelineBenchmark()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public PipelineBenchmark(final String argv[])
+    throws Options.ParseException, IOException, InterruptedException
+  {
+    flags = new Flags(argv);
+    if (flags.version.isTrue()) {
+      printVersion();
+    } else if (flags.help.isTrue()) {
+      printHelp();
+    } else {
+      final StringBuffer report = new StringBuffer();
+      for (final ThreadMode threadMode : flags.getModes()) {
+        report.append(run(threadMode, flags.getSeconds()));
+      }
+      System.out.println();
+      System.out.print(report);
+    }
+  }
+
+  private String run(final ThreadMode threadMode, final int seconds)
+    throws IOException, InterruptedException
+  {
+    final int maxWrites = (int)(seconds * TX_BYTES_PER_SECOND);
+    final SimulatedDevice device = new SimulatedDevice(maxWrites);
+    final SerialReader reader = new SerialReader(device.in, null);
+    final SerialWriter writer = new SerialWriter(reader, device.out);
+    writer.addPlayer(new ConstantPlayer());
+    reader.start(threadMode);
+    writer.start(threadMode);
+    reader.awaitRunning();
+    writer.awaitRunning();
+    Thread.sleep(WARMUP_MS);
+    final long switchesBefore = getContextSwitches();
+    final long cpuBefore = getProcessCpuNanos();
+    device.recording = true;
+    Thread.sleep(1000L * seconds);
+    device.recording = false;
+    final long switches = getContextSwitches() - switchesBefore;
+    final long cpuNanos = getProcessCpuNanos() - cpuBefore;
+    final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+    reader.requestStop();
+    writer.requestStop();
+    reader.join(1000);
+    writer.join(1000);
+
+    final StringBuffer s = new StringBuffer();
+    s.append("mode: ").append(threadMode);
+    if (!threadMode.isSupported()) {
+      s.append(" (not supported, fell back to ");
+      s.append(threadMode.getEffectiveMode()).append(")");
+    }
+    s.append("\n");
+    s.append("platform threads: ").append(threads).append("\n");
+    s.append("context switches per second: ");
+    s.append(switches >= 0 ? String.valueOf(switches / seconds) : "n/a");
+    s.append("\n");
+    s.append("cpu time: ");
+    s.append(cpuNanos >= 0 ? (cpuNanos / 1000000L) + " ms" : "n/a");
+    s.append("\n");
+    synchronized(device) {
+      appendIntervalStatistics(s, device.writeNanos, device.writes, seconds);
+    }
+    s.append("\n");
+    return s.toString();
+  }
+
+  private void appendIntervalStatistics(final StringBuffer s,
+                                        final long[] writeNanos,
+                                        final int writes,
+                                        final int seconds)
+  {
+    s.append("records written per second: ");
+    s.append(writes / seconds).append("\n");
+    if (writes < 2) {
+      return;
+    }
+    final long[] intervals = new long[writes - 1];
+    double sum = 0.0;
+    for (int i = 0; i < intervals.length; i++) {
+      intervals[i] = writeNanos[i + 1] - writeNanos[i];
+      sum += intervals[i];
+    }
+    final double mean = sum / intervals.length;
+    double squares = 0.0;
+    for (final long interval : intervals) {
+      squares += (interval - mean) * (interval - mean);
+    }
+    final double deviation = Math.sqrt(squares / intervals.length);
+    Arrays.sort(intervals);
+    final long p99 = intervals[(int)(0.99 * (intervals.length - 1))];
+    final long max = intervals[intervals.length - 1];
+    s.append("write interval mean: ");
+    s.append(Math.round(mean / 1000.0)).append(" us\n");
+    s.append("write interval jitter (std. deviation): ");
+    s.append(Math.round(deviation / 1000.0)).append(" us\n");
+    s.append("write interval 99th percentile: ");
+    s.append(p99 / 1000).append(" us\n");
+    s.append("write interval maximum: ");
+    s.append(max / 1000).append(" us\n");
+  }
+
+  /**
+   * Returns the voluntary and involuntary context switches of all
+   * live threads of this process, or -1 where the kernel does not
+   * provide them.
+   */
+  private static long getContextSwitches()
+  {
+    final File[] tasks = new File("/proc/self/task").listFiles();
+    if (tasks == null) {
+      return -1;
+    }
+    long switches = 0;
+    for (final File task : tasks) {
+      try {
+        final List<String> lines =
+          Files.readAllLines(new File(task, "status").toPath(),
+                             StandardCharsets.US_ASCII);
+        for (final String line : lines) {
+          if (line.startsWith("voluntary_ctxt_switches:") ||
+              line.startsWith("nonvoluntary_ctxt_switches:")) {
+            switches +=
+              Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+          }
+        }
+      } catch (final IOException ex) {
+        // thread terminated meanwhile
+      }
+    }
+    return switches;
+  }
+
+  /**
+   * Returns the CPU time of this process, or -1 where the JVM does
+   * not provide it.
+   */
+  private static long getProcessCpuNanos()
+  {
+    final OperatingSystemMXBean os =
+      ManagementFactory.getOperatingSystemMXBean();
+    try {
+      final Method getProcessCpuTime =
+        Class.forName("com.sun.management.OperatingSystemMXBean").
+        getMethod("getProcessCpuTime");
+      return (Long)getProcessCpuTime.invoke(os);
+    } catch (final ReflectiveOperationException ex) {
+      return -1;
+    } catch (final IllegalArgumentException ex) {
+      return -1;
+    }
+  }
+
+  private void printVersion()
+  {
+    System.out.println("PipelineBenchmark V0.1");
+  }
+
+  private void printHelp()
+  {
+    System.out.println("QuadCop PipelineBenchmark -- compare thread modes");
+    System.out.println();
+    System.out.println(flags.getHelp());
+  }
+
+  public static void main(String argv[]) {
+    try {
+      new PipelineBenchmark(argv);
+    } catch (final Throwable t) {
+      System.err.println(t.getMessage());
+      System.exit(-1);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
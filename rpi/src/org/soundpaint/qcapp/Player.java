@@ -0,0 +1,861 @@
+/*
+ * @(#)Player.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless counterpart of Recorder: plays a recorder file on the
+ * QuadCop without starting the graphical user interface.  The file
+ * is streamed from disk rather than loaded, such that memory
+ * consumption does not depend on the file's length.
+ */
+public class Player
+{
+  private static class Flags {
+    private static final Options.OptionDeclaration optVersion =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('V'), "version",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display version information and exit");
+    private static final Options.OptionDeclaration optHelp =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('h'), "help",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display this help text and exit");
+    private static final Options.OptionDeclaration optVerbose =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('v'), "verbose",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "print verbose information");
+    private static final Options.OptionDeclaration optListPorts =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('l'), "list-ports",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "list available serial ports and exit");
+    private static final Options.OptionDeclaration optPort =
+      new Options.OptionDeclaration(Options.Type.STRING, "FILE", false,
+                                    Character.valueOf('p'), "port",
+                                    null,
+                                    "use FILE as port for serial " +
+                                    "communication; default is to use " +
+                                    "whatever serial port that is found " +
+                                    "first; several ports separated by " +
+                                    "',' play on all of them at once");
+    private static final Options.OptionDeclaration optIn =
+      new Options.OptionDeclaration(Options.Type.STRING, "FILE", false,
+                                    Character.valueOf('i'), "in",
+                                    "quadcop.rec",
+                                    "play recorder file FILE; with several " +
+                                    "ports, either one FILE for all ports " +
+                                    "or one FILE per port, separated by '" +
+                                    File.pathSeparator + "'");
+    private static final Options.OptionDeclaration optStart =
+      new Options.OptionDeclaration(Options.Type.STRING, "N", false,
+                                    Character.valueOf('s'), "start",
+                                    "0",
+                                    "start each loop with record N");
+    private static final Options.OptionDeclaration optLoops =
+      new Options.OptionDeclaration(Options.Type.STRING, "N", false,
+                                    Character.valueOf('n'), "loops",
+                                    "1",
+                                    "play the file N times; 0 means " +
+                                    "endlessly until [Enter] is pressed");
+    private static final Options.OptionDeclaration optSpeed =
+      new Options.OptionDeclaration(Options.Type.STRING, "FACTOR", false,
+                                    Character.valueOf('x'), "speed",
+                                    "1.0",
+                                    "play at FACTOR times the speed of " +
+                                    "recording, from " +
+                                    DocumentPlayer.MIN_SPEED + " to " +
+                                    DocumentPlayer.MAX_SPEED);
+    private static final Options.OptionDeclaration optRate =
+      new Options.OptionDeclaration(Options.Type.STRING, "HZ", false,
+                                    Character.valueOf('r'), "rate",
+                                    "0",
+                                    "send at most HZ records per second; " +
+                                    "0 means pacing by the QuadCop's " +
+                                    "flow control only");
+    private static final Options.OptionDeclaration optDryRun =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('d'), "dry-run",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "do not open a serial port, but " +
+                                    "consume records locally, paced by " +
+                                    "--rate only");
+    private static final Options.OptionDeclaration optThreads =
+      new Options.OptionDeclaration(Options.Type.STRING, "N", false,
+                                    Character.valueOf('t'), "threads",
+                                    "0",
+                                    "with several ports, serve all of " +
+                                    "them by N threads; 0 means one " +
+                                    "thread per processor");
+    private static final Options.OptionDeclaration optFrom =
+      new Options.OptionDeclaration(Options.Type.STRING, "HOST:PORT", false,
+                                    Character.valueOf('f'), "from",
+                                    null,
+                                    "rather than playing a file, play the " +
+                                    "records served by the telemetry " +
+                                    "server at HOST:PORT");
+    private static final Options.OptionDeclaration optTcp =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('T'), "tcp",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "with --from, receive via TCP rather " +
+                                    "than UDP");
+    private static final Options.OptionDeclaration optRing =
+      new Options.OptionDeclaration(Options.Type.STRING, "FILE", false,
+                                    Character.valueOf('R'), "ring",
+                                    null,
+                                    "rather than playing a file, play the " +
+                                    "records that a local process writes " +
+                                    "into shared memory ring file FILE");
+    private static final Options.OptionDeclaration optSegments =
+      new Options.OptionDeclaration(Options.Type.STRING, "DIR", false,
+                                    Character.valueOf('S'), "segments",
+                                    null,
+                                    "rather than playing a file, play the " +
+                                    "records of the segment files in DIR " +
+                                    "that arrived between --begin and " +
+                                    "--end");
+    private static final Options.OptionDeclaration optBegin =
+      new Options.OptionDeclaration(Options.Type.STRING, "TIME", false,
+                                    null, "begin",
+                                    null,
+                                    "with --segments, start with the " +
+                                    "records that arrived at local TIME, " +
+                                    "e.g. 2026-10-19T14:30; default is " +
+                                    "the start of the recording");
+    private static final Options.OptionDeclaration optEnd =
+      new Options.OptionDeclaration(Options.Type.STRING, "TIME", false,
+                                    null, "end",
+                                    null,
+                                    "with --segments, stop after the " +
+                                    "records that arrived at local TIME; " +
+                                    "default is the end of the recording");
+    private static final Options.OptionDeclaration optMap =
+      new Options.OptionDeclaration(Options.Type.STRING, "SPEC", false,
+                                    Character.valueOf('m'), "map",
+                                    null,
+                                    "before sending, map records by the " +
+                                    "comma separated items of SPEC, e.g. " +
+                                    "'0@trim:-4,1@invert,scale:0.8," +
+                                    "limit:16:240,button:0:1' for " +
+                                    "per lever trim, inversion, scaling " +
+                                    "and limits, and letting button bit " +
+                                    "1 follow bit 0; deadband, expo and " +
+                                    "quantize items as for the filters " +
+                                    "are accepted, too");
+
+    private static final Options.OptionDeclaration[] OPTION_DECLARATIONS =
+      new Options.OptionDeclaration[] {
+      optVersion, optHelp, optVerbose, optListPorts, optPort, optIn,
+      optStart, optLoops, optSpeed, optRate, optDryRun, optThreads,
+      optFrom, optTcp, optRing, optSegments, optBegin, optEnd, optMap
+    };
+
+    private Options.FlagOptionDefinition version;
+    private Options.FlagOptionDefinition help;
+    private Options.FlagOptionDefinition verbose;
+    private Options.FlagOptionDefinition listPorts;
+    private Options.StringOptionDefinition port;
+    private Options.StringOptionDefinition in;
+    private Options.StringOptionDefinition start;
+    private Options.StringOptionDefinition loops;
+    private Options.StringOptionDefinition speed;
+    private Options.StringOptionDefinition rate;
+    private Options.FlagOptionDefinition dryRun;
+    private Options.StringOptionDefinition threads;
+    private Options.StringOptionDefinition from;
+    private Options.FlagOptionDefinition tcp;
+    private Options.StringOptionDefinition ring;
+    private Options.StringOptionDefinition segments;
+    private Options.StringOptionDefinition begin;
+    private Options.StringOptionDefinition end;
+    private Options.StringOptionDefinition map;
+
+    private final static Options options;
+
+    static {
+      try {
+        options = new Options(OPTION_DECLARATIONS);
+      } catch (final Options.ParseException ex) {
+        throw new RuntimeException("bad option declaration in class Player",
+                                   ex);
+      }
+    }
+
+    private Flags()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Flags(final String argv[]) throws Options.ParseException
+    {
+      options.parse(argv);
+      version = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optVersion);
+      help = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optHelp);
+      verbose = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optVerbose);
+      listPorts = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optListPorts);
+      port = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optPort);
+      in = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optIn);
+      start = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optStart);
+      loops = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optLoops);
+      speed = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSpeed);
+      rate = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optRate);
+      dryRun = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optDryRun);
+      threads = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optThreads);
+      from = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optFrom);
+      tcp = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optTcp);
+      ring = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optRing);
+      segments = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSegments);
+      begin = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optBegin);
+      end = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optEnd);
+      map = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optMap);
+    }
+
+    /**
+     * Returns the address of the telemetry server to play from, or
+     * null for playing a file.
+     */
+    public InetSocketAddress getFrom() throws Options.ParseException
+    {
+      final String value = from.getValue();
+      if (value == null) {
+        return null;
+      }
+      final int colon = value.lastIndexOf(':');
+      if (colon < 0) {
+        throw new Options.ParseException("missing port: " + value);
+      }
+      try {
+        return new InetSocketAddress(value.substring(0, colon),
+                                     Integer.parseInt(value.
+                                                      substring(colon + 1)));
+      } catch (final IllegalArgumentException ex) {
+        throw new Options.ParseException("bad address: " + value, ex);
+      }
+    }
+
+    private static int parseCount(final Options.StringOptionDefinition option,
+                                  final String name)
+      throws Options.ParseException
+    {
+      final int count;
+      try {
+        count = Integer.parseInt(option.getValue());
+      } catch (final NumberFormatException ex) {
+        throw new Options.ParseException("bad " + name + ": " +
+                                         option.getValue());
+      }
+      if (count < 0) {
+        throw new Options.ParseException(name + " must not be negative");
+      }
+      return count;
+    }
+
+    /**
+     * Returns the local time of the option's value in ms since the
+     * epoch, or the default, if the option is not given.
+     */
+    private static long parseTime(final Options.StringOptionDefinition option,
+                                  final long defaultMillis)
+      throws Options.ParseException
+    {
+      final String value = option.getValue();
+      if (value == null) {
+        return defaultMillis;
+      }
+      try {
+        return
+          LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).
+          toInstant().toEpochMilli();
+      } catch (final DateTimeParseException ex) {
+        throw new Options.ParseException("bad time: " + value, ex);
+      }
+    }
+
+    public long getBegin(final long defaultMillis)
+      throws Options.ParseException
+    {
+      return parseTime(begin, defaultMillis);
+    }
+
+    public long getEnd(final long defaultMillis)
+      throws Options.ParseException
+    {
+      return parseTime(end, defaultMillis);
+    }
+
+    public int getStart() throws Options.ParseException
+    {
+      return parseCount(start, "start record");
+    }
+
+    public int getLoops() throws Options.ParseException
+    {
+      return parseCount(loops, "number of loops");
+    }
+
+    public int getRate() throws Options.ParseException
+    {
+      return parseCount(rate, "rate");
+    }
+
+    public int getThreads() throws Options.ParseException
+    {
+      return parseCount(threads, "number of threads");
+    }
+
+    /**
+     * Returns the names of the ports to play on, or an empty array
+     * for playing on the serial port found first.
+     */
+    public String[] getPorts()
+    {
+      final String value = port.getValue();
+      return value != null ? value.split(",") : new String[0];
+    }
+
+    public String[] getInFiles()
+    {
+      return in.getValue().split(File.pathSeparator);
+    }
+
+    public double getSpeed() throws Options.ParseException
+    {
+      final double value;
+      try {
+        value = Double.parseDouble(speed.getValue());
+      } catch (final NumberFormatException ex) {
+        throw new Options.ParseException("bad speed: " + speed.getValue());
+      }
+      if (!(value >= DocumentPlayer.MIN_SPEED) ||
+          !(value <= DocumentPlayer.MAX_SPEED)) {
+        throw new Options.ParseException("speed out of range: " + value);
+      }
+      return value;
+    }
+
+    /**
+     * Returns the transform to apply before sending, or null for
+     * sending records unchanged.
+     */
+    public OutputTransform getTransform() throws Options.ParseException
+    {
+      final String value = map.getValue();
+      if (value == null) {
+        return null;
+      }
+      try {
+        return OutputTransform.parse(value);
+      } catch (final IllegalArgumentException ex) {
+        throw new Options.ParseException(ex.getMessage(), ex);
+      }
+    }
+
+    public void checkValidity() throws Options.ParseException
+    {
+      getTransform();
+      if (dryRun.isTrue() && (port.getValue() != null)) {
+        throw new Options.ParseException("dry run does not use " +
+                                         "option: " + optPort);
+      }
+      final int inFiles = getInFiles().length;
+      if ((inFiles > 1) && (inFiles != getPorts().length)) {
+        throw new Options.ParseException("need either one file for all " +
+                                         "ports or one file per port");
+      }
+      if ((from.getValue() != null) &&
+          (dryRun.isTrue() || (getPorts().length > 1))) {
+        throw new Options.ParseException("option " + optFrom +
+                                         " requires a single port");
+      }
+      if ((ring.getValue() != null) &&
+          (dryRun.isTrue() || (getPorts().length > 1) ||
+           (from.getValue() != null))) {
+        throw new Options.ParseException("option " + optRing +
+                                         " requires a single port and " +
+                                         "excludes option " + optFrom);
+      }
+      if ((segments.getValue() != null) &&
+          ((getPorts().length > 1) || (from.getValue() != null) ||
+           (ring.getValue() != null))) {
+        throw new Options.ParseException("option " + optSegments +
+                                         " requires a single port and " +
+                                         "excludes options " + optFrom +
+                                         " and " + optRing);
+      }
+      if ((segments.getValue() == null) &&
+          ((begin.getValue() != null) || (end.getValue() != null))) {
+        throw new Options.ParseException("options " + optBegin + " and " +
+                                         optEnd + " require option " +
+                                         optSegments);
+      }
+      if (getBegin(0) > getEnd(Long.MAX_VALUE)) {
+        throw new Options.ParseException("begin is after end");
+      }
+    }
+
+    public String getHelp()
+    {
+      return
+        "Usage: Player [OPTION]...\n" +
+        "Play QuadCop control sketch\n" +
+        "\n" +
+        options.getHelp();
+    }
+  }
+
+  private final static int CHUNK_SIZE = 64;
+  private final static long PROGRESS_INTERVAL_MS = 1000;
+
+  private final Flags flags;
+
+  private Player()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public Player(final String argv[])
+    throws Options.ParseException, IOException
+  {
+    flags = new Flags(argv);
+    if (flags.version.isTrue()) {
+      printVersion();
+    } else if (flags.help.isTrue()) {
+      printHelp();
+    } else if (flags.listPorts.isTrue()) {
+      listPorts();
+    } else {
+      flags.checkValidity();
+      if (flags.getPorts().length > 1) {
+        playFleet(flags.getPorts(), flags.getInFiles());
+        return;
+      }
+      if (flags.getFrom() != null) {
+        playNetwork(flags.getFrom());
+        return;
+      }
+      if (flags.ring.getValue() != null) {
+        playRing(new File(flags.ring.getValue()));
+        return;
+      }
+      if (flags.segments.getValue() != null) {
+        playSegments(new File(flags.segments.getValue()));
+        return;
+      }
+      final FilePlayer player;
+      try {
+        player = new FilePlayer(new File(flags.in.getValue()),
+                                flags.getStart(), flags.getLoops(),
+                                flags.getSpeed());
+      } catch (final IllegalArgumentException ex) {
+        throw new Options.ParseException(ex.getMessage(), ex);
+      }
+      player.setRate(flags.getRate());
+      try {
+        if (flags.dryRun.isTrue()) {
+          playDry(player);
+        } else {
+          final QuadCop quadCop =
+            QuadCop.create(System.out, flags.port.getValue());
+          quadCop.setTransform(flags.getTransform());
+          play(quadCop, player);
+          printStatistics(player);
+          quadCop.close();
+          return;
+        }
+        printStatistics(player);
+      } finally {
+        player.close();
+      }
+    }
+  }
+
+  private void play(final QuadCop quadCop, final FilePlayer player)
+    throws IOException
+  {
+    System.out.println("using port " + quadCop.getPortName());
+    final CountDownLatch endOfStream = new CountDownLatch(1);
+    player.addProgressListener(new QCPlayer.ProgressListener() {
+        public void endOfStreamReached()
+        {
+          endOfStream.countDown();
+        }
+
+        public void progressChanged(final double progress,
+                                    final String progressAsPercent,
+                                    final int index,
+                                    final int size)
+        {
+          // reported periodically by awaitEnd()
+        }
+      });
+    System.out.println("start playing file " + player.getFile());
+    System.out.println("*** Press [Enter] to stop playing. ***");
+    quadCop.addPlayer(player);
+    awaitEnd(player, endOfStream);
+    quadCop.removePlayer(player);
+    System.out.println("stopped playing");
+  }
+
+  /**
+   * Plays the records received from a remote telemetry server until
+   * [Enter] is pressed.
+   */
+  private void playNetwork(final InetSocketAddress from)
+    throws Options.ParseException, IOException
+  {
+    final NetworkPlayer player =
+      new NetworkPlayer(from, flags.tcp.isTrue() ?
+                        NetworkPlayer.Transport.TCP :
+                        NetworkPlayer.Transport.UDP);
+    final QuadCop quadCop = QuadCop.create(System.out, flags.port.getValue());
+    try {
+      quadCop.setTransform(flags.getTransform());
+      System.out.println("using port " + quadCop.getPortName());
+      player.start();
+      quadCop.addPlayer(player);
+      System.out.println("start playing from " + from);
+      System.out.println("*** Press [Enter] to stop playing. ***");
+      long lastReported = System.currentTimeMillis();
+      while ((System.in.available() == 0) &&
+             (player.getReceiveException() == null)) {
+        try {
+          Thread.sleep(100);
+        } catch (final InterruptedException ex) {
+          // ignore
+        }
+        final long now = System.currentTimeMillis();
+        if (flags.verbose.isTrue() &&
+            (now - lastReported >= PROGRESS_INTERVAL_MS)) {
+          System.out.println(player.getReport());
+          lastReported = now;
+        }
+      }
+      quadCop.removePlayer(player);
+      System.out.println("stopped playing");
+      System.out.println(player.getReport());
+    } finally {
+      player.close();
+      quadCop.close();
+    }
+  }
+
+  /**
+   * Plays the records written into a shared memory ring by another
+   * local process until the ring is closed or [Enter] is pressed.
+   */
+  private void playRing(final File file)
+    throws Options.ParseException, IOException
+  {
+    final SharedRingPlayer player = new SharedRingPlayer(file);
+    final QuadCop quadCop = QuadCop.create(System.out, flags.port.getValue());
+    try {
+      quadCop.setTransform(flags.getTransform());
+      System.out.println("using port " + quadCop.getPortName());
+      quadCop.addPlayer(player);
+      System.out.println("start playing from ring file " + file);
+      System.out.println("*** Press [Enter] to stop playing. ***");
+      long lastReported = System.currentTimeMillis();
+      while ((System.in.available() == 0) && !player.isEndOfStreamReached()) {
+        try {
+          Thread.sleep(100);
+        } catch (final InterruptedException ex) {
+          // ignore
+        }
+        final long now = System.currentTimeMillis();
+        if (flags.verbose.isTrue() &&
+            (now - lastReported >= PROGRESS_INTERVAL_MS)) {
+          System.out.println(player.getReport());
+          lastReported = now;
+        }
+      }
+      quadCop.removePlayer(player);
+      System.out.println("stopped playing");
+      System.out.println(player.getReport());
+    } finally {
+      player.close();
+      quadCop.close();
+    }
+  }
+
+  /**
+   * Plays the records of a segmented recording that arrived within
+   * the selected time range, until the end of the range or until
+   * [Enter] is pressed.  Only the segments that overlap the range are
+   * opened.
+   */
+  private void playSegments(final File directory)
+    throws Options.ParseException, IOException
+  {
+    final RecordingCatalog catalog =
+      RecordingCatalog.open(directory, SegmentedRecorder.DEFAULT_PREFIX);
+    final RecordingCatalog.Range range =
+      catalog.select(flags.getBegin(catalog.getFirstMillis()),
+                     flags.getEnd(catalog.getLastMillis()));
+    try {
+      System.out.println(range.size() + " records selected from " +
+                         catalog.getSegments().size() + " segments in " +
+                         directory);
+      final DocumentPlayer player =
+        new DocumentPlayer(range.createDocument());
+      player.setSpeed(flags.getSpeed());
+      if (flags.dryRun.isTrue()) {
+        final QuadCop.DataRecord[] buffer =
+          new QuadCop.DataRecord[CHUNK_SIZE];
+        while ((player.available() > 0) && (System.in.available() == 0)) {
+          player.provideNextChunk(buffer);
+        }
+        System.out.println("records played: " + player.getIndex());
+        return;
+      }
+      final QuadCop quadCop =
+        QuadCop.create(System.out, flags.port.getValue());
+      try {
+        quadCop.setTransform(flags.getTransform());
+        System.out.println("using port " + quadCop.getPortName());
+        final CountDownLatch endOfStream = new CountDownLatch(1);
+        player.addProgressListener(new QCPlayer.ProgressListener() {
+            public void endOfStreamReached()
+            {
+              endOfStream.countDown();
+            }
+
+            public void progressChanged(final double progress,
+                                        final String progressAsPercent,
+                                        final int index,
+                                        final int size)
+            {
+              // reported periodically below
+            }
+          });
+        quadCop.addPlayer(player);
+        System.out.println("*** Press [Enter] to stop playing. ***");
+        long lastReported = System.currentTimeMillis();
+        while (System.in.available() == 0) {
+          try {
+            if (endOfStream.await(100, TimeUnit.MILLISECONDS)) {
+              break;
+            }
+          } catch (final InterruptedException ex) {
+            // ignore
+          }
+          final long now = System.currentTimeMillis();
+          if (flags.verbose.isTrue() &&
+              (now - lastReported >= PROGRESS_INTERVAL_MS)) {
+            System.out.println(player.getProgressAsString() + ", " +
+                               player.getIndex() + " records played");
+            lastReported = now;
+          }
+        }
+        quadCop.removePlayer(player);
+        System.out.println("stopped playing");
+        System.out.println("records played: " + player.getIndex());
+      } finally {
+        quadCop.close();
+      }
+    } finally {
+      range.close();
+    }
+  }
+
+  /**
+   * Plays on several QuadCops at once, with all devices and the
+   * read-ahead of all files served by a shared pool of threads.
+   */
+  private void playFleet(final String[] portNames, final String[] inFiles)
+    throws Options.ParseException, IOException
+  {
+    final Fleet fleet = new Fleet(flags.getThreads());
+    final List<FilePlayer> players = new ArrayList<FilePlayer>();
+    try {
+      for (int i = 0; i < portNames.length; i++) {
+        final Fleet.Device device = fleet.open(portNames[i]);
+        final File file = new File(inFiles[inFiles.length > 1 ? i : 0]);
+        final FilePlayer player;
+        try {
+          player = new FilePlayer(file, flags.getStart(), flags.getLoops(),
+                                  flags.getSpeed(), fleet.getExecutor());
+        } catch (final IllegalArgumentException ex) {
+          throw new Options.ParseException(ex.getMessage(), ex);
+        }
+        player.setRate(flags.getRate());
+        players.add(player);
+        System.out.println("playing file " + file + " on port " +
+                           device.getPortName());
+        device.setTransform(flags.getTransform());
+        device.setPlayer(player);
+      }
+      System.out.println("*** Press [Enter] to stop playing. ***");
+      long lastReported = System.currentTimeMillis();
+      while (!fleet.isEndOfStreamReached() && (System.in.available() == 0)) {
+        try {
+          Thread.sleep(100);
+        } catch (final InterruptedException ex) {
+          // ignore
+        }
+        final long now = System.currentTimeMillis();
+        if (flags.verbose.isTrue() &&
+            (now - lastReported >= PROGRESS_INTERVAL_MS)) {
+          System.out.print(fleet.getReport());
+          lastReported = now;
+        }
+      }
+      fleet.stop();
+      System.out.println("stopped playing");
+      for (final FilePlayer player : players) {
+        System.out.println("file " + player.getFile() + ":");
+        printStatistics(player);
+      }
+      System.out.print(fleet.getReport());
+    } finally {
+      fleet.close();
+      for (final FilePlayer player : players) {
+        player.close();
+      }
+    }
+  }
+
+  private void awaitEnd(final FilePlayer player,
+                        final CountDownLatch endOfStream)
+    throws IOException
+  {
+    long lastReported = System.currentTimeMillis();
+    while (System.in.available() == 0) {
+      try {
+        if (endOfStream.await(100, TimeUnit.MILLISECONDS)) {
+          break;
+        }
+      } catch (final InterruptedException ex) {
+        // ignore
+      }
+      final long now = System.currentTimeMillis();
+      if (flags.verbose.isTrue() &&
+          (now - lastReported >= PROGRESS_INTERVAL_MS)) {
+        System.out.println("loop " + (player.getLoop() + 1) + ", " +
+                           player.getRecordsPlayed() + " records played");
+        lastReported = now;
+      }
+    }
+  }
+
+  /**
+   * Plays without a QuadCop, for measuring the player's throughput
+   * or for checking a file before an unattended run.
+   */
+  private void playDry(final FilePlayer player) throws IOException
+  {
+    System.out.println("dry run of file " + player.getFile());
+    final QuadCop.DataRecord[] buffer = new QuadCop.DataRecord[CHUNK_SIZE];
+    while (!player.isEndOfStreamReached() && (System.in.available() == 0)) {
+      if (player.provideNextChunk(buffer) == 0) {
+        // read-ahead stall => give reading ahead a chance
+        Thread.yield();
+      }
+    }
+  }
+
+  private void printStatistics(final FilePlayer player)
+  {
+    if (player.getReadException() != null) {
+      System.err.println("*** read error: " +
+                         player.getReadException().getMessage() + " ***");
+    }
+    final long nanos = player.getPlayingNanos();
+    final long records = player.getRecordsPlayed();
+    System.out.println("records played: " + records);
+    System.out.println("chunks: " + player.getChunks());
+    System.out.println("playing time: " + (nanos / 1000000L) + " ms");
+    if (nanos > 0) {
+      System.out.println("records per second: " +
+                         (records * 1000000000L / nanos));
+    }
+    System.out.println("buffer underruns: " + player.getUnderruns());
+    System.out.println("read-ahead stalls: " + player.getReadAheadStalls());
+  }
+
+  private void printVersion()
+  {
+    System.out.println("Player V0.1");
+  }
+
+  private void printHelp()
+  {
+    System.out.println("QuadCop Player -- play quad cop control sketch");
+    System.out.println();
+    System.out.println(flags.getHelp());
+  }
+
+  private void listPorts()
+  {
+    System.out.println("Available serial communication ports:");
+    final String[] portNames = QuadCop.getAvailablePortNames();
+    for (final String portName : portNames) {
+      System.out.println(portName);
+    }
+  }
+
+  public static void main(String argv[]) {
+    try {
+      new Player(argv);
+    } catch (final Throwable t) {
+      System.err.println(t.getMessage());
+      System.exit(-1);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,591 @@
+/*
+ * @(#)PlaylistPlayer.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays a queue of documents as a single, gapless stream, optionally
+ * repeating a single document or the whole queue.
+ *
+ * While an item is playing, the document of the next item is loaded
+ * ahead of time on a background thread, and its player is created in
+ * advance.  When the current item runs out in the middle of a chunk,
+ * the rest of the chunk is filled from the next item, such that the
+ * serial writer never sees a short or empty chunk at an item
+ * boundary, and the QuadCop does not fall back into listen mode.
+ *
+ * Optionally, the levers of adjacent items are crossfaded linearly
+ * over a given number of records at the end of the outgoing item.
+ */
+public class PlaylistPlayer implements QCPlayer
+{
+  public enum Repeat {
+    OFF("No Repeat"),
+    ONE("Repeat One"),
+    ALL("Repeat All");
+
+    private final String label;
+
+    private Repeat(final String label)
+    {
+      this.label = label;
+    }
+
+    public String toString()
+    {
+      return label;
+    }
+  };
+
+  public static final int MAX_CROSSFADE = 1024;
+
+  private static class Item
+  {
+    private final String name;
+    private final Callable<Document> loader;
+    private Document document;
+
+    private Item(final String name, final Callable<Document> loader)
+    {
+      this.name = name;
+      this.loader = loader;
+      document = null;
+    }
+  }
+
+  private final List<ProgressListener> progressListeners;
+  private ProgressListener[] listeners;
+  private final List<Item> items;
+  private final ExecutorService prefetcher;
+  private final long[] outgoing;
+  private final long[] incoming;
+  private long[] unpackBuffer;
+  private int progressItem;
+  private int progressItems;
+  private String[] progressStrings;
+  private int currentItem;
+  private DocumentPlayer current;
+  private int nextItem;
+  private Future<Document> nextDocument;
+  private DocumentPlayer next;
+  private Repeat repeat;
+  private int crossfade;
+  private double speed;
+  private DocumentPlayer.Interpolation interpolation;
+  private boolean endOfStream;
+
+  public PlaylistPlayer()
+  {
+    progressListeners = new ArrayList<ProgressListener>();
+    listeners = new ProgressListener[0];
+    items = new ArrayList<Item>();
+    prefetcher = Executors.newSingleThreadExecutor((final Runnable task) -> {
+        final Thread thread = new Thread(task, "playlist prefetcher");
+        thread.setDaemon(true);
+        return thread;
+      });
+    outgoing = new long[1];
+    incoming = new long[1];
+    unpackBuffer = new long[0];
+    progressItem = -1;
+    progressItems = -1;
+    progressStrings = null;
+    currentItem = -1;
+    current = null;
+    nextItem = -1;
+    nextDocument = null;
+    next = null;
+    repeat = Repeat.OFF;
+    crossfade = 0;
+    speed = DocumentPlayer.DEFAULT_SPEED;
+    interpolation = DocumentPlayer.Interpolation.CUBIC_HERMITE;
+    endOfStream = false;
+  }
+
+  /**
+   * Appends a document to the queue.  May be called while playing.
+   */
+  public synchronized void add(final Document document)
+  {
+    if (document == null) {
+      throw new NullPointerException("document");
+    }
+    final Item item = new Item(null, () -> document);
+    item.document = document;
+    items.add(item);
+  }
+
+  /**
+   * Appends a recorder file to the queue.  The file is loaded not
+   * before the preceding item starts playing.
+   */
+  public synchronized void add(final File file)
+  {
+    if (file == null) {
+      throw new NullPointerException("file");
+    }
+    items.add(new Item(file.getName(), () -> Document.createFromFile(file)));
+  }
+
+  public synchronized int getNumberOfItems()
+  {
+    return items.size();
+  }
+
+  public synchronized void setRepeat(final Repeat repeat)
+  {
+    if (repeat == null) {
+      throw new NullPointerException("repeat");
+    }
+    this.repeat = repeat;
+    // the item to follow may have changed
+    cancelNext();
+  }
+
+  public synchronized Repeat getRepeat()
+  {
+    return repeat;
+  }
+
+  /**
+   * Sets the number of records over which the levers of adjacent
+   * items are crossfaded; 0 switches crossfading off.
+   */
+  public synchronized void setCrossfade(final int crossfade)
+  {
+    if ((crossfade < 0) || (crossfade > MAX_CROSSFADE)) {
+      throw new IllegalArgumentException("crossfade not in [0, " +
+                                         MAX_CROSSFADE + "]");
+    }
+    this.crossfade = crossfade;
+  }
+
+  public synchronized int getCrossfade()
+  {
+    return crossfade;
+  }
+
+  public synchronized void setSpeed(final double speed)
+  {
+    this.speed = speed;
+    if (current != null) {
+      current.setSpeed(speed);
+    }
+    if (next != null) {
+      next.setSpeed(speed);
+    }
+  }
+
+  public synchronized double getSpeed()
+  {
+    return current != null ? current.getSpeed() : speed;
+  }
+
+  public synchronized void
+    setInterpolation(final DocumentPlayer.Interpolation interpolation)
+  {
+    if (interpolation == null) {
+      throw new NullPointerException("interpolation");
+    }
+    this.interpolation = interpolation;
+    if (current != null) {
+      current.setInterpolation(interpolation);
+    }
+    if (next != null) {
+      next.setInterpolation(interpolation);
+    }
+  }
+
+  public synchronized DocumentPlayer.Interpolation getInterpolation()
+  {
+    return interpolation;
+  }
+
+  /**
+   * Stops prefetching.  Call when the player is no longer used.
+   */
+  public void dispose()
+  {
+    prefetcher.shutdownNow();
+  }
+
+  public synchronized boolean
+    addProgressListener(final ProgressListener progressListener)
+  {
+    final boolean added = progressListeners.add(progressListener);
+    listeners = progressListeners.toArray(new ProgressListener[0]);
+    return added;
+  }
+
+  public synchronized boolean
+    removeProgressListener(final ProgressListener progressListener)
+  {
+    final boolean removed = progressListeners.remove(progressListener);
+    listeners = progressListeners.toArray(new ProgressListener[0]);
+    return removed;
+  }
+
+  private void endOfStreamReached(final ProgressListener[] listeners)
+  {
+    for (final ProgressListener progressListener : listeners) {
+      progressListener.endOfStreamReached();
+    }
+  }
+
+  private void progressChanged(final ProgressListener[] listeners,
+                               final int index, final int size,
+                               final String progressAsString)
+  {
+    final double progress = size > 0 ? (1.0 * index) / size : 1.0;
+    for (final ProgressListener progressListener : listeners) {
+      progressListener.progressChanged(progress, progressAsString,
+                                       index, size);
+    }
+  }
+
+  private int getFollowingItem(final int item)
+  {
+    if (item < 0) {
+      return items.isEmpty() ? -1 : 0;
+    }
+    if (repeat == Repeat.ONE) {
+      return item;
+    }
+    if (item + 1 < items.size()) {
+      return item + 1;
+    }
+    return (repeat == Repeat.ALL) && !items.isEmpty() ? 0 : -1;
+  }
+
+  private Future<Document> load(final Item item)
+  {
+    if (item.document != null) {
+      final Document document = item.document;
+      return prefetcher.submit(() -> document);
+    }
+    return prefetcher.submit(item.loader);
+  }
+
+  private DocumentPlayer createPlayer(final Document document)
+  {
+    final DocumentPlayer player = new DocumentPlayer(document);
+    player.setSpeed(speed);
+    player.setInterpolation(interpolation);
+    return player;
+  }
+
+  private void cancelNext()
+  {
+    if (nextDocument != null) {
+      nextDocument.cancel(false);
+    }
+    nextItem = -1;
+    nextDocument = null;
+    next = null;
+  }
+
+  /**
+   * Makes sure that loading the item to follow is under way, and
+   * creates its player as soon as the document is available.  If
+   * wait is true, blocks until the document is loaded.
+   */
+  private void prepareNext(final boolean wait)
+  {
+    final int following = getFollowingItem(currentItem);
+    if (following != nextItem) {
+      cancelNext();
+      if (following < 0) {
+        return;
+      }
+      nextItem = following;
+      nextDocument = load(items.get(following));
+    }
+    if ((next == null) && (nextDocument != null) &&
+        (wait || nextDocument.isDone())) {
+      final Document document;
+      try {
+        document = nextDocument.get();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        cancelNext();
+        return;
+      } catch (final ExecutionException ex) {
+        System.err.println("*** playlist player: failed loading " +
+                           items.get(nextItem).name + ": " +
+                           ex.getCause() + " ***");
+        skipNext(wait);
+        return;
+      }
+      if (document.size() == 0) {
+        // would never provide a record, and with repeat, the queue
+        // would be passed through endlessly
+        final String name = items.get(nextItem).name;
+        System.err.println("*** playlist player: skipping empty item" +
+                           (name != null ? " " + name : "") + " ***");
+        skipNext(wait);
+        return;
+      }
+      items.get(nextItem).document = document;
+      next = createPlayer(document);
+    }
+  }
+
+  /**
+   * Removes the item to follow from the queue and prepares the one
+   * after it instead.
+   */
+  private void skipNext(final boolean wait)
+  {
+    items.remove(nextItem);
+    if (nextItem < currentItem) {
+      currentItem--;
+    }
+    cancelNext();
+    prepareNext(wait);
+  }
+
+  /**
+   * Switches to the next item, if any.
+   */
+  private void advance()
+  {
+    prepareNext(true);
+    currentItem = nextItem;
+    current = next;
+    nextItem = -1;
+    nextDocument = null;
+    next = null;
+    if (current != null) {
+      prepareNext(false);
+    }
+  }
+
+  /**
+   * Returns the weight of the outgoing item for crossfading at the
+   * current position, or 1.0 if not within the crossfade region.
+   */
+  private double getFadeWeight()
+  {
+    if ((crossfade == 0) || (next == null)) {
+      return 1.0;
+    }
+    final int available = current.available();
+    return available >= crossfade ? 1.0 : (1.0 * available) / crossfade;
+  }
+
+  private static byte mix(final long outgoing, final long incoming,
+                          final int lever, final double weight)
+  {
+    return
+      (byte)Math.round(weight * RecordRing.getLever(outgoing, lever) +
+                       (1.0 - weight) * RecordRing.getLever(incoming, lever));
+  }
+
+  /**
+   * Provides a single crossfaded record; returns false if the
+   * outgoing item ran out.
+   */
+  private boolean provideCrossfaded(final long[] buffer,
+                                    final int offset, final double weight)
+  {
+    if (current.providePackedRecords(outgoing, 0, 1) == 0) {
+      return false;
+    }
+    if (next.providePackedRecords(incoming, 0, 1) == 0) {
+      buffer[offset] = outgoing[0];
+      return true;
+    }
+    final long a = outgoing[0];
+    final long b = incoming[0];
+    final long dominant = weight >= 0.5 ? a : b;
+    buffer[offset] =
+      RecordRing.pack(RecordRing.getStatus(dominant),
+                      mix(a, b, 0, weight),
+                      mix(a, b, 1, weight),
+                      mix(a, b, 2, weight),
+                      mix(a, b, 3, weight),
+                      RecordRing.getButtons(dominant));
+    return true;
+  }
+
+  public synchronized int available()
+  {
+    return current != null ? current.available() : 0;
+  }
+
+  public int provideNextChunk(final QuadCop.DataRecord[] buffer)
+  {
+    final long[] packed;
+    synchronized(this) {
+      if (unpackBuffer.length < buffer.length) {
+        unpackBuffer = new long[buffer.length];
+      }
+      packed = unpackBuffer;
+    }
+    final int count = provideNextPackedChunk(packed, 0, buffer.length);
+    for (int i = 0; i < count; i++) {
+      buffer[i] = RecordRing.unpack(packed[i]);
+    }
+    return count;
+  }
+
+  public int provideNextPackedChunk(final long[] buffer,
+                                    final int offset, final int length)
+  {
+    return provideNextWireChunk(buffer, null, offset, length);
+  }
+
+  /**
+   * Copies the encoding of records played unchanged from the wire
+   * image of their document; crossfaded records are encoded one by
+   * one.  The wire buffer may be null, if only the packed records are
+   * needed.
+   *
+   * Listeners are notified outside of this player's lock, since they
+   * may call back into the transport control, which in turn may call
+   * into this player.
+   */
+  public int provideNextWireChunk(final long[] buffer, final byte[] wire,
+                                  final int offset, final int length)
+  {
+    final ProgressListener[] listeners;
+    final int count;
+    final int index;
+    final int size;
+    final String progressAsString;
+    final boolean reachedEnd;
+    synchronized(this) {
+      if (endOfStream) {
+        return 0;
+      }
+      count = fillChunk(buffer, wire, offset, length);
+      // notified outside of the lock from a snapshot of the listeners
+      listeners = this.listeners;
+      if (current != null) {
+        index = current.getIndex();
+        size = current.getDocument().size();
+        progressAsString = getProgressAsString();
+      } else {
+        index = 0;
+        size = 0;
+        progressAsString = "100.00%";
+      }
+      reachedEnd = current == null;
+      if (reachedEnd) {
+        endOfStream = true;
+        prefetcher.shutdown();
+      }
+    }
+    progressChanged(listeners, index, size, progressAsString);
+    if (reachedEnd) {
+      endOfStreamReached(listeners);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the progress of the current item and its position in the
+   * queue; called for each chunk => creates each string only once per
+   * item.
+   */
+  private String getProgressAsString()
+  {
+    if ((currentItem != progressItem) || (items.size() != progressItems)) {
+      progressItem = currentItem;
+      progressItems = items.size();
+      progressStrings = new String[10001];
+    }
+    final int progress = current.getProgressBasisPoints();
+    String progressString = progressStrings[progress];
+    if (progressString == null) {
+      progressString =
+        current.getProgressAsString() +
+        " (" + (currentItem + 1) + "/" + items.size() + ")";
+      progressStrings[progress] = progressString;
+    }
+    return progressString;
+  }
+
+  private int fillChunk(final long[] buffer, final byte[] wire,
+                        final int offset, final int length)
+  {
+    if (current == null) {
+      // first chunk
+      advance();
+    }
+    int count = 0;
+    while ((count < length) && (current != null)) {
+      prepareNext(false);
+      final double weight = getFadeWeight();
+      if (weight < 1.0) {
+        if (provideCrossfaded(buffer, offset + count, weight)) {
+          if (wire != null) {
+            SerialWriter.encode(buffer[offset + count], wire,
+                                (offset + count) * SerialWriter.WIRE_LENGTH);
+          }
+          count++;
+        }
+      } else {
+        int remaining = length - count;
+        if ((crossfade > 0) && (next != null)) {
+          // stop right at the start of the crossfade region
+          remaining =
+            Math.min(remaining,
+                     Math.max(1, current.available() - crossfade + 1));
+        }
+        count +=
+          current.provideWireRecords(buffer, wire, offset + count, remaining);
+      }
+      if (current.available() == 0) {
+        advance();
+      }
+    }
+    return count;
+  }
+
+  private static final long RE_REPORT_BUFFER_UNDERRUN_ONLY_AFTER_MS = 1000;
+  private long lastBufferUnderrunReported = 0;
+
+  public void bufferUnderrunDetected()
+  {
+    final long bufferUnderrunReported = System.currentTimeMillis();
+    if (bufferUnderrunReported - lastBufferUnderrunReported >
+        RE_REPORT_BUFFER_UNDERRUN_ONLY_AFTER_MS) {
+      System.err.println("*** playlist player: buffer underrun ***");
+      lastBufferUnderrunReported = bufferUnderrunReported;
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -20,17 +20,111 @@
 
 package org.soundpaint.qcapp;
 
-import java.io.IOException;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class QCFileRecorder implements QCRecorder
+/**
+ * Records to a file without ever blocking the thread that delivers
+ * the records, typically the serial reader.  Received records are
+ * merely enqueued into a chain of fixed-size chunks of packed
+ * records, while a dedicated writer thread group-commits them to the
+ * file channel at least every flush interval, and forces them to the
+ * storage device every sync interval.  Hence, a slow SD card delays
+ * durability rather than ingestion.
+ *
+ * The chunks are recycled via a pool of fixed size.  If the disk
+ * falls so far behind that the pool runs dry, further records are
+ * either spilled into additional chunks on the heap up to a limit,
+ * or dropped right away, depending on the overflow policy.  Dropped
+ * records are counted, and a gap marker takes their place in the
+ * file, such that the loss shows up on playback.
+ */
+public class QCFileRecorder implements QCRecorder, Closeable
 {
+  public enum Overflow {
+    SPILL("spill"),
+    DROP("drop");
+
+    private final String label;
+
+    private Overflow(final String label)
+    {
+      this.label = label;
+    }
+
+    public String toString()
+    {
+      return label;
+    }
+  };
+
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 250;
+  public static final long DEFAULT_SYNC_INTERVAL_MS = 2000;
+
+  private static final int CHUNK_LENGTH = 4096;
+  private static final int POOL_CHUNKS = 16;
+  private static final int MAX_SPILL_CHUNKS = 256;
+  private static final int RECORD_LENGTH = 6;
+  private static final int GROUP_RECORDS = 8192;
+  private static final long MIN_PARK_NANOS = 1000000;
+
+  private static class Chunk
+  {
+    private final long[] records;
+    private int count; // producer only
+    private volatile int size;
+    private volatile Chunk next;
+
+    private Chunk()
+    {
+      records = new long[CHUNK_LENGTH];
+      count = 0;
+      size = 0;
+      next = null;
+    }
+  }
+
   private final String outFileName;
-  private final OutputStream out;
-  private final byte[] outBuffer;
-  private IOException starvationException;
+  private final FileChannel channel;
+  private final long flushIntervalNanos;
+  private final long syncIntervalNanos;
+  private final Overflow overflow;
+  private final ArrayBlockingQueue<Chunk> pool;
+  private final AtomicInteger spilledChunks;
+  private final ByteBuffer buffer;
+  private final Thread writer;
+  private volatile IOException starvationException;
+  private volatile boolean closeRequested;
+  private volatile boolean writerIdle;
+
+  // producer side, guarded by this
+  private Chunk tail;
+  private long lastRecord;
+  private boolean gapPending;
+  private volatile long recordsReceived;
+  private volatile long recordsDropped;
+  private volatile long recordsEnqueued;
+  private volatile long maxQueueDepth;
+  private volatile long spills;
+
+  // writer side, written by the writer thread only
+  private Chunk head;
+  private int headIndex;
+  private volatile long recordsDequeued;
+  private volatile long recordsWritten;
+  private volatile long writes;
+  private volatile long writeNanos;
+  private volatile long maxWriteNanos;
+  private volatile long syncs;
+  private volatile long syncNanos;
+  private volatile long maxSyncNanos;
 
   private QCFileRecorder()
   {
@@ -39,10 +133,57 @@ public class QCFileRecorder implements QCRecorder
 
   public QCFileRecorder(final String outFileName) throws IOException
   {
+    this(outFileName, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_SYNC_INTERVAL_MS,
+         Overflow.SPILL);
+  }
+
+  /**
+   * @param flushIntervalMillis The time that received records may be
+   * kept in memory before they are written to the file.
+   * @param syncIntervalMillis The time between forcing written
+   * records to the storage device, or a negative value for forcing
+   * them only when closing.
+   * @param overflow What to do with records that do not fit into the
+   * queue's pool of chunks.
+   */
+  public QCFileRecorder(final String outFileName,
+                        final long flushIntervalMillis,
+                        final long syncIntervalMillis,
+                        final Overflow overflow)
+    throws IOException
+  {
+    if (outFileName == null) {
+      throw new NullPointerException("outFileName");
+    }
+    if (flushIntervalMillis < 0) {
+      throw new IllegalArgumentException("flushIntervalMillis < 0");
+    }
+    if (overflow == null) {
+      throw new NullPointerException("overflow");
+    }
     this.outFileName = outFileName;
-    out = new BufferedOutputStream(new FileOutputStream(outFileName));
-    outBuffer = new byte[6];
+    this.flushIntervalNanos = flushIntervalMillis * 1000000L;
+    this.syncIntervalNanos =
+      syncIntervalMillis >= 0 ? syncIntervalMillis * 1000000L : -1;
+    this.overflow = overflow;
+    pool = new ArrayBlockingQueue<Chunk>(POOL_CHUNKS);
+    for (int i = 1; i < POOL_CHUNKS; i++) {
+      pool.add(new Chunk());
+    }
+    spilledChunks = new AtomicInteger(0);
+    buffer = ByteBuffer.allocateDirect(GROUP_RECORDS * RECORD_LENGTH);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
     starvationException = null;
+    closeRequested = false;
+    writerIdle = false;
+    tail = new Chunk();
+    head = tail;
+    headIndex = 0;
+    lastRecord = 0;
+    gapPending = false;
+    channel = new FileOutputStream(outFileName).getChannel();
+    writer = new Thread(() -> writeLoop(), "QuadCop file writer");
+    writer.start();
   }
 
   public String getOutFileName()
@@ -55,26 +196,353 @@ public class QCFileRecorder implements QCRecorder
     return starvationException;
   }
 
-  public void recordReceived(final QuadCop.DataRecord record)
+  public Overflow getOverflow()
+  {
+    return overflow;
+  }
+
+  public long getRecordsReceived()
+  {
+    return recordsReceived;
+  }
+
+  /**
+   * Returns the number of records written to the file so far,
+   * including gap markers; they may not yet have reached the storage
+   * device.
+   */
+  public long getRecordsWritten()
+  {
+    return recordsWritten;
+  }
+
+  public long getRecordsDropped()
+  {
+    return recordsDropped;
+  }
+
+  /**
+   * Returns the number of records, including gap markers, accepted
+   * for writing so far, i.e. the length of the file in records once
+   * they are written.
+   */
+  public long getRecordsEnqueued()
+  {
+    return recordsEnqueued;
+  }
+
+  /**
+   * Returns the number of records received, but not yet written.
+   */
+  public long getQueueDepth()
+  {
+    return recordsEnqueued - recordsDequeued;
+  }
+
+  public long getMaxQueueDepth()
+  {
+    return maxQueueDepth;
+  }
+
+  public long getMaxWriteLatencyNanos()
+  {
+    return maxWriteNanos;
+  }
+
+  public long getMaxSyncLatencyNanos()
+  {
+    return maxSyncNanos;
+  }
+
+  public String getReport()
+  {
+    final StringBuffer s = new StringBuffer();
+    s.append(outFileName);
+    s.append(": ").append(recordsReceived).append(" received");
+    s.append(", ").append(recordsWritten).append(" written");
+    s.append(", ").append(recordsDropped).append(" dropped");
+    s.append(", queue ").append(getQueueDepth());
+    s.append(" (max ").append(maxQueueDepth).append(")");
+    s.append(", ").append(spills).append(" spills");
+    s.append(", write ").append(toMillis(writeNanos, writes));
+    s.append("/").append(toMillis(maxWriteNanos, 1)).append(" ms");
+    s.append(", sync ").append(toMillis(syncNanos, syncs));
+    s.append("/").append(toMillis(maxSyncNanos, 1)).append(" ms");
+    s.append(" avg/max");
+    final IOException failure = starvationException;
+    if (failure != null) {
+      s.append(", failed: ").append(failure.getMessage());
+    }
+    return s.toString();
+  }
+
+  private static String toMillis(final long nanos, final long count)
+  {
+    final long micros = count > 0 ? nanos / count / 1000 : 0;
+    final long fraction = micros % 1000 / 10;
+    return micros / 1000 + (fraction < 10 ? ".0" : ".") + fraction;
+  }
+
+  /**
+   * Synchronized only against the gap marker that QuadCop delivers
+   * from its own thread on loss of the serial link; the writer thread
+   * never takes this lock.
+   */
+  public synchronized void recordReceived(final QuadCop.DataRecord record)
+  {
+    recordsReceived++;
+    enqueue(RecordRing.pack(record));
+    publish();
+  }
+
+  public synchronized void recordsReceived(final long[] packedRecords,
+                                           final int offset,
+                                           final int count)
+  {
+    recordsReceived += count;
+    for (int i = offset; i < offset + count; i++) {
+      enqueue(packedRecords[i]);
+    }
+    publish();
+  }
+
+  private void enqueue(final long packedRecord)
+  {
+    if ((starvationException != null) || closeRequested) {
+      recordsDropped++;
+      return;
+    }
+    if (gapPending) {
+      if (!append(RecordRing.createGapMarker(lastRecord))) {
+        recordsDropped++;
+        return;
+      }
+      gapPending = false;
+    }
+    if (append(packedRecord)) {
+      lastRecord = packedRecord;
+    } else {
+      recordsDropped++;
+      gapPending = true;
+    }
+  }
+
+  private boolean append(final long packedRecord)
   {
-    if (starvationException == null) {
-      outBuffer[0] = record.getStatus();
-      outBuffer[1] = record.getCtrlLever0();
-      outBuffer[2] = record.getCtrlLever1();
-      outBuffer[3] = record.getCtrlLever2();
-      outBuffer[4] = record.getCtrlLever3();
-      outBuffer[5] = record.getButtons();
-      try {
-        out.write(outBuffer);
-      } catch (final IOException ex) {
-        starvationException = ex;
+    if (tail.count == CHUNK_LENGTH) {
+      final Chunk chunk = obtainChunk();
+      if (chunk == null) {
+        return false;
       }
+      // the final size must be visible before the next chunk is
+      tail.size = CHUNK_LENGTH;
+      tail.next = chunk;
+      tail = chunk;
+      // the writer may have fallen asleep while the chunk filled
+      LockSupport.unpark(writer);
+    }
+    tail.records[tail.count++] = packedRecord;
+    recordsEnqueued++;
+    return true;
+  }
+
+  private Chunk obtainChunk()
+  {
+    final Chunk chunk = pool.poll();
+    if (chunk != null) {
+      return chunk;
     }
+    if ((overflow == Overflow.SPILL) &&
+        (spilledChunks.get() < MAX_SPILL_CHUNKS)) {
+      spilledChunks.incrementAndGet();
+      spills++;
+      return new Chunk();
+    }
+    return null;
   }
 
+  private void publish()
+  {
+    tail.size = tail.count;
+    // read after publishing the size, see writeLoop()
+    if (writerIdle) {
+      writerIdle = false;
+      LockSupport.unpark(writer);
+    }
+    final long depth = recordsEnqueued - recordsDequeued;
+    if (depth > maxQueueDepth) {
+      maxQueueDepth = depth;
+    }
+  }
+
+  /**
+   * Returns a consumed chunk to the pool, or leaves it to the garbage
+   * collector, if it was spilled.
+   */
+  private void release(final Chunk chunk)
+  {
+    if (spilledChunks.get() > 0) {
+      spilledChunks.decrementAndGet();
+      return;
+    }
+    chunk.count = 0;
+    chunk.size = 0;
+    chunk.next = null;
+    pool.offer(chunk);
+  }
+
+  /**
+   * Moves as many queued records into the buffer as fit and returns
+   * their number.
+   */
+  private int drain()
+  {
+    int count = 0;
+    while (buffer.remaining() >= RECORD_LENGTH) {
+      // read next before size, see append()
+      final Chunk next = head.next;
+      final int size = head.size;
+      if (headIndex < size) {
+        final int length =
+          Math.min(size - headIndex, buffer.remaining() / RECORD_LENGTH);
+        for (int i = headIndex; i < headIndex + length; i++) {
+          final long packedRecord = head.records[i];
+          buffer.putInt((int)packedRecord);
+          buffer.putShort((short)(packedRecord >>> 32));
+        }
+        headIndex += length;
+        count += length;
+      } else if (next != null) {
+        release(head);
+        head = next;
+        headIndex = 0;
+      } else {
+        break;
+      }
+    }
+    recordsDequeued += count;
+    return count;
+  }
+
+  private boolean hasQueuedRecords()
+  {
+    // read next before size, see append()
+    final Chunk next = head.next;
+    return (headIndex < head.size) || (next != null);
+  }
+
+  private void write() throws IOException
+  {
+    final long start = System.nanoTime();
+    buffer.flip();
+    final int records = buffer.remaining() / RECORD_LENGTH;
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+    final long latency = System.nanoTime() - start;
+    writes++;
+    writeNanos += latency;
+    maxWriteNanos = Math.max(maxWriteNanos, latency);
+    recordsWritten += records;
+  }
+
+  private void sync() throws IOException
+  {
+    final long start = System.nanoTime();
+    channel.force(false);
+    final long latency = System.nanoTime() - start;
+    syncs++;
+    syncNanos += latency;
+    maxSyncNanos = Math.max(maxSyncNanos, latency);
+  }
+
+  private void writeLoop()
+  {
+    boolean buffered = false;
+    boolean unsynced = false;
+    long bufferedSince = 0;
+    long lastSync = System.nanoTime();
+    try {
+      while (true) {
+        // checked before draining, such that all records enqueued
+        // before closing get drained
+        final boolean closing = closeRequested;
+        drain();
+        final boolean full = !buffer.hasRemaining();
+        long now = System.nanoTime();
+        if (buffer.position() > 0) {
+          if (!buffered) {
+            buffered = true;
+            bufferedSince = now;
+          }
+          if (full || closing ||
+              (now - bufferedSince >= flushIntervalNanos)) {
+            write();
+            buffered = false;
+            unsynced = true;
+            now = System.nanoTime();
+          }
+        }
+        if (unsynced &&
+            ((closing && !full) ||
+             ((syncIntervalNanos >= 0) &&
+              (now - lastSync >= syncIntervalNanos)))) {
+          sync();
+          unsynced = false;
+          lastSync = System.nanoTime();
+        }
+        if (full) {
+          // more records may be waiting
+          continue;
+        }
+        if (closing) {
+          break;
+        }
+        long wait = flushIntervalNanos;
+        if (buffered) {
+          wait = Math.min(wait, bufferedSince + flushIntervalNanos - now);
+        }
+        if (unsynced && (syncIntervalNanos >= 0)) {
+          wait = Math.min(wait, lastSync + syncIntervalNanos - now);
+        }
+        if (!buffered) {
+          // let publish() wake this thread as soon as records are
+          // enqueued, such that the flush interval starts with them;
+          // set before checking the queue, see publish()
+          writerIdle = true;
+          if (hasQueuedRecords()) {
+            writerIdle = false;
+            continue;
+          }
+        }
+        LockSupport.parkNanos(this, Math.max(MIN_PARK_NANOS, wait));
+        writerIdle = false;
+      }
+    } catch (final IOException ex) {
+      System.err.println("*** file recorder: " + ex.getMessage() + " ***");
+      starvationException = ex;
+    }
+  }
+
+  /**
+   * Writes and forces all records received so far, and closes the
+   * file.
+   */
   public void close() throws IOException
   {
-    out.close();
+    synchronized(this) {
+      // records of a batch still being enqueued are written, later
+      // ones are dropped
+      closeRequested = true;
+    }
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (final InterruptedException ex) {
+      throw new IOException("interrupted while closing", ex);
+    }
+    channel.close();
   }
 }
 
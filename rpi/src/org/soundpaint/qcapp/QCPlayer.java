@@ -48,6 +48,47 @@ public interface QCPlayer extends EventListener
    */
   public int provideNextChunk(final QuadCop.DataRecord[] buffer);
 
+  /**
+   * Like provideNextChunk(), but stores up to length records packed
+   * as by RecordRing.pack() into the buffer, starting at the given
+   * offset, and returns their number.  This is what the serial writer
+   * calls.  By default, the records of provideNextChunk() are packed,
+   * which allocates a temporary array per chunk; players that feed
+   * the serial writer continuously override this method such that
+   * providing records does not allocate anything.
+   */
+  public default int provideNextPackedChunk(final long[] buffer,
+                                            final int offset,
+                                            final int length)
+  {
+    final QuadCop.DataRecord[] records = new QuadCop.DataRecord[length];
+    final int count = provideNextChunk(records);
+    for (int i = 0; i < count; i++) {
+      buffer[offset + i] = RecordRing.pack(records[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Like provideNextPackedChunk(), but additionally stores the
+   * records encoded as by SerialWriter.encode() into wire, starting
+   * at offset * SerialWriter.WIRE_LENGTH, such that a writer merely
+   * needs to copy the bytes.  By default, each record is encoded
+   * here; players of unchanging content such as documents override
+   * this method to copy the bytes from a cached image instead.
+   */
+  public default int provideNextWireChunk(final long[] buffer,
+                                          final byte[] wire,
+                                          final int offset,
+                                          final int length)
+  {
+    final int count = provideNextPackedChunk(buffer, offset, length);
+    for (int i = offset; i < offset + count; i++) {
+      SerialWriter.encode(buffer[i], wire, i * SerialWriter.WIRE_LENGTH);
+    }
+    return count;
+  }
+
   /**
    * Notifies the client that a buffer underrun had occurred.
    */
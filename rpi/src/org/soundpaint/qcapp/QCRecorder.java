@@ -30,6 +30,22 @@ public interface QCRecorder extends EventListener
   }
 
   public void recordReceived(final QuadCop.DataRecord record);
+
+  /**
+   * Receives count records, packed as by RecordRing.pack(), starting
+   * at the given offset.  The array is reused by the caller, i.e. its
+   * content is valid only during this call.  By default, each record
+   * is unpacked and passed to recordReceived(); recorders on the
+   * serial reader's path override this method to avoid allocating a
+   * record object per record.
+   */
+  public default void recordsReceived(final long[] packedRecords,
+                                      final int offset, final int count)
+  {
+    for (int i = offset; i < offset + count; i++) {
+      recordReceived(RecordRing.unpack(packedRecords[i]));
+    }
+  }
 }
 
 /*
@@ -30,6 +30,8 @@ import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
@@ -45,6 +47,15 @@ public class QuadCop
   {
     // TODO: Add timestamp for tracking exact time?
     private final static int BYTE_LENGTH = 6;
+
+    /**
+     * Status byte of gap markers, i.e. of records that are inserted
+     * into the stream of received records where the serial link was
+     * lost.  The firmware never sets bit 6 of the status byte, since
+     * the receive buffer fill level that it reports in bits 0 to 5 is
+     * always below 64.
+     */
+    public final static byte GAP_MARKER_STATUS = (byte)0xc0;
     private final byte status;
     private final byte ctrlLever0;
     private final byte ctrlLever1;
@@ -78,6 +89,49 @@ public class QuadCop
       return BYTE_LENGTH;
     }
 
+    /**
+     * Creates a gap marker that continues the levers and buttons of
+     * the last record received before the gap.
+     */
+    public static DataRecord createGapMarker(final DataRecord last)
+    {
+      return new DataRecord(GAP_MARKER_STATUS,
+                            last.ctrlLever0, last.ctrlLever1,
+                            last.ctrlLever2, last.ctrlLever3,
+                            last.buttons);
+    }
+
+    public boolean isGapMarker()
+    {
+      return status == GAP_MARKER_STATUS;
+    }
+
+    /**
+     * Creates a record from BYTE_LENGTH bytes in recorder file order.
+     */
+    public static DataRecord fromBytes(final byte[] buffer, final int offset)
+    {
+      return new DataRecord(buffer[offset],
+                            buffer[offset + 1],
+                            buffer[offset + 2],
+                            buffer[offset + 3],
+                            buffer[offset + 4],
+                            buffer[offset + 5]);
+    }
+
+    /**
+     * Stores this record as BYTE_LENGTH bytes in recorder file order.
+     */
+    public void copyTo(final byte[] buffer, final int offset)
+    {
+      buffer[offset] = status;
+      buffer[offset + 1] = ctrlLever0;
+      buffer[offset + 2] = ctrlLever1;
+      buffer[offset + 3] = ctrlLever2;
+      buffer[offset + 4] = ctrlLever3;
+      buffer[offset + 5] = buttons;
+    }
+
     public byte getStatus()
     {
       return status;
@@ -120,126 +174,440 @@ public class QuadCop
     }
   }
 
+  /**
+   * Notified about loss and recovery of the serial link, on the
+   * thread that supervises the link.
+   */
+  public static interface LinkListener extends EventListener
+  {
+    public void linkLost(final IOException cause);
+
+    public void linkRestored(final long downtimeMillis);
+  }
+
+  /**
+   * An open serial port together with the reader and writer threads
+   * serving it.  When the link fails, it is replaced as a whole.
+   */
+  private class Link
+  {
+    private final CommPortIdentifier portIdentifier;
+    private final SerialPort serialPort;
+    private final SerialReader reader;
+    private final SerialWriter writer;
+
+    private Link(final CommPortIdentifier portIdentifier,
+                 final DataRecord[] pending) throws IOException
+    {
+      this.portIdentifier = portIdentifier;
+      serialPort = openSerialPort(portIdentifier);
+      try {
+        final InputStream serialIn = serialPort.getInputStream();
+        final OutputStream serialOut = serialPort.getOutputStream();
+        // a new reader starts unsynchronized and resynchronizes
+        // with the next status byte
+        reader = new SerialReader(serialIn, (final IOException cause) -> {
+            linkFailed(this, cause);
+          });
+        writer = new SerialWriter(reader, serialOut,
+                                  (final IOException cause) -> {
+                                    linkFailed(this, cause);
+                                  }, pending);
+      } catch (final IOException ex) {
+        serialPort.close();
+        throw ex;
+      }
+      reader.addRecorder(lastRecordTracker);
+    }
+
+    /**
+     * Starts both threads at once and waits for both to get ready.
+     */
+    private void start() throws IOException
+    {
+      System.out.println("starting serial reader and writer as " +
+                         threadMode.getEffectiveMode() + " threads...");
+      reader.start(threadMode);
+      writer.start(threadMode);
+      try {
+        reader.awaitRunning();
+        writer.awaitRunning();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while starting serial threads",
+                              ex);
+      }
+      System.out.println("serial reader and writer started");
+    }
+
+    /**
+     * Stops both threads and closes the port.  Returns the records
+     * that the writer had not yet written.
+     */
+    private DataRecord[] shutdown()
+    {
+      reader.requestStop();
+      writer.requestStop();
+      try {
+        serialPort.close();
+      } catch (final RuntimeException ex) {
+        // port may already be gone with the device
+      }
+      try {
+        reader.join(JOIN_TIMEOUT_MS);
+        writer.join(JOIN_TIMEOUT_MS);
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return writer.isAlive() ? new DataRecord[0] :
+        writer.getUnwrittenRecords();
+    }
+  }
+
+  private final static int BUFFER_SIZE = 2000;
+  private final static long JOIN_TIMEOUT_MS = 250;
+  private final static long MIN_RECONNECT_DELAY_MS = 20;
+  private final static long MAX_RECONNECT_DELAY_MS = 250;
+
   final private PrintStream log;
-  final private CommPortIdentifier portIdentifier;
-  final private SerialPort serialPort;
-  final private InputStream serialIn;
-  final private OutputStream serialOut;
-  final private SerialReader reader;
-  final private SerialWriter writer;
+  final private String portName;
+  final private ThreadMode threadMode;
+  final private List<QCRecorder> recorders;
+  final private List<QCPlayer> players;
+  final private List<LinkListener> linkListeners;
+  final private QCRecorder lastRecordTracker;
+  final private Thread supervisor;
+  private volatile long lastRecord;
+  private Link link;
+  private OutputTransform transform;
+  private IOException linkFailure;
+  private boolean closed;
+  private volatile int reconnects;
+  private volatile long lastDowntimeMillis;
 
   private QuadCop() {
     throw new RuntimeException("unsupported constructor");
   }
 
-  private final static int BUFFER_SIZE = 2000;
-
-  private QuadCop(final PrintStream log,
-                  final CommPortIdentifier portIdentifier) throws IOException
+  private QuadCop(final PrintStream log, final String portName,
+                  final CommPortIdentifier portIdentifier,
+                  final ThreadMode threadMode) throws IOException
   {
     this.log = log;
     if (portIdentifier == null) {
       throw new NullPointerException("portidentifier");
     }
-    this.portIdentifier = portIdentifier;
-    final CommPort commPort;
-    try {
-      commPort = portIdentifier.open(this.getClass().getName(), BUFFER_SIZE);
-    } catch (final PortInUseException ex) {
-      throw new IOException("serial port currently in use", ex);
+    if (threadMode == null) {
+      throw new NullPointerException("threadMode");
     }
-    if (!(commPort instanceof SerialPort)) {
-      throw new IOException("port is not a serial port");
+    this.portName = portName;
+    this.threadMode = threadMode;
+    recorders = new ArrayList<QCRecorder>();
+    players = new ArrayList<QCPlayer>();
+    linkListeners = new CopyOnWriteArrayList<LinkListener>();
+    lastRecord = RecordRing.pack(new DataRecord());
+    lastRecordTracker = new QCRecorder() {
+        public void recordReceived(final DataRecord record)
+        {
+          lastRecord = RecordRing.pack(record);
+        }
+
+        public void recordsReceived(final long[] packedRecords,
+                                    final int offset, final int count)
+        {
+          if (count > 0) {
+            lastRecord = packedRecords[offset + count - 1];
+          }
+        }
+      };
+    transform = null;
+    linkFailure = null;
+    closed = false;
+    reconnects = 0;
+    lastDowntimeMillis = 0;
+    link = new Link(portIdentifier, new DataRecord[0]);
+    link.start();
+    supervisor = new Thread(() -> {
+        supervise();
+      }, "QuadCop link supervisor");
+    supervisor.setDaemon(true);
+    supervisor.start();
+  }
+
+  public void close() throws IOException
+  {
+    final Link closing;
+    synchronized(this) {
+      closed = true;
+      notifyAll();
+      closing = link;
+      link = null;
     }
-    serialPort = (SerialPort)commPort;
-    try {
-      serialPort.setSerialPortParams(57600,
-                                     SerialPort.DATABITS_8,
-                                     SerialPort.STOPBITS_1,
-                                     SerialPort.PARITY_NONE);
-    } catch (final UnsupportedCommOperationException ex) {
-      throw new IOException("failed configuring serial port", ex);
+    supervisor.interrupt();
+    if (closing != null) {
+      closing.shutdown();
     }
-    System.out.println("starting serial reader...");
-    serialIn = serialPort.getInputStream();
-    reader = new SerialReader(serialIn);
-    reader.start();
-    while (!reader.isRunning()) {
-      try {
-        Thread.sleep(100);
-      } catch (final InterruptedException ex) {
-      }
+  }
+
+  private void log(final String message)
+  {
+    if (log != null) {
+      log.println(message + "\n");
     }
-    System.out.println("serial reader started");
-    System.out.println("starting serial writer...");
-    serialOut = serialPort.getOutputStream();
-    writer = new SerialWriter(reader, serialOut);
-    writer.start();
-    while (!writer.isRunning()) {
-      try {
-        Thread.sleep(100);
-      } catch (final InterruptedException ex) {
-      }
+  }
+
+  /**
+   * Called by the reader or writer thread of a link that failed.
+   */
+  private synchronized void linkFailed(final Link failing,
+                                       final IOException cause)
+  {
+    if ((failing != link) || (linkFailure != null) || closed) {
+      // stale link, failure already known, or shutting down
+      return;
     }
-    System.out.println("serial writer started");
+    linkFailure = cause;
+    notifyAll();
   }
 
-  public void close() throws IOException
+  private void supervise()
   {
-    /*
-    while (writer.isRunning()) {
-      try {
-        Thread.sleep(500);
-      } catch (final InterruptedException ex) {
+    while (true) {
+      final Link failed;
+      final IOException cause;
+      synchronized(this) {
+        while ((linkFailure == null) && !closed) {
+          try {
+            wait();
+          } catch (final InterruptedException ex) {
+            // check for close
+          }
+        }
+        if (closed) {
+          return;
+        }
+        failed = link;
+        cause = linkFailure;
       }
+      recover(failed, cause);
     }
-    */
-    writer.close();
-    /*
-    while (reader.isRunning()) {
+  }
+
+  /**
+   * Shuts down the failed link, and reopens the port with increasing
+   * delays until it succeeds or this quad copter is closed.  The
+   * reader of the new link marks the gap in the recorders' streams
+   * before reading anything, such that each recorder is fed by a
+   * single thread at any time.  Records that the failed writer had
+   * not yet written are written first by the new writer, such that
+   * playing resumes where it was interrupted.
+   */
+  private void recover(final Link failed, final IOException cause)
+  {
+    final long lostNanos = System.nanoTime();
+    System.err.println("*** serial link lost: " + cause.getMessage() + " ***");
+    for (final LinkListener listener : linkListeners) {
+      listener.linkLost(cause);
+    }
+    final DataRecord[] pending = failed.shutdown();
+    // the failed reader has stopped updating the last record
+    final DataRecord gapMarker =
+      DataRecord.createGapMarker(RecordRing.unpack(lastRecord));
+    final String name =
+      portName != null ? portName : failed.portIdentifier.getName();
+    long delay = MIN_RECONNECT_DELAY_MS;
+    while (true) {
+      Link restored = null;
       try {
-        Thread.sleep(500);
-      } catch (final InterruptedException ex) {
+        restored =
+          new Link(findPortIdentifier(name, portName == null), pending);
+        restored.reader.setLeadingRecord(gapMarker);
+        final boolean started;
+        synchronized(this) {
+          if (!closed) {
+            for (final QCRecorder recorder : recorders) {
+              restored.reader.addRecorder(recorder);
+            }
+            for (final QCPlayer player : players) {
+              restored.writer.addPlayer(player);
+            }
+            restored.writer.setTransform(transform);
+            // started under the lock, such that recorders and
+            // players added meanwhile are not missed; a failure of
+            // the new link is reported once it has become the link
+            restored.start();
+            link = restored;
+            linkFailure = null;
+            started = true;
+          } else {
+            started = false;
+          }
+        }
+        if (!started) {
+          restored.shutdown();
+          return;
+        }
+        break;
+      } catch (final IOException ex) {
+        log("reconnect failed: " + ex.getMessage());
+        if (restored != null) {
+          restored.shutdown();
+        }
+      }
+      synchronized(this) {
+        if (closed) {
+          return;
+        }
+        try {
+          wait(delay);
+        } catch (final InterruptedException ex) {
+          // check for close
+        }
       }
+      delay = Math.min(2 * delay, MAX_RECONNECT_DELAY_MS);
+    }
+    final long downtimeMillis = (System.nanoTime() - lostNanos) / 1000000L;
+    reconnects++;
+    lastDowntimeMillis = downtimeMillis;
+    System.err.println("*** serial link restored after " + downtimeMillis +
+                       " ms ***");
+    for (final LinkListener listener : linkListeners) {
+      listener.linkRestored(downtimeMillis);
     }
-    */
-    reader.close();
   }
 
-  private void log(final String message)
+  /**
+   * Returns the number of times the serial link has been restored.
+   */
+  public int getReconnects()
   {
-    if (log != null) {
-      log.println(message + "\n");
-    }
+    return reconnects;
   }
 
-  public static QuadCop create(final PrintStream log) throws IOException
+  /**
+   * Returns the time between loss and recovery of the serial link
+   * at the most recent reconnect.
+   */
+  public long getLastDowntimeMillis()
   {
-    return create(log, (String)null);
+    return lastDowntimeMillis;
   }
 
-  public static QuadCop create(final PrintStream log, final String portName)
+  public boolean addLinkListener(final LinkListener listener)
+  {
+    return linkListeners.add(listener);
+  }
+
+  public boolean removeLinkListener(final LinkListener listener)
+  {
+    return linkListeners.remove(listener);
+  }
+
+  /**
+   * Returns the serial port with the specified name, or, if there is
+   * no such port and fallback is true, the first serial port found,
+   * e.g. when a replugged device got a new name.
+   */
+  static CommPortIdentifier
+    findPortIdentifier(final String portName, final boolean fallback)
     throws IOException
   {
     final Enumeration<CommPortIdentifier> portEnum =
       CommPortIdentifier.getPortIdentifiers();
-    CommPortIdentifier portIdentifier = null;
+    CommPortIdentifier firstSerialPort = null;
     while (portEnum.hasMoreElements()) {
-      portIdentifier = portEnum.nextElement();
+      final CommPortIdentifier portIdentifier = portEnum.nextElement();
       if (portIdentifier.getPortType() == CommPortIdentifier.PORT_SERIAL) {
-        if ((portName == null) || (portName.equals(portIdentifier.getName()))) {
-          break;
+        if ((portName == null) || portName.equals(portIdentifier.getName())) {
+          return portIdentifier;
+        }
+        if (firstSerialPort == null) {
+          firstSerialPort = portIdentifier;
         }
       }
     }
-    if (portIdentifier == null) {
-      if (portName != null) {
-        throw new IOException("no such serial port found: " + portName);
-      } else {
-        throw new IOException("no serial port found");
-      }
+    if (fallback && (firstSerialPort != null)) {
+      return firstSerialPort;
+    }
+    if (portName != null) {
+      throw new IOException("no such serial port found: " + portName);
+    } else {
+      throw new IOException("no serial port found");
     }
-    return new QuadCop(log, portIdentifier);
+  }
+
+  /**
+   * Opens the identified port and configures it for the QuadCop's
+   * line settings, i.e. 57600 baud, 8N1.
+   */
+  static SerialPort openSerialPort(final CommPortIdentifier portIdentifier)
+    throws IOException
+  {
+    final CommPort commPort;
+    try {
+      commPort = portIdentifier.open(QuadCop.class.getName(), BUFFER_SIZE);
+    } catch (final PortInUseException ex) {
+      throw new IOException("serial port currently in use", ex);
+    }
+    if (!(commPort instanceof SerialPort)) {
+      commPort.close();
+      throw new IOException("port is not a serial port");
+    }
+    final SerialPort serialPort = (SerialPort)commPort;
+    try {
+      serialPort.setSerialPortParams(57600,
+                                     SerialPort.DATABITS_8,
+                                     SerialPort.STOPBITS_1,
+                                     SerialPort.PARITY_NONE);
+    } catch (final UnsupportedCommOperationException ex) {
+      serialPort.close();
+      throw new IOException("failed configuring serial port", ex);
+    }
+    return serialPort;
+  }
+
+  public static QuadCop create(final PrintStream log) throws IOException
+  {
+    return create(log, (String)null);
+  }
+
+  public static QuadCop create(final PrintStream log, final String portName)
+    throws IOException
+  {
+    return create(log, portName, ThreadMode.getDefault());
+  }
+
+  /**
+   * @param threadMode The kind of threads to run the serial reader,
+   * writer and producer on.
+   */
+  public static QuadCop create(final PrintStream log, final String portName,
+                               final ThreadMode threadMode)
+    throws IOException
+  {
+    return new QuadCop(log, portName, findPortIdentifier(portName, false),
+                       threadMode);
+  }
+
+  /**
+   * Discovers and opens the port in a background thread, such that
+   * the caller, e.g. the event dispatch thread, is not blocked by
+   * port enumeration and thread startup.
+   */
+  public static CompletableFuture<QuadCop> createAsync(final PrintStream log,
+                                                       final String portName)
+  {
+    final CompletableFuture<QuadCop> future = new CompletableFuture<QuadCop>();
+    final Thread connector = new Thread(() -> {
+        try {
+          future.complete(create(log, portName));
+        } catch (final Throwable t) {
+          future.completeExceptionally(t);
+        }
+      }, "QuadCop connector");
+    connector.setDaemon(true);
+    connector.start();
+    return future;
   }
 
   final private static String[] EMPTY_STRING_ARRAY = new String[0];
@@ -258,28 +626,74 @@ public class QuadCop
     return ports.toArray(EMPTY_STRING_ARRAY);
   }
 
-  public String getPortName() {
-    return portIdentifier.getName();
+  public ThreadMode getThreadMode()
+  {
+    return threadMode;
+  }
+
+  public synchronized String getPortName() {
+    return link != null ? link.portIdentifier.getName() : portName;
   }
 
+  /**
+   * Adds a recorder, which stays attached across reconnects and
+   * receives a gap marker for each loss of the serial link.
+   */
   public synchronized boolean addRecorder(final QCRecorder recorder)
   {
-    return reader.addRecorder(recorder);
+    if (!recorders.add(recorder)) {
+      return false;
+    }
+    if (link != null) {
+      link.reader.addRecorder(recorder);
+    }
+    return true;
   }
 
   public synchronized boolean removeRecorder(final QCRecorder recorder)
   {
-    return reader.removeRecorder(recorder);
+    if (link != null) {
+      link.reader.removeRecorder(recorder);
+    }
+    return recorders.remove(recorder);
   }
 
+  /**
+   * Adds a player, which stays attached across reconnects.
+   */
   public synchronized boolean addPlayer(final QCPlayer player)
   {
-    return writer.addPlayer(player);
+    if (link != null) {
+      // fails early if the writer does not accept another player
+      link.writer.addPlayer(player);
+    }
+    return players.add(player);
   }
 
   public synchronized boolean removePlayer(final QCPlayer player)
   {
-    return writer.removePlayer(player);
+    if (link != null) {
+      link.writer.removePlayer(player);
+    }
+    return players.remove(player);
+  }
+
+  /**
+   * Sets the transform to apply to all records sent, or null for
+   * sending records unchanged.  Takes effect with the next record
+   * sent, also while playing, and stays in effect across reconnects.
+   */
+  public synchronized void setTransform(final OutputTransform transform)
+  {
+    this.transform = transform;
+    if (link != null) {
+      link.writer.setTransform(transform);
+    }
+  }
+
+  public synchronized OutputTransform getTransform()
+  {
+    return transform;
   }
 }
 
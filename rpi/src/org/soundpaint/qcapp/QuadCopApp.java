@@ -24,23 +24,44 @@ import java.awt.BorderLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
+/**
+ * The main window.  The window is shown right away, while the quad
+ * copter is connected and the images of the live view are loaded in
+ * the background; the time to each of these startup milestones is
+ * logged and can be viewed from the rendering statistics.
+ */
 public class QuadCopApp extends JFrame implements DocumentManager.Listener
 {
   private static final long serialVersionUID = 4606585754005214101L;
 
+  /**
+   * Approximates the time of launch by the time of loading this class.
+   */
+  private static final long LAUNCH_NANOS = System.nanoTime();
+
   private QuadCop quadCop;
   private boolean haveUnsavedChanges;
   private String fileName;
+  private final UpdateBus updateBus;
   private final TransportControl transportControl;
   private final DocumentManager documentManager;
   private final QuadCopPane quadCopPane;
+  private PianoRoll pianoRoll;
+  private StripChart stripChart;
+  private final StringBuffer startupReport;
 
   public QuadCopApp()
   {
+    startupReport = new StringBuffer();
+    final CompletableFuture<QuadCop> connecting =
+      QuadCop.createAsync(System.out, null);
+
     addWindowListener(new WindowAdapter() {
         public void windowClosing(final WindowEvent e)
         {
@@ -50,17 +71,10 @@ public class QuadCopApp extends JFrame implements DocumentManager.Listener
     haveUnsavedChanges = false;
     fileName = null;
     updateTitle();
-    try {
-      quadCop = QuadCop.create(System.out, null);
-    } catch (final IOException ex) {
-      quadCop = null;
-      final String title = "could not connect to quad copter";
-      final String msg = ex.getMessage();
-      JOptionPane.showMessageDialog(this, msg, title,
-                                    JOptionPane.ERROR_MESSAGE);
-    }
+    quadCop = null;
 
-    transportControl = new TransportControl(quadCop);
+    updateBus = new UpdateBus();
+    transportControl = new TransportControl(quadCop, updateBus);
     documentManager = new DocumentManager(this);
     documentManager.addListener(this);
 
@@ -69,15 +83,64 @@ public class QuadCopApp extends JFrame implements DocumentManager.Listener
     add(new ToolBar(this), BorderLayout.PAGE_START);
     add(new StatusLine(this), BorderLayout.PAGE_END);
 
+    pianoRoll = null;
+    stripChart = null;
     quadCopPane = new QuadCopPane(this);
     add(quadCopPane, BorderLayout.CENTER);
 
     pack();
     setVisible(true);
+    reportStartup("window shown");
+
+    connecting.whenComplete((final QuadCop created,
+                             final Throwable failure) -> {
+        SwingUtilities.invokeLater(() -> {
+            connected(created, failure);
+          });
+      });
+  }
 
-    if (quadCop != null) {
-      quadCop.addRecorder(quadCopPane);
+  private void connected(final QuadCop quadCop, final Throwable failure)
+  {
+    if (failure != null) {
+      final Throwable cause =
+        (failure instanceof CompletionException) &&
+        (failure.getCause() != null) ? failure.getCause() : failure;
+      reportStartup("connecting quad copter failed");
+      final String title = "could not connect to quad copter";
+      final String msg = cause.getMessage();
+      JOptionPane.showMessageDialog(this, msg, title,
+                                    JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    this.quadCop = quadCop;
+    transportControl.setQuadCop(quadCop);
+    quadCop.addRecorder(quadCopPane);
+    if (stripChart != null) {
+      stripChart.quadCopConnected();
     }
+    reportStartup("quad copter connected");
+  }
+
+  /**
+   * Logs the time elapsed since launch.  Must be called on the event
+   * dispatch thread.
+   */
+  public void reportStartup(final String milestone)
+  {
+    final long millis = (System.nanoTime() - LAUNCH_NANOS) / 1000000L;
+    final String line = "startup, " + milestone + ": " + millis + " ms";
+    System.out.println(line);
+    startupReport.append(line);
+    startupReport.append("\n");
+  }
+
+  /**
+   * Returns the startup milestones reached so far.
+   */
+  public String getStartupReport()
+  {
+    return startupReport.toString();
   }
 
   private boolean confirmDiscardChanges()
@@ -109,6 +172,11 @@ public class QuadCopApp extends JFrame implements DocumentManager.Listener
       "Karlsruhe, Germany\n";
   }
 
+  public UpdateBus getUpdateBus()
+  {
+    return updateBus;
+  }
+
   public TransportControl getTransportControl()
   {
     return transportControl;
@@ -119,6 +187,37 @@ public class QuadCopApp extends JFrame implements DocumentManager.Listener
     return documentManager;
   }
 
+  /**
+   * Returns the connected quad copter, or null if there is none.
+   */
+  public QuadCop getQuadCop()
+  {
+    return quadCop;
+  }
+
+  public QuadCopPane getQuadCopPane()
+  {
+    return quadCopPane;
+  }
+
+  public void showPianoRoll()
+  {
+    if (pianoRoll == null) {
+      pianoRoll = new PianoRoll(this);
+    }
+    pianoRoll.setVisible(true);
+    pianoRoll.toFront();
+  }
+
+  public void showStripChart()
+  {
+    if (stripChart == null) {
+      stripChart = new StripChart(this);
+    }
+    stripChart.setVisible(true);
+    stripChart.toFront();
+  }
+
   private static void createAndShowGUI()
   {
     final QuadCopApp quadCopApp = new QuadCopApp();
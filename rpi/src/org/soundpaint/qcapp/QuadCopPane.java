@@ -20,32 +20,110 @@
 
 package org.soundpaint.qcapp;
 
+import java.awt.DisplayMode;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.event.ActionEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.io.File;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.imageio.ImageIO;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
+/**
+ * Shows the current position of the control levers.
+ *
+ * Records arrive from the serial reader thread at the serial frame
+ * rate, which may be much higher than the display's refresh rate.
+ * Therefore, the reader thread only publishes the latest record as
+ * an immutable snapshot, and a timer on the event dispatch thread
+ * picks up the latest snapshot once per display refresh, coalescing
+ * all records in between.  Only the areas of the lever images that
+ * actually moved are repainted.  Thus, painting never sees a torn
+ * mix of old and new lever values, and the cost of rendering does
+ * not depend on the serial frame rate.
+ *
+ * Images are converted once into the format of the screen's graphics
+ * configuration, such that drawing them needs no per-pixel format
+ * conversion.  The background is additionally kept in a volatile
+ * image, i.e. in video memory where available, and only the clipped
+ * part of it is copied on each paint.  The two lever images are
+ * repainted separately, each within the bounds of its old and new
+ * position, and image positions are looked up from precomputed
+ * tables rather than computed in floating point.
+ *
+ * The images are decoded in the background, such that the window
+ * shows up without waiting for them; the pane's preferred size is
+ * taken from the size in the background image's file header.
+ */
 public class QuadCopPane extends JComponent implements QCRecorder
 {
   private static final long serialVersionUID = -7333199261388238367L;
 
+  private static final int DEFAULT_REFRESH_RATE = 60;
+
+  private static final int[] LEFT_CTRL_X = createPositionTable(95.0, 0.125);
+  private static final int[] LEFT_CTRL_Y = createPositionTable(95.0, -0.125);
+  private static final int[] RIGHT_CTRL_X =
+    createPositionTable(358.0, -0.125);
+  private static final int[] RIGHT_CTRL_Y = createPositionTable(67.0, 0.125);
+
+  private static class Frame
+  {
+    private final QuadCop.DataRecord record;
+    private final long receivedNanos;
+
+    private Frame(final QuadCop.DataRecord record, final long receivedNanos)
+    {
+      this.record = record;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+
+  private static final String BACKGROUND_IMAGE = "quadcop_small.png";
+  private static final String LEFT_CTRL_IMAGE = "left-ctrl_small.png";
+  private static final String RIGHT_CTRL_IMAGE = "right-ctrl_small.png";
+
   private final QuadCopApp quadCopApp;
   private boolean loaded;
+  private boolean firstFramePainted;
   private BufferedImage quadCopImage;
   private BufferedImage leftCtrlImage;
   private BufferedImage rightCtrlImage;
-  private byte status;
-  private byte ctrlLever0;
-  private byte ctrlLever1;
-  private byte ctrlLever2;
-  private byte ctrlLever3;
-  private byte buttons;
+  private GraphicsConfiguration imageConfiguration;
+  private VolatileImage volatileBackground;
+  private volatile long latestRecord;
+  private volatile long latestNanos;
+  private final AtomicLong recordsReceived;
+  private final Timer refreshTimer;
+  private int refreshRate;
+
+  // accessed on the event dispatch thread only
+  private Frame displayedFrame;
+  private long displayedReceived;
+  private boolean displayedFramePainted;
+  private long refreshTicks;
+  private long framesPainted;
+  private long paints;
+  private long paintNanos;
+  private long maxPaintNanos;
+  private long latencyNanos;
+  private long maxLatencyNanos;
 
   private QuadCopPane()
   {
@@ -58,40 +136,252 @@ public class QuadCopPane extends JComponent implements QCRecorder
       throw new NullPointerException("quadCopApp");
     }
     this.quadCopApp = quadCopApp;
-    Dimension dimension = new Dimension(200, 100);
     quadCopImage = null;
     leftCtrlImage = null;
     rightCtrlImage = null;
-    try {
-      quadCopImage = createImage("quadcop_small.png");
-      leftCtrlImage = createImage("left-ctrl_small.png");
-      rightCtrlImage = createImage("right-ctrl_small.png");
-      dimension =
-        new Dimension(quadCopImage.getWidth(), quadCopImage.getHeight());
-      loaded = true;
-    } catch (final IOException ex) {
-      showLoadError(ex.getMessage());
-      loaded = false;
-    } catch (final IllegalArgumentException ex) {
-      showLoadError(ex.getMessage());
-      loaded = false;
+    loaded = false;
+    firstFramePainted = false;
+    Dimension dimension = readImageSize(BACKGROUND_IMAGE);
+    if (dimension == null) {
+      dimension = new Dimension(200, 100);
     }
+    loadImages();
     setPreferredSize(dimension);
+    latestRecord = 0;
+    latestNanos = 0;
+    recordsReceived = new AtomicLong(0);
+    displayedFrame = new Frame(new QuadCop.DataRecord(), System.nanoTime());
+    displayedReceived = 0;
+    displayedFramePainted = true;
+    refreshRate = DEFAULT_REFRESH_RATE;
+    refreshTimer =
+      new Timer(1000 / refreshRate, (final ActionEvent event) -> {
+          refresh();
+        });
+    refreshTimer.setCoalesce(true);
+  }
+
+  public void addNotify()
+  {
+    super.addNotify();
+    final GraphicsConfiguration configuration = getGraphicsConfiguration();
+    makeImagesCompatible();
+    refreshRate = getRefreshRate(configuration);
+    refreshTimer.setDelay(1000 / refreshRate);
+    refreshTimer.setInitialDelay(0);
+    refreshTimer.start();
+  }
+
+  private void makeImagesCompatible()
+  {
+    final GraphicsConfiguration configuration = getGraphicsConfiguration();
+    if (loaded && (configuration != null) &&
+        (configuration != imageConfiguration)) {
+      quadCopImage = toCompatibleImage(quadCopImage, configuration);
+      leftCtrlImage = toCompatibleImage(leftCtrlImage, configuration);
+      rightCtrlImage = toCompatibleImage(rightCtrlImage, configuration);
+      imageConfiguration = configuration;
+      flushVolatileBackground();
+    }
+  }
+
+  public void removeNotify()
+  {
+    refreshTimer.stop();
+    flushVolatileBackground();
+    super.removeNotify();
+  }
+
+  private static BufferedImage
+    toCompatibleImage(final BufferedImage image,
+                      final GraphicsConfiguration configuration)
+  {
+    final BufferedImage compatibleImage =
+      configuration.createCompatibleImage(image.getWidth(),
+                                          image.getHeight(),
+                                          image.getTransparency());
+    if ((compatibleImage.getColorModel().equals(image.getColorModel())) &&
+        (compatibleImage.getType() == image.getType())) {
+      return image;
+    }
+    final Graphics g = compatibleImage.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return compatibleImage;
   }
 
-  private BufferedImage createImage(final String imageFileName)
+  private void flushVolatileBackground()
+  {
+    if (volatileBackground != null) {
+      volatileBackground.flush();
+      volatileBackground = null;
+    }
+  }
+
+  /**
+   * Returns the background as volatile image, restoring its contents
+   * if they have been lost, or null if no volatile image is available.
+   */
+  private VolatileImage getVolatileBackground()
+  {
+    final GraphicsConfiguration configuration = getGraphicsConfiguration();
+    if (configuration == null) {
+      return null;
+    }
+    if ((volatileBackground == null) ||
+        (volatileBackground.validate(configuration) ==
+         VolatileImage.IMAGE_INCOMPATIBLE)) {
+      flushVolatileBackground();
+      try {
+        volatileBackground =
+          configuration.createCompatibleVolatileImage(quadCopImage.getWidth(),
+                                                      quadCopImage.getHeight(),
+                                                      Transparency.OPAQUE);
+      } catch (final RuntimeException ex) {
+        // e.g. no accelerated surfaces on this pipeline
+        return null;
+      }
+      renderVolatileBackground();
+    } else if (volatileBackground.contentsLost()) {
+      renderVolatileBackground();
+    }
+    return volatileBackground;
+  }
+
+  private void renderVolatileBackground()
+  {
+    final Graphics g = volatileBackground.createGraphics();
+    g.drawImage(quadCopImage, 0, 0, null);
+    g.dispose();
+  }
+
+  private static int[] createPositionTable(final double offset,
+                                           final double scale)
+  {
+    final int[] table = new int[256];
+    for (int value = 0; value < 256; value++) {
+      table[value] = (int)(offset + value * scale);
+    }
+    return table;
+  }
+
+  private static int getRefreshRate(final GraphicsConfiguration configuration)
+  {
+    if (configuration != null) {
+      final DisplayMode displayMode =
+        configuration.getDevice().getDisplayMode();
+      if ((displayMode != null) &&
+          (displayMode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) &&
+          (displayMode.getRefreshRate() > 0)) {
+        return displayMode.getRefreshRate();
+      }
+    }
+    return DEFAULT_REFRESH_RATE;
+  }
+
+  private static URL getImageURL(final String imageFileName)
     throws IOException
   {
     final String imagePath = "/images/" + imageFileName;
     final URL imageURL = QuadCopApp.class.getResource(imagePath);
     if (imageURL != null) {
-      return ImageIO.read(imageURL);
+      return imageURL;
     } else {
       System.err.println("Resource not found: " + imagePath);
       throw new IOException("Resource not found: " + imagePath);
     }
   }
 
+  private static BufferedImage createImage(final String imageFileName)
+    throws IOException
+  {
+    final BufferedImage image = ImageIO.read(getImageURL(imageFileName));
+    if (image == null) {
+      throw new IOException("unsupported image format: " + imageFileName);
+    }
+    return image;
+  }
+
+  /**
+   * Reads the image size from the header of a PNG image without
+   * decoding the image.  Returns null if the size can not be
+   * determined.
+   */
+  private static Dimension readImageSize(final String imageFileName)
+  {
+    try {
+      final InputStream in = getImageURL(imageFileName).openStream();
+      try {
+        final DataInputStream data = new DataInputStream(in);
+        // 8 bytes signature, 4 bytes chunk length, 4 bytes chunk type
+        final long signature = data.readLong();
+        data.readInt();
+        final int chunkType = data.readInt();
+        if ((signature != 0x89504e470d0a1a0aL) || (chunkType != 0x49484452)) {
+          return null;
+        }
+        final int width = data.readInt();
+        final int height = data.readInt();
+        return new Dimension(width, height);
+      } finally {
+        in.close();
+      }
+    } catch (final IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Decodes the images in the background and hands them over to the
+   * event dispatch thread.
+   */
+  private void loadImages()
+  {
+    CompletableFuture.supplyAsync(() -> {
+        try {
+          return new BufferedImage[] {
+            createImage(BACKGROUND_IMAGE),
+            createImage(LEFT_CTRL_IMAGE),
+            createImage(RIGHT_CTRL_IMAGE)
+          };
+        } catch (final IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }).whenComplete((final BufferedImage[] images,
+                       final Throwable failure) -> {
+          SwingUtilities.invokeLater(() -> {
+              imagesLoaded(images, failure);
+            });
+        });
+  }
+
+  private void imagesLoaded(final BufferedImage[] images,
+                            final Throwable failure)
+  {
+    if (failure != null) {
+      Throwable cause = failure;
+      while (((cause instanceof CompletionException) ||
+              (cause instanceof UncheckedIOException)) &&
+             (cause.getCause() != null)) {
+        cause = cause.getCause();
+      }
+      showLoadError(cause.getMessage());
+      return;
+    }
+    quadCopImage = images[0];
+    leftCtrlImage = images[1];
+    rightCtrlImage = images[2];
+    loaded = true;
+    makeImagesCompatible();
+    // the background image covers the whole pane
+    setOpaque(true);
+    setPreferredSize(new Dimension(quadCopImage.getWidth(),
+                                   quadCopImage.getHeight()));
+    revalidate();
+    repaint();
+    quadCopApp.reportStartup("background images loaded");
+  }
+
   private void showLoadError(String msg)
   {
     final String title = "failed loading background images";
@@ -99,31 +389,201 @@ public class QuadCopPane extends JComponent implements QCRecorder
                                   JOptionPane.ERROR_MESSAGE);
   }
 
+  private static int getLeftCtrlX(final QuadCop.DataRecord record)
+  {
+    return LEFT_CTRL_X[record.getCtrlLever1() & 0xff];
+  }
+
+  private static int getLeftCtrlY(final QuadCop.DataRecord record)
+  {
+    return LEFT_CTRL_Y[record.getCtrlLever0() & 0xff];
+  }
+
+  private static int getRightCtrlX(final QuadCop.DataRecord record)
+  {
+    return RIGHT_CTRL_X[record.getCtrlLever3() & 0xff];
+  }
+
+  private static int getRightCtrlY(final QuadCop.DataRecord record)
+  {
+    return RIGHT_CTRL_Y[record.getCtrlLever2() & 0xff];
+  }
+
+  /**
+   * Called once per display refresh on the event dispatch thread.
+   */
+  private void refresh()
+  {
+    refreshTicks++;
+    final long received = recordsReceived.get();
+    if (received == displayedReceived) {
+      return;
+    }
+    displayedReceived = received;
+    // may be a newer record than counted, which is shown next time
+    final Frame frame =
+      new Frame(RecordRing.unpack(latestRecord), latestNanos);
+    final Frame previousFrame = displayedFrame;
+    displayedFrame = frame;
+    displayedFramePainted = false;
+    if (!loaded) {
+      return;
+    }
+    final QuadCop.DataRecord previous = previousFrame.record;
+    final QuadCop.DataRecord current = frame.record;
+    repaintImage(leftCtrlImage,
+                 getLeftCtrlX(previous), getLeftCtrlY(previous),
+                 getLeftCtrlX(current), getLeftCtrlY(current));
+    repaintImage(rightCtrlImage,
+                 getRightCtrlX(previous), getRightCtrlY(previous),
+                 getRightCtrlX(current), getRightCtrlY(current));
+  }
+
+  /**
+   * Repaints the bounds of the image at its previous and its new
+   * position.  The repaint manager would merge the regions of both
+   * lever images into a single rectangle spanning nearly the whole
+   * pane, hence each region is painted immediately on its own.
+   */
+  private void repaintImage(final BufferedImage image,
+                            final int previousX, final int previousY,
+                            final int x, final int y)
+  {
+    if ((previousX == x) && (previousY == y)) {
+      return;
+    }
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final Rectangle bounds = new Rectangle(previousX, previousY, width, height);
+    bounds.add(new Rectangle(x, y, width, height));
+    if (isShowing()) {
+      paintImmediately(bounds);
+    } else {
+      repaint(bounds);
+    }
+  }
+
+  private void paintBackground(final Graphics g, final Rectangle clip)
+  {
+    final int width = quadCopImage.getWidth();
+    final int height = quadCopImage.getHeight();
+    if ((clip.x + clip.width > width) || (clip.y + clip.height > height)) {
+      // pane is larger than the background image
+      g.setColor(getBackground());
+      g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    }
+    final int x1 = Math.max(0, clip.x);
+    final int y1 = Math.max(0, clip.y);
+    final int x2 = Math.min(width, clip.x + clip.width);
+    final int y2 = Math.min(height, clip.y + clip.height);
+    if ((x1 >= x2) || (y1 >= y2)) {
+      return;
+    }
+    VolatileImage background = getVolatileBackground();
+    if (background == null) {
+      g.drawImage(quadCopImage, x1, y1, x2, y2, x1, y1, x2, y2, null);
+      return;
+    }
+    do {
+      g.drawImage(background, x1, y1, x2, y2, x1, y1, x2, y2, null);
+    } while (background.contentsLost() &&
+             ((background = getVolatileBackground()) != null));
+  }
+
+  private static void drawImage(final Graphics g, final Rectangle clip,
+                                final BufferedImage image,
+                                final int x, final int y)
+  {
+    if (clip.intersects(x, y, image.getWidth(), image.getHeight())) {
+      g.drawImage(image, x, y, null);
+    }
+  }
+
   protected void paintComponent(final Graphics g)
   {
+    final long startNanos = System.nanoTime();
     if (loaded) {
-      final int leftCtrlX = (int)(95.0 + (ctrlLever1 & 0xff) * 0.125);
-      final int leftCtrlY = (int)(95.0 - (ctrlLever0 & 0xff) * 0.125);
-      final int rightCtrlX = (int)(358.0 - (ctrlLever3 & 0xff) * 0.125);
-      final int rightCtrlY = (int)(67.0 + (ctrlLever2 & 0xff) * 0.125);
-
-      g.drawImage(quadCopImage, 0, 0, this);
-      g.drawImage(leftCtrlImage, leftCtrlX, leftCtrlY, this);
-      g.drawImage(rightCtrlImage, rightCtrlX, rightCtrlY, this);
+      final Rectangle clip = g.getClipBounds() != null ?
+        g.getClipBounds() : new Rectangle(0, 0, getWidth(), getHeight());
+      final QuadCop.DataRecord record = displayedFrame.record;
+      paintBackground(g, clip);
+      drawImage(g, clip, leftCtrlImage,
+                getLeftCtrlX(record), getLeftCtrlY(record));
+      drawImage(g, clip, rightCtrlImage,
+                getRightCtrlX(record), getRightCtrlY(record));
     } else {
       super.paintComponent(g);
     }
+    final long stopNanos = System.nanoTime();
+    if (!firstFramePainted && loaded) {
+      firstFramePainted = true;
+      quadCopApp.reportStartup("first frame");
+    }
+    final long duration = stopNanos - startNanos;
+    paints++;
+    paintNanos += duration;
+    maxPaintNanos = Math.max(maxPaintNanos, duration);
+    if (!displayedFramePainted) {
+      final long latency = stopNanos - displayedFrame.receivedNanos;
+      framesPainted++;
+      latencyNanos += latency;
+      maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+      displayedFramePainted = true;
+    }
   }
 
+  /**
+   * Publishes the record for display.  Called by the serial reader
+   * thread; does not touch any Swing state.
+   */
   public void recordReceived(final QuadCop.DataRecord record)
   {
-    status = record.getStatus();
-    ctrlLever0 = record.getCtrlLever0();
-    ctrlLever1 = record.getCtrlLever1();
-    ctrlLever2 = record.getCtrlLever2();
-    ctrlLever3 = record.getCtrlLever3();
-    buttons = record.getButtons();
-    repaint();
+    publish(RecordRing.pack(record), 1);
+  }
+
+  /**
+   * Publishes the last of the records for display without allocating
+   * anything.  Called by the serial reader thread.
+   */
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    if (count > 0) {
+      publish(packedRecords[offset + count - 1], count);
+    }
+  }
+
+  private void publish(final long packedRecord, final int count)
+  {
+    latestNanos = System.nanoTime();
+    latestRecord = packedRecord;
+    // publishes both fields to refresh()
+    recordsReceived.addAndGet(count);
+  }
+
+  /**
+   * Returns a report on the rendering path.  Must be called on the
+   * event dispatch thread.
+   */
+  public String getRenderStatistics()
+  {
+    final long received = recordsReceived.get();
+    final StringBuffer report = new StringBuffer();
+    report.append(String.format("refresh rate: %d Hz%n", refreshRate));
+    report.append(String.format("refresh ticks: %d%n", refreshTicks));
+    report.append(String.format("records received: %d%n", received));
+    report.append(String.format("frames painted: %d%n", framesPainted));
+    report.append(String.format("records coalesced: %d%n",
+                                Math.max(0, received - framesPainted)));
+    report.append(String.format("paints: %d, mean %.3f ms, max %.3f ms%n",
+                                paints,
+                                paints > 0 ? paintNanos / 1e6 / paints : 0.0,
+                                maxPaintNanos / 1e6));
+    report.append(String.format("latency: mean %.3f ms, max %.3f ms%n",
+                                framesPainted > 0 ?
+                                latencyNanos / 1e6 / framesPainted : 0.0,
+                                maxLatencyNanos / 1e6));
+    return report.toString();
   }
 }
 
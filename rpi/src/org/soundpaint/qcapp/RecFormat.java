@@ -0,0 +1,268 @@
+/*
+ * @(#)RecFormat.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Versions of the recorder file format.
+ *
+ * Version 1 is the original, headerless format: a plain sequence of
+ * records, each stored as status byte, control levers 0 to 3, and
+ * buttons.  Version 2 prepends a 16 byte header consisting of the
+ * magic "QCRC", the version number, three reserved bytes, and the
+ * number of records as big-endian 64 bit value, followed by the very
+ * same records as in version 1.  The declared number of records lets
+ * tools detect truncated files.  Version 1 files can not be mistaken
+ * for version 2, since the first byte of a version 1 file is a status
+ * byte, which always has its most significant bit set.
+ */
+public class RecFormat
+{
+  public enum Version {
+    V1(1, 0),
+    V2(2, 16);
+
+    private final int number;
+    private final int headerLength;
+
+    private Version(final int number, final int headerLength)
+    {
+      this.number = number;
+      this.headerLength = headerLength;
+    }
+
+    public int getNumber()
+    {
+      return number;
+    }
+
+    public int getHeaderLength()
+    {
+      return headerLength;
+    }
+  };
+
+  public static final int MAX_HEADER_LENGTH = 16;
+  public static final long UNKNOWN_SIZE = -1;
+  private static final byte[] MAGIC = { 'Q', 'C', 'R', 'C' };
+
+  public static class Header
+  {
+    private final Version version;
+    private final long declaredSize;
+
+    private Header()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    public Header(final Version version, final long declaredSize)
+    {
+      if (version == null) {
+        throw new NullPointerException("version");
+      }
+      this.version = version;
+      this.declaredSize = declaredSize;
+    }
+
+    public Version getVersion()
+    {
+      return version;
+    }
+
+    public int getDataOffset()
+    {
+      return version.getHeaderLength();
+    }
+
+    /**
+     * Returns the number of records as declared in the header, or
+     * UNKNOWN_SIZE, if the format does not declare it.
+     */
+    public long getDeclaredSize()
+    {
+      return declaredSize;
+    }
+  }
+
+  private RecFormat()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public static Version parseVersion(final String name)
+  {
+    for (final Version version : Version.values()) {
+      if (version.name().equalsIgnoreCase(name) ||
+          String.valueOf(version.getNumber()).equals(name)) {
+        return version;
+      }
+    }
+    throw new IllegalArgumentException("unknown recorder file version: " +
+                                       name);
+  }
+
+  /**
+   * Parses the header from the first bytes of a file.  The length
+   * may be less than MAX_HEADER_LENGTH for very short files.
+   */
+  public static Header parseHeader(final byte[] head, final int length)
+    throws IOException
+  {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if ((i >= length) || (head[i] != MAGIC[i])) {
+        return new Header(Version.V1, UNKNOWN_SIZE);
+      }
+    }
+    if (length < Version.V2.getHeaderLength()) {
+      throw new IOException("truncated recorder file header");
+    }
+    final int number = head[4] & 0xff;
+    if (number != Version.V2.getNumber()) {
+      throw new IOException("unsupported recorder file version: " + number);
+    }
+    long declaredSize = 0;
+    for (int i = 8; i < 16; i++) {
+      declaredSize = (declaredSize << 8) | (head[i] & 0xff);
+    }
+    return new Header(Version.V2, declaredSize);
+  }
+
+  /**
+   * Reads the header from the current position of the buffer,
+   * leaving the buffer's position unchanged.
+   */
+  public static Header readHeader(final ByteBuffer buffer) throws IOException
+  {
+    final ByteBuffer view = buffer.duplicate();
+    final byte[] head = new byte[Math.min(MAX_HEADER_LENGTH, view.remaining())];
+    view.get(head);
+    return parseHeader(head, head.length);
+  }
+
+  /**
+   * Reads the header from the stream, which must support mark and
+   * reset.  On return, the stream is positioned at the first record.
+   */
+  public static Header readHeader(final InputStream in) throws IOException
+  {
+    if (!in.markSupported()) {
+      throw new IllegalArgumentException("stream does not support mark");
+    }
+    in.mark(MAX_HEADER_LENGTH);
+    final byte[] head = new byte[MAX_HEADER_LENGTH];
+    final int length = readFully(in, head, 0, head.length);
+    in.reset();
+    final Header header = parseHeader(head, length);
+    final long skipped = in.skip(header.getDataOffset());
+    if (skipped != header.getDataOffset()) {
+      throw new IOException("failed skipping recorder file header");
+    }
+    return header;
+  }
+
+  /**
+   * Reads up to length bytes, blocking until either that many bytes
+   * are read or the end of stream is reached.  Returns the number of
+   * bytes read.
+   */
+  public static int readFully(final InputStream in, final byte[] buffer,
+                              final int offset, final int length)
+    throws IOException
+  {
+    int count = 0;
+    while (count < length) {
+      final int result = in.read(buffer, offset + count, length - count);
+      if (result < 0) {
+        break;
+      }
+      count += result;
+    }
+    return count;
+  }
+
+  public static void writeHeader(final OutputStream out,
+                                 final Version version, final long size)
+    throws IOException
+  {
+    if (version == Version.V1) {
+      return;
+    }
+    final byte[] head = new byte[Version.V2.getHeaderLength()];
+    System.arraycopy(MAGIC, 0, head, 0, MAGIC.length);
+    head[4] = (byte)version.getNumber();
+    for (int i = 15; i >= 8; i--) {
+      head[i] = (byte)(size >>> (8 * (15 - i)));
+    }
+    out.write(head);
+  }
+
+  private static final int BLOCK_SIZE = 4096;
+
+  /**
+   * Writes all records of the source in the specified version.
+   */
+  public static void write(final RecordSource source, final File file,
+                           final Version version)
+    throws IOException
+  {
+    final OutputStream out =
+      new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      write(source, out, version);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes all records of the source in the specified version to the
+   * stream, leaving the stream open.
+   */
+  public static void write(final RecordSource source,
+                           final OutputStream out, final Version version)
+    throws IOException
+  {
+    final int size = source.size();
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final byte[] block = new byte[BLOCK_SIZE * byteLength];
+    writeHeader(out, version, size);
+    for (int index = 0; index < size; index += BLOCK_SIZE) {
+      final int blockEnd = Math.min(index + BLOCK_SIZE, size);
+      source.copyBytesTo(block, index, blockEnd);
+      out.write(block, 0, (blockEnd - index) * byteLength);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
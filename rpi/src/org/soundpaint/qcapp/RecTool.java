@@ -0,0 +1,704 @@
+/*
+ * @(#)RecTool.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless batch processing of recorder files: validation, repair,
+ * conversion between format versions and export formats, filtering,
+ * and statistics, for single files as well as for whole directory
+ * trees.
+ *
+ * Files are processed in parallel by a fixed number of worker
+ * threads.  The work queue is bounded, and each worker handles one
+ * file at a time, mostly via memory-mapped access, such that memory
+ * consumption does not depend on the number of files.
+ */
+public class RecTool
+{
+  private static class Flags {
+    private static final Options.OptionDeclaration optVersion =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('V'), "version",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display version information and exit");
+    private static final Options.OptionDeclaration optHelp =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('h'), "help",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "display this help text and exit");
+    private static final Options.OptionDeclaration optVerbose =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('v'), "verbose",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "print verbose information");
+    private static final Options.OptionDeclaration optIn =
+      new Options.OptionDeclaration(Options.Type.STRING, "PATHS", false,
+                                    Character.valueOf('i'), "in",
+                                    null,
+                                    "process recorder files and directory " +
+                                    "trees of recorder files PATHS, " +
+                                    "separated by '" + File.pathSeparator +
+                                    "'");
+    private static final Options.OptionDeclaration optOutDir =
+      new Options.OptionDeclaration(Options.Type.STRING, "DIR", false,
+                                    Character.valueOf('o'), "out-dir",
+                                    null,
+                                    "write converted or repaired files " +
+                                    "into DIR; repair defaults to " +
+                                    "replacing files in place");
+    private static final Options.OptionDeclaration optValidate =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('t'), "validate",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "check files for truncation and " +
+                                    "sync gaps");
+    private static final Options.OptionDeclaration optRepair =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('r'), "repair",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "drop incomplete and unsynchronized " +
+                                    "records and fix headers");
+    private static final Options.OptionDeclaration optConvert =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('c'), "convert",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "convert files into the format " +
+                                    "given by --format");
+    private static final Options.OptionDeclaration optStats =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    Character.valueOf('s'), "stats",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "print statistics per file and " +
+                                    "over all files");
+    private static final Options.OptionDeclaration optFormat =
+      new Options.OptionDeclaration(Options.Type.STRING, "FORMAT", false,
+                                    Character.valueOf('F'), "format",
+                                    "v2",
+                                    "output format for conversion: " +
+                                    "v1, v2, or csv");
+    private static final Options.OptionDeclaration optFilter =
+      new Options.OptionDeclaration(Options.Type.STRING, "SPEC", false,
+                                    Character.valueOf('f'), "filter",
+                                    "",
+                                    "apply lever filters SPEC when " +
+                                    "converting, e.g. " +
+                                    "\"median:1,lowpass:0.5,2@expo:0.3\"");
+    private static final Options.OptionDeclaration optJobs =
+      new Options.OptionDeclaration(Options.Type.STRING, "N", false,
+                                    Character.valueOf('j'), "jobs",
+                                    "0",
+                                    "process N files in parallel; 0 " +
+                                    "means one per available processor");
+
+    private static final Options.OptionDeclaration[] OPTION_DECLARATIONS =
+      new Options.OptionDeclaration[] {
+      optVersion, optHelp, optVerbose, optIn, optOutDir,
+      optValidate, optRepair, optConvert, optStats,
+      optFormat, optFilter, optJobs
+    };
+
+    private Options.FlagOptionDefinition version;
+    private Options.FlagOptionDefinition help;
+    private Options.FlagOptionDefinition verbose;
+    private Options.StringOptionDefinition in;
+    private Options.StringOptionDefinition outDir;
+    private Options.FlagOptionDefinition validate;
+    private Options.FlagOptionDefinition repair;
+    private Options.FlagOptionDefinition convert;
+    private Options.FlagOptionDefinition stats;
+    private Options.StringOptionDefinition format;
+    private Options.StringOptionDefinition filter;
+    private Options.StringOptionDefinition jobs;
+
+    private final static Options options;
+
+    static {
+      try {
+        options = new Options(OPTION_DECLARATIONS);
+      } catch (final Options.ParseException ex) {
+        throw new RuntimeException("bad option declaration in class RecTool",
+                                   ex);
+      }
+    }
+
+    private Flags()
+    {
+      throw new RuntimeException("unsupported constructor");
+    }
+
+    private Flags(final String argv[]) throws Options.ParseException
+    {
+      options.parse(argv);
+      version = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optVersion);
+      help = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optHelp);
+      verbose = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optVerbose);
+      in = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optIn);
+      outDir = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optOutDir);
+      validate = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optValidate);
+      repair = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optRepair);
+      convert = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optConvert);
+      stats = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optStats);
+      format = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optFormat);
+      filter = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optFilter);
+      jobs = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optJobs);
+    }
+
+    public void checkValidity() throws Options.ParseException
+    {
+      int modes = 0;
+      for (final Options.FlagOptionDefinition mode :
+             new Options.FlagOptionDefinition[] {
+               validate, repair, convert, stats
+             }) {
+        if (mode.isTrue()) {
+          modes++;
+        }
+      }
+      if (modes != 1) {
+        throw new Options.ParseException("exactly one of --validate, " +
+                                         "--repair, --convert, --stats " +
+                                         "expected");
+      }
+      if (in.getValue() == null) {
+        throw new Options.ParseException("missing option: " +
+                                         optIn);
+      }
+      if (convert.isTrue() && (outDir.getValue() == null)) {
+        throw new Options.ParseException("conversion requires option: " +
+                                         optOutDir);
+      }
+      if (!convert.isTrue() && !filter.getValue().isEmpty()) {
+        throw new Options.ParseException("filters apply only to conversion");
+      }
+    }
+
+    public String getHelp()
+    {
+      return
+        "Usage: RecTool [OPTION]...\n" +
+        "Batch process QuadCop recorder files\n" +
+        "\n" +
+        options.getHelp();
+    }
+  }
+
+  private static enum OutputFormat {
+    V1, V2, CSV
+  };
+
+  /**
+   * A file to process, together with the input root that it was
+   * found in, for mirroring the directory structure into the output
+   * directory.
+   */
+  private static class Input
+  {
+    private final File root;
+    private final File file;
+
+    private Input(final File root, final File file)
+    {
+      this.root = root;
+      this.file = file;
+    }
+
+    private File getTarget(final File outDir, final String extension)
+    {
+      final String relativePath;
+      if (root.isDirectory()) {
+        relativePath =
+          root.toPath().relativize(file.toPath()).toString();
+      } else {
+        relativePath = file.getName();
+      }
+      final String baseName =
+        relativePath.endsWith(".rec") ?
+        relativePath.substring(0, relativePath.length() - 4) : relativePath;
+      return new File(outDir, baseName + extension);
+    }
+  }
+
+  private static interface FileTask
+  {
+    /**
+     * Processes a single file and returns a one-line report, or null
+     * for no report.
+     */
+    public String process(final Input input) throws IOException;
+  }
+
+  private final static int BLOCK_SIZE = 4096;
+
+  private final Flags flags;
+  private final File outDir;
+  private final OutputFormat outputFormat;
+  private final DspPipeline pipeline;
+  private final FlightStatistics totalStatistics;
+  private final AtomicInteger failures;
+  private final AtomicInteger problems;
+
+  private RecTool()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public RecTool(final String argv[])
+    throws Options.ParseException, IOException
+  {
+    flags = new Flags(argv);
+    failures = new AtomicInteger(0);
+    problems = new AtomicInteger(0);
+    totalStatistics =
+      new FlightStatistics(FlightStatistics.DEFAULT_CENTER_RADIUS);
+    if (flags.version.isTrue()) {
+      printVersion();
+      outDir = null;
+      outputFormat = null;
+      pipeline = null;
+    } else if (flags.help.isTrue()) {
+      printHelp();
+      outDir = null;
+      outputFormat = null;
+      pipeline = null;
+    } else {
+      flags.checkValidity();
+      outDir = flags.outDir.getValue() != null ?
+        new File(flags.outDir.getValue()) : null;
+      try {
+        outputFormat =
+          OutputFormat.valueOf(flags.format.getValue().toUpperCase());
+        pipeline = DspPipeline.parse(flags.filter.getValue());
+      } catch (final IllegalArgumentException ex) {
+        throw new Options.ParseException(ex.getMessage(), ex);
+      }
+      run();
+    }
+  }
+
+  private int getJobs() throws Options.ParseException
+  {
+    final int jobs;
+    try {
+      jobs = Integer.parseInt(flags.jobs.getValue());
+    } catch (final NumberFormatException ex) {
+      throw new Options.ParseException("bad number of jobs: " +
+                                       flags.jobs.getValue());
+    }
+    if (jobs < 0) {
+      throw new Options.ParseException("number of jobs must not be " +
+                                       "negative");
+    }
+    return jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+  }
+
+  private List<Input> collectInputs() throws IOException
+  {
+    final List<Input> inputs = new ArrayList<Input>();
+    for (final String path : flags.in.getValue().split(File.pathSeparator)) {
+      if (path.isEmpty()) {
+        continue;
+      }
+      final File root = new File(path);
+      if (!root.exists()) {
+        throw new IOException("no such file or directory: " + path);
+      }
+      collectInputs(root, root, inputs);
+    }
+    return inputs;
+  }
+
+  private void collectInputs(final File root, final File file,
+                             final List<Input> inputs)
+  {
+    if (file.isDirectory()) {
+      final File[] children = file.listFiles();
+      if (children != null) {
+        Arrays.sort(children);
+        for (final File child : children) {
+          collectInputs(root, child, inputs);
+        }
+      }
+    } else if ((file == root) || file.getName().endsWith(".rec")) {
+      inputs.add(new Input(root, file));
+    }
+  }
+
+  private void run() throws Options.ParseException, IOException
+  {
+    final FileTask task;
+    if (flags.validate.isTrue()) {
+      task = (final Input input) -> validate(input);
+    } else if (flags.repair.isTrue()) {
+      task = (final Input input) -> repair(input);
+    } else if (flags.convert.isTrue()) {
+      task = (final Input input) -> convert(input);
+    } else {
+      task = (final Input input) -> collectStatistics(input);
+    }
+    final List<Input> inputs = collectInputs();
+    final int jobs = getJobs();
+    if (flags.verbose.isTrue()) {
+      System.out.println("processing " + inputs.size() + " files with " +
+                         jobs + " jobs");
+    }
+    // bounded queue: when full, the submitting thread processes the
+    // next file itself rather than piling up pending work
+    final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                             new ArrayBlockingQueue<Runnable>(2 * jobs),
+                             new ThreadPoolExecutor.CallerRunsPolicy());
+    final long startTime = System.currentTimeMillis();
+    for (final Input input : inputs) {
+      executor.execute(() -> {
+          processInput(task, input);
+        });
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        // keep waiting
+      }
+    } catch (final InterruptedException ex) {
+      executor.shutdownNow();
+      throw new IOException("interrupted", ex);
+    }
+    final long stopTime = System.currentTimeMillis();
+    if (flags.stats.isTrue()) {
+      System.out.println("total over " + inputs.size() + " files:");
+      System.out.print(totalStatistics.getReport());
+    }
+    if (flags.verbose.isTrue()) {
+      System.out.println("processed " + inputs.size() + " files in " +
+                         (stopTime - startTime) + " ms");
+    }
+    if (failures.get() > 0) {
+      throw new IOException(failures.get() + " files failed");
+    }
+    if (flags.repair.isTrue() && (problems.get() > 0)) {
+      System.out.println(problems.get() + " files repaired");
+    }
+    if (flags.validate.isTrue() && (problems.get() > 0)) {
+      throw new IOException(problems.get() + " files with problems");
+    }
+  }
+
+  private void processInput(final FileTask task, final Input input)
+  {
+    String report;
+    try {
+      report = task.process(input);
+    } catch (final IOException | RuntimeException ex) {
+      failures.incrementAndGet();
+      report = input.file + ": FAILED: " + ex.getMessage();
+    }
+    if (report != null) {
+      synchronized(System.out) {
+        System.out.println(report);
+      }
+    }
+  }
+
+  private String validate(final Input input) throws IOException
+  {
+    final RecordFile recordFile = new RecordFile(input.file);
+    try {
+      final FlightStatistics statistics =
+        FlightStatistics.compute(recordFile, false);
+      final List<String> issues = findIssues(recordFile, statistics);
+      final String summary =
+        "v" + recordFile.getHeader().getVersion().getNumber() + ", " +
+        recordFile.size() + " records";
+      if (issues.isEmpty()) {
+        return
+          flags.verbose.isTrue() ? input.file + ": OK (" + summary + ")" :
+          null;
+      }
+      problems.incrementAndGet();
+      return
+        input.file + ": BAD (" + summary + "): " + String.join("; ", issues);
+    } finally {
+      recordFile.close();
+    }
+  }
+
+  private List<String> findIssues(final RecordFile recordFile,
+                                  final FlightStatistics statistics)
+  {
+    final List<String> issues = new ArrayList<String>();
+    if (recordFile.getTrailingBytes() != 0) {
+      issues.add("incomplete trailing record of " +
+                 recordFile.getTrailingBytes() + " bytes");
+    }
+    final long declaredSize = recordFile.getHeader().getDeclaredSize();
+    if ((declaredSize != RecFormat.UNKNOWN_SIZE) &&
+        (declaredSize != recordFile.size())) {
+      issues.add("header declares " + declaredSize + " records");
+    }
+    if (statistics.getSyncGapRecords() > 0) {
+      issues.add(statistics.getSyncGaps() + " sync gaps with " +
+                 statistics.getSyncGapRecords() + " records");
+    }
+    return issues;
+  }
+
+  private String repair(final Input input) throws IOException
+  {
+    final RecordFile recordFile = new RecordFile(input.file);
+    try {
+      final FlightStatistics statistics =
+        FlightStatistics.compute(recordFile, false);
+      final List<String> issues = findIssues(recordFile, statistics);
+      if (issues.isEmpty()) {
+        return flags.verbose.isTrue() ? input.file + ": OK" : null;
+      }
+      problems.incrementAndGet();
+      final File target =
+        outDir != null ? input.getTarget(outDir, ".rec") : input.file;
+      final long keptRecords =
+        recordFile.size() - statistics.getSyncGapRecords();
+      writeAtomically(target, (final OutputStream out) -> {
+          RecFormat.writeHeader(out, recordFile.getHeader().getVersion(),
+                                keptRecords);
+          copySynchronizedRecords(recordFile, out);
+        });
+      return
+        input.file + ": REPAIRED (" + String.join("; ", issues) + ") -> " +
+        target + ", " + keptRecords + " records";
+    } finally {
+      recordFile.close();
+    }
+  }
+
+  private void copySynchronizedRecords(final RecordSource source,
+                                       final OutputStream out)
+    throws IOException
+  {
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final byte[] block = new byte[BLOCK_SIZE * byteLength];
+    final int size = source.size();
+    for (int index = 0; index < size; index += BLOCK_SIZE) {
+      final int blockEnd = Math.min(index + BLOCK_SIZE, size);
+      source.copyBytesTo(block, index, blockEnd);
+      final int blockBytes = (blockEnd - index) * byteLength;
+      for (int offset = 0; offset < blockBytes; offset += byteLength) {
+        if (block[offset] < 0) {
+          // status byte with sync bit set
+          out.write(block, offset, byteLength);
+        }
+      }
+    }
+  }
+
+  private static interface StreamWriter
+  {
+    public void write(final OutputStream out) throws IOException;
+  }
+
+  /**
+   * Writes into a temporary file next to the target, and replaces the
+   * target only when writing succeeded.
+   */
+  private void writeAtomically(final File target, final StreamWriter writer)
+    throws IOException
+  {
+    final File parent = target.getAbsoluteFile().getParentFile();
+    if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("failed creating directory " + parent);
+    }
+    final File temporary = new File(parent, target.getName() + ".tmp");
+    final OutputStream out =
+      new BufferedOutputStream(new FileOutputStream(temporary));
+    boolean success = false;
+    try {
+      writer.write(out);
+      out.close();
+      Files.move(temporary.toPath(), target.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      success = true;
+    } finally {
+      if (!success) {
+        out.close();
+        temporary.delete();
+      }
+    }
+  }
+
+  private String convert(final Input input) throws IOException
+  {
+    if (!pipeline.isEmpty()) {
+      // files are processed in parallel already, hence filter
+      // sequentially within each file
+      return
+        convert(input,
+                pipeline.process(Document.createFromFile(input.file), false));
+    }
+    final RecordFile recordFile = new RecordFile(input.file);
+    try {
+      return convert(input, recordFile);
+    } finally {
+      recordFile.close();
+    }
+  }
+
+  private String convert(final Input input, final RecordSource source)
+    throws IOException
+  {
+    final File target;
+    switch (outputFormat) {
+    case V1:
+    case V2:
+      target = input.getTarget(outDir, ".rec");
+      if (target.getCanonicalFile().equals(input.file.getCanonicalFile())) {
+        throw new IOException("refusing to overwrite input file");
+      }
+      final RecFormat.Version version =
+        outputFormat == OutputFormat.V1 ?
+        RecFormat.Version.V1 : RecFormat.Version.V2;
+      writeAtomically(target, (final OutputStream out) -> {
+          RecFormat.write(source, out, version);
+        });
+      break;
+    case CSV:
+      target = input.getTarget(outDir, ".csv");
+      writeAtomically(target, (final OutputStream out) -> {
+          writeCsv(source, out);
+        });
+      break;
+    default:
+      throw new IllegalStateException("unexpected format: " + outputFormat);
+    }
+    return
+      flags.verbose.isTrue() ?
+      input.file + ": -> " + target + ", " + source.size() + " records" :
+      null;
+  }
+
+  private void writeCsv(final RecordSource source, final OutputStream out)
+    throws IOException
+  {
+    final Writer writer =
+      new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"));
+    writer.write("index,status,lever0,lever1,lever2,lever3,buttons\n");
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final byte[] block = new byte[BLOCK_SIZE * byteLength];
+    final StringBuilder line = new StringBuilder();
+    final int size = source.size();
+    for (int index = 0; index < size; index += BLOCK_SIZE) {
+      final int blockEnd = Math.min(index + BLOCK_SIZE, size);
+      source.copyBytesTo(block, index, blockEnd);
+      for (int i = index; i < blockEnd; i++) {
+        final int offset = (i - index) * byteLength;
+        line.setLength(0);
+        line.append(i);
+        for (int channel = 0; channel < byteLength; channel++) {
+          line.append(',').append(block[offset + channel] & 0xff);
+        }
+        line.append('\n');
+        writer.append(line);
+      }
+    }
+    writer.flush();
+  }
+
+  private String collectStatistics(final Input input) throws IOException
+  {
+    final RecordFile recordFile = new RecordFile(input.file);
+    final FlightStatistics statistics;
+    try {
+      statistics = FlightStatistics.compute(recordFile, false);
+    } finally {
+      recordFile.close();
+    }
+    synchronized(totalStatistics) {
+      totalStatistics.mergeIndependent(statistics);
+    }
+    if (flags.verbose.isTrue()) {
+      return input.file + ":\n" + statistics.getReport();
+    }
+    long presses = 0;
+    for (int button = 0; button < FlightStatistics.BUTTONS; button++) {
+      presses += statistics.getButtonPresses(button);
+    }
+    return
+      input.file + ": " + statistics.getRecords() + " records, " +
+      presses + " button presses, " + statistics.getSyncGaps() +
+      " sync gaps, " + statistics.getLinkGaps() + " link gaps";
+  }
+
+  private void printVersion()
+  {
+    System.out.println("RecTool V0.1");
+  }
+
+  private void printHelp()
+  {
+    System.out.println("QuadCop RecTool -- batch process recorder files");
+    System.out.println();
+    System.out.println(flags.getHelp());
+  }
+
+  public static void main(String argv[]) {
+    try {
+      new RecTool(argv);
+    } catch (final Throwable t) {
+      System.err.println(t.getMessage());
+      System.exit(-1);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,195 @@
+/*
+ * @(#)RecordFile.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, file-backed counterpart of Document.  Records are read
+ * from the recorder file on demand rather than loaded, such that even
+ * very long recordings can be accessed without copying them onto the
+ * heap.  The file stays open until closed.
+ */
+public class RecordFile implements RecordSource, Closeable
+{
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final RecFormat.Header header;
+  private final long byteLength;
+  private final int size;
+
+  private RecordFile()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public RecordFile(final File file) throws IOException
+  {
+    if (file == null) {
+      throw new NullPointerException("file");
+    }
+    this.file = file;
+    randomAccessFile = new RandomAccessFile(file, "r");
+    channel = randomAccessFile.getChannel();
+    boolean success = false;
+    try {
+      final byte[] head = new byte[RecFormat.MAX_HEADER_LENGTH];
+      final int headLength = read(head, 0, head.length, 0);
+      header = RecFormat.parseHeader(head, headLength);
+      byteLength = channel.size() - header.getDataOffset();
+      final long records = byteLength / QuadCop.DataRecord.getByteLength();
+      if (records > Integer.MAX_VALUE) {
+        throw new IOException("too many records: " + file);
+      }
+      size = (int)records;
+      success = true;
+    } finally {
+      if (!success) {
+        randomAccessFile.close();
+      }
+    }
+  }
+
+  /**
+   * Reads up to length bytes at the given file position.  Positional
+   * reads leave the channel's position untouched and hence are safe
+   * for concurrent use.  Returns the number of bytes read.
+   */
+  private int read(final byte[] buffer, final int offset, final int length,
+                   final long position)
+    throws IOException
+  {
+    final ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+    while (target.hasRemaining()) {
+      final int result =
+        channel.read(target, position + target.position() - offset);
+      if (result < 0) {
+        break;
+      }
+    }
+    return target.position() - offset;
+  }
+
+  /**
+   * Reads bytes of complete records, starting at the given byte
+   * offset relative to the first record.
+   */
+  private void readData(final byte[] buffer, final int length,
+                        final long dataOffset)
+  {
+    try {
+      final int count =
+        read(buffer, 0, length, header.getDataOffset() + dataOffset);
+      if (count < length) {
+        throw new IOException("file truncated while reading: " + file);
+      }
+    } catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public RecFormat.Header getHeader()
+  {
+    return header;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes of a trailing incomplete record,
+   * which is ignored.
+   */
+  public int getTrailingBytes()
+  {
+    return (int)(byteLength % QuadCop.DataRecord.getByteLength());
+  }
+
+  /**
+   * Returns true, if the file ends with an incomplete record, or if
+   * the header declares more records than present.
+   */
+  public boolean isTruncated()
+  {
+    final long declaredSize = header.getDeclaredSize();
+    return
+      (getTrailingBytes() != 0) ||
+      ((declaredSize != RecFormat.UNKNOWN_SIZE) && (declaredSize > size));
+  }
+
+  public QuadCop.DataRecord getRecord(final int index)
+  {
+    if ((index < 0) || (index >= size)) {
+      throw new IndexOutOfBoundsException("index: " + index);
+    }
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    final byte[] data = new byte[byteLength];
+    readData(data, byteLength, (long)index * byteLength);
+    return new QuadCop.DataRecord(data[0], data[1], data[2],
+                                  data[3], data[4], data[5]);
+  }
+
+  /**
+   * @exception UncheckedIOException If reading the file fails.
+   */
+  public void copyBytesTo(final byte[] buffer,
+                          final int startIndex, final int endIndex)
+  {
+    if ((startIndex < 0) || (startIndex > endIndex) || (endIndex > size)) {
+      throw new IndexOutOfBoundsException("bad range: " +
+                                          startIndex + ", " + endIndex);
+    }
+    final int byteLength = QuadCop.DataRecord.getByteLength();
+    readData(buffer, (endIndex - startIndex) * byteLength,
+             (long)startIndex * byteLength);
+  }
+
+  public FlightStatistics computeStatistics()
+  {
+    return FlightStatistics.compute(this, true);
+  }
+
+  public void close() throws IOException
+  {
+    randomAccessFile.close();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
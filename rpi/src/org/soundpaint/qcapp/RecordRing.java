@@ -0,0 +1,265 @@
+/*
+ * @(#)RecordRing.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free ring of the most recently received records,
+ * with each record packed into a single primitive long.
+ *
+ * There must be at most a single writer thread, typically the serial
+ * reader, while any number of readers may follow the ring, each with
+ * its own cursor.  The writer never waits for readers: a reader that
+ * falls behind by more than the ring's capacity skips the records
+ * that have been overwritten and counts them as lost.
+ */
+public class RecordRing implements QCRecorder
+{
+  private final AtomicLongArray entries;
+  private final int capacity;
+  private final int mask;
+  private final AtomicLong writeSequence;
+
+  /**
+   * A reader's position in the ring.  Not thread-safe; each reader
+   * thread uses its own cursor.
+   */
+  public class Cursor
+  {
+    private long next;
+    private long lost;
+
+    private Cursor(final long next)
+    {
+      this.next = next;
+      lost = 0;
+    }
+
+    /**
+     * Copies the records available since the last read into buffer,
+     * at most buffer.length of them, and returns their number.
+     */
+    public int read(final long[] buffer)
+    {
+      final long oldest = writeSequence.get() - capacity;
+      if (next < oldest) {
+        lost += oldest - next;
+        next = oldest;
+      }
+      final int count = (int)Math.min(buffer.length, available());
+      // acquire loads: the write sequence read below is not older
+      // than any entry copied here
+      for (int i = 0; i < count; i++) {
+        buffer[i] = entries.get((int)((next + i) & mask));
+      }
+      // entries overwritten while copying are newer => drop them; the
+      // writer stores entry s + capacity into the slot of entry s
+      // before publishing write sequence s + capacity + 1
+      final long overwritten = writeSequence.get() - capacity + 1 - next;
+      int valid = count;
+      if (overwritten > 0) {
+        final int dropped = (int)Math.min(count, overwritten);
+        System.arraycopy(buffer, dropped, buffer, 0, count - dropped);
+        valid = count - dropped;
+        lost += overwritten;
+        next += overwritten;
+      }
+      next += valid;
+      return valid;
+    }
+
+    /**
+     * Returns the number of records written but not yet read.
+     */
+    public long available()
+    {
+      return Math.max(0, writeSequence.get() - next);
+    }
+
+    /**
+     * Returns the total number of records that were overwritten
+     * before this cursor could read them.
+     */
+    public long getLost()
+    {
+      return lost;
+    }
+  }
+
+  private RecordRing()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param capacity The number of records kept; rounded up to the
+   * next power of two.
+   */
+  public RecordRing(final int capacity)
+  {
+    if ((capacity <= 0) || (capacity > (1 << 30))) {
+      throw new IllegalArgumentException("capacity not in [1, 2^30]");
+    }
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.capacity = Math.max(size, 1);
+    entries = new AtomicLongArray(this.capacity);
+    mask = this.capacity - 1;
+    writeSequence = new AtomicLong(0);
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  /**
+   * Returns the total number of records ever written.
+   */
+  public long getWriteSequence()
+  {
+    return writeSequence.get();
+  }
+
+  /**
+   * Creates a cursor that starts reading with the next record to be
+   * written.
+   */
+  public Cursor createCursor()
+  {
+    return new Cursor(writeSequence.get());
+  }
+
+  /**
+   * Creates a cursor that starts reading with the oldest record
+   * still kept in the ring.
+   */
+  public Cursor createCursorAtOldest()
+  {
+    return new Cursor(Math.max(0, writeSequence.get() - capacity));
+  }
+
+  public void publish(final long packedRecord)
+  {
+    final long sequence = writeSequence.get();
+    // release stores: readers that see the new entry see the sequence
+    // published before it, and readers that see the new sequence see
+    // the entry
+    entries.lazySet((int)(sequence & mask), packedRecord);
+    writeSequence.lazySet(sequence + 1);
+  }
+
+  public void recordReceived(final QuadCop.DataRecord record)
+  {
+    publish(pack(record));
+  }
+
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    for (int i = offset; i < offset + count; i++) {
+      publish(packedRecords[i]);
+    }
+  }
+
+  public static long pack(final QuadCop.DataRecord record)
+  {
+    return pack(record.getStatus(),
+                record.getCtrlLever0(), record.getCtrlLever1(),
+                record.getCtrlLever2(), record.getCtrlLever3(),
+                record.getButtons());
+  }
+
+  public static long pack(final byte status,
+                          final byte ctrlLever0, final byte ctrlLever1,
+                          final byte ctrlLever2, final byte ctrlLever3,
+                          final byte buttons)
+  {
+    return
+      (status & 0xffL) |
+      ((ctrlLever0 & 0xffL) << 8) |
+      ((ctrlLever1 & 0xffL) << 16) |
+      ((ctrlLever2 & 0xffL) << 24) |
+      ((ctrlLever3 & 0xffL) << 32) |
+      ((buttons & 0xffL) << 40);
+  }
+
+  /**
+   * Packs the record stored in recorder file order at the given
+   * offset.
+   */
+  public static long pack(final byte[] data, final int offset)
+  {
+    return pack(data[offset], data[offset + 1], data[offset + 2],
+                data[offset + 3], data[offset + 4], data[offset + 5]);
+  }
+
+  public static boolean isGapMarker(final long packedRecord)
+  {
+    return getStatus(packedRecord) == QuadCop.DataRecord.GAP_MARKER_STATUS;
+  }
+
+  /**
+   * Like QuadCop.DataRecord.createGapMarker(), but for packed records.
+   */
+  public static long createGapMarker(final long lastPackedRecord)
+  {
+    return
+      (lastPackedRecord & ~0xffL) |
+      (QuadCop.DataRecord.GAP_MARKER_STATUS & 0xffL);
+  }
+
+  public static QuadCop.DataRecord unpack(final long packedRecord)
+  {
+    return new QuadCop.DataRecord(getStatus(packedRecord),
+                                  (byte)getLever(packedRecord, 0),
+                                  (byte)getLever(packedRecord, 1),
+                                  (byte)getLever(packedRecord, 2),
+                                  (byte)getLever(packedRecord, 3),
+                                  getButtons(packedRecord));
+  }
+
+  public static byte getStatus(final long packedRecord)
+  {
+    return (byte)packedRecord;
+  }
+
+  /**
+   * Returns the unsigned value of the specified lever.
+   */
+  public static int getLever(final long packedRecord, final int lever)
+  {
+    return (int)(packedRecord >>> (8 * (lever + 1))) & 0xff;
+  }
+
+  public static byte getButtons(final long packedRecord)
+  {
+    return (byte)(packedRecord >>> 40);
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
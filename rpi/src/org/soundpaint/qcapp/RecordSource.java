@@ -0,0 +1,47 @@
+/*
+ * @(#)RecordSource.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+/**
+ * Random access to a sequence of records, regardless of whether they
+ * are held in memory or in a file.
+ */
+public interface RecordSource
+{
+  public int size();
+
+  /**
+   * Copies records startIndex up to endIndex - 1 into the buffer,
+   * starting at buffer index 0.  Each record is stored as
+   * QuadCop.DataRecord.getByteLength() bytes in the same order as in
+   * recorder files, i.e. status, control levers 0 to 3, and buttons.
+   * Safe for concurrent use by multiple threads.
+   */
+  public void copyBytesTo(final byte[] buffer,
+                          final int startIndex, final int endIndex);
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
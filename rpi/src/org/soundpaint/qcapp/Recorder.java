@@ -20,7 +20,10 @@
 
 package org.soundpaint.qcapp;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.function.Supplier;
 
 public class Recorder
 {
@@ -57,10 +60,86 @@ public class Recorder
                                     new Character('o'), "out",
                                     "quadcop.rec",
                                     "output data to FILE");
+    private static final Options.OptionDeclaration optTelemetry =
+      new Options.OptionDeclaration(Options.Type.STRING, "PORT", false,
+                                    new Character('t'), "telemetry",
+                                    null,
+                                    "serve the received records to " +
+                                    "remote viewers on TCP and UDP port " +
+                                    "PORT");
+    private static final Options.OptionDeclaration optRing =
+      new Options.OptionDeclaration(Options.Type.STRING, "FILE", false,
+                                    new Character('r'), "ring",
+                                    null,
+                                    "publish the received records to " +
+                                    "local processes via shared memory " +
+                                    "ring file FILE");
+    private static final Options.OptionDeclaration optFlush =
+      new Options.OptionDeclaration(Options.Type.STRING, "MS", false,
+                                    new Character('f'), "flush",
+                                    String.valueOf(QCFileRecorder.
+                                                   DEFAULT_FLUSH_INTERVAL_MS),
+                                    "write received records to the " +
+                                    "output file at least every MS " +
+                                    "milliseconds");
+    private static final Options.OptionDeclaration optSync =
+      new Options.OptionDeclaration(Options.Type.STRING, "MS", false,
+                                    new Character('s'), "sync",
+                                    String.valueOf(QCFileRecorder.
+                                                   DEFAULT_SYNC_INTERVAL_MS),
+                                    "force written records to the " +
+                                    "storage device every MS " +
+                                    "milliseconds; if negative, only " +
+                                    "when recording stops");
+    private static final Options.OptionDeclaration optDrop =
+      new Options.OptionDeclaration(Options.Type.FLAG, null, false,
+                                    new Character('d'), "drop",
+                                    Options.FlagOptionDefinition.OFF,
+                                    "drop records rather than spilling " +
+                                    "them to memory when the storage " +
+                                    "device falls behind");
+    private static final Options.OptionDeclaration optSegments =
+      new Options.OptionDeclaration(Options.Type.STRING, "DIR", false,
+                                    new Character('S'), "segments",
+                                    null,
+                                    "record into rotating segment files " +
+                                    "in DIR rather than into a single " +
+                                    "output file");
+    private static final Options.OptionDeclaration optSegmentSize =
+      new Options.OptionDeclaration(Options.Type.STRING, "MB", false,
+                                    null, "segment-size",
+                                    String.valueOf(SegmentedRecorder.
+                                                   DEFAULT_MAX_SEGMENT_BYTES >>
+                                                   20),
+                                    "start a new segment after MB " +
+                                    "megabytes; 0 for no limit");
+    private static final Options.OptionDeclaration optSegmentTime =
+      new Options.OptionDeclaration(Options.Type.STRING, "MIN", false,
+                                    null, "segment-time",
+                                    String.valueOf(SegmentedRecorder.
+                                                   DEFAULT_MAX_SEGMENT_MILLIS /
+                                                   60000),
+                                    "start a new segment after MIN " +
+                                    "minutes; 0 for no limit");
+    private static final Options.OptionDeclaration optRetainSize =
+      new Options.OptionDeclaration(Options.Type.STRING, "MB", false,
+                                    null, "retain-size",
+                                    "0",
+                                    "delete the oldest segments when all " +
+                                    "segments exceed MB megabytes; 0 for " +
+                                    "no limit");
+    private static final Options.OptionDeclaration optRetainTime =
+      new Options.OptionDeclaration(Options.Type.STRING, "HOURS", false,
+                                    null, "retain-time",
+                                    "0",
+                                    "delete segments older than HOURS " +
+                                    "hours; 0 for no limit");
 
     private static final Options.OptionDeclaration[] OPTION_DECLARATIONS =
       new Options.OptionDeclaration[] {
-      optVersion, optHelp, optVerbose, optListPorts, optPort, optOut
+      optVersion, optHelp, optVerbose, optListPorts, optPort, optOut,
+      optTelemetry, optRing, optFlush, optSync, optDrop, optSegments,
+      optSegmentSize, optSegmentTime, optRetainSize, optRetainTime
     };
 
     private Options.FlagOptionDefinition version;
@@ -69,6 +148,16 @@ public class Recorder
     private Options.FlagOptionDefinition listPorts;
     private Options.StringOptionDefinition port;
     private Options.StringOptionDefinition out;
+    private Options.StringOptionDefinition telemetry;
+    private Options.StringOptionDefinition ring;
+    private Options.StringOptionDefinition flush;
+    private Options.StringOptionDefinition sync;
+    private Options.FlagOptionDefinition drop;
+    private Options.StringOptionDefinition segments;
+    private Options.StringOptionDefinition segmentSize;
+    private Options.StringOptionDefinition segmentTime;
+    private Options.StringOptionDefinition retainSize;
+    private Options.StringOptionDefinition retainTime;
 
     private final static Options options;
 
@@ -101,6 +190,93 @@ public class Recorder
         <String>findDefinitionForDeclaration(optPort);
       out = (Options.StringOptionDefinition)options.
         <String>findDefinitionForDeclaration(optOut);
+      telemetry = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optTelemetry);
+      ring = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optRing);
+      flush = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optFlush);
+      sync = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSync);
+      drop = (Options.FlagOptionDefinition)options.
+        <Boolean>findDefinitionForDeclaration(optDrop);
+      segments = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSegments);
+      segmentSize = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSegmentSize);
+      segmentTime = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optSegmentTime);
+      retainSize = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optRetainSize);
+      retainTime = (Options.StringOptionDefinition)options.
+        <String>findDefinitionForDeclaration(optRetainTime);
+    }
+
+    /**
+     * Returns the telemetry port, or -1, if no telemetry is served.
+     */
+    public int getTelemetryPort() throws Options.ParseException
+    {
+      if (telemetry.getValue() == null) {
+        return -1;
+      }
+      final int port;
+      try {
+        port = Integer.parseInt(telemetry.getValue());
+      } catch (final NumberFormatException ex) {
+        throw new Options.ParseException("bad telemetry port: " +
+                                         telemetry.getValue());
+      }
+      if ((port < 0) || (port > 0xffff)) {
+        throw new Options.ParseException("telemetry port out of range: " +
+                                         port);
+      }
+      return port;
+    }
+
+    public long getFlushIntervalMillis() throws Options.ParseException
+    {
+      final long millis = parseLong("flush interval", flush.getValue());
+      if (millis < 0) {
+        throw new Options.ParseException("negative flush interval: " +
+                                         millis);
+      }
+      return millis;
+    }
+
+    public long getSyncIntervalMillis() throws Options.ParseException
+    {
+      return parseLong("sync interval", sync.getValue());
+    }
+
+    public long getSegmentBytes() throws Options.ParseException
+    {
+      return parseLong("segment size", segmentSize.getValue()) << 20;
+    }
+
+    public long getSegmentMillis() throws Options.ParseException
+    {
+      return parseLong("segment time", segmentTime.getValue()) * 60000;
+    }
+
+    public long getRetainBytes() throws Options.ParseException
+    {
+      return parseLong("retain size", retainSize.getValue()) << 20;
+    }
+
+    public long getRetainMillis() throws Options.ParseException
+    {
+      return parseLong("retain time", retainTime.getValue()) * 3600000;
+    }
+
+    private long parseLong(final String name, final String value)
+      throws Options.ParseException
+    {
+      try {
+        return Long.parseLong(value);
+      } catch (final NumberFormatException ex) {
+        throw new Options.ParseException("bad " + name + ": " + value);
+      }
     }
 
     public boolean checkValidity()
@@ -120,6 +296,14 @@ public class Recorder
     }
   }
 
+  /**
+   * Slots of the shared memory ring, i.e. about ten seconds of
+   * records.
+   */
+  private static final int RING_SLOTS = 8192;
+
+  private static final long VERBOSE_REPORT_INTERVAL_MS = 10000;
+
   private final Flags flags;
 
   private Recorder()
@@ -138,30 +322,95 @@ public class Recorder
     } else if (flags.listPorts.isTrue()) {
       listPorts();
     } else {
+      final int telemetryPort = flags.getTelemetryPort();
+      final long flushIntervalMillis = flags.getFlushIntervalMillis();
+      final long syncIntervalMillis = flags.getSyncIntervalMillis();
+      final QCFileRecorder.Overflow overflow =
+        flags.drop.isTrue() ?
+        QCFileRecorder.Overflow.DROP : QCFileRecorder.Overflow.SPILL;
+      final long segmentBytes = flags.getSegmentBytes();
+      final long segmentMillis = flags.getSegmentMillis();
+      final long retainBytes = flags.getRetainBytes();
+      final long retainMillis = flags.getRetainMillis();
       final QuadCop quadCop = QuadCop.create(System.out, flags.port.getValue());
-      record(quadCop);
+      final TelemetryServer telemetryServer;
+      if (telemetryPort >= 0) {
+        telemetryServer =
+          new TelemetryServer(telemetryPort,
+                              TelemetryServer.Policy.DROP_OLDEST);
+        telemetryServer.start();
+        quadCop.addRecorder(telemetryServer);
+        System.out.println("serving telemetry on port " +
+                           telemetryServer.getPort());
+      } else {
+        telemetryServer = null;
+      }
+      final SharedRing sharedRing;
+      if (flags.ring.getValue() != null) {
+        sharedRing = SharedRing.create(new File(flags.ring.getValue()),
+                                       RING_SLOTS);
+        quadCop.addRecorder(sharedRing);
+        System.out.println("publishing to ring file " + sharedRing.getFile());
+      } else {
+        sharedRing = null;
+      }
+      System.out.println("using port " + quadCop.getPortName());
+      if (flags.segments.getValue() != null) {
+        final SegmentedRecorder recorder =
+          new SegmentedRecorder(new File(flags.segments.getValue()),
+                                SegmentedRecorder.DEFAULT_PREFIX,
+                                flushIntervalMillis, syncIntervalMillis,
+                                overflow);
+        recorder.setRotation(segmentBytes, segmentMillis);
+        recorder.setRetention(retainBytes, retainMillis);
+        record(quadCop, recorder, recorder::getReport,
+               "segments in directory " + recorder.getDirectory());
+      } else {
+        final QCFileRecorder recorder =
+          new QCFileRecorder(flags.out.getValue(),
+                             flushIntervalMillis, syncIntervalMillis,
+                             overflow);
+        record(quadCop, recorder, recorder::getReport,
+               "file " + recorder.getOutFileName());
+      }
+      if (sharedRing != null) {
+        quadCop.removeRecorder(sharedRing);
+        sharedRing.close();
+      }
+      if (telemetryServer != null) {
+        quadCop.removeRecorder(telemetryServer);
+        telemetryServer.close();
+      }
       quadCop.close();
     }
   }
 
-  private void record(final QuadCop quadCop) throws IOException
+  private <T extends QCRecorder & Closeable>
+    void record(final QuadCop quadCop, final T recorder,
+                final Supplier<String> report, final String target)
+    throws IOException
   {
-    System.out.println("using port " + quadCop.getPortName());
-    final String recordFileName = flags.out.getValue();
-    final QCFileRecorder recorder = new QCFileRecorder(recordFileName);
-    System.out.println("start recording to file " + recordFileName);
+    System.out.println("start recording to " + target);
     System.out.println("*** Press [Enter] to stop recording. ***");
     quadCop.addRecorder(recorder);
+    long lastReported = System.currentTimeMillis();
     while (System.in.available() == 0) {
       try {
         Thread.sleep(100);
       } catch (final InterruptedException ex) {
         // ignore
       }
+      final long now = System.currentTimeMillis();
+      if (flags.verbose.isTrue() &&
+          (now - lastReported >= VERBOSE_REPORT_INTERVAL_MS)) {
+        System.out.println(report.get());
+        lastReported = now;
+      }
     }
     quadCop.removeRecorder(recorder);
     recorder.close();
     System.out.println("stopped recording");
+    System.out.println(report.get());
   }
 
   private void printVersion()
@@ -0,0 +1,93 @@
+/*
+ * @(#)RecorderGroup.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+/**
+ * Passes each record on to all of its recorders.  Recorders may come
+ * and go from any thread while records are passed on; the recorders
+ * are kept in an array that is replaced on each change, such that
+ * passing records on neither locks nor allocates anything.
+ */
+public class RecorderGroup implements QCRecorder
+{
+  private static final QCRecorder[] NO_RECORDERS = new QCRecorder[0];
+
+  private volatile QCRecorder[] recorders;
+
+  public RecorderGroup()
+  {
+    recorders = NO_RECORDERS;
+  }
+
+  public synchronized boolean add(final QCRecorder recorder)
+  {
+    if (recorder == null) {
+      throw new NullPointerException("recorder");
+    }
+    final QCRecorder[] added = new QCRecorder[recorders.length + 1];
+    System.arraycopy(recorders, 0, added, 0, recorders.length);
+    added[recorders.length] = recorder;
+    recorders = added;
+    return true;
+  }
+
+  public synchronized boolean remove(final QCRecorder recorder)
+  {
+    for (int i = 0; i < recorders.length; i++) {
+      if (recorders[i] == recorder) {
+        final QCRecorder[] removed = new QCRecorder[recorders.length - 1];
+        System.arraycopy(recorders, 0, removed, 0, i);
+        System.arraycopy(recorders, i + 1, removed, i,
+                         recorders.length - i - 1);
+        recorders = removed;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean isEmpty()
+  {
+    return recorders.length == 0;
+  }
+
+  public void recordReceived(final QuadCop.DataRecord record)
+  {
+    for (final QCRecorder recorder : recorders) {
+      recorder.recordReceived(record);
+    }
+  }
+
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    for (final QCRecorder recorder : recorders) {
+      recorder.recordsReceived(packedRecords, offset, count);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
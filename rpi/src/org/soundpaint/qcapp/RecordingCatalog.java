@@ -0,0 +1,370 @@
+/*
+ * @(#)RecordingCatalog.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Catalog of the segments of a recording written by
+ * SegmentedRecorder.  Opening the catalog reads only the segments'
+ * small index files, and selecting a time range opens only the
+ * segments that overlap it, such that any part of a recording that
+ * spans days is found without scanning the segments themselves.
+ *
+ * Time of arrival is noted in the index about once per second, hence
+ * a selected range may start up to a second early and end up to a
+ * second late.
+ */
+public class RecordingCatalog
+{
+  /**
+   * A single segment as described by its index.
+   */
+  public static class Segment
+  {
+    private final File recordFile;
+    private final SegmentIndex index;
+    private final long size;
+
+    private Segment(final File recordFile, final SegmentIndex index)
+    {
+      this.recordFile = recordFile;
+      this.index = index;
+      // unless closed, the index may lag behind the recorder file
+      size =
+        index.isClosed() ?
+        index.getRecordCount() :
+        recordFile.length() / QuadCop.DataRecord.getByteLength();
+    }
+
+    public long getSequence()
+    {
+      return index.getSequence();
+    }
+
+    public File getRecordFile()
+    {
+      return recordFile;
+    }
+
+    public SegmentIndex getIndex()
+    {
+      return index;
+    }
+
+    public long getFirstMillis()
+    {
+      return index.getFirstMillis();
+    }
+
+    public long getLastMillis()
+    {
+      return index.getLastMillis();
+    }
+
+    /**
+     * Returns the number of records of the segment.
+     */
+    public long size()
+    {
+      return size;
+    }
+  }
+
+  /**
+   * Records of a time range, possibly spanning several segments,
+   * read from the recorder files of the segments, which stay open
+   * until the range is closed.
+   */
+  public static class Range implements RecordSource, Closeable
+  {
+    private final RecordFile[] files;
+    private final int[] startIndices;
+    private final int[] offsets;
+    private final int size;
+
+    private Range(final List<RecordFile> files,
+                  final List<Integer> startIndices,
+                  final List<Integer> sizes)
+    {
+      this.files = files.toArray(new RecordFile[files.size()]);
+      this.startIndices = new int[files.size()];
+      offsets = new int[files.size() + 1];
+      long total = 0;
+      for (int i = 0; i < this.files.length; i++) {
+        this.startIndices[i] = startIndices.get(i);
+        offsets[i] = (int)total;
+        total += sizes.get(i);
+        if (total > Integer.MAX_VALUE) {
+          throw new IllegalArgumentException("range too large");
+        }
+      }
+      offsets[this.files.length] = (int)total;
+      size = (int)total;
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    /**
+     * Returns the number of the part of this range that holds the
+     * given record.
+     */
+    private int findPart(final int index)
+    {
+      int low = 0;
+      int high = files.length - 1;
+      while (low < high) {
+        final int middle = (low + high + 1) >>> 1;
+        if (offsets[middle] <= index) {
+          low = middle;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return low;
+    }
+
+    public QuadCop.DataRecord getRecord(final int index)
+    {
+      if ((index < 0) || (index >= size)) {
+        throw new IndexOutOfBoundsException("index: " + index);
+      }
+      final int part = findPart(index);
+      return files[part].getRecord(startIndices[part] + index - offsets[part]);
+    }
+
+    public void copyBytesTo(final byte[] buffer,
+                            final int startIndex, final int endIndex)
+    {
+      if ((startIndex < 0) || (startIndex > endIndex) || (endIndex > size)) {
+        throw new IndexOutOfBoundsException("bad range: " +
+                                            startIndex + ", " + endIndex);
+      }
+      final int byteLength = QuadCop.DataRecord.getByteLength();
+      int index = startIndex;
+      int bufferOffset = 0;
+      while (index < endIndex) {
+        final int part = findPart(index);
+        final int length = Math.min(endIndex, offsets[part + 1]) - index;
+        final int fileIndex = startIndices[part] + index - offsets[part];
+        if (bufferOffset == 0) {
+          files[part].copyBytesTo(buffer, fileIndex, fileIndex + length);
+        } else {
+          // RecordSource copies to the start of the buffer only
+          final byte[] partBuffer = new byte[length * byteLength];
+          files[part].copyBytesTo(partBuffer, fileIndex, fileIndex + length);
+          System.arraycopy(partBuffer, 0, buffer, bufferOffset,
+                           partBuffer.length);
+        }
+        index += length;
+        bufferOffset += length * byteLength;
+      }
+    }
+
+    /**
+     * Creates a document for playing or editing the records, without
+     * copying them until the document is modified.
+     */
+    public Document createDocument()
+    {
+      return Document.createShared(new AbstractList<QuadCop.DataRecord>() {
+          public int size()
+          {
+            return size;
+          }
+
+          public QuadCop.DataRecord get(final int index)
+          {
+            return getRecord(index);
+          }
+        });
+    }
+
+    public FlightStatistics computeStatistics()
+    {
+      return FlightStatistics.compute(this, true);
+    }
+
+    public void close() throws IOException
+    {
+      closeAll(Arrays.asList(files));
+    }
+  }
+
+  private final File directory;
+  private final String prefix;
+  private final List<Segment> segments;
+
+  private RecordingCatalog()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  private RecordingCatalog(final File directory, final String prefix,
+                           final List<Segment> segments)
+  {
+    this.directory = directory;
+    this.prefix = prefix;
+    this.segments = Collections.unmodifiableList(segments);
+  }
+
+  /**
+   * Reads the indices of all segments in the directory.  Segments
+   * without index or without any record are left out.
+   */
+  public static RecordingCatalog open(final File directory,
+                                      final String prefix)
+    throws IOException
+  {
+    if (!directory.isDirectory()) {
+      throw new IOException("no such directory: " + directory);
+    }
+    final List<Segment> segments = new ArrayList<Segment>();
+    for (final long sequence :
+           SegmentedRecorder.listSequences(directory, prefix)) {
+      final File indexFile =
+        SegmentedRecorder.getIndexFile(directory, prefix, sequence);
+      if (!indexFile.exists()) {
+        continue;
+      }
+      final SegmentIndex index = SegmentIndex.read(indexFile);
+      final Segment segment =
+        new Segment(SegmentedRecorder.getRecordFile(directory, prefix,
+                                                    sequence),
+                    index);
+      if ((segment.size() > 0) && (index.getEntryCount() > 0)) {
+        segments.add(segment);
+      }
+    }
+    return new RecordingCatalog(directory, prefix, segments);
+  }
+
+  public File getDirectory()
+  {
+    return directory;
+  }
+
+  public String getPrefix()
+  {
+    return prefix;
+  }
+
+  /**
+   * Returns the segments in order of recording.
+   */
+  public List<Segment> getSegments()
+  {
+    return segments;
+  }
+
+  public long getFirstMillis()
+  {
+    return segments.isEmpty() ? 0 : segments.get(0).getFirstMillis();
+  }
+
+  public long getLastMillis()
+  {
+    return
+      segments.isEmpty() ?
+      0 : segments.get(segments.size() - 1).getLastMillis();
+  }
+
+  /**
+   * Selects the records that arrived within the given time range in
+   * ms since the epoch, both ends inclusive.  Only the segments that
+   * overlap the range are opened.
+   */
+  public Range select(final long fromMillis, final long toMillis)
+    throws IOException
+  {
+    final List<RecordFile> files = new ArrayList<RecordFile>();
+    final List<Integer> startIndices = new ArrayList<Integer>();
+    final List<Integer> sizes = new ArrayList<Integer>();
+    boolean success = false;
+    try {
+      for (final Segment segment : segments) {
+        if ((segment.getLastMillis() < fromMillis) ||
+            (segment.getFirstMillis() > toMillis)) {
+          continue;
+        }
+        final RecordFile file = new RecordFile(segment.getRecordFile());
+        final long start =
+          Math.min(segment.getIndex().findFirstRecord(fromMillis),
+                   file.size());
+        final long end =
+          Math.min(segment.getIndex().findEndRecord(toMillis), file.size());
+        if (end > start) {
+          files.add(file);
+          startIndices.add((int)start);
+          sizes.add((int)(end - start));
+        } else {
+          file.close();
+        }
+      }
+      final Range range = new Range(files, startIndices, sizes);
+      success = true;
+      return range;
+    } finally {
+      if (!success) {
+        closeAll(files);
+      }
+    }
+  }
+
+  /**
+   * Closes all files, even if closing some of them fails, and
+   * rethrows the first failure.
+   */
+  private static void closeAll(final List<RecordFile> files)
+    throws IOException
+  {
+    IOException failure = null;
+    for (final RecordFile file : files) {
+      try {
+        file.close();
+      } catch (final IOException ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
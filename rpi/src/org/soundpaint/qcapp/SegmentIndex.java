@@ -0,0 +1,329 @@
+/*
+ * @(#)SegmentIndex.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Index of a single segment of a segmented recording, see
+ * SegmentedRecorder.  About once per second of recording, it notes
+ * the time of arrival of a record along with the record's index and
+ * byte offset in the segment's recorder file, such that a time range
+ * can be located without reading the segment itself.
+ *
+ * The index file starts with a 40 byte header: the magic "QCIX", the
+ * version number, a flags byte with bit 0 set for a closed segment,
+ * two reserved bytes, then as big-endian values the segment's 64 bit
+ * sequence number, its 64 bit number of records, the 64 bit time of
+ * its last record in ms since the epoch, the 32 bit number of
+ * entries, and four reserved bytes.  Each entry follows as three 64
+ * bit values: time in ms since the epoch, record index, and byte
+ * offset.
+ */
+public class SegmentIndex
+{
+  public static final int VERSION = 1;
+  public static final int HEADER_LENGTH = 40;
+  public static final int ENTRY_LENGTH = 24;
+  private static final byte[] MAGIC = { 'Q', 'C', 'I', 'X' };
+  private static final int FLAG_CLOSED = 0x01;
+
+  private final long sequence;
+  private long[] times;
+  private long[] recordIndices;
+  private long[] byteOffsets;
+  private int entries;
+  private long recordCount;
+  private long lastMillis;
+  private boolean closed;
+
+  private SegmentIndex()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public SegmentIndex(final long sequence)
+  {
+    this(sequence, 16);
+  }
+
+  private SegmentIndex(final long sequence, final int capacity)
+  {
+    this.sequence = sequence;
+    times = new long[capacity];
+    recordIndices = new long[capacity];
+    byteOffsets = new long[capacity];
+    entries = 0;
+    recordCount = 0;
+    lastMillis = 0;
+    closed = false;
+  }
+
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * Notes that the record with the given index in the segment's
+   * recorder file arrived at the given time.
+   */
+  public synchronized void add(final long timeMillis, final long recordIndex)
+  {
+    if (entries == times.length) {
+      final int capacity = entries + (entries >> 1) + 1;
+      final long[] grownTimes = new long[capacity];
+      final long[] grownRecordIndices = new long[capacity];
+      final long[] grownByteOffsets = new long[capacity];
+      System.arraycopy(times, 0, grownTimes, 0, entries);
+      System.arraycopy(recordIndices, 0, grownRecordIndices, 0, entries);
+      System.arraycopy(byteOffsets, 0, grownByteOffsets, 0, entries);
+      times = grownTimes;
+      recordIndices = grownRecordIndices;
+      byteOffsets = grownByteOffsets;
+    }
+    times[entries] = timeMillis;
+    recordIndices[entries] = recordIndex;
+    // segments are written in the headerless format
+    byteOffsets[entries] =
+      RecFormat.Version.V1.getHeaderLength() +
+      recordIndex * QuadCop.DataRecord.getByteLength();
+    entries++;
+  }
+
+  public synchronized void setEnd(final long recordCount,
+                                  final long lastMillis)
+  {
+    this.recordCount = recordCount;
+    this.lastMillis = lastMillis;
+  }
+
+  public synchronized void setClosed()
+  {
+    closed = true;
+  }
+
+  public synchronized boolean isClosed()
+  {
+    return closed;
+  }
+
+  /**
+   * Returns the number of records as of the last call of setEnd().
+   * The segment's recorder file may hold more records, if it was
+   * not closed.
+   */
+  public synchronized long getRecordCount()
+  {
+    return recordCount;
+  }
+
+  public synchronized long getFirstMillis()
+  {
+    return entries > 0 ? times[0] : lastMillis;
+  }
+
+  public synchronized long getLastMillis()
+  {
+    return lastMillis;
+  }
+
+  public synchronized int getEntryCount()
+  {
+    return entries;
+  }
+
+  public synchronized long getTimeMillis(final int entry)
+  {
+    checkEntry(entry);
+    return times[entry];
+  }
+
+  public synchronized long getRecordIndex(final int entry)
+  {
+    checkEntry(entry);
+    return recordIndices[entry];
+  }
+
+  public synchronized long getByteOffset(final int entry)
+  {
+    checkEntry(entry);
+    return byteOffsets[entry];
+  }
+
+  private void checkEntry(final int entry)
+  {
+    if ((entry < 0) || (entry >= entries)) {
+      throw new IndexOutOfBoundsException("entry: " + entry);
+    }
+  }
+
+  /**
+   * Returns the index of the last entry that arrived at or before
+   * the given time, or -1, if there is none.
+   */
+  private int findEntry(final long millis)
+  {
+    int low = 0;
+    int high = entries;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (times[middle] <= millis) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low - 1;
+  }
+
+  /**
+   * Returns the index of the record noted by the last entry at or
+   * before the given time, such that no record that arrived at or
+   * after that time precedes it.
+   */
+  public synchronized long findFirstRecord(final long millis)
+  {
+    final int entry = findEntry(millis);
+    return entry >= 0 ? recordIndices[entry] : 0;
+  }
+
+  /**
+   * Returns the index of the record noted by the first entry after
+   * the given time, such that no record that arrived at or before
+   * that time follows it, or Long.MAX_VALUE for the end of the
+   * segment, if there is no such entry.
+   */
+  public synchronized long findEndRecord(final long millis)
+  {
+    final int entry = findEntry(millis) + 1;
+    return entry < entries ? recordIndices[entry] : Long.MAX_VALUE;
+  }
+
+  private synchronized byte[] toBytes() throws IOException
+  {
+    final ByteArrayOutputStream bytes =
+      new ByteArrayOutputStream(HEADER_LENGTH + entries * ENTRY_LENGTH);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.writeByte(closed ? FLAG_CLOSED : 0);
+    out.writeShort(0);
+    out.writeLong(sequence);
+    out.writeLong(recordCount);
+    out.writeLong(lastMillis);
+    out.writeInt(entries);
+    out.writeInt(0);
+    for (int i = 0; i < entries; i++) {
+      out.writeLong(times[i]);
+      out.writeLong(recordIndices[i]);
+      out.writeLong(byteOffsets[i]);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes into a temporary file next to the target, forces it to
+   * the storage device, and replaces the target only then, such that
+   * the target always holds a complete index.
+   */
+  public void write(final File file) throws IOException
+  {
+    final byte[] bytes = toBytes();
+    final File temporary = new File(file.getPath() + ".tmp");
+    final FileOutputStream out = new FileOutputStream(temporary);
+    boolean success = false;
+    try {
+      out.write(bytes);
+      out.getFD().sync();
+      out.close();
+      Files.move(temporary.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      success = true;
+    } finally {
+      if (!success) {
+        out.close();
+        temporary.delete();
+      }
+    }
+  }
+
+  public static SegmentIndex read(final File file) throws IOException
+  {
+    final DataInputStream in =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      final byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (magic[i] != MAGIC[i]) {
+          throw new IOException("not a segment index: " + file);
+        }
+      }
+      final int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("unsupported segment index version: " +
+                              version);
+      }
+      final int flags = in.readUnsignedByte();
+      in.readShort();
+      final long sequence = in.readLong();
+      final long recordCount = in.readLong();
+      final long lastMillis = in.readLong();
+      final int entries = in.readInt();
+      in.readInt();
+      if (entries < 0) {
+        throw new IOException("bad number of index entries: " + entries);
+      }
+      final SegmentIndex index = new SegmentIndex(sequence, entries);
+      for (int i = 0; i < entries; i++) {
+        index.times[i] = in.readLong();
+        index.recordIndices[i] = in.readLong();
+        index.byteOffsets[i] = in.readLong();
+      }
+      index.entries = entries;
+      index.recordCount = recordCount;
+      index.lastMillis = lastMillis;
+      index.closed = (flags & FLAG_CLOSED) != 0;
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
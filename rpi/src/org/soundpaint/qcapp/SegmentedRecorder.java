@@ -0,0 +1,488 @@
+/*
+ * @(#)SegmentedRecorder.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records into a sequence of segment files for capture sessions that
+ * run all day.  A new segment is started when the current one
+ * exceeds a size or a duration, and the oldest segments are deleted
+ * when all of them exceed a total size or an age.  Each segment
+ * "PREFIX-NNNNNN.rec" is a headerless recorder file written via
+ * QCFileRecorder, accompanied by a small SegmentIndex
+ * "PREFIX-NNNNNN.idx" that maps time of arrival to position.  Use
+ * RecordingCatalog for reading a time range back.
+ *
+ * The thread that delivers records never touches the file system:
+ * the next segment is opened ahead of time, and finished segments
+ * are closed, indexed and deleted by a housekeeping thread.  If the
+ * next segment is not yet open when due, the current one simply
+ * grows a little longer.
+ */
+public class SegmentedRecorder implements QCRecorder, Closeable
+{
+  public static final String DEFAULT_PREFIX = "quadcop";
+  public static final String RECORD_SUFFIX = ".rec";
+  public static final String INDEX_SUFFIX = ".idx";
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L << 20;
+  public static final long DEFAULT_MAX_SEGMENT_MILLIS = 3600000;
+
+  private static final long INDEX_INTERVAL_MS = 1000;
+  private static final long INDEX_SAVE_INTERVAL_MS = 10000;
+  private static final long SPARE_RETRY_MS = 1000;
+
+  private static class Segment
+  {
+    private final long sequence;
+    private final QCFileRecorder recorder;
+    private final SegmentIndex index;
+
+    private Segment(final long sequence, final QCFileRecorder recorder)
+    {
+      this.sequence = sequence;
+      this.recorder = recorder;
+      index = new SegmentIndex(sequence);
+    }
+  }
+
+  private final File directory;
+  private final String prefix;
+  private final long flushIntervalMillis;
+  private final long syncIntervalMillis;
+  private final QCFileRecorder.Overflow overflow;
+  private final ExecutorService housekeeper;
+  private volatile long maxSegmentBytes;
+  private volatile long maxSegmentMillis;
+  private volatile long maxTotalBytes;
+  private volatile long maxAgeMillis;
+  private volatile IOException failure;
+
+  // delivering side, guarded by this
+  private Segment current;
+  private Segment spare;
+  private boolean sparePending;
+  private long lastSpareFailure;
+  private long segmentStartMillis;
+  private long lastIndexMillis;
+  private long lastSaveMillis;
+  private long rotations;
+  private boolean closed;
+
+  // housekeeping side
+  private final ArrayDeque<Long> retired;
+  private long nextSequence;
+  private volatile long deleted;
+
+  private SegmentedRecorder()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * Continues the numbering of segments already present in the
+   * directory; these are subject to retention, too.
+   */
+  public SegmentedRecorder(final File directory, final String prefix,
+                           final long flushIntervalMillis,
+                           final long syncIntervalMillis,
+                           final QCFileRecorder.Overflow overflow)
+    throws IOException
+  {
+    if (directory == null) {
+      throw new NullPointerException("directory");
+    }
+    if (prefix == null) {
+      throw new NullPointerException("prefix");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("failed creating directory " + directory);
+    }
+    this.directory = directory;
+    this.prefix = prefix;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.overflow = overflow;
+    maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    maxSegmentMillis = DEFAULT_MAX_SEGMENT_MILLIS;
+    maxTotalBytes = 0;
+    maxAgeMillis = 0;
+    failure = null;
+    retired = new ArrayDeque<Long>(listSequences(directory, prefix));
+    nextSequence = retired.isEmpty() ? 1 : retired.peekLast() + 1;
+    deleted = 0;
+    current = openSegment();
+    spare = null;
+    sparePending = false;
+    lastSpareFailure = 0;
+    segmentStartMillis = System.currentTimeMillis();
+    lastIndexMillis = 0;
+    lastSaveMillis = 0;
+    rotations = 0;
+    closed = false;
+    housekeeper = Executors.newSingleThreadExecutor((final Runnable r) -> {
+        return new Thread(r, "QuadCop segment housekeeper");
+      });
+    requestSpare();
+  }
+
+  public static String getSegmentName(final String prefix,
+                                      final long sequence)
+  {
+    return String.format("%s-%06d", prefix, sequence);
+  }
+
+  public static File getRecordFile(final File directory, final String prefix,
+                                   final long sequence)
+  {
+    return new File(directory, getSegmentName(prefix, sequence) +
+                    RECORD_SUFFIX);
+  }
+
+  public static File getIndexFile(final File directory, final String prefix,
+                                  final long sequence)
+  {
+    return new File(directory, getSegmentName(prefix, sequence) +
+                    INDEX_SUFFIX);
+  }
+
+  /**
+   * Returns the sequence numbers of the segments' recorder files
+   * found in the directory, in ascending order.
+   */
+  public static List<Long> listSequences(final File directory,
+                                         final String prefix)
+  {
+    final List<Long> sequences = new ArrayList<Long>();
+    final String[] names = directory.list();
+    if (names == null) {
+      return sequences;
+    }
+    final String head = prefix + "-";
+    for (final String name : names) {
+      if (name.startsWith(head) && name.endsWith(RECORD_SUFFIX)) {
+        final String number =
+          name.substring(head.length(),
+                         name.length() - RECORD_SUFFIX.length());
+        try {
+          sequences.add(Long.parseLong(number));
+        } catch (final NumberFormatException ex) {
+          // not a segment
+        }
+      }
+    }
+    Collections.sort(sequences);
+    return sequences;
+  }
+
+  /**
+   * Sets when to start a new segment.  Zero or negative values
+   * disable the respective limit.
+   */
+  public void setRotation(final long maxSegmentBytes,
+                          final long maxSegmentMillis)
+  {
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMillis = maxSegmentMillis;
+  }
+
+  /**
+   * Sets when to delete the oldest segments, i.e. when the finished
+   * segments together exceed maxTotalBytes, or when a finished
+   * segment was last written more than maxAgeMillis ago.  Zero or
+   * negative values disable the respective limit.
+   */
+  public void setRetention(final long maxTotalBytes, final long maxAgeMillis)
+  {
+    this.maxTotalBytes = maxTotalBytes;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  public File getDirectory()
+  {
+    return directory;
+  }
+
+  public String getPrefix()
+  {
+    return prefix;
+  }
+
+  public IOException getFailure()
+  {
+    return failure;
+  }
+
+  private Segment openSegment() throws IOException
+  {
+    final long sequence = nextSequence++;
+    final File file = getRecordFile(directory, prefix, sequence);
+    return new Segment(sequence,
+                       new QCFileRecorder(file.getPath(),
+                                          flushIntervalMillis,
+                                          syncIntervalMillis, overflow));
+  }
+
+  public synchronized void recordReceived(final QuadCop.DataRecord record)
+  {
+    if (closed) {
+      return;
+    }
+    final long now = begin();
+    current.recorder.recordReceived(record);
+    end(now);
+  }
+
+  public synchronized void recordsReceived(final long[] packedRecords,
+                                           final int offset,
+                                           final int count)
+  {
+    if (closed) {
+      return;
+    }
+    final long now = begin();
+    current.recorder.recordsReceived(packedRecords, offset, count);
+    end(now);
+  }
+
+  private long begin()
+  {
+    final long now = System.currentTimeMillis();
+    final long bytes =
+      current.recorder.getRecordsEnqueued() *
+      QuadCop.DataRecord.getByteLength();
+    if (((maxSegmentBytes > 0) && (bytes >= maxSegmentBytes)) ||
+        ((maxSegmentMillis > 0) &&
+         (now - segmentStartMillis >= maxSegmentMillis))) {
+      rotate(now);
+    }
+    if (now - lastIndexMillis >= INDEX_INTERVAL_MS) {
+      current.index.add(now, current.recorder.getRecordsEnqueued());
+      lastIndexMillis = now;
+    }
+    return now;
+  }
+
+  private void end(final long now)
+  {
+    final Segment segment = current;
+    segment.index.setEnd(segment.recorder.getRecordsEnqueued(), now);
+    if (now - lastSaveMillis >= INDEX_SAVE_INTERVAL_MS) {
+      lastSaveMillis = now;
+      housekeeper.execute(() -> {
+          saveIndex(segment);
+        });
+    }
+  }
+
+  private void rotate(final long now)
+  {
+    if (spare == null) {
+      // keep on writing into the current segment until the next one
+      // is open
+      requestSpare();
+      return;
+    }
+    final Segment previous = current;
+    current = spare;
+    spare = null;
+    segmentStartMillis = now;
+    lastIndexMillis = 0;
+    lastSaveMillis = 0;
+    rotations++;
+    housekeeper.execute(() -> {
+        retire(previous);
+      });
+    requestSpare();
+  }
+
+  private void requestSpare()
+  {
+    if (sparePending ||
+        (System.currentTimeMillis() - lastSpareFailure < SPARE_RETRY_MS)) {
+      return;
+    }
+    sparePending = true;
+    housekeeper.execute(() -> {
+        prepareSpare();
+      });
+  }
+
+  private void prepareSpare()
+  {
+    Segment segment = null;
+    try {
+      segment = openSegment();
+    } catch (final IOException ex) {
+      reportFailure(ex);
+    }
+    synchronized(this) {
+      sparePending = false;
+      if (segment == null) {
+        lastSpareFailure = System.currentTimeMillis();
+      } else if (closed) {
+        discard(segment);
+      } else {
+        spare = segment;
+      }
+    }
+  }
+
+  private void saveIndex(final Segment segment)
+  {
+    try {
+      segment.index.write(getIndexFile(directory, prefix, segment.sequence));
+    } catch (final IOException ex) {
+      reportFailure(ex);
+    }
+  }
+
+  /**
+   * Closes the segment, writes its final index, and deletes the
+   * oldest segments as far as retention demands.
+   */
+  private void retire(final Segment segment)
+  {
+    try {
+      segment.recorder.close();
+    } catch (final IOException ex) {
+      reportFailure(ex);
+    }
+    segment.index.setEnd(segment.recorder.getRecordsEnqueued(),
+                         segment.index.getLastMillis());
+    segment.index.setClosed();
+    saveIndex(segment);
+    retired.add(segment.sequence);
+    enforceRetention();
+  }
+
+  private void discard(final Segment segment)
+  {
+    try {
+      segment.recorder.close();
+    } catch (final IOException ex) {
+      reportFailure(ex);
+    }
+    getRecordFile(directory, prefix, segment.sequence).delete();
+    getIndexFile(directory, prefix, segment.sequence).delete();
+  }
+
+  private void enforceRetention()
+  {
+    final long maxTotalBytes = this.maxTotalBytes;
+    final long maxAgeMillis = this.maxAgeMillis;
+    long totalBytes = 0;
+    for (final Long sequence : retired) {
+      totalBytes += getRecordFile(directory, prefix, sequence).length();
+      totalBytes += getIndexFile(directory, prefix, sequence).length();
+    }
+    final long now = System.currentTimeMillis();
+    while (!retired.isEmpty()) {
+      final long sequence = retired.peekFirst();
+      final File recordFile = getRecordFile(directory, prefix, sequence);
+      final File indexFile = getIndexFile(directory, prefix, sequence);
+      final boolean tooLarge =
+        (maxTotalBytes > 0) && (totalBytes > maxTotalBytes);
+      final boolean tooOld =
+        (maxAgeMillis > 0) &&
+        (now - recordFile.lastModified() > maxAgeMillis);
+      if (!tooLarge && !tooOld) {
+        break;
+      }
+      totalBytes -= recordFile.length() + indexFile.length();
+      // index first, such that a catalog never sees an index without
+      // its recorder file
+      indexFile.delete();
+      recordFile.delete();
+      retired.removeFirst();
+      deleted++;
+    }
+  }
+
+  private void reportFailure(final IOException ex)
+  {
+    System.err.println("*** segmented recorder: " + ex.getMessage() + " ***");
+    failure = ex;
+  }
+
+  public synchronized String getReport()
+  {
+    final StringBuffer s = new StringBuffer();
+    s.append("segment ").append(current.sequence);
+    s.append(", ").append(rotations).append(" rotations");
+    s.append(", ").append(deleted).append(" deleted");
+    if (failure != null) {
+      s.append(", failed: ").append(failure.getMessage());
+    }
+    s.append("; ").append(current.recorder.getReport());
+    return s.toString();
+  }
+
+  /**
+   * Closes and indexes the current segment, and waits for all
+   * housekeeping to finish.
+   */
+  public void close() throws IOException
+  {
+    final Segment last;
+    synchronized(this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      last = current;
+      if (spare != null) {
+        final Segment unused = spare;
+        spare = null;
+        housekeeper.execute(() -> {
+            discard(unused);
+          });
+      }
+    }
+    housekeeper.execute(() -> {
+        retire(last);
+      });
+    housekeeper.shutdown();
+    try {
+      while (!housekeeper.awaitTermination(1, TimeUnit.SECONDS)) {
+        // still closing segments
+      }
+    } catch (final InterruptedException ex) {
+      throw new IOException("interrupted while closing", ex);
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
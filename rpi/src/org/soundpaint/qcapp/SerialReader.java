@@ -20,30 +20,82 @@
 
 package org.soundpaint.qcapp;
 
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 
-public class SerialReader extends Thread
+public class SerialReader implements Runnable
 {
   private final InputStream in;
-  private final List<QCRecorder> recorders;
+  private final RecorderGroup recorders;
+  private final Consumer<IOException> failureHandler;
   private boolean running;
+  private volatile boolean stopRequested;
+  private final CountDownLatch started;
+  private final FrameDecoder decoder;
+  private QuadCop.DataRecord leadingRecord;
+  private Thread thread;
 
   private SerialReader()
   {
     throw new RuntimeException("unsupported constructor");
   }
 
-  public SerialReader(final InputStream in)
+  /**
+   * @param failureHandler Called on this thread when reading fails or
+   * the stream ends, or null.
+   */
+  public SerialReader(final InputStream in,
+                      final Consumer<IOException> failureHandler)
   {
     if (in == null) {
       throw new NullPointerException("in");
     }
     this.in = in;
-    recorders = new ArrayList<QCRecorder>();
+    this.failureHandler = failureHandler;
+    // recorders come and go from other threads while reading
+    recorders = new RecorderGroup();
     running = false;
+    stopRequested = false;
+    started = new CountDownLatch(1);
+    decoder = new FrameDecoder(recorders);
+    leadingRecord = null;
+    thread = null;
+  }
+
+  /**
+   * Runs this reader on a new platform thread.
+   */
+  public void start()
+  {
+    start(ThreadMode.PLATFORM);
+  }
+
+  public synchronized void start(final ThreadMode threadMode)
+  {
+    if (thread != null) {
+      throw new IllegalStateException("already started");
+    }
+    thread = threadMode.newThread(this, "QuadCop serial reader");
+    thread.start();
+  }
+
+  public synchronized boolean isAlive()
+  {
+    return (thread != null) && thread.isAlive();
+  }
+
+  public void join(final long millis) throws InterruptedException
+  {
+    final Thread joining;
+    synchronized(this) {
+      joining = thread;
+    }
+    if (joining != null) {
+      joining.join(millis);
+    }
   }
 
   public boolean addRecorder(final QCRecorder recorder)
@@ -56,130 +108,60 @@ public class SerialReader extends Thread
     return recorders.remove(recorder);
   }
 
-  public boolean isRunning()
+  /**
+   * Lets this reader pass the record to its recorders on its own
+   * thread before reading anything, e.g. a gap marker for the loss
+   * of a previous connection.  Must be called before starting.
+   */
+  public synchronized void setLeadingRecord(final QuadCop.DataRecord record)
   {
-    return running;
+    if (thread != null) {
+      throw new IllegalStateException("already started");
+    }
+    leadingRecord = record;
   }
 
-  private enum ScanStatus {
-    UNSYNCHRONIZED,
-    QC_STATUS_READ,
-    QC_CTRL_LEVER_BYTE0_READ,
-    QC_CTRL_LEVER_BYTE1_READ,
-    QC_CTRL_LEVER_BYTE2_READ,
-    QC_CTRL_LEVER_BYTE3_READ,
-    QC_CTRL_LEVER_BYTE4_READ,
-    QC_BUTTONS_READ
+  public boolean isRunning()
+  {
+    return running;
   }
 
-  private ScanStatus scanStatus;
-  private byte status;
-  private byte ctrlLever0;
-  private byte ctrlLever1;
-  private byte ctrlLever2;
-  private byte ctrlLever3;
-  private byte buttons;
-
-  private void handleByte(byte b) {
-    switch (scanStatus) {
-    case UNSYNCHRONIZED:
-    case QC_BUTTONS_READ:
-      if (b < 0) {
-        status = b;
-        scanStatus = ScanStatus.QC_STATUS_READ;
-      } else {
-        // still or newly lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_STATUS_READ:
-      if (b >= 0) {
-        ctrlLever0 = (byte)(b << 1);
-        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE0_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_CTRL_LEVER_BYTE0_READ:
-      if (b >= 0) {
-        ctrlLever0 |= b >> 6;
-        ctrlLever1 = (byte)(b << 2);
-        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE1_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_CTRL_LEVER_BYTE1_READ:
-      if (b >= 0) {
-        ctrlLever1 |= b >> 5;
-        ctrlLever2 = (byte)(b << 3);
-        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE2_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_CTRL_LEVER_BYTE2_READ:
-      if (b >= 0) {
-        ctrlLever2 |= b >> 4;
-        ctrlLever3 = (byte)(b << 4);
-        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE3_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_CTRL_LEVER_BYTE3_READ:
-      if (b >= 0) {
-        ctrlLever3 |= b >> 3;
-        scanStatus = ScanStatus.QC_CTRL_LEVER_BYTE4_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      break;
-    case QC_CTRL_LEVER_BYTE4_READ:
-      if (b >= 0) {
-        buttons = b;
-        scanStatus = ScanStatus.QC_BUTTONS_READ;
-      } else {
-        // lost synchronisation
-        scanStatus = ScanStatus.UNSYNCHRONIZED;
-      }
-      recordReceived();
-      break;
-    default:
-      scanStatus = ScanStatus.UNSYNCHRONIZED;
-      break;
-    }
+  /**
+   * Blocks until this thread has entered its main loop.
+   */
+  public void awaitRunning() throws InterruptedException
+  {
+    started.await();
   }
 
-  private byte count = 0;
-
-  private void recordReceived()
+  /**
+   * Lets this thread exit at the next read without reporting a
+   * failure.
+   */
+  public void requestStop()
   {
-    final QuadCop.DataRecord record =
-      new QuadCop.DataRecord(status, ctrlLever0, ctrlLever1,
-                             ctrlLever2, ctrlLever3, buttons);
-    for (final QCRecorder recorder : recorders) {
-      recorder.recordReceived(record);
-    }
+    stopRequested = true;
   }
 
   public void run()
   {
     running = true;
     System.out.println("enter read loop");
-    scanStatus = ScanStatus.UNSYNCHRONIZED;
+    started.countDown();
+    decoder.reset();
+    final QuadCop.DataRecord leading;
+    synchronized(this) {
+      leading = leadingRecord;
+    }
+    if (leading != null) {
+      recorders.recordReceived(leading);
+    }
     final byte[] buffer = new byte[1024];
+    IOException failure;
     int len;
     try {
-      while ((len = in.read(buffer)) > -1) {
-        for (int i = 0; i < len; i++) {
-          handleByte(buffer[i]);
-        }
+      while (!stopRequested && ((len = in.read(buffer)) > -1)) {
+        decoder.decode(buffer, 0, len);
         if (len == 0) {
           // reduce cpu load for active polling
           try {
@@ -189,12 +171,16 @@ public class SerialReader extends Thread
           }
         }
       }
+      failure = stopRequested ? null : new EOFException("serial port closed");
     } catch (final IOException ex) {
-      // TODO: Maybe try recovering from error.
-      ex.printStackTrace();
+      failure = stopRequested ? null : ex;
     }
-    System.out.println("exit read loop");
+    System.out.println("exit read loop" +
+                       (failure != null ? ": " + failure.getMessage() : ""));
     running = false;
+    if ((failure != null) && (failureHandler != null)) {
+      failureHandler.accept(failure);
+    }
   }
 
   public void close() throws IOException
@@ -24,21 +24,45 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
-public class SerialWriter extends Thread implements QCRecorder
+/**
+ * Writes the records of a player to the QuadCop.  A producer thread
+ * fetches the next chunk from the player while the current one is
+ * written.  The threads synchronize via java.util.concurrent locks
+ * rather than monitors, such that they may run as virtual threads
+ * without pinning their carrier threads while waiting.
+ */
+public class SerialWriter implements Runnable, QCRecorder
 {
   private final static int BUFFER_SIZE = 64;
+  private final static long PRODUCER_JOIN_TIMEOUT_MS = 250;
+  private final static QuadCop.DataRecord[] NO_RECORDS =
+    new QuadCop.DataRecord[0];
   private final SerialReader reader;
   private final OutputStream out;
+  private final Consumer<IOException> failureHandler;
+  private final ReentrantLock bufferLock;
   private final List<QCPlayer> players;
   private int txWriteBufferLevel;
-  private QuadCop.DataRecord[] clientBuffer;
+  private long[] clientBuffer;
+  private byte[] clientWireBuffer;
   private int clientBufferSize;
-  private QuadCop.DataRecord[] writeBuffer;
+  private long[] writeBuffer;
+  private byte[] writeWireBuffer;
+  private final byte[] transformedWire;
+  private volatile OutputTransform transform;
   private int writeBufferSize;
   private int writeBufferWriteIndex;
   private boolean running;
+  private volatile boolean stopRequested;
+  private final CountDownLatch started;
   private IOException starvationException;
+  private ThreadMode threadMode;
+  private Thread thread;
 
   private SerialWriter()
   {
@@ -46,6 +70,20 @@ public class SerialWriter extends Thread implements QCRecorder
   }
 
   public SerialWriter(final SerialReader reader, final OutputStream out)
+  {
+    this(reader, out, null, NO_RECORDS);
+  }
+
+  /**
+   * @param failureHandler Called on this thread when writing fails,
+   * or null.
+   * @param pending Records to write before any records of the
+   * players, e.g. records left unwritten by the writer of a
+   * previous, failed connection.
+   */
+  public SerialWriter(final SerialReader reader, final OutputStream out,
+                      final Consumer<IOException> failureHandler,
+                      final QuadCop.DataRecord[] pending)
   {
     if (reader == null) {
       throw new NullPointerException("reader");
@@ -55,15 +93,66 @@ public class SerialWriter extends Thread implements QCRecorder
       throw new NullPointerException("out");
     }
     this.out = out;
+    if (pending == null) {
+      throw new NullPointerException("pending");
+    }
+    this.failureHandler = failureHandler;
+    bufferLock = new ReentrantLock();
     players = new ArrayList<QCPlayer>();
     txWriteBufferLevel = 0;
-    clientBuffer = new QuadCop.DataRecord[BUFFER_SIZE];
+    clientBuffer = new long[BUFFER_SIZE];
+    clientWireBuffer = new byte[BUFFER_SIZE * WIRE_LENGTH];
     clientBufferSize = 0;
-    writeBuffer = new QuadCop.DataRecord[BUFFER_SIZE];
-    writeBufferSize = 0;
+    writeBuffer = new long[Math.max(BUFFER_SIZE, pending.length)];
+    writeWireBuffer = new byte[writeBuffer.length * WIRE_LENGTH];
+    for (int i = 0; i < pending.length; i++) {
+      writeBuffer[i] = RecordRing.pack(pending[i]);
+      encode(writeBuffer[i], writeWireBuffer, i * WIRE_LENGTH);
+    }
+    writeBufferSize = pending.length;
     writeBufferWriteIndex = 0;
+    transformedWire = new byte[WIRE_LENGTH];
+    transform = null;
     running = false;
+    stopRequested = false;
+    started = new CountDownLatch(1);
     starvationException = null;
+    threadMode = ThreadMode.PLATFORM;
+    thread = null;
+  }
+
+  /**
+   * Runs this writer and its producer on new platform threads.
+   */
+  public void start()
+  {
+    start(ThreadMode.PLATFORM);
+  }
+
+  public synchronized void start(final ThreadMode threadMode)
+  {
+    if (thread != null) {
+      throw new IllegalStateException("already started");
+    }
+    this.threadMode = threadMode;
+    thread = threadMode.newThread(this, "QuadCop serial writer");
+    thread.start();
+  }
+
+  public synchronized boolean isAlive()
+  {
+    return (thread != null) && thread.isAlive();
+  }
+
+  public void join(final long millis) throws InterruptedException
+  {
+    final Thread joining;
+    synchronized(this) {
+      joining = thread;
+    }
+    if (joining != null) {
+      joining.join(millis);
+    }
   }
 
   public IOException getStarvationException()
@@ -77,6 +166,15 @@ public class SerialWriter extends Thread implements QCRecorder
     txWriteBufferLevel = record.getStatus() & 0x3f;
   }
 
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    if (count > 0) {
+      txWriteBufferLevel =
+        RecordRing.getStatus(packedRecords[offset + count - 1]) & 0x3f;
+    }
+  }
+
   private boolean txWriteBufferIsReady()
   {
     // do write only if serial write buffer is at most 50% (=32 bytes)
@@ -104,6 +202,49 @@ public class SerialWriter extends Thread implements QCRecorder
     return running;
   }
 
+  /**
+   * Blocks until this thread has entered its main loop.
+   */
+  public void awaitRunning() throws InterruptedException
+  {
+    started.await();
+  }
+
+  /**
+   * Lets this thread exit as soon as possible without reporting a
+   * failure.  Records not yet written are kept and can be retrieved
+   * via getUnwrittenRecords() once this thread has terminated.
+   */
+  public void requestStop()
+  {
+    stopRequested = true;
+  }
+
+  /**
+   * Returns the records that have been provided by the players, but
+   * not yet completely written, in order.  Only meaningful after this
+   * thread has terminated.
+   */
+  public QuadCop.DataRecord[] getUnwrittenRecords()
+  {
+    bufferLock.lock();
+    try {
+      final int writeCount =
+        Math.max(0, writeBufferSize - writeBufferWriteIndex);
+      final QuadCop.DataRecord[] records =
+        new QuadCop.DataRecord[writeCount + clientBufferSize];
+      for (int i = 0; i < writeCount; i++) {
+        records[i] = RecordRing.unpack(writeBuffer[writeBufferWriteIndex + i]);
+      }
+      for (int i = 0; i < clientBufferSize; i++) {
+        records[writeCount + i] = RecordRing.unpack(clientBuffer[i]);
+      }
+      return records;
+    } finally {
+      bufferLock.unlock();
+    }
+  }
+
   private void bufferUnderrunDetected()
   {
     for (final QCPlayer player : players) {
@@ -113,43 +254,90 @@ public class SerialWriter extends Thread implements QCRecorder
 
   public void provideNextChunk()
   {
-    synchronized(writeBuffer) {
+    bufferLock.lock();
+    try {
       // support for multiple players (via signal mixer) not yet
       // implemented => just take the first one from the list
       if (!players.isEmpty()) {
         final QCPlayer player = players.get(0);
-        clientBufferSize = player.provideNextChunk(clientBuffer);
+        clientBufferSize =
+          player.provideNextWireChunk(clientBuffer, clientWireBuffer,
+                                      0, clientBuffer.length);
       }
+    } finally {
+      bufferLock.unlock();
     }
   }
 
   private static final long RE_REPORT_WRITE_ONLY_AFTER_MS = 1000;
   private long lastWriteReported = 0;
 
-  private void writeDataRecord(final QuadCop.DataRecord record)
-    throws IOException
+  /**
+   * Number of bytes of an encoded record on the wire.
+   */
+  public static final int WIRE_LENGTH = 7;
+
+  /**
+   * Encodes the record into WIRE_LENGTH bytes as sent to the QuadCop
+   * and returns the number of bytes stored.
+   */
+  public static int encode(final QuadCop.DataRecord record,
+                           final byte[] buffer, final int offset)
+  {
+    return encode(RecordRing.pack(record), buffer, offset);
+  }
+
+  /**
+   * Encodes the record packed as by RecordRing.pack() into
+   * WIRE_LENGTH bytes as sent to the QuadCop and returns the number
+   * of bytes stored.
+   */
+  public static int encode(final long packedRecord,
+                           final byte[] buffer, final int offset)
+  {
+    final int status = RecordRing.getStatus(packedRecord);
+    final int ctrlLever0 = RecordRing.getLever(packedRecord, 0);
+    final int ctrlLever1 = RecordRing.getLever(packedRecord, 1);
+    final int ctrlLever2 = RecordRing.getLever(packedRecord, 2);
+    final int ctrlLever3 = RecordRing.getLever(packedRecord, 3);
+    buffer[offset] = (byte)(status | 0x80);
+    buffer[offset + 1] = (byte)(ctrlLever0 >> 1);
+    buffer[offset + 2] = (byte)(((ctrlLever0 << 6) | (ctrlLever1 >> 2)) & 0x7f);
+    buffer[offset + 3] = (byte)(((ctrlLever1 << 5) | (ctrlLever2 >> 3)) & 0x7f);
+    buffer[offset + 4] = (byte)(((ctrlLever2 << 4) | (ctrlLever3 >> 4)) & 0x7f);
+    buffer[offset + 5] = (byte)((ctrlLever3 << 3) & 0x7f);
+    buffer[offset + 6] = (byte)(RecordRing.getButtons(packedRecord) & 0x7f);
+    return WIRE_LENGTH;
+  }
+
+  /**
+   * Sets the transform to apply to each record right before writing
+   * it, or null for writing records unchanged.  Takes effect with the
+   * next record written, also while playing.
+   */
+  public void setTransform(final OutputTransform transform)
+  {
+    this.transform = transform;
+  }
+
+  public OutputTransform getTransform()
+  {
+    return transform;
+  }
+
+  /**
+   * Writes the record at the given index of the write buffer, as
+   * already encoded by its player, unless a transform is set.
+   */
+  private void writeDataRecord(final int index) throws IOException
   {
-    byte txByte;
-    txByte = (byte)(record.getStatus() | 0x80);
-    out.write(txByte);
-    txByte = (byte)((record.getCtrlLever0() & 0xff) >> 1);
-    out.write(txByte);
-    txByte =
-      (byte)(((record.getCtrlLever0() << 6) |
-              ((record.getCtrlLever1() & 0xff) >> 2)) & 0x7f);
-    out.write(txByte);
-    txByte =
-      (byte)(((record.getCtrlLever1() << 5) |
-              ((record.getCtrlLever2() & 0xff) >> 3)) & 0x7f);
-    out.write(txByte);
-    txByte =
-      (byte)(((record.getCtrlLever2() << 4) |
-              ((record.getCtrlLever3() & 0xff) >> 4)) & 0x7f);
-    out.write(txByte);
-    txByte = (byte)((record.getCtrlLever3() << 3) & 0x7f);
-    out.write(txByte);
-    txByte = (byte)(record.getButtons() & 0x7f);
-    out.write(txByte);
+    final OutputTransform transform = this.transform;
+    if (transform != null) {
+      encode(transform.apply(writeBuffer[index]), transformedWire, 0);
+      out.write(transformedWire, 0, WIRE_LENGTH);
+    } else {
+      out.write(writeWireBuffer, index * WIRE_LENGTH, WIRE_LENGTH);
+    }
     out.flush();
     final long writeReported = System.currentTimeMillis();
     if (writeReported - lastWriteReported > RE_REPORT_WRITE_ONLY_AFTER_MS) {
@@ -163,12 +351,17 @@ public class SerialWriter extends Thread implements QCRecorder
 
   private void swapBuffers()
   {
-    synchronized(writeBuffer) {
+    bufferLock.lock();
+    try {
       if (clientBufferSize > 0) {
-        final QuadCop.DataRecord[] swapBuffer = writeBuffer;
+        final long[] swapBuffer = writeBuffer;
+        final byte[] swapWireBuffer = writeWireBuffer;
         writeBuffer = clientBuffer;
+        writeWireBuffer = clientWireBuffer;
         writeBufferSize = clientBufferSize;
+        writeBufferWriteIndex = 0;
         clientBuffer = swapBuffer;
+        clientWireBuffer = swapWireBuffer;
         clientBufferSize = 0;
       } else {
         bufferUnderrunDetected();
@@ -179,13 +372,17 @@ public class SerialWriter extends Thread implements QCRecorder
           lastBufferUnderrunReported = bufferUnderrunReported;
         }
       }
+    } finally {
+      bufferLock.unlock();
     }
   }
 
-  private static class Producer extends Thread
+  private static class Producer implements Runnable
   {
     private final SerialWriter serialWriter;
-    private boolean stopRequested = false;
+    private final ReentrantLock lock;
+    private final Condition needChanged;
+    private volatile boolean stopRequested = false;
     private boolean haveNeed = false;
 
     private Producer()
@@ -196,36 +393,43 @@ public class SerialWriter extends Thread implements QCRecorder
     public Producer(final SerialWriter serialWriter)
     {
       this.serialWriter = serialWriter;
+      lock = new ReentrantLock();
+      needChanged = lock.newCondition();
       stopRequested = false;
     }
 
-    private synchronized void requireNextChunk()
+    private void requireNextChunk()
     {
       //System.err.println("req. next chunk");
-      while (haveNeed) {
-        try {
-          wait();
-        } catch (final InterruptedException ex) {
-          // ignore
+      lock.lock();
+      try {
+        while (haveNeed && !stopRequested) {
+          needChanged.awaitUninterruptibly();
         }
+        haveNeed = true;
+        needChanged.signalAll();
+      } finally {
+        lock.unlock();
       }
-      haveNeed = true;
-      notifyAll();
     }
 
-    private synchronized void satisfyNextChunk()
+    private void satisfyNextChunk()
     {
       //System.err.println("sat. next chunk");
-      while (!haveNeed) {
-        try {
-          wait();
-        } catch (final InterruptedException ex) {
-          // ignore
+      lock.lock();
+      try {
+        while (!haveNeed && !stopRequested) {
+          needChanged.awaitUninterruptibly();
         }
+        if (stopRequested) {
+          return;
+        }
+        serialWriter.provideNextChunk();
+        haveNeed = false;
+        needChanged.signalAll();
+      } finally {
+        lock.unlock();
       }
-      serialWriter.provideNextChunk();
-      haveNeed = false;
-      notifyAll();
     }
 
     public void run()
@@ -238,7 +442,13 @@ public class SerialWriter extends Thread implements QCRecorder
 
     public void requestStop()
     {
-      stopRequested = true;
+      lock.lock();
+      try {
+        stopRequested = true;
+        needChanged.signalAll();
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
@@ -255,41 +465,67 @@ public class SerialWriter extends Thread implements QCRecorder
   {
     running = true;
     System.out.println("enter write loop");
+    started.countDown();
     reader.addRecorder(this);
     final Producer producer = new Producer(this);
-    producer.start();
+    final Thread producerThread =
+      threadMode.newThread(producer, "QuadCop serial producer");
+    producerThread.start();
     producer.requireNextChunk();
-    swapBuffers();
+    // after a reconnect, resume with the pending records first
+    if (writeBufferSize == 0) {
+      swapBuffers();
+    }
     System.out.println("pre-loaded " + writeBufferSize + " records");
-    while (starvationException == null) {
+    while ((starvationException == null) && !stopRequested) {
       try {
         if (writeBufferSize > 0) {
-          for (int i = 0; i < writeBufferSize; i++) {
-            while (!txWriteBufferIsReady()) {
+          while ((writeBufferWriteIndex < writeBufferSize) &&
+                 !stopRequested) {
+            final long record = writeBuffer[writeBufferWriteIndex];
+            while (!txWriteBufferIsReady() && !stopRequested) {
               // AtMega requires ~5 ms to process half of the tx
               // buffer, so keep below that
               pause(1);
             }
-            writeDataRecord(writeBuffer[i]);
-            if (i == (writeBufferSize / 2)) {
+            if (stopRequested) {
+              break;
+            }
+            if (!RecordRing.isGapMarker(record)) {
+              writeDataRecord(writeBufferWriteIndex);
+            }
+            if (writeBufferWriteIndex == (writeBufferSize / 2)) {
               producer.requireNextChunk();
             }
+            writeBufferWriteIndex++;
           }
         } else {
           // empty write buffer => must wait for producer anyway
           producer.requireNextChunk();
           pause(1);
         }
-        writeBufferSize = 0;
-        swapBuffers();
+        if (!stopRequested) {
+          writeBufferSize = 0;
+          swapBuffers();
+        }
       } catch (final IOException ex) {
         starvationException = ex;
       }
     }
     producer.requestStop();
+    try {
+      producerThread.join(PRODUCER_JOIN_TIMEOUT_MS);
+    } catch (final InterruptedException ex) {
+      // ignore
+    }
     reader.removeRecorder(this);
-    System.out.println("exit write loop: " + starvationException.getMessage());
+    System.out.println("exit write loop" +
+                       (starvationException != null ?
+                        ": " + starvationException.getMessage() : ""));
     running = false;
+    if ((starvationException != null) && (failureHandler != null)) {
+      failureHandler.accept(starvationException);
+    }
   }
 
   public void close() throws IOException
@@ -0,0 +1,447 @@
+/*
+ * @(#)SharedRing.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * Ring of records in a memory-mapped file, for handing records to
+ * other processes on the same machine, or receiving records from
+ * them, without any system call per record.  Like RecordRing, there
+ * is a single writer that never waits, and any number of readers,
+ * each following the ring with its own cursor.
+ *
+ * The file consists of a header of HEADER_LENGTH bytes followed by
+ * the slots, all little-endian:
+ *
+ * <pre>
+ * offset  size  header field
+ *      0     8  magic "QCRING" followed by 0 and the format version
+ *      8     4  number of slots, a power of two
+ *     12     4  slot length, i.e. SLOT_LENGTH
+ *     16     8  write sequence, i.e. number of records ever written
+ *     24     8  wall clock time in ms of timestamp 0
+ *     32     4  state: 1 while the writer is attached, 2 when closed
+ *
+ * offset  size  slot field
+ *      0     8  timestamp in ns
+ *      8     6  record in recorder file order
+ *     14     2  low 16 bits of the record's sequence number
+ * </pre>
+ *
+ * Record s is stored in slot s modulo the number of slots, and is
+ * published by storing s + 1 as write sequence afterwards.  A reader
+ * copies the records between its position and the write sequence,
+ * then reads the write sequence again, and discards the records that
+ * the writer may have overwritten meanwhile, i.e. all records older
+ * than the write sequence minus the number of slots plus one.
+ */
+public class SharedRing implements QCRecorder
+{
+  public static final byte FORMAT_VERSION = 1;
+  public static final int HEADER_LENGTH = 64;
+  public static final int SLOT_LENGTH = 16;
+  public static final int STATE_OPEN = 1;
+  public static final int STATE_CLOSED = 2;
+
+  private static final byte[] MAGIC = {
+    'Q', 'C', 'R', 'I', 'N', 'G', 0, FORMAT_VERSION
+  };
+  private static final int SLOTS_OFFSET = 8;
+  private static final int SLOT_LENGTH_OFFSET = 12;
+  private static final int WRITE_SEQUENCE_OFFSET = 16;
+  private static final int TIME_ORIGIN_OFFSET = 24;
+  private static final int STATE_OFFSET = 32;
+
+  // memory fences of Java 9 and later; on Java 8, a volatile access
+  // serves as fence, which is what HotSpot emits for it in practice
+  private static final MethodHandle RELEASE_FENCE =
+    findFence("releaseFence");
+  private static final MethodHandle ACQUIRE_FENCE =
+    findFence("acquireFence");
+  private static volatile int fence;
+
+  private static MethodHandle findFence(final String name)
+  {
+    try {
+      return MethodHandles.publicLookup().
+        findStatic(Class.forName("java.lang.invoke.VarHandle"), name,
+                   MethodType.methodType(void.class));
+    } catch (final ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+
+  private static void releaseFence()
+  {
+    if (RELEASE_FENCE != null) {
+      try {
+        RELEASE_FENCE.invokeExact();
+        return;
+      } catch (final Throwable t) {
+        // fall back
+      }
+    }
+    fence = 0;
+  }
+
+  private static void acquireFence()
+  {
+    if (ACQUIRE_FENCE != null) {
+      try {
+        ACQUIRE_FENCE.invokeExact();
+        return;
+      } catch (final Throwable t) {
+        // fall back
+      }
+    }
+    final int ignored = fence;
+  }
+
+  /**
+   * A reader's position in the ring.  Not thread-safe; each reader
+   * thread uses its own cursor.
+   */
+  public class Cursor
+  {
+    private long next;
+    private long lost;
+    private long[] unpackBuffer;
+
+    private Cursor(final long next)
+    {
+      this.next = next;
+      lost = 0;
+      unpackBuffer = new long[0];
+    }
+
+    /**
+     * Copies the records available since the last read into records,
+     * and their timestamps into timestamps, if not null, and returns
+     * their number.
+     */
+    public int read(final QuadCop.DataRecord[] records,
+                    final long[] timestamps)
+    {
+      if (unpackBuffer.length < records.length) {
+        unpackBuffer = new long[records.length];
+      }
+      final int count = read(unpackBuffer, 0, records.length, timestamps);
+      for (int i = 0; i < count; i++) {
+        records[i] = RecordRing.unpack(unpackBuffer[i]);
+      }
+      return count;
+    }
+
+    /**
+     * Copies up to length records available since the last read,
+     * packed as by RecordRing.pack(), into records, and their
+     * timestamps into timestamps, if not null, both starting at the
+     * given offset, and returns their number.  Does not allocate
+     * anything.
+     */
+    public int read(final long[] records, final int offset,
+                    final int length, final long[] timestamps)
+    {
+      final long written = getWriteSequence();
+      final long oldest = written - slots;
+      if (next < oldest) {
+        lost += oldest - next;
+        next = oldest;
+      }
+      final int count = (int)Math.min(length, written - next);
+      for (int i = 0; i < count; i++) {
+        final int slot = slotOffset(next + i);
+        if (timestamps != null) {
+          timestamps[offset + i] = buffer.getLong(slot);
+        }
+        long record = 0;
+        for (int j = QuadCop.DataRecord.getByteLength() - 1; j >= 0; j--) {
+          record = (record << 8) | (buffer.get(slot + 8 + j) & 0xffL);
+        }
+        records[offset + i] = record;
+      }
+      acquireFence();
+      // drop entries that may have been torn by the writer
+      final long overwritten = getWriteSequence() - slots + 1 - next;
+      int valid = Math.max(0, count);
+      if (overwritten > 0) {
+        final int dropped = (int)Math.min(valid, overwritten);
+        System.arraycopy(records, offset + dropped, records, offset,
+                         valid - dropped);
+        if (timestamps != null) {
+          System.arraycopy(timestamps, offset + dropped, timestamps, offset,
+                           valid - dropped);
+        }
+        valid -= dropped;
+        lost += overwritten;
+        next += overwritten;
+      }
+      next += valid;
+      return valid;
+    }
+
+    /**
+     * Returns the number of records written but not yet read.
+     */
+    public long available()
+    {
+      return Math.max(0, getWriteSequence() - next);
+    }
+
+    /**
+     * Returns the total number of records that were overwritten
+     * before this cursor could read them.
+     */
+    public long getLost()
+    {
+      return lost;
+    }
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final FileLock writerLock;
+  private final int slots;
+  private final long originNanos;
+
+  private SharedRing()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  private SharedRing(final File file, final int slots, final boolean writer)
+    throws IOException
+  {
+    this.file = file;
+    raf = new RandomAccessFile(file, writer ? "rw" : "r");
+    channel = raf.getChannel();
+    try {
+      if (writer) {
+        writerLock = channel.tryLock(0, HEADER_LENGTH, false);
+        if (writerLock == null) {
+          throw new IOException("ring already has a writer: " + file);
+        }
+        raf.setLength(HEADER_LENGTH + (long)slots * SLOT_LENGTH);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.slots = slots;
+        originNanos = System.nanoTime();
+        initHeader();
+      } else {
+        writerLock = null;
+        if (channel.size() < HEADER_LENGTH) {
+          throw new IOException("not a ring file: " + file);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                             channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < MAGIC.length; i++) {
+          if (buffer.get(i) != MAGIC[i]) {
+            throw new IOException("not a ring file or unsupported " +
+                                  "version: " + file);
+          }
+        }
+        this.slots = buffer.getInt(SLOTS_OFFSET);
+        final long length = HEADER_LENGTH + (long)this.slots * SLOT_LENGTH;
+        if ((this.slots <= 0) || ((this.slots & (this.slots - 1)) != 0) ||
+            (buffer.getInt(SLOT_LENGTH_OFFSET) != SLOT_LENGTH) ||
+            (channel.size() < length)) {
+          throw new IOException("corrupt ring header: " + file);
+        }
+        originNanos = 0;
+      }
+    } catch (final IOException ex) {
+      raf.close();
+      throw ex;
+    }
+  }
+
+  private void initHeader()
+  {
+    // hide the ring from readers until the header is complete
+    buffer.put(0, (byte)0);
+    buffer.putInt(SLOTS_OFFSET, slots);
+    buffer.putInt(SLOT_LENGTH_OFFSET, SLOT_LENGTH);
+    buffer.putLong(WRITE_SEQUENCE_OFFSET, 0);
+    buffer.putLong(TIME_ORIGIN_OFFSET, System.currentTimeMillis());
+    buffer.putInt(STATE_OFFSET, STATE_OPEN);
+    for (int i = 1; i < MAGIC.length; i++) {
+      buffer.put(i, MAGIC[i]);
+    }
+    releaseFence();
+    buffer.put(0, MAGIC[0]);
+  }
+
+  /**
+   * Creates or truncates the ring file and attaches to it as its
+   * single writer.
+   *
+   * @param slots The number of records kept; rounded up to the next
+   * power of two.
+   */
+  public static SharedRing create(final File file, final int slots)
+    throws IOException
+  {
+    if ((slots <= 0) || (slots > (1 << 26))) {
+      throw new IllegalArgumentException("slots not in [1, 2^26]");
+    }
+    final int size = Math.max(Integer.highestOneBit(slots - 1) << 1, 1);
+    return new SharedRing(file, size, true);
+  }
+
+  /**
+   * Opens an existing ring file for reading.
+   */
+  public static SharedRing open(final File file) throws IOException
+  {
+    return new SharedRing(file, 0, false);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public int getSlots()
+  {
+    return slots;
+  }
+
+  private int slotOffset(final long sequence)
+  {
+    return HEADER_LENGTH + (int)(sequence & (slots - 1)) * SLOT_LENGTH;
+  }
+
+  public long getWriteSequence()
+  {
+    final long written = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+    acquireFence();
+    return written;
+  }
+
+  /**
+   * Returns the wall clock time in milliseconds that corresponds to
+   * timestamp 0.
+   */
+  public long getTimeOriginMillis()
+  {
+    return buffer.getLong(TIME_ORIGIN_OFFSET);
+  }
+
+  /**
+   * Returns true, if the writer has closed the ring.
+   */
+  public boolean isClosed()
+  {
+    return buffer.getInt(STATE_OFFSET) == STATE_CLOSED;
+  }
+
+  /**
+   * Creates a cursor that starts reading with the next record to be
+   * written.
+   */
+  public Cursor createCursor()
+  {
+    return new Cursor(getWriteSequence());
+  }
+
+  /**
+   * Creates a cursor that starts reading with the oldest record
+   * still kept in the ring.
+   */
+  public Cursor createCursorAtOldest()
+  {
+    return new Cursor(Math.max(0, getWriteSequence() - slots));
+  }
+
+  /**
+   * Appends the record, packed as by RecordRing.pack().  Must be
+   * called by the writer only, from a single thread, typically the
+   * serial reader.
+   */
+  public void publish(final long packedRecord)
+  {
+    publish(packedRecord, System.nanoTime() - originNanos);
+  }
+
+  private void publish(final long packedRecord, final long timestamp)
+  {
+    if (writerLock == null) {
+      throw new IllegalStateException("ring opened for reading only");
+    }
+    final long sequence = buffer.getLong(WRITE_SEQUENCE_OFFSET);
+    final int offset = slotOffset(sequence);
+    buffer.putLong(offset, timestamp);
+    for (int i = 0; i < QuadCop.DataRecord.getByteLength(); i++) {
+      buffer.put(offset + 8 + i, (byte)(packedRecord >>> (8 * i)));
+    }
+    buffer.putShort(offset + 14, (short)sequence);
+    releaseFence();
+    buffer.putLong(WRITE_SEQUENCE_OFFSET, sequence + 1);
+  }
+
+  public void recordReceived(final QuadCop.DataRecord record)
+  {
+    publish(RecordRing.pack(record));
+  }
+
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    final long timestamp = System.nanoTime() - originNanos;
+    for (int i = offset; i < offset + count; i++) {
+      publish(packedRecords[i], timestamp);
+    }
+  }
+
+  /**
+   * Marks the ring as closed, if attached as writer.  The mapping
+   * itself is released only when garbage collected.
+   */
+  public void close() throws IOException
+  {
+    if (writerLock != null) {
+      releaseFence();
+      buffer.putInt(STATE_OFFSET, STATE_CLOSED);
+      writerLock.release();
+    }
+    raf.close();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,169 @@
+/*
+ * @(#)SharedRingPlayer.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays the records that another local process writes into a shared
+ * memory ring file, see SharedRing for its layout.  Playing starts
+ * with the next record written after opening the ring, and ends when
+ * the writing process has closed the ring and all of its records
+ * have been played.
+ */
+public class SharedRingPlayer implements QCPlayer
+{
+  private final SharedRing ring;
+  private final SharedRing.Cursor cursor;
+  private final List<ProgressListener> progressListeners;
+  private long[] unpackBuffer;
+  private long recordsPlayed;
+  private long underruns;
+  private boolean endOfStream;
+
+  private SharedRingPlayer()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public SharedRingPlayer(final File file) throws IOException
+  {
+    if (file == null) {
+      throw new NullPointerException("file");
+    }
+    ring = SharedRing.open(file);
+    cursor = ring.createCursor();
+    progressListeners = new ArrayList<ProgressListener>();
+    unpackBuffer = new long[0];
+    recordsPlayed = 0;
+    underruns = 0;
+    endOfStream = false;
+  }
+
+  public File getFile()
+  {
+    return ring.getFile();
+  }
+
+  public boolean addProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.add(progressListener);
+  }
+
+  public boolean removeProgressListener(final ProgressListener progressListener)
+  {
+    return progressListeners.remove(progressListener);
+  }
+
+  public synchronized int provideNextChunk(final QuadCop.DataRecord[] buffer)
+  {
+    if (unpackBuffer.length < buffer.length) {
+      unpackBuffer = new long[buffer.length];
+    }
+    final int count = provideNextPackedChunk(unpackBuffer, 0, buffer.length);
+    for (int i = 0; i < count; i++) {
+      buffer[i] = RecordRing.unpack(unpackBuffer[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Provides the records written since the last call.  Returns 0
+   * rather than waiting, if there are none.
+   */
+  public synchronized int provideNextPackedChunk(final long[] buffer,
+                                                 final int offset,
+                                                 final int length)
+  {
+    if (endOfStream) {
+      return 0;
+    }
+    // check before reading, such that no record is missed that was
+    // written just before closing
+    final boolean closed = ring.isClosed();
+    final int count = cursor.read(buffer, offset, length, null);
+    recordsPlayed += count;
+    if (closed && (count == 0)) {
+      endOfStream = true;
+      for (final ProgressListener progressListener : progressListeners) {
+        progressListener.endOfStreamReached();
+      }
+    }
+    return count;
+  }
+
+  public synchronized void bufferUnderrunDetected()
+  {
+    if (!endOfStream && (recordsPlayed > 0)) {
+      underruns++;
+    }
+  }
+
+  public synchronized boolean isEndOfStreamReached()
+  {
+    return endOfStream;
+  }
+
+  public synchronized long getRecordsPlayed()
+  {
+    return recordsPlayed;
+  }
+
+  public synchronized long getUnderruns()
+  {
+    return underruns;
+  }
+
+  /**
+   * Returns the number of records that the writer overwrote before
+   * they could be played.
+   */
+  public synchronized long getLost()
+  {
+    return cursor.getLost();
+  }
+
+  public synchronized String getReport()
+  {
+    final StringBuffer s = new StringBuffer();
+    s.append("ring ").append(ring.getFile());
+    s.append(": played=").append(recordsPlayed);
+    s.append(", pending=").append(cursor.available());
+    s.append(", lost=").append(cursor.getLost());
+    s.append(", underruns=").append(underruns);
+    return s.toString();
+  }
+
+  public void close() throws IOException
+  {
+    ring.close();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
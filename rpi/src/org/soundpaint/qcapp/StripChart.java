@@ -0,0 +1,144 @@
+/*
+ * @(#)StripChart.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JToolBar;
+
+/**
+ * Window with a live strip chart of the records received from the
+ * quad copter, i.e. of the levers while recording, and of the echoed
+ * levers while playing.  The chart follows the quad copter only
+ * while the window is shown.
+ */
+public class StripChart extends JFrame
+{
+  private static final long serialVersionUID = 2460517930945836184L;
+
+  private static final String TITLE = "Strip Chart";
+  private static final int RING_CAPACITY = 4096;
+  private static final Integer[] SPANS = { 2, 5, 10, 30, 60 };
+
+  private final QuadCopApp quadCopApp;
+  private final RecordRing ring;
+  private QuadCop quadCop;
+  private final StripChartPane stripChartPane;
+
+  private StripChart()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public StripChart(final QuadCopApp quadCopApp)
+  {
+    if (quadCopApp == null) {
+      throw new NullPointerException("quadCopApp");
+    }
+    this.quadCopApp = quadCopApp;
+    quadCop = null;
+    ring = new RecordRing(RING_CAPACITY);
+    updateTitle();
+    setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+    stripChartPane = new StripChartPane(ring);
+    add(createToolBar(), BorderLayout.PAGE_START);
+    add(new PianoRoll.ChannelHeader(), BorderLayout.LINE_START);
+    add(stripChartPane, BorderLayout.CENTER);
+    addComponentListener(new ComponentAdapter() {
+        public void componentShown(final ComponentEvent event)
+        {
+          startFollowing();
+        }
+
+        public void componentHidden(final ComponentEvent event)
+        {
+          stopFollowing();
+        }
+      });
+    pack();
+    setLocationRelativeTo(quadCopApp);
+  }
+
+  private JToolBar createToolBar()
+  {
+    final JToolBar toolBar = new JToolBar();
+    toolBar.setFloatable(false);
+    toolBar.add(new JLabel("Span "));
+    final JComboBox<Integer> span = new JComboBox<Integer>(SPANS);
+    span.setSelectedItem(stripChartPane.getSpan());
+    span.setMaximumSize(span.getPreferredSize());
+    span.setToolTipText("Seconds shown over the width of the chart");
+    span.addActionListener((final ActionEvent event) -> {
+        stripChartPane.setSpan((Integer)span.getSelectedItem());
+      });
+    toolBar.add(span);
+    toolBar.add(new JLabel(" s"));
+    return toolBar;
+  }
+
+  private void updateTitle()
+  {
+    setTitle(quadCopApp.getQuadCop() != null ?
+             TITLE : TITLE + " (not connected)");
+  }
+
+  /**
+   * Called when the quad copter got connected after startup.
+   */
+  public void quadCopConnected()
+  {
+    updateTitle();
+    if (isShowing()) {
+      stopFollowing();
+      startFollowing();
+    }
+  }
+
+  private void startFollowing()
+  {
+    quadCop = quadCopApp.getQuadCop();
+    if (quadCop != null) {
+      quadCop.addRecorder(ring);
+    }
+    stripChartPane.start();
+  }
+
+  private void stopFollowing()
+  {
+    stripChartPane.stop();
+    if (quadCop != null) {
+      quadCop.removeRecorder(ring);
+      quadCop = null;
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,338 @@
+/*
+ * @(#)StripChartPane.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.event.ActionEvent;
+import java.awt.image.BufferedImage;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Live strip chart of the levers and buttons over the last few
+ * seconds, in the lane layout of the piano roll.
+ *
+ * Records are taken from a record ring on each timer tick.  Time
+ * advances from right to left at a fixed number of pixel columns per
+ * second, independent of the rate at which records arrive; all
+ * records that fall into a column are drawn as vertical min / max
+ * line.  Rather than redrawing the whole chart, the chart image is
+ * scrolled by the number of elapsed columns, and only the new columns
+ * are drawn.  Memory consumption is fixed by the ring's capacity and
+ * the chart's size, such that the chart may run for hours.
+ */
+public class StripChartPane extends JComponent
+{
+  private static final long serialVersionUID = -1297036311585460632L;
+
+  public static final int LEVERS = PianoRollPane.LEVERS;
+  public static final int BUTTONS = PianoRollPane.BUTTONS;
+  public static final int DEFAULT_SPAN_SECONDS = 10;
+
+  private static final int FRAMES_PER_SECOND = 30;
+  private static final int DEFAULT_WIDTH = 600;
+
+  /**
+   * If no records arrive, the last lever values are continued for
+   * at most that long; afterwards, the chart shows a gap.
+   */
+  private static final long HOLD_NANOS = 250000000L;
+
+  private final RecordRing ring;
+  private final long[] readBuffer;
+  private final Timer timer;
+  private RecordRing.Cursor cursor;
+  private BufferedImage image;
+  private int spanSeconds;
+  private double columnNanos;
+  private double pendingColumns;
+  private long lastTickNanos;
+
+  // accumulated column, possibly carried over multiple ticks
+  private final int[] columnMin;
+  private final int[] columnMax;
+  private int columnButtons;
+  private int columnRecords;
+
+  private final int[] previousMin;
+  private final int[] previousMax;
+  private int previousButtons;
+  private boolean havePrevious;
+  private long lastRecordNanos;
+
+  private StripChartPane()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  public StripChartPane(final RecordRing ring)
+  {
+    if (ring == null) {
+      throw new NullPointerException("ring");
+    }
+    this.ring = ring;
+    readBuffer = new long[ring.getCapacity()];
+    columnMin = new int[LEVERS];
+    columnMax = new int[LEVERS];
+    previousMin = new int[LEVERS];
+    previousMax = new int[LEVERS];
+    resetColumn();
+    havePrevious = false;
+    spanSeconds = DEFAULT_SPAN_SECONDS;
+    cursor = null;
+    image = null;
+    setOpaque(true);
+    setPreferredSize(new Dimension(DEFAULT_WIDTH,
+                                   PianoRollPane.getLanesHeight()));
+    timer = new Timer(1000 / FRAMES_PER_SECOND, (final ActionEvent event) -> {
+        tick();
+      });
+  }
+
+  /**
+   * Sets the time span shown over the width of the chart.
+   */
+  public void setSpan(final int spanSeconds)
+  {
+    if (spanSeconds <= 0) {
+      throw new IllegalArgumentException("span must be positive");
+    }
+    this.spanSeconds = spanSeconds;
+    updateColumnNanos();
+  }
+
+  public int getSpan()
+  {
+    return spanSeconds;
+  }
+
+  /**
+   * Returns the number of records that were overwritten in the ring
+   * before the chart could pick them up.
+   */
+  public long getLostRecords()
+  {
+    return cursor != null ? cursor.getLost() : 0;
+  }
+
+  public void start()
+  {
+    if (!timer.isRunning()) {
+      cursor = ring.createCursor();
+      lastTickNanos = System.nanoTime();
+      pendingColumns = 0.0;
+      timer.start();
+    }
+  }
+
+  public void stop()
+  {
+    timer.stop();
+  }
+
+  private void updateColumnNanos()
+  {
+    final int width = Math.max(1, getWidth());
+    columnNanos = spanSeconds * 1.0e9 / width;
+  }
+
+  private BufferedImage createChartImage(final int width, final int height)
+  {
+    final GraphicsConfiguration graphicsConfiguration =
+      getGraphicsConfiguration();
+    if (graphicsConfiguration != null) {
+      return
+        graphicsConfiguration.createCompatibleImage(width, height,
+                                                    Transparency.OPAQUE);
+    } else {
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+  }
+
+  private void ensureImage()
+  {
+    final int width = Math.max(1, getWidth());
+    final int height = PianoRollPane.getLanesHeight();
+    if ((image == null) || (image.getWidth() != width)) {
+      image = createChartImage(width, height);
+      final Graphics g = image.getGraphics();
+      paintLanes(g, 0, width);
+      g.dispose();
+      havePrevious = false;
+      updateColumnNanos();
+    }
+  }
+
+  private static void paintLanes(final Graphics g, final int x,
+                                 final int width)
+  {
+    final int leverHeight = PianoRollPane.getLeverLaneHeight();
+    final int buttonHeight = PianoRollPane.getButtonLaneHeight();
+    g.setColor(PianoRollPane.BACKGROUND_COLOR);
+    g.fillRect(x, 0, width, PianoRollPane.getLanesHeight());
+    g.setColor(PianoRollPane.LANE_COLOR);
+    for (int lever = 0; lever < LEVERS; lever++) {
+      g.fillRect(x, PianoRollPane.getLeverLaneTop(lever), width, leverHeight);
+    }
+    for (int button = 0; button < BUTTONS; button++) {
+      g.fillRect(x, PianoRollPane.getButtonLaneTop(button), width,
+                 buttonHeight);
+    }
+    g.setColor(PianoRollPane.CENTER_LINE_COLOR);
+    for (int lever = 0; lever < LEVERS; lever++) {
+      final int centerY =
+        PianoRollPane.getLeverLaneTop(lever) + leverHeight / 2;
+      g.drawLine(x, centerY, x + width - 1, centerY);
+    }
+  }
+
+  private void resetColumn()
+  {
+    for (int lever = 0; lever < LEVERS; lever++) {
+      columnMin[lever] = 255;
+      columnMax[lever] = 0;
+    }
+    columnButtons = 0;
+    columnRecords = 0;
+  }
+
+  private void accumulate(final long packedRecord)
+  {
+    for (int lever = 0; lever < LEVERS; lever++) {
+      final int value = RecordRing.getLever(packedRecord, lever);
+      if (value < columnMin[lever]) {
+        columnMin[lever] = value;
+      }
+      if (value > columnMax[lever]) {
+        columnMax[lever] = value;
+      }
+    }
+    columnButtons |= RecordRing.getButtons(packedRecord) & 0xff;
+    columnRecords++;
+  }
+
+  private void tick()
+  {
+    ensureImage();
+    final long now = System.nanoTime();
+    pendingColumns += (now - lastTickNanos) / columnNanos;
+    lastTickNanos = now;
+    final int width = image.getWidth();
+    final int columns = (int)Math.min(width, Math.floor(pendingColumns));
+    pendingColumns = Math.min(pendingColumns - columns, 1.0);
+    final int count = cursor.read(readBuffer);
+    if (count > 0) {
+      lastRecordNanos = now;
+    }
+    if (columns == 0) {
+      // carry records over into the next column
+      for (int i = 0; i < count; i++) {
+        accumulate(readBuffer[i]);
+      }
+      return;
+    }
+    final Graphics g = image.getGraphics();
+    if (columns < width) {
+      g.copyArea(columns, 0, width - columns, image.getHeight(), -columns, 0);
+    }
+    paintLanes(g, width - columns, columns);
+    for (int column = 0; column < columns; column++) {
+      final int from = (int)((long)column * count / columns);
+      final int to = (int)((long)(column + 1) * count / columns);
+      for (int i = from; i < to; i++) {
+        accumulate(readBuffer[i]);
+      }
+      drawColumn(g, width - columns + column, now);
+      resetColumn();
+    }
+    g.dispose();
+    repaint();
+  }
+
+  private void drawColumn(final Graphics g, final int x, final long now)
+  {
+    if (columnRecords == 0) {
+      if (!havePrevious || (now - lastRecordNanos > HOLD_NANOS)) {
+        havePrevious = false;
+        return;
+      }
+      // no new record within this column => hold the last values
+      for (int lever = 0; lever < LEVERS; lever++) {
+        final int last = previousMax[lever];
+        columnMin[lever] = last;
+        columnMax[lever] = last;
+      }
+      columnButtons = previousButtons;
+    }
+    for (int lever = 0; lever < LEVERS; lever++) {
+      int low = columnMin[lever];
+      int high = columnMax[lever];
+      if (havePrevious) {
+        // connect to the previous column to get a continuous curve
+        if (previousMax[lever] < low) {
+          low = previousMax[lever];
+        }
+        if (previousMin[lever] > high) {
+          high = previousMin[lever];
+        }
+      }
+      g.setColor(PianoRollPane.LEVER_COLORS[lever]);
+      g.drawLine(x, PianoRollPane.leverToY(lever, high),
+                 x, PianoRollPane.leverToY(lever, low));
+      previousMin[lever] = columnMin[lever];
+      previousMax[lever] = columnMax[lever];
+    }
+    previousButtons = columnButtons;
+    havePrevious = true;
+    if (columnButtons != 0) {
+      final int buttonHeight = PianoRollPane.getButtonLaneHeight();
+      g.setColor(PianoRollPane.BUTTON_COLOR);
+      for (int button = 0; button < BUTTONS; button++) {
+        // button 0 is transmitted as most significant bit
+        if ((columnButtons & (1 << (BUTTONS - 1 - button))) != 0) {
+          final int top = PianoRollPane.getButtonLaneTop(button);
+          g.drawLine(x, top + 2, x, top + buttonHeight - 3);
+        }
+      }
+    }
+  }
+
+  protected void paintComponent(final Graphics g)
+  {
+    ensureImage();
+    g.drawImage(image, 0, 0, null);
+    if (getHeight() > image.getHeight()) {
+      g.setColor(PianoRollPane.BACKGROUND_COLOR);
+      g.fillRect(0, image.getHeight(), getWidth(),
+                 getHeight() - image.getHeight());
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
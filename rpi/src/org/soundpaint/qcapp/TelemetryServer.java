@@ -0,0 +1,588 @@
+/*
+ * @(#)TelemetryServer.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the stream of received records to remote viewers over TCP
+ * and UDP on the same port number.
+ *
+ * The serial reader merely publishes each record into a RecordRing,
+ * and wakes up the server thread at most once per select.  The
+ * server thread drains the ring in batches, encodes each batch once
+ * into a frame in a direct buffer, and hands that frame to all
+ * clients: TCP clients queue read-only views of shared frames and
+ * write them with gathering writes; UDP subscribers get one datagram
+ * per frame.
+ *
+ * A frame consists of the magic bytes 'Q' 'C', the format version,
+ * the number N of records, the 64 bit sequence number of the first
+ * record, and N records of DataRecord.getByteLength() bytes each in
+ * recorder file order, all in network byte order.  Gaps in the
+ * sequence numbers show records a client missed.
+ *
+ * A TCP client whose queue of pending frames is full is handled
+ * according to its policy: it either loses its oldest frames not yet
+ * started, or it is disconnected.  A client selects its policy by
+ * sending 'd' or 'x', respectively.  UDP clients subscribe by sending
+ * any datagram, and must renew the subscription at least every
+ * SUBSCRIPTION_TIMEOUT_MS.
+ */
+public class TelemetryServer implements QCRecorder
+{
+  public enum Policy {
+    DROP_OLDEST("drop oldest", 'd'),
+    DISCONNECT("disconnect", 'x');
+
+    private final String label;
+    private final char request;
+
+    private Policy(final String label, final char request)
+    {
+      this.label = label;
+      this.request = request;
+    }
+
+    public char getRequest()
+    {
+      return request;
+    }
+
+    public String toString()
+    {
+      return label;
+    }
+  };
+
+  public static final byte FORMAT_VERSION = 1;
+  public static final int HEADER_LENGTH = 12;
+  public static final int MAX_FRAME_RECORDS = 255;
+  public static final long SUBSCRIPTION_TIMEOUT_MS = 10000;
+
+  private static final int RING_CAPACITY = 4096;
+  private static final int MAX_QUEUED_FRAMES = 64;
+  // frames are reused round robin; each client's queue holds a suffix
+  // of the frames broadcast, except for a partially written head
+  // frame kept while dropping, which is copied to the client's own
+  // buffer beforehand, such that no client refers to a frame that is
+  // more than MAX_QUEUED_FRAMES old
+  private static final int FRAME_SLOTS = 2 * MAX_QUEUED_FRAMES;
+  private static final int MAX_FRAME_LENGTH =
+    HEADER_LENGTH + MAX_FRAME_RECORDS * QuadCop.DataRecord.getByteLength();
+  private static final long EXPIRY_CHECK_PERIOD_MS = 1000;
+
+  private class Client
+  {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer[] queue;
+    private final ByteBuffer request;
+    private final ByteBuffer partialFrame;
+    private int head;
+    private int size;
+    private Policy policy;
+
+    private Client(final SocketChannel channel) throws IOException
+    {
+      this.channel = channel;
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      queue = new ByteBuffer[MAX_QUEUED_FRAMES];
+      request = ByteBuffer.allocate(16);
+      partialFrame = ByteBuffer.allocateDirect(MAX_FRAME_LENGTH);
+      head = 0;
+      size = 0;
+      policy = defaultPolicy;
+    }
+
+    /**
+     * Queues a view of the frame.  Returns false, if the client has
+     * been disconnected.
+     */
+    private boolean enqueue(final ByteBuffer frame)
+    {
+      if (size == queue.length) {
+        if (policy == Policy.DISCONNECT) {
+          disconnect();
+          return false;
+        }
+        dropOldest();
+      }
+      queue[(head + size++) % queue.length] = frame.duplicate();
+      return true;
+    }
+
+    /**
+     * Drops the oldest frame that has not yet been partially written,
+     * such that the stream stays aligned to frames.  A partially
+     * written frame is kept in a buffer of its own, since it may stay
+     * queued for longer than its slot among the frames.
+     */
+    private void dropOldest()
+    {
+      final int tail = (head + size - 1) % queue.length;
+      final boolean partial =
+        (queue[head] == partialFrame) || (queue[head].position() > 0);
+      if (partial && (queue[head] != partialFrame)) {
+        partialFrame.clear();
+        partialFrame.put(queue[head]);
+        partialFrame.flip();
+        queue[head] = partialFrame;
+      }
+      int i = partial ? (head + 1) % queue.length : head;
+      while (i != tail) {
+        final int next = (i + 1) % queue.length;
+        queue[i] = queue[next];
+        i = next;
+      }
+      queue[tail] = null;
+      size--;
+      framesDropped++;
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes without
+     * blocking, with one gathering write per contiguous part of the
+     * queue.
+     */
+    private void flush()
+    {
+      try {
+        while (size > 0) {
+          final int contiguous = Math.min(size, queue.length - head);
+          channel.write(queue, head, contiguous);
+          int written = 0;
+          while ((written < contiguous) &&
+                 !queue[head + written].hasRemaining()) {
+            queue[head + written] = null;
+            written++;
+          }
+          head = (head + written) % queue.length;
+          size -= written;
+          framesSent += written;
+          if (written < contiguous) {
+            break;
+          }
+        }
+      } catch (final IOException ex) {
+        disconnect();
+        return;
+      }
+      key.interestOps(size > 0 ?
+                      SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+                      SelectionKey.OP_READ);
+    }
+
+    private void readRequests()
+    {
+      request.clear();
+      final int len;
+      try {
+        len = channel.read(request);
+      } catch (final IOException ex) {
+        disconnect();
+        return;
+      }
+      if (len < 0) {
+        disconnect();
+        return;
+      }
+      for (int i = 0; i < len; i++) {
+        final char c = (char)request.get(i);
+        for (final Policy requested : Policy.values()) {
+          if (requested.request == c) {
+            policy = requested;
+          }
+        }
+      }
+    }
+
+    private void disconnect()
+    {
+      if (clients.remove(channel) != null) {
+        disconnects++;
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (final IOException ex) {
+        // ignore
+      }
+    }
+  }
+
+  private final Policy defaultPolicy;
+  private final RecordRing ring;
+  private final RecordRing.Cursor cursor;
+  private final long[] batch;
+  private final ByteBuffer[] frames;
+  private final Selector selector;
+  private final ServerSocketChannel tcp;
+  private final DatagramChannel udp;
+  private final ByteBuffer datagram;
+  private final Map<SocketChannel, Client> clients;
+  private final Map<SocketAddress, Long> subscribers;
+  private final AtomicBoolean selecting;
+  private final Thread thread;
+  private int nextFrame;
+  private long recordsRead;
+  private long lastExpiryCheck;
+  private volatile boolean closed;
+
+  // statistics, written by the server thread only
+  private volatile long framesBroadcast;
+  private volatile long framesSent;
+  private volatile long framesDropped;
+  private volatile long datagramsSent;
+  private volatile long disconnects;
+
+  private TelemetryServer()
+  {
+    throw new RuntimeException("unsupported constructor");
+  }
+
+  /**
+   * @param port The TCP and UDP port to listen on, or 0 for any free
+   * port.
+   */
+  public TelemetryServer(final int port, final Policy defaultPolicy)
+    throws IOException
+  {
+    if (defaultPolicy == null) {
+      throw new NullPointerException("defaultPolicy");
+    }
+    this.defaultPolicy = defaultPolicy;
+    ring = new RecordRing(RING_CAPACITY);
+    cursor = ring.createCursor();
+    batch = new long[MAX_FRAME_RECORDS];
+    final ByteBuffer arena =
+      ByteBuffer.allocateDirect(FRAME_SLOTS * MAX_FRAME_LENGTH);
+    frames = new ByteBuffer[FRAME_SLOTS];
+    for (int i = 0; i < FRAME_SLOTS; i++) {
+      arena.limit((i + 1) * MAX_FRAME_LENGTH);
+      arena.position(i * MAX_FRAME_LENGTH);
+      frames[i] = arena.slice();
+    }
+    selector = Selector.open();
+    tcp = ServerSocketChannel.open();
+    udp = DatagramChannel.open();
+    try {
+      tcp.socket().setReuseAddress(true);
+      tcp.bind(new InetSocketAddress(port));
+      tcp.configureBlocking(false);
+      tcp.register(selector, SelectionKey.OP_ACCEPT);
+      final int boundPort = tcp.socket().getLocalPort();
+      udp.bind(new InetSocketAddress(boundPort));
+      udp.configureBlocking(false);
+      udp.register(selector, SelectionKey.OP_READ);
+    } catch (final IOException ex) {
+      udp.close();
+      tcp.close();
+      selector.close();
+      throw ex;
+    }
+    datagram = ByteBuffer.allocate(64);
+    clients = new HashMap<SocketChannel, Client>();
+    subscribers = new HashMap<SocketAddress, Long>();
+    selecting = new AtomicBoolean(false);
+    nextFrame = 0;
+    recordsRead = 0;
+    lastExpiryCheck = System.currentTimeMillis();
+    closed = false;
+    framesBroadcast = 0;
+    framesSent = 0;
+    framesDropped = 0;
+    datagramsSent = 0;
+    disconnects = 0;
+    thread = new Thread(() -> {
+        serve();
+      }, "Telemetry server");
+    thread.setDaemon(true);
+  }
+
+  public void start()
+  {
+    thread.start();
+  }
+
+  public int getPort()
+  {
+    return tcp.socket().getLocalPort();
+  }
+
+  /**
+   * Called on the serial reader's thread; never blocks.
+   */
+  public void recordReceived(final QuadCop.DataRecord record)
+  {
+    ring.publish(RecordRing.pack(record));
+    wakeup();
+  }
+
+  public void recordsReceived(final long[] packedRecords,
+                              final int offset, final int count)
+  {
+    ring.recordsReceived(packedRecords, offset, count);
+    wakeup();
+  }
+
+  private void wakeup()
+  {
+    if (selecting.compareAndSet(true, false)) {
+      selector.wakeup();
+    }
+  }
+
+  private void serve()
+  {
+    try {
+      while (!closed) {
+        selecting.set(true);
+        if (cursor.available() > 0) {
+          // record published before selecting was set
+          selecting.set(false);
+          selector.selectNow();
+        } else {
+          selector.select(EXPIRY_CHECK_PERIOD_MS);
+          selecting.set(false);
+        }
+        handleSelectedKeys();
+        broadcastRecords();
+        expireSubscribers();
+      }
+    } catch (final ClosedSelectorException ex) {
+      // closed
+    } catch (final IOException ex) {
+      if (!closed) {
+        System.err.println("*** telemetry server failed: " +
+                           ex.getMessage() + " ***");
+      }
+    }
+  }
+
+  private void handleSelectedKeys() throws IOException
+  {
+    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    while (keys.hasNext()) {
+      final SelectionKey key = keys.next();
+      keys.remove();
+      if (!key.isValid()) {
+        continue;
+      }
+      if (key.isAcceptable()) {
+        accept();
+      } else if (key.channel() == udp) {
+        receiveSubscriptions();
+      } else {
+        final Client client = (Client)key.attachment();
+        if (key.isReadable()) {
+          client.readRequests();
+        }
+        if (key.isValid() && key.isWritable()) {
+          client.flush();
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException
+  {
+    SocketChannel channel;
+    while ((channel = tcp.accept()) != null) {
+      try {
+        clients.put(channel, new Client(channel));
+      } catch (final IOException ex) {
+        channel.close();
+      }
+    }
+  }
+
+  private void receiveSubscriptions() throws IOException
+  {
+    SocketAddress address;
+    datagram.clear();
+    while ((address = udp.receive(datagram)) != null) {
+      subscribers.put(address, System.currentTimeMillis());
+      datagram.clear();
+    }
+  }
+
+  private void expireSubscribers()
+  {
+    final long now = System.currentTimeMillis();
+    if (now - lastExpiryCheck < EXPIRY_CHECK_PERIOD_MS) {
+      return;
+    }
+    lastExpiryCheck = now;
+    final Iterator<Long> lastHeard = subscribers.values().iterator();
+    while (lastHeard.hasNext()) {
+      if (now - lastHeard.next() > SUBSCRIPTION_TIMEOUT_MS) {
+        lastHeard.remove();
+      }
+    }
+  }
+
+  private void broadcastRecords() throws IOException
+  {
+    int count;
+    while ((count = cursor.read(batch)) > 0) {
+      // sequence numbers count lost records, too
+      final ByteBuffer frame = encode(count, recordsRead + cursor.getLost());
+      recordsRead += count;
+      broadcast(frame);
+    }
+  }
+
+  private ByteBuffer encode(final int count, final long sequence)
+  {
+    final ByteBuffer frame = frames[nextFrame];
+    nextFrame = (nextFrame + 1) % FRAME_SLOTS;
+    frame.clear();
+    frame.put((byte)'Q');
+    frame.put((byte)'C');
+    frame.put(FORMAT_VERSION);
+    frame.put((byte)count);
+    frame.putLong(sequence);
+    for (int i = 0; i < count; i++) {
+      final long packedRecord = batch[i];
+      frame.put(RecordRing.getStatus(packedRecord));
+      for (int lever = 0; lever < 4; lever++) {
+        frame.put((byte)RecordRing.getLever(packedRecord, lever));
+      }
+      frame.put(RecordRing.getButtons(packedRecord));
+    }
+    frame.flip();
+    return frame.asReadOnlyBuffer();
+  }
+
+  private void broadcast(final ByteBuffer frame) throws IOException
+  {
+    framesBroadcast++;
+    for (final Client client : clients.values().toArray(new Client[0])) {
+      if (client.enqueue(frame)) {
+        client.flush();
+      }
+    }
+    if (!subscribers.isEmpty()) {
+      final ByteBuffer view = frame.duplicate();
+      for (final SocketAddress address : subscribers.keySet()) {
+        view.rewind();
+        if (udp.send(view, address) > 0) {
+          datagramsSent++;
+        }
+      }
+    }
+  }
+
+  public int getClientCount()
+  {
+    return clients.size();
+  }
+
+  public int getSubscriberCount()
+  {
+    return subscribers.size();
+  }
+
+  public long getFramesBroadcast()
+  {
+    return framesBroadcast;
+  }
+
+  /**
+   * Returns the number of frames completely written to TCP clients.
+   */
+  public long getFramesSent()
+  {
+    return framesSent;
+  }
+
+  /**
+   * Returns the number of frames dropped for slow TCP clients.
+   */
+  public long getFramesDropped()
+  {
+    return framesDropped;
+  }
+
+  public long getDatagramsSent()
+  {
+    return datagramsSent;
+  }
+
+  /**
+   * Returns the number of TCP clients that disconnected or were
+   * disconnected.
+   */
+  public long getDisconnects()
+  {
+    return disconnects;
+  }
+
+  /**
+   * Returns the number of records that the server thread did not
+   * take from the ring in time.
+   */
+  public long getRecordsLost()
+  {
+    return cursor.getLost();
+  }
+
+  public void close() throws IOException
+  {
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join(1000);
+    } catch (final InterruptedException ex) {
+      // ignore
+    }
+    for (final SocketChannel channel : clients.keySet()) {
+      channel.close();
+    }
+    udp.close();
+    tcp.close();
+    selector.close();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
@@ -0,0 +1,156 @@
+/*
+ * @(#)ThreadMode.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Selects the kind of threads that run the serial reader, writer and
+ * producer.  Virtual threads require a JDK that provides them (Java
+ * 21 or later); they are looked up by reflection, such that the
+ * application still runs on older JDKs, where VIRTUAL falls back to
+ * platform threads.
+ *
+ * The default mode is taken from the system property
+ * org.soundpaint.qcapp.threads, with values "platform" or "virtual".
+ */
+public enum ThreadMode
+{
+  PLATFORM("platform"),
+  VIRTUAL("virtual");
+
+  public static final String PROPERTY = "org.soundpaint.qcapp.threads";
+
+  private static final Method OF_VIRTUAL;
+  private static final Method BUILDER_NAME;
+  private static final Method BUILDER_UNSTARTED;
+  private static final Method IS_VIRTUAL;
+
+  static {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderUnstarted = null;
+    Method isVirtual = null;
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      builderName = builderClass.getMethod("name", String.class);
+      builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+      isVirtual = Thread.class.getMethod("isVirtual");
+      // fails on JDKs that provide virtual threads as preview only
+      ofVirtual.invoke(null);
+    } catch (final ReflectiveOperationException ex) {
+      ofVirtual = null;
+    } catch (final RuntimeException ex) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_UNSTARTED = builderUnstarted;
+    IS_VIRTUAL = isVirtual;
+  }
+
+  private final String label;
+
+  private ThreadMode(final String label)
+  {
+    this.label = label;
+  }
+
+  public String toString()
+  {
+    return label;
+  }
+
+  public static ThreadMode fromLabel(final String label)
+  {
+    for (final ThreadMode threadMode : values()) {
+      if (threadMode.label.equals(label)) {
+        return threadMode;
+      }
+    }
+    throw new IllegalArgumentException("unknown thread mode: " + label);
+  }
+
+  public static ThreadMode getDefault()
+  {
+    final String label = System.getProperty(PROPERTY);
+    return label != null ? fromLabel(label) : PLATFORM;
+  }
+
+  /**
+   * Returns true, if threads of this mode are actually created as
+   * requested rather than falling back to platform threads.
+   */
+  public boolean isSupported()
+  {
+    return (this == PLATFORM) || (OF_VIRTUAL != null);
+  }
+
+  /**
+   * Returns the mode that newThread() actually uses.
+   */
+  public ThreadMode getEffectiveMode()
+  {
+    return isSupported() ? this : PLATFORM;
+  }
+
+  /**
+   * Creates a new, unstarted thread of this mode, or a platform
+   * thread, if this mode is not supported.
+   */
+  public Thread newThread(final Runnable runnable, final String name)
+  {
+    if ((this == VIRTUAL) && (OF_VIRTUAL != null)) {
+      try {
+        final Object builder = OF_VIRTUAL.invoke(null);
+        BUILDER_NAME.invoke(builder, name);
+        return (Thread)BUILDER_UNSTARTED.invoke(builder, runnable);
+      } catch (final IllegalAccessException ex) {
+        throw new RuntimeException("failed creating virtual thread", ex);
+      } catch (final InvocationTargetException ex) {
+        throw new RuntimeException("failed creating virtual thread",
+                                   ex.getCause());
+      }
+    }
+    return new Thread(runnable, name);
+  }
+
+  public static boolean isVirtual(final Thread thread)
+  {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean)IS_VIRTUAL.invoke(thread);
+    } catch (final ReflectiveOperationException ex) {
+      return false;
+    }
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */
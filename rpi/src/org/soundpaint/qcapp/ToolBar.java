@@ -24,10 +24,14 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.net.URL;
+import javax.swing.event.ChangeEvent;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JSpinner;
 import javax.swing.JToolBar;
+import javax.swing.SpinnerNumberModel;
 
 public class ToolBar extends JToolBar
   implements TransportControl.Listener, DocumentManager.Listener
@@ -90,6 +94,68 @@ public class ToolBar extends JToolBar
       });
     record.setEnabled(true);
     add(record);
+
+    addSeparator();
+
+    final JLabel speedLabel = new JLabel("Speed ");
+    add(speedLabel);
+    final SpinnerNumberModel speedModel =
+      new SpinnerNumberModel(transportControl.getPlaybackSpeed(),
+                             DocumentPlayer.MIN_SPEED,
+                             DocumentPlayer.MAX_SPEED,
+                             0.1);
+    final JSpinner speed = new JSpinner(speedModel);
+    speed.setEditor(new JSpinner.NumberEditor(speed, "0.0x"));
+    speed.setMaximumSize(speed.getPreferredSize());
+    speed.setToolTipText("Playback speed relative to recording speed");
+    speed.addChangeListener((final ChangeEvent event) -> {
+        transportControl.
+          setPlaybackSpeed(speedModel.getNumber().doubleValue());
+      });
+    add(speed);
+
+    final JComboBox<DocumentPlayer.Interpolation> interpolation =
+      new JComboBox<DocumentPlayer.Interpolation>(DocumentPlayer.
+                                                  Interpolation.values());
+    interpolation.setSelectedItem(transportControl.getInterpolation());
+    interpolation.setMaximumSize(interpolation.getPreferredSize());
+    interpolation.setToolTipText("Interpolation of control levers " +
+                                 "when playing at other than 1.0x speed");
+    interpolation.addActionListener((final ActionEvent event) -> {
+        transportControl.
+          setInterpolation((DocumentPlayer.Interpolation)interpolation.
+                           getSelectedItem());
+      });
+    add(interpolation);
+
+    addSeparator();
+
+    final JComboBox<PlaylistPlayer.Repeat> repeat =
+      new JComboBox<PlaylistPlayer.Repeat>(PlaylistPlayer.Repeat.values());
+    repeat.setSelectedItem(transportControl.getRepeat());
+    repeat.setMaximumSize(repeat.getPreferredSize());
+    repeat.setToolTipText("Loop the document or the list of played files " +
+                          "without gaps");
+    repeat.addActionListener((final ActionEvent event) -> {
+        transportControl.
+          setRepeat((PlaylistPlayer.Repeat)repeat.getSelectedItem());
+      });
+    add(repeat);
+
+    final JLabel crossfadeLabel = new JLabel(" Crossfade ");
+    add(crossfadeLabel);
+    final SpinnerNumberModel crossfadeModel =
+      new SpinnerNumberModel(transportControl.getCrossfade(), 0,
+                             PlaylistPlayer.MAX_CROSSFADE, 16);
+    final JSpinner crossfade = new JSpinner(crossfadeModel);
+    crossfade.setMaximumSize(crossfade.getPreferredSize());
+    crossfade.setToolTipText("Number of records over which levers are " +
+                             "crossfaded between documents");
+    crossfade.addChangeListener((final ChangeEvent event) -> {
+        transportControl.
+          setCrossfade(crossfadeModel.getNumber().intValue());
+      });
+    add(crossfade);
   }
 
   private static JButton createToolButton(final String imageFileName,
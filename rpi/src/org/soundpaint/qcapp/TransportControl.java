@@ -20,11 +20,19 @@
 
 package org.soundpaint.qcapp;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EventListener;
 import java.util.List;
 
+/**
+ * Controls playing and recording.  Listeners are always notified on
+ * the event dispatch thread: progress is reported from the serial
+ * reader and writer threads through the update bus at a bounded
+ * rate, and status changes are handed over to the event dispatch
+ * thread.
+ */
 public class TransportControl
 {
   public static interface Listener extends EventListener
@@ -44,10 +52,32 @@ public class TransportControl
     RECORDING
   };
 
-  private final QuadCop quadCop;
+  /**
+   * Records kept for instant replay, i.e. some five minutes at the
+   * rate of the serial link.
+   */
+  public static final int REPLAY_CAPACITY = 1 << 18;
+
+  private QuadCop quadCop;
+  private final UpdateBus updateBus;
+  private final InstantReplay replay;
+  private final UpdateBus.Flag playProgress;
+  private final Object playProgressLock;
+  private volatile long playProgressSequence;
+  private volatile long playProgressIndexAndSize;
+  private volatile String playProgressAsPercent;
+  // accessed on the event dispatch thread only
+  private long deliveredIndexAndSize;
+  private String deliveredAsPercent;
+  private final UpdateBus.Counter recordProgress;
   private final List<Listener> listeners;
   private Status status;
-  DocumentPlayer player;
+  private double playbackSpeed;
+  private DocumentPlayer.Interpolation interpolation;
+  private PlaylistPlayer.Repeat repeat;
+  private int crossfade;
+  private OutputTransform transform;
+  PlaylistPlayer player;
   DocumentRecorder recorder;
 
   private TransportControl()
@@ -55,11 +85,42 @@ public class TransportControl
     throw new RuntimeException("unsupported constructor");
   }
 
-  public TransportControl(final QuadCop quadCop)
+  public TransportControl(final QuadCop quadCop, final UpdateBus updateBus)
   {
+    if (updateBus == null) {
+      throw new NullPointerException("updateBus");
+    }
     this.quadCop = quadCop;
+    this.updateBus = updateBus;
+    replay = new InstantReplay(REPLAY_CAPACITY);
+    if (quadCop != null) {
+      quadCop.addRecorder(replay);
+    }
+    // published under a sequence number rather than as a snapshot
+    // object, such that publishing the progress for each chunk does
+    // not allocate anything
+    playProgress =
+      updateBus.createFlag(() -> {
+          firePlayProgressChanged();
+        });
+    playProgressLock = new Object();
+    playProgressSequence = 0;
+    playProgressIndexAndSize = -1;
+    playProgressAsPercent = "";
+    deliveredIndexAndSize = -1;
+    deliveredAsPercent = "";
+    recordProgress =
+      updateBus.createCounter(0, (final long size) -> {
+          fireRecordProgressChanged((int)size);
+        });
+    // listeners are added and notified on the event dispatch thread
     listeners = new ArrayList<Listener>();
     status = Status.STOPPED;
+    playbackSpeed = DocumentPlayer.DEFAULT_SPEED;
+    interpolation = DocumentPlayer.Interpolation.CUBIC_HERMITE;
+    repeat = PlaylistPlayer.Repeat.OFF;
+    crossfade = 0;
+    transform = null;
     player = null;
     recorder = null;
   }
@@ -74,6 +135,62 @@ public class TransportControl
     return listeners.remove(listener);
   }
 
+  /**
+   * Connects the transport to the quad copter, which may become
+   * available only after startup.  A player or recorder that is
+   * already running is attached to it.
+   */
+  public synchronized void setQuadCop(final QuadCop quadCop)
+  {
+    if (this.quadCop != null) {
+      throw new IllegalStateException("quad copter already connected");
+    }
+    this.quadCop = quadCop;
+    if (quadCop != null) {
+      quadCop.setTransform(transform);
+      quadCop.addRecorder(replay);
+      if (recorder != null) {
+        quadCop.addRecorder(recorder);
+      } else if (player != null) {
+        quadCop.addPlayer(player);
+      }
+    }
+  }
+
+  public synchronized QuadCop getQuadCop()
+  {
+    return quadCop;
+  }
+
+  /**
+   * Sets the transform to apply to the records sent to the quad
+   * copter, or null for sending records unchanged.  Takes effect
+   * immediately, also while playing.
+   */
+  public synchronized void setOutputTransform(final OutputTransform transform)
+  {
+    this.transform = transform;
+    if (quadCop != null) {
+      quadCop.setTransform(transform);
+    }
+  }
+
+  public synchronized OutputTransform getOutputTransform()
+  {
+    return transform;
+  }
+
+  /**
+   * Returns a new document with the records received within the last
+   * given number of seconds, regardless of whether they were recorded.
+   * The records are shared with the replay rather than copied, such
+   * that receiving records continues undisturbed.
+   */
+  public Document captureReplay(final double seconds)
+  {
+    return Document.createShared(replay.snapshotSeconds(seconds));
+  }
+
   public boolean canPlay()
   {
     // return false if e.g. no serial port available
@@ -86,6 +203,80 @@ public class TransportControl
     return true;
   }
 
+  /**
+   * Sets the speed for playing documents.  If a document is
+   * currently being played, the new speed applies immediately.
+   */
+  public synchronized void setPlaybackSpeed(final double playbackSpeed)
+  {
+    this.playbackSpeed =
+      Math.max(DocumentPlayer.MIN_SPEED,
+               Math.min(DocumentPlayer.MAX_SPEED, playbackSpeed));
+    if (player != null) {
+      player.setSpeed(this.playbackSpeed);
+    }
+  }
+
+  public synchronized double getPlaybackSpeed()
+  {
+    return playbackSpeed;
+  }
+
+  public synchronized void
+    setInterpolation(final DocumentPlayer.Interpolation interpolation)
+  {
+    if (interpolation == null) {
+      throw new NullPointerException("interpolation");
+    }
+    this.interpolation = interpolation;
+    if (player != null) {
+      player.setInterpolation(interpolation);
+    }
+  }
+
+  public synchronized DocumentPlayer.Interpolation getInterpolation()
+  {
+    return interpolation;
+  }
+
+  /**
+   * Sets whether playing repeats the current document or the whole
+   * list of documents.  Applies immediately, if currently playing.
+   */
+  public synchronized void setRepeat(final PlaylistPlayer.Repeat repeat)
+  {
+    if (repeat == null) {
+      throw new NullPointerException("repeat");
+    }
+    this.repeat = repeat;
+    if (player != null) {
+      player.setRepeat(repeat);
+    }
+  }
+
+  public synchronized PlaylistPlayer.Repeat getRepeat()
+  {
+    return repeat;
+  }
+
+  /**
+   * Sets the number of records over which levers are crossfaded
+   * between adjacent documents or loop iterations.
+   */
+  public synchronized void setCrossfade(final int crossfade)
+  {
+    this.crossfade =
+      Math.max(0, Math.min(PlaylistPlayer.MAX_CROSSFADE, crossfade));
+    if (player != null) {
+      player.setCrossfade(this.crossfade);
+    }
+  }
+
+  public synchronized int getCrossfade()
+  {
+    return crossfade;
+  }
+
   public synchronized void stop() {
     if ((status != Status.PLAYING) &&
         (status != Status.RECORDING)) {
@@ -100,6 +291,7 @@ public class TransportControl
       if (quadCop != null) {
         quadCop.removePlayer(player);
       }
+      player.dispose();
       player = null;
     } else {
       throw new IllegalStateException("neither player nor recorder present");
@@ -108,13 +300,34 @@ public class TransportControl
   }
 
   public synchronized void play(final Document document) {
+    final PlaylistPlayer playlist = new PlaylistPlayer();
+    playlist.add(document);
+    play(playlist);
+  }
+
+  /**
+   * Plays the files one after the other without gaps.
+   */
+  public synchronized void play(final List<File> files) {
+    final PlaylistPlayer playlist = new PlaylistPlayer();
+    for (final File file : files) {
+      playlist.add(file);
+    }
+    play(playlist);
+  }
+
+  private void play(final PlaylistPlayer playlist) {
     if (status != Status.STOPPED) {
       throw new IllegalStateException("not stopped");
     }
     if (player != null) {
       throw new IllegalStateException("player already present");
     }
-    player = new DocumentPlayer(document);
+    player = playlist;
+    player.setSpeed(playbackSpeed);
+    player.setInterpolation(interpolation);
+    player.setRepeat(repeat);
+    player.setCrossfade(crossfade);
     player.addProgressListener(new QCPlayer.ProgressListener() {
         public void endOfStreamReached() {
           stop();
@@ -158,22 +371,67 @@ public class TransportControl
   {
     final Status oldStatus = status;
     status = newStatus;
-    for (final Listener listener : listeners) {
-      listener.statusChanged(oldStatus, newStatus);
-    }
+    updateBus.runOnEventThread(() -> {
+        for (final Listener listener : listeners) {
+          listener.statusChanged(oldStatus, newStatus);
+        }
+      });
   }
 
+  /**
+   * Called by the player for each chunk; only publishes the progress.
+   * The string is cached by the player, and the progress is derived
+   * from index and size, such that nothing is allocated.
+   */
   public void playProgressChanged(final double progress,
                                   final String progressAsPercent,
                                   final int index,
                                   final int size)
   {
+    synchronized(playProgressLock) {
+      // odd while the values are being stored
+      final long sequence = playProgressSequence;
+      playProgressSequence = sequence + 1;
+      playProgressAsPercent = progressAsPercent;
+      playProgressIndexAndSize = ((long)index << 32) | (size & 0xffffffffL);
+      playProgressSequence = sequence + 2;
+    }
+    playProgress.raise();
+  }
+
+  /**
+   * Called by the recorder for each record; only publishes the size.
+   */
+  public void recordProgressChanged(final int size)
+  {
+    recordProgress.set(size);
+  }
+
+  private void firePlayProgressChanged()
+  {
+    final long sequence = playProgressSequence;
+    final String progressAsPercent = playProgressAsPercent;
+    final long indexAndSize = playProgressIndexAndSize;
+    if (((sequence & 1) != 0) || (playProgressSequence != sequence)) {
+      // caught the player while storing => retry with next delivery
+      playProgress.raise();
+      return;
+    }
+    if ((indexAndSize == deliveredIndexAndSize) &&
+        (progressAsPercent == deliveredAsPercent)) {
+      return;
+    }
+    deliveredIndexAndSize = indexAndSize;
+    deliveredAsPercent = progressAsPercent;
+    final int index = (int)(indexAndSize >>> 32);
+    final int size = (int)indexAndSize;
+    final double progress = size > 0 ? (1.0 * index) / size : 1.0;
     for (final Listener listener : listeners) {
       listener.playProgressChanged(progress, progressAsPercent, index, size);
     }
   }
 
-  public void recordProgressChanged(final int size)
+  private void fireRecordProgressChanged(final int size)
   {
     for (final Listener listener : listeners) {
       listener.recordProgressChanged(size);
@@ -0,0 +1,234 @@
+/*
+ * @(#)UpdateBus.java 1.00 26/10/19
+ *
+ * Copyright (C) 2026 Jürgen Reuter
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.soundpaint.qcapp;
+
+import java.awt.event.ActionEvent;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Carries state updates from the serial reader and writer threads to
+ * the user interface.
+ *
+ * Threads that produce updates at frame rate only store the latest
+ * state into a slot, which costs a single atomic store and never
+ * blocks.  A timer on the event dispatch thread delivers the latest
+ * state of each slot that changed, at most DELIVERIES_PER_SECOND
+ * times per second, regardless of how often the state was updated in
+ * between.  Therefore, listeners are always called on the event
+ * dispatch thread, and each delivery is a consistent snapshot.
+ */
+public class UpdateBus
+{
+  public static final int DELIVERIES_PER_SECOND = 25;
+
+  private static abstract class Slot
+  {
+    /**
+     * Called on the event dispatch thread.
+     */
+    protected abstract void deliver();
+  }
+
+  /**
+   * Signals that something changed.  The action is expected to read
+   * the current state itself.
+   */
+  public static class Flag extends Slot
+  {
+    private final AtomicBoolean raised;
+    private final Runnable action;
+
+    private Flag(final Runnable action)
+    {
+      raised = new AtomicBoolean(false);
+      this.action = action;
+    }
+
+    public void raise()
+    {
+      raised.lazySet(true);
+    }
+
+    protected void deliver()
+    {
+      if (raised.get() && raised.getAndSet(false)) {
+        action.run();
+      }
+    }
+  }
+
+  /**
+   * Carries a primitive value, such as a number of records.
+   */
+  public static class Counter extends Slot
+  {
+    private final AtomicLong value;
+    private final LongConsumer action;
+    private long deliveredValue;
+
+    private Counter(final long initialValue, final LongConsumer action)
+    {
+      value = new AtomicLong(initialValue);
+      this.action = action;
+      deliveredValue = initialValue;
+    }
+
+    public void set(final long value)
+    {
+      this.value.lazySet(value);
+    }
+
+    protected void deliver()
+    {
+      final long currentValue = value.get();
+      if (currentValue != deliveredValue) {
+        deliveredValue = currentValue;
+        action.accept(currentValue);
+      }
+    }
+  }
+
+  /**
+   * Carries an immutable snapshot of multiple values.
+   */
+  public static class Snapshot<T> extends Slot
+  {
+    private final AtomicReference<T> pending;
+    private final Consumer<T> action;
+
+    private Snapshot(final Consumer<T> action)
+    {
+      pending = new AtomicReference<T>(null);
+      this.action = action;
+    }
+
+    public void publish(final T snapshot)
+    {
+      if (snapshot == null) {
+        throw new NullPointerException("snapshot");
+      }
+      pending.lazySet(snapshot);
+    }
+
+    protected void deliver()
+    {
+      if (pending.get() != null) {
+        final T snapshot = pending.getAndSet(null);
+        if (snapshot != null) {
+          action.accept(snapshot);
+        }
+      }
+    }
+  }
+
+  private final List<Slot> slots;
+  private final Timer timer;
+
+  public UpdateBus()
+  {
+    slots = new CopyOnWriteArrayList<Slot>();
+    timer =
+      new Timer(1000 / DELIVERIES_PER_SECOND, (final ActionEvent event) -> {
+          deliver();
+        });
+    timer.start();
+  }
+
+  public Flag createFlag(final Runnable action)
+  {
+    if (action == null) {
+      throw new NullPointerException("action");
+    }
+    final Flag flag = new Flag(action);
+    slots.add(flag);
+    return flag;
+  }
+
+  public Counter createCounter(final long initialValue,
+                               final LongConsumer action)
+  {
+    if (action == null) {
+      throw new NullPointerException("action");
+    }
+    final Counter counter = new Counter(initialValue, action);
+    slots.add(counter);
+    return counter;
+  }
+
+  public <T> Snapshot<T> createSnapshot(final Consumer<T> action)
+  {
+    if (action == null) {
+      throw new NullPointerException("action");
+    }
+    final Snapshot<T> snapshot = new Snapshot<T>(action);
+    slots.add(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Delivers all pending updates.  Must be called on the event
+   * dispatch thread.
+   */
+  public void deliver()
+  {
+    for (final Slot slot : slots) {
+      slot.deliver();
+    }
+  }
+
+  /**
+   * Runs a rare, discrete event, such as a transport status change,
+   * on the event dispatch thread, after delivering all pending
+   * updates, such that listeners see updates and events in order.
+   */
+  public void runOnEventThread(final Runnable event)
+  {
+    if (SwingUtilities.isEventDispatchThread()) {
+      deliver();
+      event.run();
+    } else {
+      SwingUtilities.invokeLater(() -> {
+          deliver();
+          event.run();
+        });
+    }
+  }
+
+  public void dispose()
+  {
+    timer.stop();
+  }
+}
+
+/*
+ * Local Variables:
+ *   coding:utf-8
+ *   mode:java
+ * End:
+ */